@@ -0,0 +1,22 @@
+#! /bin/bash
+# Runs the operation benchmark against a throwaway PostgreSQL cluster
+# seeded from ../data at a scale factor (1 to 100), then removes it.
+#
+# Example: ./bench.sh 10 --iterations 500 --threads 4
+# Extra JVM options go in JAVA_OPTS, e.g. -Dmechanicshop.cache.maxBytes=0
+SCALE=${1:-1}
+shift
+folder=/tmp/$USER/bench
+export PGDATA=$folder/data
+PORT=${BENCH_PORT:-9997}
+
+rm -rf $folder
+mkdir -p $folder/sockets
+initdb > $folder/initdb.log || exit 1
+pg_ctl -o "-c unix_socket_directories=$folder/sockets -p $PORT" -D $PGDATA -l $folder/logfile -w start || exit 1
+trap 'pg_ctl -D $PGDATA -w stop > /dev/null; rm -rf $folder' EXIT
+createdb -h localhost -p $PORT bench_DB
+
+OPTS="-Dmechanicshop.countRoundTrips=true -Dmechanicshop.migrations=../sql/migrations $JAVA_OPTS"
+java $OPTS -cp "lib/*:bin/" MechanicShop bench_DB $PORT $USER load ../data --schema ../sql/schema.sql --scale $SCALE || exit 1
+java $OPTS -cp "lib/*:bin/" MechanicShop bench_DB $PORT $USER bench "$@"
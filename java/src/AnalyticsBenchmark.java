@@ -0,0 +1,212 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class checks the AnalyticsEngine against the SQL versions of reports
+ * 6 to 10 and times both.  For every report it runs the SQL and the engine
+ * once and compares the rows: the same rows, and for report 9 and 10 in the
+ * same order of their ORDER BY; the reports without an ORDER BY may come in
+ * any order.  It then warms each path up and runs it the given number of
+ * times (report 9 for N in 1..3 with K = 10), printing the mean and
+ * percentiles.
+ *
+ * With --scales the database is refilled at each scale factor first, by
+ * DataGenerator with --truncate, so it must be a database whose rows may be
+ * replaced:
+ *
+ *   MechanicShop <db> <port> <user> bench-analytics 5 --scales 1,10,100,1000
+ */
+public class AnalyticsBenchmark {
+	private static final int K = 10;
+	private static final int MAX_N = 3;
+
+	private final MechanicShop esql;
+	private final AnalyticsEngine engine;
+	private int iterations = 10;
+	private int[] scales = null;
+	private Long seed = null;
+	private int mismatches = 0;
+
+	public AnalyticsBenchmark(MechanicShop esql) {
+		this.esql = esql;
+		this.engine = esql.getAnalytics();
+	}
+
+	public AnalyticsBenchmark setIterations(int iterations) {
+		this.iterations = Math.max(1, iterations);
+		return this;
+	}
+
+	/**
+	 * @param scales comma separated scale factors, e.g. 1,10,100
+	 */
+	public AnalyticsBenchmark setScales(String scales) {
+		String[] parts = scales.split(",");
+		this.scales = new int[parts.length];
+		for (int i = 0; i < parts.length; ++i)
+			this.scales[i] = Integer.parseInt(parts[i].trim());
+		return this;
+	}
+
+	public AnalyticsBenchmark setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * One way of answering a report.
+	 */
+	private interface Path {
+		List<List<String>> run(int n) throws SQLException;
+	}
+
+	/**
+	 * Method to run the benchmark and print the results.
+	 *
+	 * @throws java.lang.Exception when a query or a data generation fails
+	 */
+	public void run() throws Exception {
+		if (scales == null){
+			measureAll("current data");
+		}else{
+			for (int scale : scales){
+				DataGenerator gen = new DataGenerator(esql, scale).setTruncate(true);
+				if (seed != null)
+					gen.setSeed(seed);
+				gen.generate();
+				esql.migrate();
+				measureAll("scale " + scale);
+			}
+		}
+		System.out.println(mismatches == 0 ? "All reports matched" : mismatches + " report(s) did not match");
+	}//end run
+
+	private void measureAll(String title) throws Exception {
+		System.out.println("== " + title);
+		long start = System.nanoTime();
+		int requests = engine.warm();
+		System.out.println(String.format("Loaded %d request(s) in %.1f ms", requests, (System.nanoTime() - start) / 1e6));
+		System.out.print(engine.getStats());
+
+		compare("6", sql(MechanicShop.SQL_REPORT_BILL_LESS_THAN_100), new Path() {
+			public List<List<String>> run(int n) throws SQLException {
+				return engine.billLessThan100();
+			}
+		}, false, -1);
+		compare("7", sql(MechanicShop.SQL_REPORT_MORE_THAN_20_CARS), new Path() {
+			public List<List<String>> run(int n) throws SQLException {
+				return engine.moreThan20Cars();
+			}
+		}, false, -1);
+		compare("8", sql(MechanicShop.SQL_REPORT_CARS_BEFORE_1995), new Path() {
+			public List<List<String>> run(int n) throws SQLException {
+				return engine.carsBefore1995();
+			}
+		}, false, -1);
+		compare("9", new Path() {
+			public List<List<String>> run(int n) throws SQLException {
+				return esql.executeQueryAndReturnColumns(MechanicShop.SQL_REPORT_CARS_WITH_OPEN_SERVICES, n, K).toRows();
+			}
+		}, new Path() {
+			public List<List<String>> run(int n) throws SQLException {
+				return engine.carsWithOpenRequests(n, K);
+			}
+		}, true, -1);
+		//equal totals have no order in SQL
+		compare("10", sql(MechanicShop.SQL_REPORT_TOTAL_BILL), new Path() {
+			public List<List<String>> run(int n) throws SQLException {
+				return engine.totalBill();
+			}
+		}, false, 2);
+	}//end measureAll
+
+	//the report in SQL, not from the result cache
+	private Path sql(final String query) {
+		return new Path() {
+			public List<List<String>> run(int n) throws SQLException {
+				return esql.executeQueryAndReturnColumns(query).toRows();
+			}
+		};
+	}
+
+	private void compare(String report, Path sql, Path memory, boolean exact, int orderColumn) throws SQLException {
+		for (int n = 1; n <= MAX_N; ++n){
+			List<List<String>> expected = sql.run(n);
+			List<List<String>> actual = memory.run(n);
+			if (!matches(expected, actual, exact, orderColumn)){
+				++mismatches;
+				System.out.println(String.format("report %s MISMATCH: %d row(s) in SQL, %d in memory", report, expected.size(), actual.size()));
+				break;
+			}
+			//only report 9 takes N
+			if (!report.equals("9"))
+				break;
+		}
+		long sqlMean = measure(report + " sql", sql);
+		long memoryMean = measure(report + " memory", memory);
+		System.out.println(String.format("report %s memory is %.1fx the speed of SQL", report, sqlMean / (double) Math.max(1, memoryMean)));
+	}
+
+	static boolean matches(List<List<String>> expected, List<List<String>> actual, boolean exact, int orderColumn) {
+		if (exact)
+			return expected.equals(actual);
+		if (expected.size() != actual.size())
+			return false;
+		if (orderColumn >= 0)
+			for (int i = 0; i < expected.size(); ++i)
+				if (!equal(expected.get(i).get(orderColumn), actual.get(i).get(orderColumn)))
+					return false;
+		return sorted(expected).equals(sorted(actual));
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static List<List<String>> sorted(List<List<String>> rows) {
+		List<List<String>> copy = new ArrayList<List<String>>(rows);
+		Collections.sort(copy, new Comparator<List<String>>() {
+			public int compare(List<String> a, List<String> b) {
+				for (int c = 0; c < a.size(); ++c){
+					String x = a.get(c);
+					String y = b.get(c);
+					if (x == null || y == null){
+						if (x != y)
+							return x == null ? -1 : 1;
+					}else if (!x.equals(y)){
+						return x.compareTo(y);
+					}
+				}
+				return 0;
+			}
+		});
+		return copy;
+	}
+
+	//returns the mean in nanoseconds
+	private long measure(String name, Path path) throws SQLException {
+		int warmup = Math.max(1, iterations / 10);
+		for (int i = 0; i < warmup; ++i)
+			path.run(1 + i % MAX_N);
+
+		long[] nanos = new long[iterations];
+		long rows = 0;
+		for (int i = 0; i < nanos.length; ++i){
+			long start = System.nanoTime();
+			rows += path.run(1 + i % MAX_N).size();
+			nanos[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(nanos);
+		long total = 0;
+		for (long t : nanos)
+			total += t;
+		System.out.println(String.format("%-10s %6d calls  mean %12.1f us  p50 %12.1f us  p99 %12.1f us  (%d rows)",
+			name, nanos.length, total / 1e3 / nanos.length, nanos[nanos.length / 2] / 1e3,
+			nanos[Math.min(nanos.length - 1, (int) (nanos.length * 0.99))] / 1e3, rows));
+		return total / nanos.length;
+	}
+}//end AnalyticsBenchmark
@@ -0,0 +1,748 @@
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class answers reports 6 to 10 from an in-process snapshot of
+ * Customer, Car, Owns, Service_Request and Closed_Request, held column by
+ * column:
+ *
+ *   - ids, bills, odometers, years and dates (as epoch days) in int[]
+ *   - first and last names, makes, models and comments dictionary-encoded,
+ *     each value kept once and the rows holding its int code
+ *   - cars numbered by a surrogate int key, which the requests and the
+ *     ownerships hold instead of the VIN
+ *   - every request's row found from its rid, and every closed request
+ *     holding the row of its request, so the joins are array lookups
+ *
+ * A report is a filter or a count over one table on the common fork-join
+ * pool, GRAIN rows per task, followed by lookups in the others.  The rows
+ * come back as the SQL versions return them, CHAR names padded, and in the
+ * order of their ORDER BY; reports without one come back in load order.
+ *
+ * The snapshot is loaded by warm() when -Dmechanicshop.analytics=true.
+ * This process adds the customers, cars, ownerships, requests and closes
+ * it writes as it writes them.  Everything is loaded again once the load
+ * is older than -Dmechanicshop.analytics.maxAgeMs (default 300000, 0 to
+ * never reload), so the writes of other processes, and those made while a
+ * load was reading, show up within that bound.
+ */
+public class AnalyticsEngine {
+	static final boolean ENABLED = Boolean.getBoolean("mechanicshop.analytics");
+	static final long MAX_AGE_MS = Long.getLong("mechanicshop.analytics.maxAgeMs", 300000L);
+	//rows a fork-join task scans without splitting further
+	static final int GRAIN = 1 << 14;
+
+	private static final String SQL_CUSTOMERS = "SELECT id, fname, lname FROM Customer";
+	private static final String SQL_CARS = "SELECT vin, make, model, year FROM Car";
+	private static final String SQL_OWNS = "SELECT customer_id, car_vin FROM Owns";
+	private static final String SQL_REQUESTS = "SELECT rid, customer_id, car_vin, date, odometer FROM Service_Request";
+	private static final String SQL_CLOSED = "SELECT wid, rid, request_date, bill, comment FROM Closed_Request";
+
+	/**
+	 * A growable int column.
+	 */
+	private static class Ints {
+		int[] v = new int[1024];
+		int size = 0;
+
+		void add(int x) {
+			if (size == v.length)
+				v = Arrays.copyOf(v, size * 2);
+			v[size++] = x;
+		}
+	}//end Ints
+
+	/**
+	 * Dictionary of the distinct values of string columns; a row holds the
+	 * code of its value, -1 for NULL.
+	 */
+	private static class Dict {
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+		private String[] values = new String[64];
+
+		int code(String value) {
+			if (value == null)
+				return -1;
+			Integer code = codes.get(value);
+			if (code == null){
+				code = codes.size();
+				if (code == values.length)
+					values = Arrays.copyOf(values, code * 2);
+				values[code] = value;
+				codes.put(value, code);
+			}
+			return code;
+		}
+
+		String value(int code) {
+			return code < 0 ? null : values[code];
+		}
+
+		int size() {
+			return codes.size();
+		}
+	}//end Dict
+
+	/**
+	 * Maps request ids to request rows.  Ids are drawn from a sequence and
+	 * dense, so they index an array directly; once they are spread much
+	 * wider than the rows they move to a hash table.
+	 */
+	private static class RidIndex {
+		//row + 1, 0 for an unknown rid
+		private int[] rows = new int[1024];
+		private CustomerDirectory.IntIndex sparse = null;
+		private int size = 0;
+
+		int get(int rid) {
+			if (sparse != null)
+				return sparse.get(rid);
+			return rid >= 0 && rid < rows.length ? rows[rid] - 1 : -1;
+		}
+
+		void put(int rid, int row) {
+			++size;
+			if (sparse == null && rid >= rows.length){
+				int length = Math.max(rid + 1, rows.length * 2);
+				if (length <= 4 * size + (1 << 20))
+					rows = Arrays.copyOf(rows, length);
+			}
+			if (sparse == null && (rid < 0 || rid >= rows.length)){
+				sparse = new CustomerDirectory.IntIndex();
+				for (int r = 0; r < rows.length; ++r)
+					if (rows[r] != 0)
+						sparse.put(r, rows[r] - 1);
+				rows = null;
+			}
+			if (sparse != null)
+				sparse.put(rid, row);
+			else
+				rows[rid] = row + 1;
+		}
+	}//end RidIndex
+
+	/**
+	 * Everything the engine holds.  A reload builds a new one and swaps it
+	 * in, so reports keep being answered while it loads.
+	 */
+	private static class Snapshot {
+		final long loadedAt = System.currentTimeMillis();
+		final Dict names = new Dict();
+		final Dict makes = new Dict();
+		final Dict comments = new Dict();
+		//width of the CHAR name columns, which the DB pads to it
+		int nameWidth = 32;
+
+		final Ints customerIds = new Ints();
+		final Ints fnames = new Ints();
+		final Ints lnames = new Ints();
+		final CustomerDirectory.IntIndex customerSlots = new CustomerDirectory.IntIndex();
+
+		String[] vins = new String[1024];
+		final Ints carMakes = new Ints();
+		final Ints carModels = new Ints();
+		final Ints years = new Ints();
+		final CustomerDirectory.VinIndex carSlots = new CustomerDirectory.VinIndex();
+
+		//customer and car slots, -1 when not in the snapshot
+		final Ints ownCustomers = new Ints();
+		final Ints ownCars = new Ints();
+
+		final Ints rids = new Ints();
+		final Ints requestCustomers = new Ints();
+		final Ints requestCars = new Ints();
+		final Ints dates = new Ints();
+		final Ints odometers = new Ints();
+		final RidIndex requestRows = new RidIndex();
+		//request rows that have been closed
+		final BitSet closed = new BitSet();
+
+		final Ints wids = new Ints();
+		//the request row, -1 when it is not in the snapshot
+		final Ints closedRequests = new Ints();
+		final Ints bills = new Ints();
+		final Ints closedComments = new Ints();
+
+		void putCustomer(int id, String fname, String lname) {
+			if (customerSlots.get(id) >= 0)
+				return;
+			customerSlots.put(id, customerIds.size);
+			customerIds.add(id);
+			fnames.add(names.code(fname));
+			lnames.add(names.code(lname));
+		}
+
+		void putCar(String vin, String make, String model, int year) {
+			vin = ResultRenderer.rtrim(vin);
+			if (carSlots.get(vin) >= 0)
+				return;
+			int slot = carMakes.size;
+			if (slot == vins.length)
+				vins = Arrays.copyOf(vins, slot * 2);
+			vins[slot] = vin;
+			carSlots.put(vin, slot);
+			carMakes.add(makes.code(make));
+			carModels.add(makes.code(model));
+			years.add(year);
+		}
+
+		void putOwnership(int customerId, String vin) {
+			ownCustomers.add(customerSlots.get(customerId));
+			ownCars.add(carSlots.get(ResultRenderer.rtrim(vin)));
+		}
+
+		void putRequest(int rid, int customerId, String vin, int date, int odometer) {
+			if (requestRows.get(rid) >= 0)
+				return;
+			requestRows.put(rid, rids.size);
+			rids.add(rid);
+			requestCustomers.add(customerSlots.get(customerId));
+			requestCars.add(carSlots.get(ResultRenderer.rtrim(vin)));
+			dates.add(date);
+			odometers.add(odometer);
+		}
+
+		void putClosed(int wid, int rid, int requestDate, int bill, String comment) {
+			int row = requestRows.get(rid);
+			//a closed request joins its request on rid and date
+			if (row >= 0 && dates.v[row] != requestDate)
+				row = -1;
+			if (row >= 0)
+				closed.set(row);
+			wids.add(wid);
+			closedRequests.add(row);
+			bills.add(bill);
+			closedComments.add(comments.code(comment));
+		}
+
+		String name(int code) {
+			return names.value(code);
+		}
+
+		//the date as the DB prints it
+		String date(int day) {
+			return LocalDate.ofEpochDay(day).toString();
+		}
+	}//end Snapshot
+
+	/**
+	 * A row predicate of a parallel scan.
+	 */
+	private interface RowTest {
+		boolean test(int row);
+	}
+
+	/**
+	 * Work done for every row of a parallel pass.
+	 */
+	private interface RowVisitor {
+		void visit(int row);
+	}
+
+	/**
+	 * Collects the rows of [from, to) that pass a test, in row order.
+	 */
+	private static final class Scan extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final RowTest test;
+		private final int from;
+		private final int to;
+
+		Scan(RowTest test, int from, int to){
+			this.test = test;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected int[] compute() {
+			if (to - from <= GRAIN){
+				int[] rows = new int[Math.min(to - from, 64)];
+				int n = 0;
+				for (int r = from; r < to; ++r){
+					if (test.test(r)){
+						if (n == rows.length)
+							rows = Arrays.copyOf(rows, Math.min(to - from, n * 2));
+						rows[n++] = r;
+					}
+				}
+				return n == rows.length ? rows : Arrays.copyOf(rows, n);
+			}
+			int mid = (from + to) >>> 1;
+			Scan left = new Scan(test, from, mid);
+			left.fork();
+			int[] right = new Scan(test, mid, to).compute();
+			int[] rows = left.join();
+			if (right.length == 0)
+				return rows;
+			int[] all = Arrays.copyOf(rows, rows.length + right.length);
+			System.arraycopy(right, 0, all, rows.length, right.length);
+			return all;
+		}
+	}//end Scan
+
+	/**
+	 * Visits the rows of [from, to), in no particular order.
+	 */
+	private static final class Pass extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final RowVisitor visitor;
+		private final int from;
+		private final int to;
+
+		Pass(RowVisitor visitor, int from, int to){
+			this.visitor = visitor;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= GRAIN){
+				for (int r = from; r < to; ++r)
+					visitor.visit(r);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Pass(visitor, from, mid), new Pass(visitor, mid, to));
+		}
+	}//end Pass
+
+	private static int[] filter(int rows, RowTest test) {
+		return ForkJoinPool.commonPool().invoke(new Scan(test, 0, rows));
+	}
+
+	private static void forEach(int rows, RowVisitor visitor) {
+		ForkJoinPool.commonPool().invoke(new Pass(visitor, 0, rows));
+	}
+
+	/**
+	 * Builds one output row per selected row, in parallel and in order.
+	 */
+	private interface RowBuilder {
+		List<String> build(int row);
+	}
+
+	private static List<List<String>> rows(final int[] selected, final RowBuilder builder) {
+		//set() of distinct slots, the size never changes while the pass runs
+		final List<List<String>> out = new ArrayList<List<String>>(Collections.<List<String>>nCopies(selected.length, null));
+		forEach(selected.length, new RowVisitor() {
+			public void visit(int i) {
+				out.set(i, builder.build(selected[i]));
+			}
+		});
+		return out;
+	}
+
+	private final MechanicShop esql;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private Snapshot snapshot = null;
+
+	public AnalyticsEngine(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Whether the snapshot has been loaded and can answer reports.
+	 */
+	public boolean isReady() {
+		lock.readLock().lock();
+		try{
+			return snapshot != null;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to load the five tables, replacing the snapshot.  Reports are
+	 * answered from the old one meanwhile.
+	 *
+	 * @return the number of requests loaded
+	 * @throws java.sql.SQLException when a table cannot be read
+	 */
+	public int warm() throws SQLException {
+		final Snapshot s = new Snapshot();
+		esql.streamQuery(SQL_CUSTOMERS, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				if (s.customerIds.size == 0){
+					ResultSetMetaData rsmd = row.getMetaData();
+					s.nameWidth = rsmd.getPrecision(3);
+				}
+				s.putCustomer(row.getInt(1), row.getString(2), row.getString(3));
+			}
+		});
+		esql.streamQuery(SQL_CARS, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				s.putCar(row.getString(1), row.getString(2), row.getString(3), row.getInt(4));
+			}
+		});
+		esql.streamQuery(SQL_OWNS, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				s.putOwnership(row.getInt(1), row.getString(2));
+			}
+		});
+		esql.streamQuery(SQL_REQUESTS, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				s.putRequest(row.getInt(1), row.getInt(2), row.getString(3), day(row.getString(4)), row.getInt(5));
+			}
+		});
+		esql.streamQuery(SQL_CLOSED, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				s.putClosed(row.getInt(1), row.getInt(2), day(row.getString(3)), row.getInt(4), row.getString(5));
+			}
+		});
+		lock.writeLock().lock();
+		try{
+			snapshot = s;
+		}finally{
+			lock.writeLock().unlock();
+		}
+		return s.rids.size;
+	}//end warm
+
+	private static int day(String date) {
+		return (int) LocalDate.parse(date).toEpochDay();
+	}
+
+	private void reloadIfStale() throws SQLException {
+		boolean stale;
+		lock.readLock().lock();
+		try{
+			stale = snapshot == null || (MAX_AGE_MS > 0 && System.currentTimeMillis() - snapshot.loadedAt > MAX_AGE_MS);
+		}finally{
+			lock.readLock().unlock();
+		}
+		if (stale)
+			warm();
+	}
+
+	/**
+	 * Method to answer report 6, MechanicShop.SQL_REPORT_BILL_LESS_THAN_100.
+	 *
+	 * @return rows of fname, lname, bill, date, comment
+	 * @throws java.sql.SQLException when a due reload fails
+	 */
+	public List<List<String>> billLessThan100() throws SQLException {
+		reloadIfStale();
+		lock.readLock().lock();
+		try{
+			final Snapshot s = snapshot;
+			final int[] bills = s.bills.v;
+			final int[] requests = s.closedRequests.v;
+			final int[] customers = s.requestCustomers.v;
+			int[] selected = filter(s.wids.size, new RowTest() {
+				public boolean test(int r) {
+					return bills[r] < 100 && requests[r] >= 0 && customers[requests[r]] >= 0;
+				}
+			});
+			final int[] fnames = s.fnames.v;
+			final int[] lnames = s.lnames.v;
+			final int[] dates = s.dates.v;
+			final int[] comments = s.closedComments.v;
+			return rows(selected, new RowBuilder() {
+				public List<String> build(int r) {
+					int request = requests[r];
+					int customer = customers[request];
+					return Arrays.asList(s.name(fnames[customer]), s.name(lnames[customer]), Integer.toString(bills[r]),
+						s.date(dates[request]), s.comments.value(comments[r]));
+				}
+			});
+		}finally{
+			lock.readLock().unlock();
+		}
+	}//end billLessThan100
+
+	/**
+	 * Method to answer report 7, MechanicShop.SQL_REPORT_MORE_THAN_20_CARS.
+	 *
+	 * @return rows of fname, lname, number of cars
+	 * @throws java.sql.SQLException when a due reload fails
+	 */
+	public List<List<String>> moreThan20Cars() throws SQLException {
+		reloadIfStale();
+		lock.readLock().lock();
+		try{
+			final Snapshot s = snapshot;
+			final int[] owners = s.ownCustomers.v;
+			final AtomicIntegerArray cars = new AtomicIntegerArray(s.customerIds.size);
+			forEach(s.ownCustomers.size, new RowVisitor() {
+				public void visit(int r) {
+					if (owners[r] >= 0)
+						cars.incrementAndGet(owners[r]);
+				}
+			});
+			int[] selected = filter(s.customerIds.size, new RowTest() {
+				public boolean test(int c) {
+					return cars.get(c) > 20;
+				}
+			});
+			final int[] fnames = s.fnames.v;
+			final int[] lnames = s.lnames.v;
+			return rows(selected, new RowBuilder() {
+				public List<String> build(int c) {
+					return Arrays.asList(s.name(fnames[c]), s.name(lnames[c]), Integer.toString(cars.get(c)));
+				}
+			});
+		}finally{
+			lock.readLock().unlock();
+		}
+	}//end moreThan20Cars
+
+	/**
+	 * Method to answer report 8, MechanicShop.SQL_REPORT_CARS_BEFORE_1995.
+	 *
+	 * @return rows of make, model, year, odometer
+	 * @throws java.sql.SQLException when a due reload fails
+	 */
+	public List<List<String>> carsBefore1995() throws SQLException {
+		reloadIfStale();
+		lock.readLock().lock();
+		try{
+			final Snapshot s = snapshot;
+			final int[] odometers = s.odometers.v;
+			final int[] cars = s.requestCars.v;
+			final int[] years = s.years.v;
+			int[] selected = filter(s.rids.size, new RowTest() {
+				public boolean test(int r) {
+					return odometers[r] < 50000 && cars[r] >= 0 && years[cars[r]] < 1995;
+				}
+			});
+			final int[] makes = s.carMakes.v;
+			final int[] models = s.carModels.v;
+			return rows(selected, new RowBuilder() {
+				public List<String> build(int r) {
+					int car = cars[r];
+					return Arrays.asList(s.makes.value(makes[car]), s.makes.value(models[car]),
+						Integer.toString(years[car]), Integer.toString(odometers[r]));
+				}
+			});
+		}finally{
+			lock.readLock().unlock();
+		}
+	}//end carsBefore1995
+
+	/**
+	 * Method to answer report 9, MechanicShop.SQL_REPORT_CARS_WITH_OPEN_SERVICES,
+	 * by counting the open requests of every car.  The menu answers it
+	 * from OpenServiceIndex, which keeps the counts instead.
+	 *
+	 * @return at most limit rows of make, model, vin, open count, by VIN
+	 * @throws java.sql.SQLException when a due reload fails
+	 */
+	public List<List<String>> carsWithOpenRequests(final int n, int limit) throws SQLException {
+		if (n <= 0)
+			return new ArrayList<List<String>>();
+		reloadIfStale();
+		lock.readLock().lock();
+		try{
+			final Snapshot s = snapshot;
+			final int[] cars = s.requestCars.v;
+			final BitSet closed = s.closed;
+			final AtomicIntegerArray open = new AtomicIntegerArray(s.carMakes.size);
+			forEach(s.rids.size, new RowVisitor() {
+				public void visit(int r) {
+					if (cars[r] >= 0 && !closed.get(r))
+						open.incrementAndGet(cars[r]);
+				}
+			});
+			final String[] vins = s.vins;
+			int[] selected = filter(s.carMakes.size, new RowTest() {
+				public boolean test(int car) {
+					return open.get(car) == n;
+				}
+			});
+			Integer[] order = new Integer[selected.length];
+			for (int i = 0; i < order.length; ++i)
+				order[i] = selected[i];
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return vins[a].compareTo(vins[b]);
+				}
+			});
+			int[] first = new int[Math.min(limit, order.length)];
+			for (int i = 0; i < first.length; ++i)
+				first[i] = order[i];
+			final int[] makes = s.carMakes.v;
+			final int[] models = s.carModels.v;
+			return rows(first, new RowBuilder() {
+				public List<String> build(int car) {
+					return Arrays.asList(s.makes.value(makes[car]), s.makes.value(models[car]), vins[car], Integer.toString(n));
+				}
+			});
+		}finally{
+			lock.readLock().unlock();
+		}
+	}//end carsWithOpenRequests
+
+	/**
+	 * Method to answer report 10, MechanicShop.SQL_REPORT_TOTAL_BILL, by
+	 * summing the bills of every customer.  Equal totals come in descending
+	 * customer id, as the paged version of the report orders them.
+	 *
+	 * @return rows of fname, lname, total bill, highest total first
+	 * @throws java.sql.SQLException when a due reload fails
+	 */
+	public List<List<String>> totalBill() throws SQLException {
+		reloadIfStale();
+		lock.readLock().lock();
+		try{
+			final Snapshot s = snapshot;
+			final int[] bills = s.bills.v;
+			final int[] requests = s.closedRequests.v;
+			final int[] customers = s.requestCustomers.v;
+			final AtomicLongArray totals = new AtomicLongArray(s.customerIds.size);
+			final AtomicIntegerArray counts = new AtomicIntegerArray(s.customerIds.size);
+			forEach(s.wids.size, new RowVisitor() {
+				public void visit(int r) {
+					int request = requests[r];
+					if (request >= 0 && customers[request] >= 0){
+						totals.addAndGet(customers[request], bills[r]);
+						counts.incrementAndGet(customers[request]);
+					}
+				}
+			});
+			int[] selected = filter(s.customerIds.size, new RowTest() {
+				public boolean test(int c) {
+					return counts.get(c) > 0;
+				}
+			});
+			final int[] ids = s.customerIds.v;
+			Integer[] order = new Integer[selected.length];
+			for (int i = 0; i < order.length; ++i)
+				order[i] = selected[i];
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int c = Long.compare(totals.get(b), totals.get(a));
+					return c != 0 ? c : Integer.compare(ids[b], ids[a]);
+				}
+			});
+			for (int i = 0; i < order.length; ++i)
+				selected[i] = order[i];
+			final int[] fnames = s.fnames.v;
+			final int[] lnames = s.lnames.v;
+			return rows(selected, new RowBuilder() {
+				public List<String> build(int c) {
+					return Arrays.asList(s.name(fnames[c]), s.name(lnames[c]), Long.toString(totals.get(c)));
+				}
+			});
+		}finally{
+			lock.readLock().unlock();
+		}
+	}//end totalBill
+
+	/*
+	 * This process's own writes, applied right away
+	 */
+
+	public void customerAdded(int id, String fname, String lname) {
+		lock.writeLock().lock();
+		try{
+			if (snapshot != null)
+				snapshot.putCustomer(id, pad(fname, snapshot.nameWidth), pad(lname, snapshot.nameWidth));
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void carAdded(String vin, String make, String model, int year) {
+		lock.writeLock().lock();
+		try{
+			if (snapshot != null)
+				snapshot.putCar(vin, make, model, year);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void ownershipAdded(int customerId, String vin) {
+		lock.writeLock().lock();
+		try{
+			if (snapshot != null)
+				snapshot.putOwnership(customerId, vin);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to add a request this process has just opened.
+	 *
+	 * @param date the request date as the DB returned it
+	 */
+	public void requestOpened(int rid, int customerId, String vin, String date, int odometer) {
+		lock.writeLock().lock();
+		try{
+			if (snapshot != null)
+				snapshot.putRequest(rid, customerId, vin, day(date), odometer);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to add a close this process has just made.  A request is
+	 * closed at most once; a request the snapshot does not hold is left to
+	 * the next reload.
+	 */
+	public void requestClosed(int wid, int rid, String comment, int bill) {
+		lock.writeLock().lock();
+		try{
+			if (snapshot == null)
+				return;
+			int row = snapshot.requestRows.get(rid);
+			if (row >= 0 && !snapshot.closed.get(row))
+				snapshot.putClosed(wid, rid, snapshot.dates.v[row], bill, comment);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	//CHAR(n) values come back from the DB padded to n
+	private static String pad(String value, int width) {
+		String trimmed = ResultRenderer.rtrim(value);
+		if (trimmed.length() >= width)
+			return trimmed;
+		StringBuilder sb = new StringBuilder(width).append(trimmed);
+		while (sb.length() < width)
+			sb.append(' ');
+		return sb.toString();
+	}
+
+	/**
+	 * Method to describe the snapshot, one metric per line.
+	 */
+	public String getStats() {
+		lock.readLock().lock();
+		try{
+			Snapshot s = snapshot;
+			StringBuilder sb = new StringBuilder();
+			sb.append("analytics_ready ").append(s != null ? 1 : 0).append('\n');
+			sb.append("analytics_customers ").append(s != null ? s.customerIds.size : 0).append('\n');
+			sb.append("analytics_cars ").append(s != null ? s.carMakes.size : 0).append('\n');
+			sb.append("analytics_ownerships ").append(s != null ? s.ownCustomers.size : 0).append('\n');
+			sb.append("analytics_requests ").append(s != null ? s.rids.size : 0).append('\n');
+			sb.append("analytics_closed_requests ").append(s != null ? s.wids.size : 0).append('\n');
+			sb.append("analytics_dictionary_values ").append(s != null ? s.names.size() + s.makes.size() + s.comments.size() : 0).append('\n');
+			sb.append("analytics_age_seconds ").append(s != null ? (System.currentTimeMillis() - s.loadedAt) / 1000 : 0).append('\n');
+			return sb.toString();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+}//end AnalyticsEngine
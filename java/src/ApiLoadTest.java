@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is a load test client for the API of ApiServer.  A number of
+ * threads send requests back to back for a fixed time, each picking a read
+ * or, with the given probability, a write; at the end it prints the
+ * throughput, the latency percentiles of every endpoint and the count of
+ * every response status.  Writes add customers, so run it against a test
+ * database.
+ *
+ * Usage: java -cp bin ApiLoadTest <base url> [--concurrency <n>]
+ *            [--seconds <n>] [--writes <percent>] [--seed <n>]
+ *
+ * e.g. java -cp bin ApiLoadTest http://localhost:8080 --concurrency 200
+ */
+public class ApiLoadTest {
+	private static final String[] READS = {
+		"/reports/total-bill",
+		"/reports/more-than-20-cars",
+		"/reports/open-requests?count=1&limit=10",
+		"/customers/search?q=Sm",
+	};
+	private static final String WRITE = "/customers";
+
+	private final String base;
+	private int concurrency = 50;
+	private int seconds = 30;
+	private int writePercent = 10;
+	private long seed = 42;
+	//latencies per endpoint, read back with print()
+	private final Metrics metrics = new Metrics(true, null, false);
+	private final ConcurrentHashMap<String, LongAdder> statuses = new ConcurrentHashMap<String, LongAdder>();
+
+	public ApiLoadTest(String base) {
+		this.base = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length % 2 == 0){
+			System.err.println("Usage: java ApiLoadTest <base url> [--concurrency <n>] [--seconds <n>] [--writes <percent>] [--seed <n>]");
+			return;
+		}
+		ApiLoadTest test = new ApiLoadTest(args[0]);
+		for (int i = 1; i + 1 < args.length; i += 2){
+			if (args[i].equals("--concurrency")) test.concurrency = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--seconds")) test.seconds = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--writes")) test.writePercent = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("--seed")) test.seed = Long.parseLong(args[i + 1]);
+			else throw new IllegalArgumentException("unknown option " + args[i]);
+		}
+		test.run();
+	}
+
+	/**
+	 * Method to run the test and print its results.
+	 */
+	public void run() throws InterruptedException {
+		System.out.println(String.format("%d clients for %ds against %s, %d%% writes", concurrency, seconds, base, writePercent));
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final LongAdder total = new LongAdder();
+		Thread[] clients = new Thread[concurrency];
+		long start = System.nanoTime();
+		for (int t = 0; t < concurrency; ++t){
+			final Random random = new Random(seed + t);
+			final int client = t;
+			clients[t] = new Thread(new Runnable() {
+				public void run() {
+					int n = 0;
+					while (System.nanoTime() < end){
+						boolean write = random.nextInt(100) < writePercent;
+						String path = write ? WRITE : READS[random.nextInt(READS.length)];
+						String body = write ? String.format(
+							"{\"fname\":\"Load%d\",\"lname\":\"Test%d\",\"phone\":\"(555) %03d-%04d\",\"address\":\"%d Test St\"}",
+							client, n, client % 1000, n % 10000, n) : null;
+						request(path, body);
+						total.increment();
+						++n;
+					}
+				}
+			}, "load-" + t);
+			clients[t].start();
+		}
+		for (Thread c : clients)
+			c.join();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format("%d requests in %.1fs, %.1f requests/s", total.sum(), elapsed, total.sum() / elapsed));
+		metrics.print();
+		for (Map.Entry<String, LongAdder> e : new TreeMap<String, LongAdder>(statuses).entrySet())
+			System.out.println("status " + e.getKey() + ": " + e.getValue().sum());
+	}
+
+	//sends one request and reads the whole response, as a client would
+	private void request(String path, String body) {
+		String endpoint = (body != null ? "POST " : "GET ") + path.replaceFirst("\\?.*", "");
+		Metrics.Sample sample = metrics.start(endpoint);
+		String status;
+		try{
+			HttpURLConnection c = (HttpURLConnection) new URL(base + path).openConnection();
+			c.setConnectTimeout(5000);
+			c.setReadTimeout(60000);
+			if (body != null){
+				c.setRequestMethod("POST");
+				c.setDoOutput(true);
+				c.setRequestProperty("Content-Type", "application/json");
+				OutputStream out = c.getOutputStream();
+				out.write(body.getBytes(StandardCharsets.UTF_8));
+				out.close();
+			}
+			int code = c.getResponseCode();
+			InputStream in = code < 400 ? c.getInputStream() : c.getErrorStream();
+			if (in != null){
+				byte[] buf = new byte[8192];
+				while (in.read(buf) >= 0)
+					;
+				in.close();
+			}
+			status = Integer.toString(code);
+			if (code >= 400)
+				sample.failed(new IOException("HTTP " + code));
+		}catch (IOException e){
+			status = e.getClass().getSimpleName();
+			sample.failed(e);
+		}finally{
+			sample.stop();
+		}
+		LongAdder n = statuses.get(status);
+		if (n == null){
+			LongAdder fresh = new LongAdder();
+			n = statuses.putIfAbsent(status, fresh);
+			if (n == null)
+				n = fresh;
+		}
+		n.increment();
+	}
+}//end ApiLoadTest
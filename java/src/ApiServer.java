@@ -0,0 +1,453 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the ten menu operations as a JSON HTTP API on the JDK's
+ * built-in HTTP server, sharing the MechanicShop connection pool:
+ *
+ *   POST /customers          {"fname", "lname", "phone", "address"} -> {"id"}
+ *   POST /mechanics          {"fname", "lname", "experience"} -> {"id"}
+ *   POST /cars               {"vin", "make", "model", "year"}
+ *   POST /service-requests   {"customer_id", "vin", "odometer", "complain"},
+ *                            with "make", "model" and "year" for a car that
+ *                            is new to the shop -> {"rid"}
+ *   POST /closed-requests    {"rid", "mid", "comment", "bill"} -> {"wid"}
+ *   GET  /reports/bill-under-100
+ *   GET  /reports/more-than-20-cars
+ *   GET  /reports/cars-before-1995
+ *   GET  /reports/open-requests?count=<n>&limit=<k>
+ *   GET  /reports/total-bill
+ *   GET  /customers/search?q=<last name start or phone>
+ *   GET  /metrics            the Metrics counters in the Prometheus format, and the
+ *                            replicas' lag and routing when there are replicas
+ *
+ * Reports are a JSON array of objects, or CSV with ?format=csv, streamed
+ * through a cursor as the rows arrive.  Errors are {"error": <message>}
+ * with 400 for a bad request, 409 for a duplicate key, 422 for a request
+ * the shop rejects, 503 when the endpoint is saturated and 504 when its
+ * timeout passed.
+ *
+ * Requests run on virtual threads when the JVM has them (Java 21 and
+ * later), else on a pool of -Dmechanicshop.api.threads platform threads.
+ * Writes and reports each have a limit on requests in progress
+ * (-Dmechanicshop.api.maxWrites, maxReports); a request that finds its
+ * limit reached waits up to queueWaitMs and is then turned away with 503,
+ * so a burst queues in front of the connection pool only briefly.  Each
+ * endpoint's statements are cancelled once its timeout (writeTimeoutMs,
+ * reportTimeoutMs) has passed.
+ *
+ * There is no authentication, so the API listens on the loopback interface
+ * unless -Dmechanicshop.api.bind names another address, e.g. 0.0.0.0 for
+ * every interface behind a proxy that checks the callers.
+ */
+public class ApiServer {
+	static final int MAX_WRITES = Integer.getInteger("mechanicshop.api.maxWrites", 64);
+	static final int MAX_REPORTS = Integer.getInteger("mechanicshop.api.maxReports", 8);
+	static final long QUEUE_WAIT_MS = Long.getLong("mechanicshop.api.queueWaitMs", 250L);
+	static final long WRITE_TIMEOUT_MS = Long.getLong("mechanicshop.api.writeTimeoutMs", 5000L);
+	static final long REPORT_TIMEOUT_MS = Long.getLong("mechanicshop.api.reportTimeoutMs", 30000L);
+	//platform threads serving requests when there are no virtual threads
+	static final int THREADS = Integer.getInteger("mechanicshop.api.threads", 200);
+	static final int MAX_BODY_BYTES = 64 * 1024;
+	static final int BACKLOG = 1024;
+	//null listens on loopback only
+	static final String BIND = System.getProperty("mechanicshop.api.bind");
+
+	private static final String JSON = "application/json; charset=utf-8";
+
+	/**
+	 * A request the client got wrong, answered with 400.
+	 */
+	static class BadRequest extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		BadRequest(String message){
+			super(message);
+		}
+	}
+
+	private final MechanicShop esql;
+	private final int port;
+	private final Semaphore writes = new Semaphore(MAX_WRITES);
+	private final Semaphore reports = new Semaphore(MAX_REPORTS);
+	private HttpServer server = null;
+	private ExecutorService executor = null;
+	private String executorKind = null;
+
+	public ApiServer(MechanicShop esql, int port) {
+		this.esql = esql;
+		this.port = port;
+	}
+
+	/**
+	 * One endpoint: its method, the limit on its requests in progress and
+	 * its timeout.
+	 */
+	private abstract class Endpoint implements HttpHandler {
+		private final String method;
+		private final Semaphore permits;
+		private final long timeoutMillis;
+
+		Endpoint(String method, Semaphore permits, long timeoutMillis){
+			this.method = method;
+			this.permits = permits;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		abstract void serve(HttpExchange ex) throws Exception;
+
+		public void handle(HttpExchange ex) throws IOException {
+			try{
+				if (!ex.getRequestMethod().equals(method)){
+					ex.getResponseHeaders().set("Allow", method);
+					error(ex, 405, "Use " + method);
+					return;
+				}
+				if (!permits.tryAcquire(QUEUE_WAIT_MS, TimeUnit.MILLISECONDS)){
+					ex.getResponseHeaders().set("Retry-After", "1");
+					error(ex, 503, "Too many requests in progress, retry later");
+					return;
+				}
+				Metrics.Sample sample = esql.getMetrics().startOperation(method + " " + ex.getHttpContext().getPath());
+				try{
+					esql.setDeadline(timeoutMillis);
+					serve(ex);
+				}catch (Exception e){
+					sample.failed(e);
+					fail(ex, e);
+				}finally{
+					esql.clearDeadline();
+					permits.release();
+					sample.stop();
+				}
+			}catch (InterruptedException e){
+				error(ex, 503, "Server is shutting down");
+			}finally{
+				ex.close();
+			}
+		}
+	}//end Endpoint
+
+	//answers an exception, unless a streamed response has already begun
+	private static void fail(HttpExchange ex, Exception e) throws IOException {
+		if (ex.getResponseCode() != -1)
+			return;
+		if (e instanceof BadRequest){
+			error(ex, 400, e.getMessage());
+		}else if (e instanceof IllegalArgumentException){
+			error(ex, 422, e.getMessage());
+		}else if (e instanceof SQLException && "57014".equals(((SQLException) e).getSQLState())){
+			error(ex, 504, "The request took longer than its timeout");
+		}else if (e instanceof SQLException && "23505".equals(((SQLException) e).getSQLState())){
+			error(ex, 409, e.getMessage());
+		}else if (e instanceof SQLException && "23503".equals(((SQLException) e).getSQLState())){
+			error(ex, 422, e.getMessage());
+		}else{
+			error(ex, 500, String.valueOf(e.getMessage()));
+		}
+	}
+
+	/**
+	 * Method to start serving and block until the process is stopped.
+	 *
+	 * @throws java.io.IOException when the port cannot be opened
+	 */
+	public void serve() throws IOException, InterruptedException {
+		start();
+		System.out.println("Serving the API on " + address().getHostAddress() + " port " + port + " (" + executorKind + ")");
+		final CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				stop();
+				stopped.countDown();
+			}
+		}));
+		stopped.await();
+	}
+
+	private static InetAddress address() throws IOException {
+		return BIND == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(BIND);
+	}
+
+	/**
+	 * Method to start serving in the background.
+	 *
+	 * @throws java.io.IOException when the port cannot be opened
+	 */
+	public synchronized void start() throws IOException {
+		//small responses otherwise wait out the client's delayed ACK
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress(address(), port), BACKLOG);
+		executor = newExecutor();
+		server.setExecutor(executor);
+
+		server.createContext("/customers", new Endpoint("POST", writes, WRITE_TIMEOUT_MS) {
+			void serve(HttpExchange ex) throws Exception {
+				Map<String, String> f = body(ex);
+				int id = esql.addCustomer(req(f, "fname"), req(f, "lname"), req(f, "phone"), req(f, "address"));
+				json(ex, 201, "{\"id\":" + id + "}");
+			}
+		});
+		server.createContext("/mechanics", new Endpoint("POST", writes, WRITE_TIMEOUT_MS) {
+			void serve(HttpExchange ex) throws Exception {
+				Map<String, String> f = body(ex);
+				int id = esql.addMechanic(req(f, "fname"), req(f, "lname"), num(f, "experience"));
+				json(ex, 201, "{\"id\":" + id + "}");
+			}
+		});
+		server.createContext("/cars", new Endpoint("POST", writes, WRITE_TIMEOUT_MS) {
+			void serve(HttpExchange ex) throws Exception {
+				Map<String, String> f = body(ex);
+				esql.addCar(req(f, "vin"), req(f, "make"), req(f, "model"), num(f, "year"));
+				json(ex, 201, "{\"vin\":" + Json.quote(f.get("vin")) + "}");
+			}
+		});
+		server.createContext("/service-requests", new Endpoint("POST", writes, WRITE_TIMEOUT_MS) {
+			void serve(HttpExchange ex) throws Exception {
+				Map<String, String> f = body(ex);
+				String complaint = f.containsKey("complain") ? f.get("complain") : f.get("complaint");
+				int rid = f.containsKey("make")
+					? esql.insertServiceRequestForNewCar(num(f, "customer_id"), req(f, "vin"), req(f, "make"),
+						req(f, "model"), num(f, "year"), num(f, "odometer"), complaint)
+					: esql.insertServiceRequest(num(f, "customer_id"), req(f, "vin"), num(f, "odometer"), complaint);
+				json(ex, 201, "{\"rid\":" + rid + "}");
+			}
+		});
+		server.createContext("/closed-requests", new Endpoint("POST", writes, WRITE_TIMEOUT_MS) {
+			void serve(HttpExchange ex) throws Exception {
+				Map<String, String> f = body(ex);
+				int wid = esql.closeServiceRequest(num(f, "rid"), num(f, "mid"), f.get("comment"), num(f, "bill"));
+				json(ex, 201, "{\"wid\":" + wid + "}");
+			}
+		});
+
+		report("/reports/bill-under-100", new String[] {"fname", "lname", "bill", "date", "comment"},
+			new boolean[] {false, false, true, false, false}, MechanicShop.SQL_REPORT_BILL_LESS_THAN_100);
+		report("/reports/more-than-20-cars", new String[] {"fname", "lname", "numcars"},
+			new boolean[] {false, false, true}, MechanicShop.SQL_REPORT_MORE_THAN_20_CARS);
+		report("/reports/cars-before-1995", new String[] {"make", "model", "year", "odometer"},
+			new boolean[] {false, false, true, true}, MechanicShop.SQL_REPORT_CARS_BEFORE_1995);
+		report("/reports/total-bill", new String[] {"fname", "lname", "total_bill"},
+			new boolean[] {false, false, true}, MechanicShop.SQL_REPORT_TOTAL_BILL);
+		server.createContext("/reports/open-requests", new Endpoint("GET", reports, REPORT_TIMEOUT_MS) {
+			void serve(HttpExchange ex) throws Exception {
+				Map<String, String> q = query(ex);
+				List<List<String>> rows = esql.listKCarsWithTheMostServices(num(q, "count"), num(q, "limit"));
+				ResultExporter out = exporter(ex, q);
+				try{
+					out.begin(new String[] {"make", "model", "vin", "cnt"}, new boolean[] {false, false, false, true});
+					for (List<String> row : rows)
+						out.add(row.toArray(new String[row.size()]));
+				}finally{
+					out.close();
+				}
+			}
+		});
+		server.createContext("/customers/search", new Endpoint("GET", reports, REPORT_TIMEOUT_MS) {
+			void serve(HttpExchange ex) throws Exception {
+				search(ex);
+			}
+		});
+		server.createContext("/metrics", new Endpoint("GET", reports, REPORT_TIMEOUT_MS) {
+			void serve(HttpExchange ex) throws Exception {
+				String body = esql.getMetrics().toPrometheus();
+				//replica lag and where the reports went, untyped
+				if (esql.getReplicas() != null)
+					body += esql.getReplicas().getStats();
+				byte[] text = body.getBytes(StandardCharsets.UTF_8);
+				ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+				ex.sendResponseHeaders(200, text.length);
+				ex.getResponseBody().write(text);
+			}
+		});
+		server.start();
+	}//end start
+
+	//the intake lookup, as menu operation 4 does it
+	private void search(HttpExchange ex) throws Exception {
+		Map<String, String> q = query(ex);
+		List<List<String>> rows = esql.findCustomers(req(q, "q"));
+		ResultExporter out = exporter(ex, q);
+		try{
+			out.begin(new String[] {"id", "fname", "lname", "phone", "address"}, new boolean[] {true, false, false, false, false});
+			for (List<String> row : rows)
+				out.add(row.toArray(new String[row.size()]));
+		}finally{
+			out.close();
+		}
+	}
+
+	//a report from the analytics engine, or streamed through a cursor straight into the response
+	private void report(String path, final String[] header, final boolean[] numeric, final String sql) {
+		server.createContext(path, new Endpoint("GET", reports, REPORT_TIMEOUT_MS) {
+			void serve(HttpExchange ex) throws Exception {
+				List<List<String>> rows = esql.analyticsReport(sql);
+				ResultExporter out = exporter(ex, query(ex));
+				try{
+					if (rows == null){
+						new ReportPager.SqlSource(esql, header, null, null, sql).export(out);
+					}else{
+						out.begin(header, numeric);
+						for (List<String> row : rows)
+							out.add(row.toArray(new String[row.size()]));
+					}
+				}finally{
+					out.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Method to stop taking requests, letting those in progress finish for
+	 * up to a second.
+	 */
+	public synchronized void stop() {
+		if (server == null)
+			return;
+		server.stop(1);
+		executor.shutdown();
+		server = null;
+	}
+
+	/**
+	 * Method to run requests on virtual threads when the JVM has them.  They
+	 * are looked up by reflection, so this still builds and runs on Java 8.
+	 */
+	private ExecutorService newExecutor() {
+		try{
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			executorKind = "virtual threads";
+			return (ExecutorService) m.invoke(null);
+		}catch (ReflectiveOperationException e){
+			//before Java 21
+		}
+		executorKind = THREADS + " platform threads";
+		return Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			private int n = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "api-" + (++n));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	//the response body is only begun by the first bytes, so an error before
+	//them can still be answered with its status
+	private static ResultExporter exporter(final HttpExchange ex, Map<String, String> query) {
+		final ResultExporter.Format format = "csv".equalsIgnoreCase(query.get("format"))
+			? ResultExporter.Format.CSV : ResultExporter.Format.JSON;
+		ex.getResponseHeaders().set("Content-Type", format == ResultExporter.Format.CSV ? "text/csv; charset=utf-8" : JSON);
+		OutputStream body = new OutputStream() {
+			private OutputStream out = null;
+
+			private OutputStream out() throws IOException {
+				if (out == null){
+					//0 is a chunked response of unknown length
+					ex.sendResponseHeaders(200, 0);
+					out = ex.getResponseBody();
+				}
+				return out;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				out().write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out().write(b, off, len);
+			}
+
+			//an exporter closed after a failure must not begin a 200
+			@Override
+			public void close() throws IOException {
+				if (out != null)
+					out.close();
+			}
+		};
+		return new ResultExporter(Channels.newChannel(body), format);
+	}
+
+	private static void json(HttpExchange ex, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", JSON);
+		ex.sendResponseHeaders(status, bytes.length);
+		ex.getResponseBody().write(bytes);
+	}
+
+	private static void error(HttpExchange ex, int status, String message) throws IOException {
+		json(ex, status, "{\"error\":" + Json.quote(message) + "}");
+	}
+
+	private static Map<String, String> body(HttpExchange ex) throws IOException {
+		InputStream in = ex.getRequestBody();
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] chunk = new byte[4096];
+		for (int n; (n = in.read(chunk)) > 0; ){
+			buf.write(chunk, 0, n);
+			if (buf.size() > MAX_BODY_BYTES)
+				throw new BadRequest("Request body is larger than " + MAX_BODY_BYTES + " bytes");
+		}
+		try{
+			return Json.parseObject(new String(buf.toByteArray(), StandardCharsets.UTF_8));
+		}catch (IllegalArgumentException e){
+			throw new BadRequest("Request body is not a flat JSON object: " + e.getMessage());
+		}
+	}
+
+	private static Map<String, String> query(HttpExchange ex) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		String raw = ex.getRequestURI().getRawQuery();
+		if (raw == null)
+			return params;
+		for (String pair : raw.split("&")){
+			int eq = pair.indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	private static String req(Map<String, String> f, String name) {
+		String v = f.get(name);
+		if (v == null)
+			throw new BadRequest("missing " + name);
+		return v;
+	}
+
+	private static int num(Map<String, String> f, String name) {
+		try{
+			return Integer.parseInt(req(f, name).trim());
+		}catch (NumberFormatException e){
+			throw new BadRequest(name + " is not a number");
+		}
+	}
+}//end ApiServer
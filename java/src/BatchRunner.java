@@ -0,0 +1,400 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class runs a file of write commands without the menu, e.g. a day's
+ * intake from a dealership partner.  Every line is one command, either a
+ * JSON object
+ *
+ *   {"op": "AddCar", "vin": "ABCDEF1234567890", "make": "Ford", "model": "Focus", "year": 2012}
+ *
+ * or a CSV row with the operation first and its fields in the order below
+ * (fields in [] are optional in JSON only; without them a new key is drawn):
+ *
+ *   AddCustomer           fname, lname, phone, address, [id]
+ *   AddMechanic           fname, lname, experience, [id]
+ *   AddCar                vin, make, model, year
+ *   InsertServiceRequest  customer_id, car_vin, odometer, complain, [rid]
+ *   CloseServiceRequest   rid, mid, comment, bill, [wid]
+ *
+ * Commands run in transactions of <transaction size> lines.  Within one,
+ * consecutive commands of the same kind go out as one JDBC batch, which
+ * the driver rewrites into multi-row INSERTs (reWriteBatchedInserts).  A
+ * batch that fails is rolled back to a savepoint and retried row by row,
+ * so a bad row is reported with its line number and the rest still commit.
+ */
+public class BatchRunner {
+	public static final int DEFAULT_TRANSACTION_SIZE = 1000;
+	//failures printed in full, the rest are only counted
+	private static final int MAX_REPORTED = 100;
+
+	//a request can only be closed once it exists and is not dated in the future
+	static final String SQL_BATCH_CLOSE_REQUEST = "INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill, request_date) SELECT ?, Service_Request.rid, ?, CURRENT_DATE, ?, ?, Service_Request.date FROM Service_Request WHERE Service_Request.rid = ? AND Service_Request.date <= CURRENT_DATE ON CONFLICT (rid, request_date) DO NOTHING";
+
+	/**
+	 * One parsed line of the command file.
+	 */
+	private static class Command {
+		final int line;
+		final String op;
+		final String sql;
+		final Object[] params;
+
+		Command(int line, String op, String sql, Object[] params){
+			this.line = line;
+			this.op = op;
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+	/**
+	 * Totals for one operation.
+	 */
+	private static class Counts {
+		int ok = 0;
+		int failed = 0;
+	}
+
+	private final MechanicShop esql;
+	private final File file;
+	private int transactionSize = DEFAULT_TRANSACTION_SIZE;
+
+	private final Map<String, Counts> counts = new LinkedHashMap<String, Counts>();
+	private final Set<String> written = new LinkedHashSet<String>();
+	private boolean explicitKeys = false;
+	private int reported = 0;
+
+	public BatchRunner(MechanicShop esql, File file) {
+		this.esql = esql;
+		this.file = file;
+	}
+
+	/**
+	 * Method to set the number of lines committed together.
+	 */
+	public BatchRunner setTransactionSize(int transactionSize) {
+		if (transactionSize < 1)
+			throw new IllegalArgumentException("Transaction size must be at least 1");
+		this.transactionSize = transactionSize;
+		return this;
+	}
+
+	/**
+	 * Method to run the whole file and print a summary.
+	 *
+	 * @return the number of commands that failed
+	 * @throws java.io.IOException when the file cannot be read
+	 * @throws java.sql.SQLException when a transaction cannot be committed
+	 */
+	public int run() throws IOException, SQLException {
+		final BufferedReader r = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+		long start = System.nanoTime();
+		int total = 0;
+		try{
+			total = esql.withConnection(new MechanicShop.SQLWork<Integer>() {
+				public Integer run(Connection c) throws SQLException {
+					Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+					c.setAutoCommit(false);
+					try{
+						return runAll(c, r, statements);
+					}catch (IOException e){
+						throw new SQLException("Reading " + file.getPath() + " failed: " + e.getMessage(), e);
+					}finally{
+						c.rollback();
+						c.setAutoCommit(true);
+						for (PreparedStatement ps : statements.values())
+							ps.close();
+					}
+				}
+			});
+		}finally{
+			r.close();
+		}
+		double secs = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+
+		//the rest of this process sees the new rows
+		for (String table : written)
+			esql.invalidateCached(table);
+		if (explicitKeys)
+			esql.resetKeys();
+		if (written.contains("service_request") || written.contains("closed_request"))
+			esql.getOpenServices().reconcile();
+		if (!written.isEmpty() && esql.getAnalytics().isReady())
+			esql.getAnalytics().warm();
+
+		int failed = 0;
+		for (Map.Entry<String, Counts> e : counts.entrySet()){
+			System.out.println(String.format("%-22s %8d ok %8d failed", e.getKey(), e.getValue().ok, e.getValue().failed));
+			failed += e.getValue().failed;
+		}
+		if (reported < failed)
+			System.out.println("(" + (failed - reported) + " more failure(s) not shown)");
+		System.out.println(String.format("Ran %d command(s) in %.2f s (%.0f/s), %d failed", total, secs, total / secs, failed));
+		return failed;
+	}//end run
+
+	private int runAll(Connection c, BufferedReader r, Map<String, PreparedStatement> statements) throws IOException, SQLException {
+		List<Command> chunk = new ArrayList<Command>(transactionSize);
+		int lineNo = 0;
+		int total = 0;
+		String line;
+		while ((line = r.readLine()) != null){
+			++lineNo;
+			if (line.trim().isEmpty() || line.startsWith("#"))
+				continue;
+			++total;
+			Command cmd;
+			try{
+				cmd = parse(lineNo, line);
+			}catch (RuntimeException e){
+				fail(lineNo, opOf(line), "unreadable command: " + e.getMessage());
+				continue;
+			}
+			chunk.add(cmd);
+			if (chunk.size() == transactionSize){
+				runTransaction(c, chunk, statements);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty())
+			runTransaction(c, chunk, statements);
+		return total;
+	}
+
+	/**
+	 * Sends the runs of same-kind commands as batches and commits.
+	 */
+	private void runTransaction(Connection c, List<Command> chunk, Map<String, PreparedStatement> statements) throws SQLException {
+		int from = 0;
+		for (int i = 1; i <= chunk.size(); ++i){
+			if (i == chunk.size() || !chunk.get(i).sql.equals(chunk.get(from).sql)){
+				PreparedStatement ps = statements.get(chunk.get(from).sql);
+				if (ps == null){
+					ps = c.prepareStatement(chunk.get(from).sql);
+					statements.put(chunk.get(from).sql, ps);
+				}
+				runBatch(c, ps, chunk.subList(from, i));
+				from = i;
+			}
+		}
+		c.commit();
+	}
+
+	private void runBatch(Connection c, PreparedStatement ps, List<Command> run) throws SQLException {
+		Savepoint sp = c.setSavepoint();
+		int[] results;
+		try{
+			for (Command cmd : run){
+				bind(ps, cmd.params);
+				ps.addBatch();
+			}
+			results = ps.executeBatch();
+		}catch (SQLException e){
+			//the transaction is aborted, find the bad rows one at a time
+			ps.clearBatch();
+			c.rollback(sp);
+			runRows(c, ps, run);
+			return;
+		}
+		c.releaseSavepoint(sp);
+		for (int i = 0; i < run.size(); ++i)
+			done(run.get(i), i < results.length ? results[i] : Statement.SUCCESS_NO_INFO);
+	}
+
+	private void runRows(Connection c, PreparedStatement ps, List<Command> run) throws SQLException {
+		for (Command cmd : run){
+			Savepoint sp = c.setSavepoint();
+			try{
+				bind(ps, cmd.params);
+				done(cmd, ps.executeUpdate());
+				c.releaseSavepoint(sp);
+			}catch (SQLException e){
+				c.rollback(sp);
+				fail(cmd.line, cmd.op, message(e));
+			}
+		}
+	}
+
+	private void done(Command cmd, int updated) {
+		//an INSERT ... SELECT that found nothing to insert
+		if (updated == 0){
+			fail(cmd.line, cmd.op, "service request does not exist, is dated in the future or is already closed");
+			return;
+		}
+		counts(cmd.op).ok++;
+		written.add(tableOf(cmd.op));
+	}
+
+	private void fail(int line, String op, String message) {
+		counts(op).failed++;
+		if (reported < MAX_REPORTED){
+			++reported;
+			System.err.println("line " + line + ": " + op + ": " + message);
+		}
+	}
+
+	private Counts counts(String op) {
+		Counts n = counts.get(op);
+		if (n == null){
+			n = new Counts();
+			counts.put(op, n);
+		}
+		return n;
+	}
+
+	private static void bind(PreparedStatement ps, Object[] params) throws SQLException {
+		for (int i = 0; i < params.length; ++i)
+			ps.setObject(i + 1, params[i]);
+	}
+
+	private static String message(SQLException e) {
+		SQLException next = e instanceof BatchUpdateException ? e.getNextException() : null;
+		SQLException cause = next != null ? next : e;
+		return (cause.getSQLState() != null ? cause.getSQLState() + " " : "") + cause.getMessage();
+	}
+
+	private static String tableOf(String op) {
+		if (op.equals("AddCustomer")) return "customer";
+		if (op.equals("AddMechanic")) return "mechanic";
+		if (op.equals("AddCar")) return "car";
+		if (op.equals("InsertServiceRequest")) return "service_request";
+		return "closed_request";
+	}
+
+	/**
+	 * Turns a line into the statement and parameters of its operation.
+	 * New keys are drawn here, so a failed row only wastes its key.
+	 */
+	private Command parse(int lineNo, String line) {
+		Map<String, String> f;
+		String op;
+		if (line.trim().startsWith("{")){
+			f = Json.parseObject(line);
+			op = f.get("op");
+		}else{
+			List<String> cells = splitCsv(line);
+			op = cells.get(0).trim();
+			String[] names = fieldsOf(op);
+			f = new HashMap<String, String>();
+			for (int i = 0; i < names.length && i + 1 < cells.size(); ++i)
+				f.put(names[i], cells.get(i + 1));
+		}
+		if (op == null)
+			throw new IllegalArgumentException("no op");
+		try{
+			if (op.equals("AddCustomer"))
+				return new Command(lineNo, op, MechanicShop.SQL_ADD_CUSTOMER, new Object[] {
+					key(f, "id", KeyGenerator.CUSTOMER), req(f, "fname"), req(f, "lname"), req(f, "phone"), req(f, "address")});
+			if (op.equals("AddMechanic"))
+				return new Command(lineNo, op, MechanicShop.SQL_ADD_MECHANIC, new Object[] {
+					key(f, "id", KeyGenerator.MECHANIC), req(f, "fname"), req(f, "lname"), num(f, "experience")});
+			if (op.equals("AddCar"))
+				return new Command(lineNo, op, MechanicShop.SQL_ADD_CAR, new Object[] {
+					req(f, "vin"), req(f, "make"), req(f, "model"), num(f, "year")});
+			if (op.equals("InsertServiceRequest"))
+				return new Command(lineNo, op, MechanicShop.SQL_ADD_SERVICE_REQUEST, new Object[] {
+					key(f, "rid", KeyGenerator.SERVICE_REQUEST), num(f, "customer_id"),
+					f.containsKey("vin") ? req(f, "vin") : req(f, "car_vin"), num(f, "odometer"), f.get("complain")});
+			if (op.equals("CloseServiceRequest"))
+				return new Command(lineNo, op, SQL_BATCH_CLOSE_REQUEST, new Object[] {
+					key(f, "wid", KeyGenerator.CLOSED_REQUEST), num(f, "mid"), f.get("comment"), num(f, "bill"), num(f, "rid")});
+		}catch (SQLException e){
+			throw new IllegalStateException("no key available: " + e.getMessage(), e);
+		}
+		throw new IllegalArgumentException("unknown op " + op);
+	}//end parse
+
+	private static String[] fieldsOf(String op) {
+		if (op.equals("AddCustomer")) return new String[] {"fname", "lname", "phone", "address"};
+		if (op.equals("AddMechanic")) return new String[] {"fname", "lname", "experience"};
+		if (op.equals("AddCar")) return new String[] {"vin", "make", "model", "year"};
+		if (op.equals("InsertServiceRequest")) return new String[] {"customer_id", "car_vin", "odometer", "complain"};
+		if (op.equals("CloseServiceRequest")) return new String[] {"rid", "mid", "comment", "bill"};
+		throw new IllegalArgumentException("unknown op " + op);
+	}
+
+	private Integer key(Map<String, String> f, String name, String table) throws SQLException {
+		if (f.get(name) != null){
+			explicitKeys = true;
+			return num(f, name);
+		}
+		return esql.getNextId(table);
+	}
+
+	private static String req(Map<String, String> f, String name) {
+		String v = f.get(name);
+		if (v == null)
+			throw new IllegalArgumentException("missing " + name);
+		return v;
+	}
+
+	private static Integer num(Map<String, String> f, String name) {
+		try{
+			return Integer.valueOf(req(f, name).trim());
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException(name + " is not a number: " + f.get(name));
+		}
+	}
+
+	private static String opOf(String line) {
+		try{
+			if (line.trim().startsWith("{")){
+				String op = Json.parseObject(line).get("op");
+				return op != null ? op : "?";
+			}
+			return splitCsv(line).get(0).trim();
+		}catch (RuntimeException e){
+			return "?";
+		}
+	}
+
+	/**
+	 * Splits one CSV row; fields may be quoted, with "" for a quote.
+	 */
+	static List<String> splitCsv(String line) {
+		List<String> cells = new ArrayList<String>();
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); ++i){
+			char ch = line.charAt(i);
+			if (quoted){
+				if (ch == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"'){
+					sb.append('"');
+					++i;
+				}else if (ch == '"'){
+					quoted = false;
+				}else{
+					sb.append(ch);
+				}
+			}else if (ch == '"'){
+				quoted = true;
+			}else if (ch == ','){
+				cells.add(sb.toString());
+				sb.setLength(0);
+			}else{
+				sb.append(ch);
+			}
+		}
+		if (quoted)
+			throw new IllegalArgumentException("unterminated quote");
+		cells.add(sb.toString());
+		return cells;
+	}
+}//end BatchRunner
@@ -0,0 +1,284 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs the ten menu operations headlessly and reports, per
+ * operation, throughput, latency percentiles, bytes allocated and round
+ * trips to the database.  Operations that write do commit, so point it at
+ * a throwaway database, see bench.sh.
+ *
+ * Each operation is warmed up first, then run for the given number of
+ * iterations spread over the given number of threads.  Inputs are drawn
+ * from the data already in the database with a fixed seed, so two runs
+ * against the same data ask the same questions.  Round trips are only
+ * counted with -Dmechanicshop.countRoundTrips=true.
+ */
+public class Benchmark {
+	/**
+	 * One operation with inputs drawn from the given generator.
+	 */
+	private interface Operation {
+		void run(Random rnd) throws Exception;
+	}
+
+	private final MechanicShop esql;
+	private int iterations = 200;
+	private int warmup = 50;
+	private int threads = 1;
+	private long seed = 42;
+	private boolean[] selected = null;
+
+	//customers owning cars: id, number of cars, last name
+	private final List<Object[]> owners = new ArrayList<Object[]>();
+	private final List<Integer> mechanics = new ArrayList<Integer>();
+	//open requests dated today or earlier, taken by CloseServiceRequest
+	private final ConcurrentLinkedQueue<Integer> openRequests = new ConcurrentLinkedQueue<Integer>();
+	//makes the VINs of this run's cars unique across runs
+	private final int run = (int) (System.currentTimeMillis() / 1000 % 10000000);
+	private final AtomicInteger nextCar = new AtomicInteger();
+
+	public Benchmark(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	public Benchmark setIterations(int iterations) {
+		if (iterations < 1)
+			throw new IllegalArgumentException("At least one iteration is needed");
+		this.iterations = iterations;
+		return this;
+	}
+
+	public Benchmark setWarmup(int warmup) {
+		this.warmup = warmup;
+		return this;
+	}
+
+	public Benchmark setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("At least one thread is needed");
+		this.threads = threads;
+		return this;
+	}
+
+	public Benchmark setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Method to limit the run to some operations, by menu number.
+	 *
+	 * @param ops e.g. "1,4,5"
+	 */
+	public Benchmark setOperations(String ops) {
+		selected = new boolean[MechanicShop.OPERATIONS.length + 1];
+		for (String op : ops.split(","))
+			selected[Integer.parseInt(op.trim())] = true;
+		return this;
+	}
+
+	/**
+	 * Method to run the selected operations one after another and print a
+	 * line of results for each.
+	 *
+	 * @throws java.lang.Exception when an operation fails
+	 */
+	public void run() throws Exception {
+		loadInputs();
+		Map<Integer, Operation> ops = operations();
+		if (!RoundTripCounter.isInstalled())
+			System.out.println("Round trips are not counted, run with -Dmechanicshop.countRoundTrips=true");
+		System.out.println(String.format("%d iteration(s) after %d warmup, %d thread(s), seed %d",
+			iterations, warmup, threads, seed));
+		System.out.println(String.format("%-48s %10s %9s %9s %9s %9s %11s %9s %8s",
+			"operation", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc B/op", "alloc MB/s", "trips/op"));
+		for (Map.Entry<Integer, Operation> op : ops.entrySet()){
+			if (selected != null && !selected[op.getKey()])
+				continue;
+			if (op.getKey() == 5)
+				ensureOpenRequests(warmup + iterations);
+			measure(op.getKey() + ". " + MechanicShop.OPERATIONS[op.getKey() - 1], op.getValue());
+		}
+	}//end run
+
+	private Map<Integer, Operation> operations() {
+		Map<Integer, Operation> ops = new LinkedHashMap<Integer, Operation>();
+		ops.put(1, new Operation() {
+			public void run(Random rnd) throws Exception {
+				esql.addCustomer("Bench", "Customer" + rnd.nextInt(1000), "(555)555-0100", "1 Benchmark Road");
+			}
+		});
+		ops.put(2, new Operation() {
+			public void run(Random rnd) throws Exception {
+				esql.addMechanic("Bench", "Mechanic" + rnd.nextInt(1000), rnd.nextInt(40));
+			}
+		});
+		ops.put(3, new Operation() {
+			public void run(Random rnd) throws Exception {
+				esql.addCar(newVin(), "Bench", "Model" + rnd.nextInt(100), 1970 + rnd.nextInt(50));
+			}
+		});
+		ops.put(4, new Operation() {
+			public void run(Random rnd) throws Exception {
+				//the menu flow: look the customer up, list the cars, pick one, open the request
+				Object[] owner = owners.get(rnd.nextInt(owners.size()));
+				int customer = (Integer) owner[0];
+				esql.findCustomers((String) owner[2]);
+				List<List<String>> cars = esql.listCustomerCars(customer);
+				String vin = cars.get(rnd.nextInt(cars.size())).get(1);
+				int rid = esql.insertServiceRequest(customer, vin, rnd.nextInt(200000), "Benchmark request");
+				openRequests.add(rid);
+			}
+		});
+		ops.put(5, new Operation() {
+			public void run(Random rnd) throws Exception {
+				Integer rid = openRequests.poll();
+				if (rid == null)
+					throw new IllegalStateException("No open service requests left to close");
+				esql.closeServiceRequest(rid, mechanics.get(rnd.nextInt(mechanics.size())), "Benchmark close", 1 + rnd.nextInt(500));
+			}
+		});
+		ops.put(6, new Operation() {
+			public void run(Random rnd) throws Exception {
+				esql.listCustomersWithBillLessThan100();
+			}
+		});
+		ops.put(7, new Operation() {
+			public void run(Random rnd) throws Exception {
+				esql.listCustomersWithMoreThan20Cars();
+			}
+		});
+		ops.put(8, new Operation() {
+			public void run(Random rnd) throws Exception {
+				esql.listCarsBefore1995With50000Milles();
+			}
+		});
+		ops.put(9, new Operation() {
+			public void run(Random rnd) throws Exception {
+				esql.listKCarsWithTheMostServices(1 + rnd.nextInt(3), 10);
+			}
+		});
+		ops.put(10, new Operation() {
+			public void run(Random rnd) throws Exception {
+				esql.listCustomersInDescendingOrderOfTheirTotalBill();
+			}
+		});
+		return ops;
+	}
+
+	private String newVin() {
+		return String.format("B%07d%08d", run, nextCar.incrementAndGet());
+	}
+
+	private void loadInputs() throws Exception {
+		for (List<String> row : esql.executeQueryAndReturnResult(
+				"SELECT Owns.customer_id, COUNT(*), Customer.lname FROM Owns, Customer " +
+				"WHERE Customer.id = Owns.customer_id GROUP BY Owns.customer_id, Customer.lname ORDER BY 1"))
+			owners.add(new Object[] {Integer.valueOf(row.get(0)), Integer.valueOf(row.get(1)), row.get(2).trim()});
+		for (List<String> row : esql.executeQueryAndReturnResult("SELECT id FROM Mechanic ORDER BY id"))
+			mechanics.add(Integer.valueOf(row.get(0)));
+		for (List<String> row : esql.executeQueryAndReturnResult(
+				"SELECT s.rid FROM Service_Request s WHERE s.date <= CURRENT_DATE " +
+				"AND NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = s.rid) ORDER BY 1"))
+			openRequests.add(Integer.valueOf(row.get(0)));
+		if (owners.isEmpty() || mechanics.isEmpty())
+			throw new IllegalStateException("The database has no car owners or mechanics, load it first");
+	}
+
+	//opens requests outside the measurement for CloseServiceRequest to close
+	private void ensureOpenRequests(int needed) throws Exception {
+		Random rnd = new Random(seed);
+		while (openRequests.size() < needed){
+			Object[] owner = owners.get(rnd.nextInt(owners.size()));
+			String vin = esql.listCustomerCars((Integer) owner[0]).get(0).get(1);
+			openRequests.add(esql.insertServiceRequest((Integer) owner[0], vin, 1000, "Benchmark setup"));
+		}
+	}
+
+	/**
+	 * Runs one operation on every thread and prints its line.
+	 */
+	private void measure(String name, final Operation op) throws Exception {
+		final long[] nanos = new long[iterations];
+		final long[] allocated = new long[threads];
+		final long[] trips = new long[threads];
+		final long[] begin = new long[threads];
+		final long[] end = new long[threads];
+		final Exception[] failure = new Exception[1];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger warm = new AtomicInteger();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t){
+			final int slot = t;
+			workers[t] = new Thread(new Runnable() {
+				public void run() {
+					Random rnd = new Random(seed + slot);
+					try{
+						while (warm.getAndIncrement() < warmup)
+							op.run(rnd);
+						long bytes = allocatedBytes();
+						long before = RoundTripCounter.get();
+						begin[slot] = System.nanoTime();
+						int i;
+						while ((i = next.getAndIncrement()) < iterations){
+							long start = System.nanoTime();
+							op.run(rnd);
+							nanos[i] = System.nanoTime() - start;
+						}
+						end[slot] = System.nanoTime();
+						allocated[slot] = allocatedBytes() - bytes;
+						trips[slot] = RoundTripCounter.get() - before;
+					}catch (Exception e){
+						synchronized (failure){
+							failure[0] = e;
+						}
+						next.set(iterations);
+					}
+				}
+			}, "bench-" + t);
+		}
+		for (Thread w : workers)
+			w.start();
+		for (Thread w : workers)
+			w.join();
+		if (failure[0] != null)
+			throw new Exception(name + " failed: " + failure[0].getMessage(), failure[0]);
+
+		Arrays.sort(nanos);
+		long bytes = 0;
+		long roundTrips = 0;
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for (int t = 0; t < threads; ++t){
+			bytes += allocated[t];
+			roundTrips += trips[t];
+			first = Math.min(first, begin[t]);
+			last = Math.max(last, end[t]);
+		}
+		//from the first measured call to the last, without the warmup
+		double busySecs = Math.max(1e-9, (last - first) / 1e9);
+		System.out.println(String.format("%-48s %10.1f %9.3f %9.3f %9.3f %9.3f %11d %9.1f %8.2f",
+			name, iterations / busySecs, percentile(nanos, 0.50), percentile(nanos, 0.90),
+			percentile(nanos, 0.99), nanos[nanos.length - 1] / 1e6,
+			bytes / iterations, bytes / 1e6 / busySecs, (double) roundTrips / iterations));
+	}//end measure
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+	}
+
+	//bytes the calling thread has allocated so far, -1 when the JVM cannot tell
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+}//end Benchmark
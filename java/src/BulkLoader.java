@@ -0,0 +1,582 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class seeds the six tables from the data/*.csv files by streaming
+ * them from the client through COPY ... FROM STDIN, so the database server
+ * does not need to see the files.  Tables are loaded in foreign-key order,
+ * in three stages whose tables load in parallel on separate connections:
+ *
+ *   Customer, Mechanic, Car  ->  Owns, Service_Request  ->  Closed_Request
+ *
+ * Secondary indexes on the tables are dropped before the load and rebuilt
+ * once all rows are in.  Progress and rows/s are printed while loading.
+ *
+ * With a scale factor n > 1 every file is streamed n times.  Copy k shifts
+ * the integer keys by k times (largest key + 1) and gives the VINs a
+ * two-digit copy prefix, so the copies are disjoint and reference each
+ * other the way the original rows do.  For larger data sets see
+ * DataGenerator.
+ *
+ * A file may also be gzipped as <name>.csv.gz, the way DataGenerator
+ * writes them.  Once the request tables are partitioned by month, their
+ * rows go through RequestPartitions.copyIn, which creates the months the
+ * rows need.
+ */
+public class BulkLoader {
+	//tables with their COPY column lists and the key each column holds
+	//("-" for none), grouped into stages
+	static final String[][][] STAGES = {
+		{
+			{"Customer", "customer.csv", "id, fname, lname, phone, address", "customer,-,-,-,-"},
+			{"Mechanic", "mechanic.csv", "id, fname, lname, experience", "mechanic,-,-,-"},
+			{"Car", "car.csv", "vin, make, model, year", "vin,-,-,-"}
+		},
+		{
+			{"Owns", "owns.csv", "ownership_id, customer_id, car_vin", "owns,customer,vin"},
+			{"Service_Request", "service_request.csv", "rid, customer_id, car_vin, date, odometer, complain", "request,customer,vin,-,-,-"}
+		},
+		{
+			{"Closed_Request", "closed_request.csv", "wid, rid, mid, date, comment, bill", "closed,request,mechanic,-,-,-"}
+		}
+	};
+	//the VIN prefix of a copy has two digits
+	static final int MAX_SCALE = 100;
+
+	//session setting the triggers on the request tables check to stand down
+	static final String BULK_LOAD_SETTING = "mechanicshop.bulk_load";
+
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+	private static final long PROGRESS_INTERVAL_MS = 1000;
+
+	private final MechanicShop esql;
+	private final File dataDir;
+	private boolean truncate = false;
+	private File schemaFile = null;
+	private int scale = 1;
+	//key -> distance between two copies of it, when scaling
+	private final java.util.Map<String, Integer> strides = new java.util.HashMap<String, Integer>();
+	private final VinMap vins = new VinMap();
+
+	public BulkLoader(MechanicShop esql, File dataDir) {
+		this.esql = esql;
+		this.dataDir = dataDir;
+	}
+
+	/**
+	 * Method to empty the six tables before loading.
+	 */
+	public BulkLoader setTruncate(boolean truncate) {
+		this.truncate = truncate;
+		return this;
+	}
+
+	/**
+	 * Method to (re)create the tables from a schema script before loading,
+	 * e.g. ../sql/schema.sql.
+	 */
+	public BulkLoader setSchemaFile(File schemaFile) {
+		this.schemaFile = schemaFile;
+		return this;
+	}
+
+	/**
+	 * Method to load every file scale times, see the class comment.
+	 */
+	public BulkLoader setScale(int scale) {
+		if (scale < 1 || scale > MAX_SCALE)
+			throw new IllegalArgumentException("Scale factor must be between 1 and " + MAX_SCALE);
+		this.scale = scale;
+		return this;
+	}
+
+	/**
+	 * One table being copied, with the counters the progress thread reads.
+	 */
+	private static class TableLoad {
+		final String table;
+		final File file;
+		final String columns;
+		final String[] keys;
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		volatile long startNanos = 0;
+		volatile long endNanos = 0;
+
+		TableLoad(String table, File file, String columns, String keys){
+			this.table = table;
+			this.file = file;
+			this.columns = columns;
+			this.keys = keys.split(",");
+		}
+	}
+
+	/**
+	 * Method to run the whole load.
+	 *
+	 * @throws java.lang.Exception when a file cannot be read or a COPY fails;
+	 *         indexes dropped before the failure are rebuilt before returning
+	 */
+	public void load() throws Exception {
+		final List<TableLoad> all = new ArrayList<TableLoad>();
+		for (String[][] stage : STAGES)
+			for (String[] t : stage){
+				File f = new File(dataDir, t[1]);
+				if (!f.isFile() && new File(dataDir, t[1] + ".gz").isFile())
+					f = new File(dataDir, t[1] + ".gz");
+				if (!f.isFile())
+					throw new IOException("Missing data file " + f.getPath());
+				all.add(new TableLoad(t[0], f, t[2], t[3]));
+			}
+		if (scale > 1)
+			measureKeys(all);
+
+		prepareTables();
+		List<String> indexes = dropSecondaryIndexes();
+		Thread progress = startProgress(all);
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try{
+			int next = 0;
+			for (String[][] stage : STAGES){
+				List<Future<?>> running = new ArrayList<Future<?>>();
+				for (int i = 0; i < stage.length; ++i){
+					final TableLoad t = all.get(next++);
+					running.add(pool.submit(new java.util.concurrent.Callable<Void>() {
+						public Void call() throws Exception {
+							copy(t);
+							return null;
+						}
+					}));
+				}
+				//the next stage references rows of this one
+				for (Future<?> f : running)
+					f.get();
+			}
+		}finally{
+			pool.shutdownNow();
+			progress.interrupt();
+			progress.join();
+			rebuildIndexes(indexes);
+		}
+		finishLoad();
+
+		double secs = (System.nanoTime() - start) / 1e9;
+		long total = 0;
+		for (TableLoad t : all){
+			double tsecs = Math.max(1e-9, (t.endNanos - t.startNanos) / 1e9);
+			System.out.println(String.format("%-16s %10d rows %8.2f s %12.0f rows/s",
+				t.table, t.rows.get(), tsecs, t.rows.get() / tsecs));
+			total += t.rows.get();
+		}
+		System.out.println(String.format("Loaded %d rows in %.2f s (%.0f rows/s)", total, secs, total / secs));
+	}//end load
+
+	/**
+	 * Method to create the schema and empty the tables, as set up with
+	 * setSchemaFile and setTruncate.
+	 */
+	void prepareTables() throws IOException, SQLException {
+		if (schemaFile != null){
+			System.out.println("Creating schema from " + schemaFile.getPath());
+			final String ddl = new String(Files.readAllBytes(schemaFile.toPath()), StandardCharsets.UTF_8);
+			runStatements(ddl);
+		}
+		if (truncate){
+			System.out.println("Truncating tables");
+			//CASCADE also empties the tables derived from them, e.g. customer_billing
+			runStatements("TRUNCATE Customer, Mechanic, Car, Owns, Service_Request, Closed_Request CASCADE");
+		}
+	}
+
+	/**
+	 * Method to bring the statistics, the key sequences and other processes
+	 * up to date once every row is in.
+	 */
+	void finishLoad() throws SQLException {
+		runStatements("ANALYZE Customer, Mechanic, Car, Owns, Service_Request, Closed_Request");
+		//the row triggers stood down, running processes reload their customer directory
+		runStatements("NOTIFY " + CustomerDirectory.CHANNEL + ", 'reload'");
+		//the key sequences must move past the ids that were just loaded
+		esql.resetKeys();
+	}
+
+	/**
+	 * Streams one file into its table on a connection of its own.
+	 */
+	private void copy(final TableLoad t) throws Exception {
+		esql.inTransaction(new MechanicShop.SQLWork<Void>() {
+			public Void run(Connection c) throws SQLException {
+				beginCopy(c);
+				t.startNanos = System.nanoTime();
+				InputStream in = null;
+				try{
+					InputStream file = open(t.file);
+					in = new CountingStream(scale > 1 ? new ScaledStream(t, file) : file, t);
+					long rows = RequestPartitions.copyIn(c, t.table, t.columns, in);
+					//the line count may be off by one without a trailing newline
+					t.rows.set(rows);
+				}catch (IOException e){
+					throw new SQLException("Reading " + t.file.getPath() + " failed: " + e.getMessage(), e);
+				}finally{
+					t.endNanos = System.nanoTime();
+					if (in != null){
+						try{
+							in.close();
+						}catch (IOException e){
+							// ignored.
+						}
+					}
+				}
+				//the last stage, every request is in
+				if (t.table.equals("Closed_Request"))
+					rebuildDerived(c);
+				return null;
+			}
+		});
+	}//end copy
+
+	/**
+	 * Sets up the transaction of a COPY into one of the six tables.
+	 */
+	static void beginCopy(Connection c) throws SQLException {
+		Statement stmt = c.createStatement();
+		try{
+			//the CSVs write dates as 10/22/2016 00:00
+			stmt.execute("SET LOCAL datestyle = 'ISO, MDY'");
+			//the tables derived from the requests are rebuilt once below instead of per row
+			stmt.execute("SET LOCAL " + BULK_LOAD_SETTING + " = 'on'");
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Recomputes the tables the triggers keep from the requests, which stood
+	 * down during the load.
+	 */
+	static void rebuildDerived(Connection c) throws SQLException {
+		if (exists(c, "customer_billing"))
+			CustomerBilling.rebuild(c);
+		if (exists(c, "car_open_requests"))
+			OpenServiceIndex.rebuild(c);
+	}
+
+	/**
+	 * Opens a data file, uncompressing it when its name ends in .gz.
+	 */
+	static InputStream open(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), COPY_BUFFER_SIZE);
+		if (file.getName().endsWith(".gz"))
+			in = new BufferedInputStream(new GZIPInputStream(in, COPY_BUFFER_SIZE), COPY_BUFFER_SIZE);
+		return in;
+	}
+
+	/**
+	 * Drops every index on the six tables that does not back a constraint and
+	 * returns the statements that recreate them.  Unique indexes stay: they
+	 * guard the rows loaded meanwhile and are the arbiters of ON CONFLICT,
+	 * e.g. closed_request_rid_key of SQL_CLOSE_SERVICE_REQUEST.
+	 */
+	List<String> dropSecondaryIndexes() throws SQLException {
+		return esql.inTransaction(new MechanicShop.SQLWork<List<String>>() {
+			public List<String> run(Connection c) throws SQLException {
+				List<String> defs = new ArrayList<String>();
+				List<String> names = new ArrayList<String>();
+				Statement stmt = c.createStatement();
+				try{
+					ResultSet rs = stmt.executeQuery(
+						"SELECT i.indexrelid::regclass::text, pg_get_indexdef(i.indexrelid) " +
+						"FROM pg_index i JOIN pg_class t ON t.oid = i.indrelid " +
+						"WHERE t.relname IN ('customer', 'mechanic', 'car', 'owns', 'service_request', 'closed_request') " +
+						"AND t.relnamespace = 'public'::regnamespace AND NOT i.indisunique " +
+						"AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.indexrelid)");
+					while (rs.next()){
+						names.add(rs.getString(1));
+						//an index of a partitioned table is defined ON ONLY the parent, recreated it spans the partitions
+						defs.add(rs.getString(2).replaceFirst(" ON ONLY ", " ON "));
+					}
+					rs.close();
+					for (String name : names)
+						stmt.execute("DROP INDEX " + name);
+				}finally{
+					stmt.close();
+				}
+				if (!names.isEmpty())
+					System.out.println("Deferred " + names.size() + " index(es) until after the load");
+				return defs;
+			}
+		});
+	}//end dropSecondaryIndexes
+
+	void rebuildIndexes(List<String> defs) throws SQLException {
+		if (defs.isEmpty())
+			return;
+		long start = System.nanoTime();
+		for (String def : defs)
+			runStatements(def);
+		System.out.println(String.format("Rebuilt %d index(es) in %.2f s", defs.size(), (System.nanoTime() - start) / 1e9));
+	}
+
+	//whether a migration has created the table yet
+	private static boolean exists(Connection c, String table) throws SQLException {
+		Statement stmt = c.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT to_regclass('" + table + "') IS NOT NULL");
+			rs.next();
+			return rs.getBoolean(1);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private void runStatements(final String sql) throws SQLException {
+		esql.withConnection(new MechanicShop.SQLWork<Void>() {
+			public Void run(Connection c) throws SQLException {
+				Statement stmt = c.createStatement();
+				try{
+					stmt.execute(sql);
+				}finally{
+					stmt.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Prints the progress of the running tables once a second.
+	 */
+	private Thread startProgress(final List<TableLoad> all) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while (true){
+					try{
+						Thread.sleep(PROGRESS_INTERVAL_MS);
+					}catch (InterruptedException e){
+						return;
+					}
+					StringBuilder sb = new StringBuilder();
+					for (TableLoad l : all){
+						if (l.startNanos == 0 || l.endNanos != 0)
+							continue;
+						double secs = Math.max(1e-9, (System.nanoTime() - l.startNanos) / 1e9);
+						if (l.file.getName().endsWith(".gz"))
+							//only the uncompressed bytes are counted
+							sb.append(String.format("  %s %d rows (%.0f rows/s)", l.table, l.rows.get(), l.rows.get() / secs));
+						else
+							sb.append(String.format("  %s %d rows (%.0f%%, %.0f rows/s)",
+								l.table, l.rows.get(), 100.0 * l.bytes.get() / Math.max(1, l.file.length() * scale),
+								l.rows.get() / secs));
+					}
+					if (sb.length() > 0)
+						System.out.println("Loading:" + sb);
+				}
+			}
+		}, "bulk-load-progress");
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Finds the largest value of every key, and every original VIN, so the
+	 * copies can be placed after them.
+	 */
+	private void measureKeys(List<TableLoad> all) throws IOException {
+		for (TableLoad t : all){
+			java.io.BufferedReader r = new java.io.BufferedReader(new java.io.InputStreamReader(open(t.file), StandardCharsets.UTF_8));
+			try{
+				String line;
+				while ((line = r.readLine()) != null){
+					if (line.isEmpty())
+						continue;
+					String[] fields = line.split(",", -1);
+					for (int i = 0; i < t.keys.length && i < fields.length; ++i){
+						if (t.keys[i].equals("-"))
+							continue;
+						if (t.keys[i].equals("vin")){
+							vins.reserve(fields[i].trim());
+							continue;
+						}
+						int v = Integer.parseInt(fields[i].trim());
+						Integer stride = strides.get(t.keys[i]);
+						if (stride == null || v + 1 > stride)
+							strides.put(t.keys[i], v + 1);
+					}
+				}
+			}finally{
+				r.close();
+			}
+		}
+	}//end measureKeys
+
+	/**
+	 * Streams a file scale times, shifting the keys of every copy after the
+	 * first.  The rows are split on ',' the way COPY splits them.
+	 */
+	private class ScaledStream extends InputStream {
+		private final TableLoad load;
+		private java.io.BufferedReader reader;
+		private int copy = 0;
+		private byte[] buf = new byte[0];
+		private int pos = 0;
+
+		ScaledStream(TableLoad load, InputStream first){
+			this.load = load;
+			this.reader = new java.io.BufferedReader(new java.io.InputStreamReader(first, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return buf[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int n = Math.min(len, buf.length - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		//makes the next line available, false at the end of the last copy
+		private boolean fill() throws IOException {
+			while (pos == buf.length){
+				String line = reader.readLine();
+				if (line == null){
+					reader.close();
+					if (++copy == scale)
+						return false;
+					reader = new java.io.BufferedReader(new java.io.InputStreamReader(open(load.file), StandardCharsets.UTF_8));
+					continue;
+				}
+				if (line.isEmpty())
+					continue;
+				buf = ((copy == 0 ? line : shift(line)) + "\n").getBytes(StandardCharsets.UTF_8);
+				pos = 0;
+			}
+			return true;
+		}
+
+		private String shift(String line) {
+			String[] fields = line.split(",", -1);
+			for (int i = 0; i < load.keys.length && i < fields.length; ++i){
+				String key = load.keys[i];
+				if (key.equals("-"))
+					continue;
+				if (key.equals("vin"))
+					fields[i] = vins.copyOf(copy, fields[i].trim());
+				else
+					fields[i] = Long.toString(Long.parseLong(fields[i].trim()) + (long) copy * strides.get(key));
+			}
+			StringBuilder sb = new StringBuilder(line.length() + 16);
+			for (int i = 0; i < fields.length; ++i){
+				if (i > 0)
+					sb.append(',');
+				sb.append(fields[i]);
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}//end ScaledStream
+
+	/**
+	 * Gives every copy of a VIN a new VIN of the same length: a two-digit
+	 * copy number followed by the rest of the original, changed further on
+	 * the rare clash with a VIN already in use.  Owns and Service_Request
+	 * look up the VINs Car assigned.
+	 */
+	private static class VinMap {
+		private static final String DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+		private final java.util.Set<String> used = new java.util.HashSet<String>();
+		private final java.util.Map<String, String> copies = new java.util.HashMap<String, String>();
+
+		synchronized void reserve(String vin) {
+			used.add(vin);
+		}
+
+		synchronized String copyOf(int copy, String vin) {
+			String key = copy + ":" + vin;
+			String mapped = copies.get(key);
+			if (mapped != null)
+				return mapped;
+			String prefix = String.format("%02d", copy);
+			String rest = vin.length() > 2 ? vin.substring(2) : vin;
+			mapped = prefix + rest;
+			for (int i = 0; used.contains(mapped); ++i){
+				if (i == DIGITS.length())
+					throw new IllegalStateException("No free VIN for copy " + copy + " of " + vin);
+				//vary the last character until the VIN is free
+				mapped = prefix + rest.substring(0, rest.length() - 1) + DIGITS.charAt(i);
+			}
+			used.add(mapped);
+			copies.put(key, mapped);
+			return mapped;
+		}
+	}//end VinMap
+
+	/**
+	 * Counts bytes and lines as the driver reads the file.
+	 */
+	private static class CountingStream extends FilterInputStream {
+		private final TableLoad load;
+
+		CountingStream(InputStream in, TableLoad load){
+			super(in);
+			this.load = load;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0){
+				load.bytes.incrementAndGet();
+				if (b == '\n')
+					load.rows.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			int n = super.read(buf, off, len);
+			if (n > 0){
+				load.bytes.addAndGet(n);
+				long lines = 0;
+				for (int i = off; i < off + n; ++i)
+					if (buf[i] == '\n')
+						++lines;
+				load.rows.addAndGet(lines);
+			}
+			return n;
+		}
+	}//end CountingStream
+}//end BulkLoader
@@ -0,0 +1,182 @@
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class holds a materialized query result column by column.  Integer
+ * columns (including the schema's integer domains such as _PINTEGER and
+ * _YEAR) are kept in int[] and bigint columns such as COUNT(*) or SUM(...)
+ * in long[], so a 30k-row result with numeric columns costs a few arrays
+ * instead of 30k boxed Strings per column.  Everything else is kept as a
+ * String[].  NULLs are tracked in one BitSet per column.
+ */
+public class ColumnarResult {
+	static final byte INT = 0;
+	static final byte LONG = 1;
+	static final byte STRING = 2;
+
+	//integer domains declared in sql/create.sql
+	private static final Set<String> INT_DOMAINS = new HashSet<String>(
+		Arrays.asList("_pinteger", "_pzerointeger", "_years", "_year"));
+
+	private final String[] names;
+	private final byte[] kinds;
+	private final int[][] ints;
+	private final long[][] longs;
+	private final String[][] strings;
+	private final BitSet[] nulls;
+	private int rowCount = 0;
+	private int capacity = 16;
+
+	ColumnarResult(ResultSetMetaData rsmd) throws SQLException {
+		int numCol = rsmd.getColumnCount();
+		names = new String[numCol];
+		kinds = new byte[numCol];
+		ints = new int[numCol][];
+		longs = new long[numCol][];
+		strings = new String[numCol][];
+		nulls = new BitSet[numCol];
+		for (int c = 0; c < numCol; ++c){
+			names[c] = rsmd.getColumnName(c + 1);
+			kinds[c] = kindOf(rsmd, c + 1);
+			nulls[c] = new BitSet();
+			switch (kinds[c]){
+				case INT: ints[c] = new int[capacity]; break;
+				case LONG: longs[c] = new long[capacity]; break;
+				default: strings[c] = new String[capacity]; break;
+			}
+		}
+	}
+
+	static byte kindOf(ResultSetMetaData rsmd, int i) throws SQLException {
+		switch (rsmd.getColumnType(i)){
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return INT;
+			case Types.BIGINT:
+				return LONG;
+			default:
+				String type = rsmd.getColumnTypeName(i);
+				return type != null && INT_DOMAINS.contains(type.toLowerCase()) ? INT : STRING;
+		}
+	}
+
+	/**
+	 * Appends the current row of a streamed query.
+	 */
+	void add(ResultRow row) throws SQLException {
+		if (rowCount == capacity)
+			grow();
+		for (int c = 0; c < names.length; ++c){
+			switch (kinds[c]){
+				case INT: ints[c][rowCount] = row.getInt(c + 1); break;
+				case LONG: longs[c][rowCount] = row.getLong(c + 1); break;
+				default: strings[c][rowCount] = row.getString(c + 1); break;
+			}
+			if (row.wasNull())
+				nulls[c].set(rowCount);
+		}
+		++rowCount;
+	}
+
+	private void grow() {
+		capacity *= 2;
+		for (int c = 0; c < names.length; ++c){
+			switch (kinds[c]){
+				case INT: ints[c] = Arrays.copyOf(ints[c], capacity); break;
+				case LONG: longs[c] = Arrays.copyOf(longs[c], capacity); break;
+				default: strings[c] = Arrays.copyOf(strings[c], capacity); break;
+			}
+		}
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public int getColumnCount() {
+		return names.length;
+	}
+
+	public String getColumnName(int col) {
+		return names[col];
+	}
+
+	public boolean isIntColumn(int col) {
+		return kinds[col] == INT;
+	}
+
+	public boolean isNull(int row, int col) {
+		return nulls[col].get(row);
+	}
+
+	/**
+	 * Method to read an integer cell.  Bigint columns are narrowed.
+	 *
+	 * @param row the row, starting at 0
+	 * @param col the column, starting at 0
+	 * @return the value, 0 for NULL
+	 */
+	public int getInt(int row, int col) {
+		switch (kinds[col]){
+			case INT: return ints[col][row];
+			case LONG: return (int) longs[col][row];
+			default: return Integer.parseInt(strings[col][row].trim());
+		}
+	}
+
+	public long getLong(int row, int col) {
+		switch (kinds[col]){
+			case INT: return ints[col][row];
+			case LONG: return longs[col][row];
+			default: return Long.parseLong(strings[col][row].trim());
+		}
+	}
+
+	/**
+	 * Method to read any cell as text, formatting numeric columns on demand.
+	 *
+	 * @param row the row, starting at 0
+	 * @param col the column, starting at 0
+	 * @return the value as ResultSet.getString would return it
+	 */
+	public String getString(int row, int col) {
+		if (nulls[col].get(row))
+			return null;
+		switch (kinds[col]){
+			case INT: return Integer.toString(ints[col][row]);
+			case LONG: return Long.toString(longs[col][row]);
+			default: return strings[col][row];
+		}
+	}
+
+	/**
+	 * Method to return the whole column of an integer column.  The array
+	 * may be longer than getRowCount().
+	 */
+	public int[] getIntColumn(int col) {
+		return ints[col];
+	}
+
+	/**
+	 * Method to convert the result to the List<List<String>> form returned
+	 * by executeQueryAndReturnResult.
+	 */
+	public List<List<String>> toRows() {
+		List<List<String>> result = new ArrayList<List<String>>(rowCount);
+		for (int r = 0; r < rowCount; ++r){
+			List<String> record = new ArrayList<String>(names.length);
+			for (int c = 0; c < names.length; ++c)
+				record.add(getString(r, c));
+			result.add(record);
+		}
+		return result;
+	}
+}//end ColumnarResult
@@ -0,0 +1,412 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a small bounded pool of physical connections to one
+ * database.  Sessions check a connection out, use it, and return it; at most
+ * <max size> connections are ever open.  Idle connections are validated
+ * before they are handed out again, connections idle longer than the idle
+ * timeout are closed by a background thread, and a connection held longer
+ * than the leak threshold is reported with the thread that checked it out,
+ * and with its stack when -Dmechanicshop.pool.traceLeaks is set.
+ */
+public class ConnectionPool {
+	//a stack per checkout is costly, it is only taken to find a leak
+	static final boolean TRACE_LEAKS = Boolean.getBoolean("mechanicshop.pool.traceLeaks");
+
+	private final String url;
+	private final Properties props;
+	private final int minIdle;
+	private final int maxSize;
+	private final long checkoutTimeoutMillis;
+	private final long idleTimeoutMillis;
+	private final long leakThresholdMillis;
+	private final long validationIntervalMillis;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	//most recently returned first, so the busiest connections stay warm
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private final Set<PooledConnection> inUse = Collections.newSetFromMap(new IdentityHashMap<PooledConnection, Boolean>());
+	private int pending = 0; //connections being opened outside the lock
+	private boolean closed = false;
+	private final Thread housekeeper;
+
+	//metrics, guarded by lock
+	private long checkouts = 0;
+	private long waits = 0;
+	private long waitNanosTotal = 0;
+	private long waitNanosMax = 0;
+	private long timeouts = 0;
+	private long created = 0;
+	private long destroyed = 0;
+	private long validationFailures = 0;
+	private long leaksReported = 0;
+	private long busyNanos = 0; //sum over time of connections in use
+	private long lastBusySample = System.nanoTime();
+	private final long startNanos = System.nanoTime();
+
+	/**
+	 * One physical connection and the per-connection state that travels
+	 * with it between checkouts.
+	 */
+	public static class PooledConnection {
+		private final Connection connection;
+		private final StatementCache statements;
+		long lastUsedMillis;
+		long checkedOutMillis;
+		String checkedOutThread;
+		//null unless TRACE_LEAKS
+		Throwable checkedOutBy;
+		boolean leakReported;
+
+		PooledConnection(Connection connection){
+			this.connection = connection;
+			this.statements = new StatementCache(connection, StatementCache.DEFAULT_CAPACITY, StatementCache.DEFAULT_HOT_THRESHOLD);
+			this.lastUsedMillis = System.currentTimeMillis();
+		}
+
+		public Connection getConnection() {
+			return connection;
+		}
+
+		public StatementCache getStatements() {
+			return statements;
+		}
+
+		void close() {
+			statements.close();
+			try{
+				connection.close();
+			}catch (SQLException e){
+				// ignored.
+			}
+		}
+	}//end PooledConnection
+
+	public ConnectionPool(String url, Properties props, int minIdle, int maxSize,
+			long checkoutTimeoutMillis, long idleTimeoutMillis,
+			long leakThresholdMillis, long validationIntervalMillis) throws SQLException {
+		this.url = url;
+		this.props = props;
+		this.minIdle = minIdle;
+		this.maxSize = maxSize;
+		this.checkoutTimeoutMillis = checkoutTimeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.leakThresholdMillis = leakThresholdMillis;
+		this.validationIntervalMillis = validationIntervalMillis;
+
+		//open the first connection right away so a bad URL fails at startup
+		for (int i = 0; i < Math.max(1, minIdle); ++i){
+			PooledConnection pc = open();
+			lock.lock();
+			try{
+				idle.push(pc);
+			}finally{
+				lock.unlock();
+			}
+		}
+
+		this.housekeeper = new Thread(new Runnable() {
+			public void run() {
+				housekeep();
+			}
+		}, "connection-pool-housekeeper");
+		this.housekeeper.setDaemon(true);
+		this.housekeeper.start();
+	}
+
+	/**
+	 * Method to check a connection out of the pool.  Waits up to the
+	 * checkout timeout when all connections are in use.
+	 *
+	 * @return a validated connection that must be given back with release
+	 * @throws java.sql.SQLException when no connection became free in time
+	 */
+	public PooledConnection checkout() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(checkoutTimeoutMillis);
+		boolean waited = false;
+		while (true){
+			PooledConnection pc = null;
+			boolean openNew = false;
+			lock.lock();
+			try{
+				while (true){
+					if (closed)
+						throw new SQLException("Connection pool is closed", "08003");
+					if (!idle.isEmpty()){
+						pc = idle.pop();
+						break;
+					}
+					if (inUse.size() + pending < maxSize){
+						pending++;
+						openNew = true;
+						break;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0){
+						timeouts++;
+						throw new SQLException("Timed out after " + checkoutTimeoutMillis +
+							" ms waiting for a database connection (" + maxSize + " in use)", "08004");
+					}
+					waited = true;
+					try{
+						available.awaitNanos(remaining);
+					}catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection", "08004");
+					}
+				}
+			}finally{
+				lock.unlock();
+			}
+
+			if (openNew){
+				try{
+					pc = open();
+				}finally{
+					lock.lock();
+					try{
+						pending--;
+						if (pc == null)
+							available.signal();
+					}finally{
+						lock.unlock();
+					}
+				}
+			}else if (!validate(pc)){
+				discard(pc);
+				continue;
+			}
+
+			Throwable origin = TRACE_LEAKS ? new Throwable("Connection checked out here") : null;
+			lock.lock();
+			try{
+				sampleBusy();
+				pc.checkedOutMillis = System.currentTimeMillis();
+				pc.checkedOutThread = Thread.currentThread().getName();
+				pc.checkedOutBy = origin;
+				pc.leakReported = false;
+				inUse.add(pc);
+				checkouts++;
+				long wait = System.nanoTime() - start;
+				if (waited)
+					waits++;
+				waitNanosTotal += wait;
+				if (wait > waitNanosMax)
+					waitNanosMax = wait;
+			}finally{
+				lock.unlock();
+			}
+			return pc;
+		}
+	}//end checkout
+
+	/**
+	 * Method to give a connection back to the pool.  A connection that is
+	 * closed, or that cannot be reset to autocommit, is dropped instead.
+	 *
+	 * @param pc the connection returned by checkout
+	 */
+	public void release(PooledConnection pc) {
+		boolean healthy;
+		try{
+			healthy = !pc.connection.isClosed();
+			if (healthy && !pc.connection.getAutoCommit()){
+				pc.connection.rollback();
+				pc.connection.setAutoCommit(true);
+			}
+		}catch (SQLException e){
+			healthy = false;
+		}
+
+		lock.lock();
+		try{
+			sampleBusy();
+			inUse.remove(pc);
+			pc.checkedOutBy = null;
+			pc.lastUsedMillis = System.currentTimeMillis();
+			if (healthy && !closed)
+				idle.push(pc);
+			available.signal();
+		}finally{
+			lock.unlock();
+		}
+		if (!healthy || closed)
+			discard(pc);
+	}//end release
+
+	/**
+	 * Method to close every idle connection and stop handing out new ones.
+	 * Connections still checked out are closed when they come back.
+	 */
+	public void close() {
+		List<PooledConnection> toClose = new ArrayList<PooledConnection>();
+		lock.lock();
+		try{
+			closed = true;
+			toClose.addAll(idle);
+			idle.clear();
+			available.signalAll();
+		}finally{
+			lock.unlock();
+		}
+		housekeeper.interrupt();
+		for (PooledConnection pc : toClose)
+			discard(pc);
+	}//end close
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Method to describe the pool's state and counters, one metric per line.
+	 *
+	 * @return the metrics as "name value" lines
+	 */
+	public String getStats() {
+		lock.lock();
+		try{
+			sampleBusy();
+			long elapsed = Math.max(1, System.nanoTime() - startNanos);
+			StringBuilder sb = new StringBuilder();
+			sb.append("pool_connections_max ").append(maxSize).append('\n');
+			sb.append("pool_connections_in_use ").append(inUse.size()).append('\n');
+			sb.append("pool_connections_idle ").append(idle.size()).append('\n');
+			sb.append(String.format("pool_utilization %.3f%n", (double) inUse.size() / maxSize));
+			sb.append(String.format("pool_utilization_avg %.3f%n", (double) busyNanos / elapsed / maxSize));
+			sb.append("pool_checkouts_total ").append(checkouts).append('\n');
+			sb.append("pool_checkouts_waited_total ").append(waits).append('\n');
+			sb.append(String.format("pool_wait_ms_avg %.3f%n", checkouts == 0 ? 0.0 : waitNanosTotal / 1e6 / checkouts));
+			sb.append(String.format("pool_wait_ms_max %.3f%n", waitNanosMax / 1e6));
+			sb.append("pool_checkout_timeouts_total ").append(timeouts).append('\n');
+			sb.append("pool_connections_created_total ").append(created).append('\n');
+			sb.append("pool_connections_destroyed_total ").append(destroyed).append('\n');
+			sb.append("pool_validation_failures_total ").append(validationFailures).append('\n');
+			sb.append("pool_leaks_reported_total ").append(leaksReported).append('\n');
+			return sb.toString();
+		}finally{
+			lock.unlock();
+		}
+	}//end getStats
+
+	/**
+	 * Method to open a connection that is not part of the pool, for a
+	 * long-lived session such as a LISTEN loop that would otherwise hold a
+	 * pooled connection forever.  The caller closes it.
+	 */
+	Connection openUnpooled() throws SQLException {
+		return DriverManager.getConnection(url, props);
+	}
+
+	private PooledConnection open() throws SQLException {
+		Connection c = DriverManager.getConnection(url, props);
+		lock.lock();
+		try{
+			created++;
+		}finally{
+			lock.unlock();
+		}
+		return new PooledConnection(c);
+	}
+
+	//checks a connection that sat idle long enough to have gone stale
+	private boolean validate(PooledConnection pc) {
+		if (System.currentTimeMillis() - pc.lastUsedMillis < validationIntervalMillis)
+			return true;
+		try{
+			if (pc.connection.isValid(5))
+				return true;
+		}catch (SQLException e){
+			// treated as invalid.
+		}
+		lock.lock();
+		try{
+			validationFailures++;
+		}finally{
+			lock.unlock();
+		}
+		return false;
+	}
+
+	private void discard(PooledConnection pc) {
+		pc.close();
+		lock.lock();
+		try{
+			destroyed++;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	//accumulates connection-time in use since the last sample; lock held
+	private void sampleBusy() {
+		long now = System.nanoTime();
+		busyNanos += (now - lastBusySample) * inUse.size();
+		lastBusySample = now;
+	}
+
+	/**
+	 * Runs on the housekeeper thread: closes connections idle for longer
+	 * than the idle timeout (keeping min idle) and reports leaked ones.
+	 */
+	private void housekeep() {
+		long period = Math.max(1000, Math.min(idleTimeoutMillis, leakThresholdMillis) / 2);
+		while (!Thread.currentThread().isInterrupted()){
+			try{
+				Thread.sleep(period);
+			}catch (InterruptedException e){
+				return;
+			}
+			List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+			List<PooledConnection> leaked = new ArrayList<PooledConnection>();
+			long now = System.currentTimeMillis();
+			lock.lock();
+			try{
+				if (closed)
+					return;
+				//oldest idle connections sit at the tail
+				Iterator<PooledConnection> it = idle.descendingIterator();
+				while (it.hasNext() && idle.size() > minIdle){
+					PooledConnection pc = it.next();
+					if (now - pc.lastUsedMillis >= idleTimeoutMillis){
+						it.remove();
+						evicted.add(pc);
+					}
+				}
+				for (PooledConnection pc : inUse){
+					if (!pc.leakReported && now - pc.checkedOutMillis >= leakThresholdMillis){
+						pc.leakReported = true;
+						leaksReported++;
+						leaked.add(pc);
+					}
+				}
+			}finally{
+				lock.unlock();
+			}
+			for (PooledConnection pc : evicted)
+				discard(pc);
+			for (PooledConnection pc : leaked){
+				Throwable origin = pc.checkedOutBy;
+				System.err.println("Warning - database connection held by " + pc.checkedOutThread + " for more than " +
+					leakThresholdMillis + " ms, possible leak" + (origin == null ? " (-Dmechanicshop.pool.traceLeaks shows where)" : ""));
+				if (origin != null)
+					origin.printStackTrace();
+			}
+		}
+	}//end housekeep
+}//end ConnectionPool
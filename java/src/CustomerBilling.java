@@ -0,0 +1,79 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class looks after customer_billing (see migration V2), the per-customer
+ * bill total and closed request count that report 10 reads.  A trigger on
+ * Closed_Request keeps it current inside the writing transaction; the bulk
+ * loader switches the trigger off for its COPY and rebuilds the table once
+ * before committing.  rebuild() and verify() are there to repair or check it
+ * against the request history.
+ */
+public class CustomerBilling {
+	private static final String SQL_HISTORY =
+		"SELECT s.customer_id, SUM(c.bill) total_bill, COUNT(*) closed_count " +
+		"FROM Closed_Request c, Service_Request s WHERE c.rid = s.rid GROUP BY s.customer_id";
+
+	private static final String SQL_MISMATCHES =
+		"SELECT COALESCE(b.customer_id, h.customer_id), b.total_bill, b.closed_count, h.total_bill, h.closed_count " +
+		"FROM customer_billing b FULL JOIN (" + SQL_HISTORY + ") h ON h.customer_id = b.customer_id " +
+		"WHERE COALESCE(b.total_bill, 0) <> COALESCE(h.total_bill, 0) " +
+		"OR COALESCE(b.closed_count, 0) <> COALESCE(h.closed_count, 0) " +
+		"ORDER BY 1";
+
+	private final MechanicShop esql;
+
+	public CustomerBilling(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to recompute every customer's totals from Closed_Request.
+	 *
+	 * @return the number of customers with closed requests
+	 * @throws java.sql.SQLException when the table is missing or the rebuild fails
+	 */
+	public int rebuild() throws SQLException {
+		return esql.inTransaction(new MechanicShop.SQLWork<Integer>() {
+			public Integer run(Connection c) throws SQLException {
+				return rebuild(c);
+			}
+		});
+	}
+
+	/**
+	 * Method to compare the table with the request history.
+	 *
+	 * @return one line per customer whose totals are off, empty when in sync
+	 * @throws java.sql.SQLException when the table is missing or cannot be read
+	 */
+	public List<String> verify() throws SQLException {
+		List<String> problems = new ArrayList<String>();
+		for (List<String> row : esql.executeQueryAndReturnResult(SQL_MISMATCHES))
+			problems.add(String.format("customer %s: stored bill %s in %s request(s), history says %s in %s",
+				row.get(0), nvl(row.get(1)), nvl(row.get(2)), nvl(row.get(3)), nvl(row.get(4))));
+		return problems;
+	}
+
+	private static String nvl(String s) {
+		return s == null ? "0" : s;
+	}
+
+	/**
+	 * Rebuilds on the given connection, inside the caller's transaction.
+	 * Concurrent writes to Closed_Request wait until it commits.
+	 */
+	static int rebuild(Connection c) throws SQLException {
+		Statement stmt = c.createStatement();
+		try{
+			stmt.execute("LOCK TABLE Closed_Request IN SHARE MODE");
+			stmt.executeUpdate("DELETE FROM customer_billing");
+			return stmt.executeUpdate("INSERT INTO customer_billing(customer_id, total_bill, closed_count) " + SQL_HISTORY);
+		}finally{
+			stmt.close();
+		}
+	}
+}//end CustomerBilling
@@ -0,0 +1,568 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class keeps customers, cars and who owns what in memory for service
+ * desk intake, so a walk-in is found and their cars are listed without a
+ * database round trip:
+ *
+ *   byLastName(prefix, limit)  customers whose last name starts with prefix, in any case
+ *   byPhone(digits, limit)     customers whose phone number starts with the digits
+ *   cars(customerId)           the cars a customer owns, by VIN
+ *
+ * Customers and cars are kept in parallel arrays indexed by a slot number.
+ * Ids and VINs are mapped to slots by open-addressing hash tables, and the
+ * cars of a customer are an int[] of car slots, so a million customers cost
+ * a few arrays rather than millions of map entries.  Last names and phone
+ * digits are kept in sorted maps for the prefix searches.  Slots are never
+ * reused; a deleted customer or car only loses its data.
+ *
+ * The directory is loaded by warm() on startup.  This process applies its
+ * own writes as it makes them.  Writes by any process are also announced on
+ * channel mechanicshop_rows (migration V6) with the key of the changed
+ * row, which the result cache listener hands over here to be re-read.  When
+ * that listener reconnects, or a bulk load announces 'reload', everything
+ * is loaded again.  Turn it off with -Dmechanicshop.directory=false.
+ */
+public class CustomerDirectory implements ResultCache.Subscriber {
+	static final String CHANNEL = "mechanicshop_rows";
+	static final boolean ENABLED = !"false".equals(System.getProperty("mechanicshop.directory"));
+
+	private static final String SQL_CUSTOMERS = "SELECT id, fname, lname, phone, address FROM Customer";
+	private static final String SQL_CUSTOMER = SQL_CUSTOMERS + " WHERE id = ?";
+	private static final String SQL_CARS = "SELECT vin, make, model, year FROM Car";
+	private static final String SQL_CAR = SQL_CARS + " WHERE vin = ?";
+	private static final String SQL_OWNS = "SELECT customer_id, car_vin FROM Owns";
+	private static final String SQL_OWNED_CARS =
+		"SELECT Car.vin, Car.make, Car.model, Car.year FROM Owns, Car WHERE Car.vin = Owns.car_vin AND Owns.customer_id = ?";
+
+	private static final int[] NONE = new int[0];
+
+	/**
+	 * Maps int keys to slots by linear probing.
+	 */
+	static class IntIndex {
+		private int[] keys = new int[16];
+		//slot + 1, 0 when the cell is empty
+		private int[] slots = new int[16];
+		private int size = 0;
+
+		int get(int key) {
+			int mask = keys.length - 1;
+			for (int i = mix(key) & mask; ; i = (i + 1) & mask){
+				if (slots[i] == 0)
+					return -1;
+				if (keys[i] == key)
+					return slots[i] - 1;
+			}
+		}
+
+		void put(int key, int slot) {
+			if (2 * (size + 1) > keys.length)
+				resize();
+			int mask = keys.length - 1;
+			int i = mix(key) & mask;
+			while (slots[i] != 0 && keys[i] != key)
+				i = (i + 1) & mask;
+			if (slots[i] == 0)
+				++size;
+			keys[i] = key;
+			slots[i] = slot + 1;
+		}
+
+		private void resize() {
+			int[] oldKeys = keys;
+			int[] oldSlots = slots;
+			keys = new int[oldKeys.length * 2];
+			slots = new int[oldKeys.length * 2];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; ++i)
+				if (oldSlots[i] != 0)
+					put(oldKeys[i], oldSlots[i] - 1);
+		}
+
+		private static int mix(int key) {
+			int h = key * 0x9e3779b9;
+			return h ^ (h >>> 16);
+		}
+	}//end IntIndex
+
+	/**
+	 * Maps VINs to slots by linear probing.
+	 */
+	static class VinIndex {
+		private String[] keys = new String[16];
+		private int[] slots = new int[16];
+		private int size = 0;
+
+		int get(String key) {
+			int mask = keys.length - 1;
+			for (int i = mix(key) & mask; ; i = (i + 1) & mask){
+				if (keys[i] == null)
+					return -1;
+				if (keys[i].equals(key))
+					return slots[i];
+			}
+		}
+
+		void put(String key, int slot) {
+			if (2 * (size + 1) > keys.length)
+				resize();
+			int mask = keys.length - 1;
+			int i = mix(key) & mask;
+			while (keys[i] != null && !keys[i].equals(key))
+				i = (i + 1) & mask;
+			if (keys[i] == null)
+				++size;
+			keys[i] = key;
+			slots[i] = slot;
+		}
+
+		private void resize() {
+			String[] oldKeys = keys;
+			int[] oldSlots = slots;
+			keys = new String[oldKeys.length * 2];
+			slots = new int[oldKeys.length * 2];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; ++i)
+				if (oldKeys[i] != null)
+					put(oldKeys[i], oldSlots[i]);
+		}
+
+		private static int mix(String key) {
+			int h = key.hashCode() * 0x9e3779b9;
+			return h ^ (h >>> 16);
+		}
+	}//end VinIndex
+
+	/**
+	 * Everything the directory holds.  A reload builds a new one and swaps it
+	 * in, so lookups keep being answered while it loads.
+	 */
+	private static class Tables {
+		int customers = 0;
+		int[] ids = new int[1024];
+		//null for a slot whose customer was deleted
+		String[] fnames = new String[1024];
+		String[] lnames = new String[1024];
+		String[] phones = new String[1024];
+		String[] addresses = new String[1024];
+		//car slots, null when the customer owns no car
+		int[][] owned = new int[1024][];
+		final IntIndex customerSlots = new IntIndex();
+
+		int cars = 0;
+		String[] vins = new String[1024];
+		//null for a slot whose car was deleted
+		String[] makes = new String[1024];
+		String[] models = new String[1024];
+		int[] years = new int[1024];
+		final VinIndex carSlots = new VinIndex();
+
+		//lower-case last name -> customer slots
+		final TreeMap<String, int[]> byName = new TreeMap<String, int[]>();
+		//phone digits -> customer slots
+		final TreeMap<String, int[]> byPhone = new TreeMap<String, int[]>();
+
+		void putCustomer(int id, String fname, String lname, String phone, String address) {
+			int slot = customerSlots.get(id);
+			if (slot < 0){
+				slot = customers++;
+				if (slot == ids.length){
+					int n = slot * 2;
+					ids = Arrays.copyOf(ids, n);
+					fnames = Arrays.copyOf(fnames, n);
+					lnames = Arrays.copyOf(lnames, n);
+					phones = Arrays.copyOf(phones, n);
+					addresses = Arrays.copyOf(addresses, n);
+					owned = Arrays.copyOf(owned, n);
+				}
+				ids[slot] = id;
+				customerSlots.put(id, slot);
+			}else if (fnames[slot] != null){
+				unlist(slot);
+			}
+			fnames[slot] = ResultRenderer.rtrim(fname);
+			lnames[slot] = ResultRenderer.rtrim(lname);
+			phones[slot] = ResultRenderer.rtrim(phone);
+			addresses[slot] = ResultRenderer.rtrim(address);
+			add(byName, nameKey(lnames[slot]), slot);
+			add(byPhone, digits(phones[slot]), slot);
+		}
+
+		void removeCustomer(int id) {
+			int slot = customerSlots.get(id);
+			if (slot < 0 || fnames[slot] == null)
+				return;
+			unlist(slot);
+			fnames[slot] = lnames[slot] = phones[slot] = addresses[slot] = null;
+			owned[slot] = null;
+		}
+
+		private void unlist(int slot) {
+			remove(byName, nameKey(lnames[slot]), slot);
+			remove(byPhone, digits(phones[slot]), slot);
+		}
+
+		int putCar(String vin, String make, String model, int year) {
+			vin = ResultRenderer.rtrim(vin);
+			int slot = carSlots.get(vin);
+			if (slot < 0){
+				slot = cars++;
+				if (slot == vins.length){
+					int n = slot * 2;
+					vins = Arrays.copyOf(vins, n);
+					makes = Arrays.copyOf(makes, n);
+					models = Arrays.copyOf(models, n);
+					years = Arrays.copyOf(years, n);
+				}
+				vins[slot] = vin;
+				carSlots.put(vin, slot);
+			}
+			makes[slot] = make;
+			models[slot] = model;
+			years[slot] = year;
+			return slot;
+		}
+
+		void removeCar(String vin) {
+			int slot = carSlots.get(ResultRenderer.rtrim(vin));
+			if (slot >= 0)
+				makes[slot] = models[slot] = null;
+		}
+
+		void addOwned(int customerId, int carSlot) {
+			int slot = customerSlots.get(customerId);
+			if (slot < 0)
+				return;
+			int[] old = owned[slot] != null ? owned[slot] : NONE;
+			int[] cars = Arrays.copyOf(old, old.length + 1);
+			cars[old.length] = carSlot;
+			owned[slot] = cars;
+		}
+
+		void setOwned(int customerId, int[] carSlots) {
+			int slot = customerSlots.get(customerId);
+			if (slot >= 0)
+				owned[slot] = carSlots.length == 0 ? null : carSlots;
+		}
+
+		List<String> customerRow(int slot) {
+			return Arrays.asList(Integer.toString(ids[slot]), fnames[slot], lnames[slot], phones[slot], addresses[slot]);
+		}
+	}//end Tables
+
+	private final MechanicShop esql;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private Tables tables = null;
+
+	public CustomerDirectory(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Whether the directory has been loaded and can answer lookups.
+	 */
+	public boolean isReady() {
+		lock.readLock().lock();
+		try{
+			return tables != null;
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to load every customer, car and ownership, replacing what the
+	 * directory held.  Lookups are answered from the old contents meanwhile.
+	 *
+	 * @return the number of customers loaded
+	 * @throws java.sql.SQLException when a table cannot be read
+	 */
+	public int warm() throws SQLException {
+		final Tables t = new Tables();
+		esql.streamQuery(SQL_CUSTOMERS, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				t.putCustomer(row.getInt(1), row.getString(2), row.getString(3), row.getString(4), row.getString(5));
+			}
+		});
+		esql.streamQuery(SQL_CARS, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				t.putCar(row.getString(1), row.getString(2), row.getString(3), row.getInt(4));
+			}
+		});
+		esql.streamQuery(SQL_OWNS, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				int car = t.carSlots.get(ResultRenderer.rtrim(row.getString(2)));
+				if (car >= 0)
+					t.addOwned(row.getInt(1), car);
+			}
+		});
+		lock.writeLock().lock();
+		try{
+			tables = t;
+		}finally{
+			lock.writeLock().unlock();
+		}
+		return t.customerSlots.size;
+	}//end warm
+
+	/**
+	 * Method to find customers by the start of their last name, in any
+	 * case.
+	 *
+	 * @return up to limit rows of id, fname, lname, phone, address, by last
+	 *         name
+	 */
+	public List<List<String>> byLastName(String prefix, int limit) {
+		return search(true, nameKey(prefix.trim()), limit);
+	}
+
+	/**
+	 * Method to find customers by the start of their phone number; only
+	 * the digits are compared, so "(473)259" matches "(473)259-5186".
+	 *
+	 * @return up to limit rows of id, fname, lname, phone, address, by phone
+	 *         number
+	 */
+	public List<List<String>> byPhone(String phone, int limit) {
+		return search(false, digits(phone), limit);
+	}
+
+	private List<List<String>> search(boolean byName, String prefix, int limit) {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		lock.readLock().lock();
+		try{
+			if (tables == null)
+				return rows;
+			TreeMap<String, int[]> map = byName ? tables.byName : tables.byPhone;
+			for (Map.Entry<String, int[]> e : map.tailMap(prefix, true).entrySet()){
+				if (!e.getKey().startsWith(prefix) || rows.size() >= limit)
+					break;
+				for (int slot : e.getValue())
+					if (rows.size() < limit)
+						rows.add(tables.customerRow(slot));
+			}
+		}finally{
+			lock.readLock().unlock();
+		}
+		return rows;
+	}
+
+	/**
+	 * Method to list the cars a customer owns, in the form of
+	 * MechanicShop.SQL_LIST_CUSTOMER_CARS.
+	 *
+	 * @return rows of row number (from 1), vin, make, model, year, by VIN
+	 */
+	public List<List<String>> cars(int customerId) {
+		List<List<String>> rows = new ArrayList<List<String>>();
+		lock.readLock().lock();
+		try{
+			if (tables == null)
+				return rows;
+			int slot = tables.customerSlots.get(customerId);
+			if (slot < 0 || tables.owned[slot] == null)
+				return rows;
+			for (int car : tables.owned[slot])
+				if (tables.makes[car] != null)
+					rows.add(new ArrayList<String>(Arrays.asList(null, tables.vins[car], tables.makes[car],
+						tables.models[car], Integer.toString(tables.years[car]))));
+		}finally{
+			lock.readLock().unlock();
+		}
+		//a customer has a handful of cars, sorting them here keeps the index small
+		java.util.Collections.sort(rows, new Comparator<List<String>>() {
+			public int compare(List<String> a, List<String> b) {
+				return a.get(1).compareTo(b.get(1));
+			}
+		});
+		for (int i = 0; i < rows.size(); ++i)
+			rows.get(i).set(0, Integer.toString(i + 1));
+		return rows;
+	}
+
+	/*
+	 * This process's own writes, applied right away
+	 */
+
+	public void customerAdded(int id, String fname, String lname, String phone, String address) {
+		lock.writeLock().lock();
+		try{
+			if (tables != null)
+				tables.putCustomer(id, fname, lname, phone, address);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void carAdded(String vin, String make, String model, int year) {
+		lock.writeLock().lock();
+		try{
+			if (tables != null)
+				tables.putCar(vin, make, model, year);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void ownershipAdded(int customerId, String vin) {
+		lock.writeLock().lock();
+		try{
+			if (tables == null)
+				return;
+			int car = tables.carSlots.get(ResultRenderer.rtrim(vin));
+			if (car >= 0)
+				tables.addOwned(customerId, car);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Writes announced on CHANNEL, by this or another process
+	 */
+
+	public void notified(String payload) {
+		if (!isReady())
+			return;
+		try{
+			int colon = payload.indexOf(':');
+			String table = colon < 0 ? payload : payload.substring(0, colon);
+			String key = payload.substring(colon + 1);
+			if (table.equals("customer"))
+				refreshCustomer(Integer.parseInt(key));
+			else if (table.equals("car"))
+				refreshCar(key);
+			else if (table.equals("owns"))
+				refreshOwned(Integer.parseInt(key));
+			else if (table.equals("reload"))
+				warm();
+		}catch (SQLException e){
+			System.err.println("Warning - customer directory could not apply " + payload + ": " + e.getMessage());
+		}
+	}
+
+	//notifications may have been missed while the listener was away
+	public void connected() {
+		if (!isReady())
+			return;
+		try{
+			warm();
+		}catch (SQLException e){
+			System.err.println("Warning - customer directory could not reload: " + e.getMessage());
+		}
+	}
+
+	private void refreshCustomer(int id) throws SQLException {
+		List<List<String>> result = esql.executeQueryAndReturnResult(SQL_CUSTOMER, id);
+		lock.writeLock().lock();
+		try{
+			if (result.isEmpty()){
+				tables.removeCustomer(id);
+			}else{
+				List<String> r = result.get(0);
+				tables.putCustomer(id, r.get(1), r.get(2), r.get(3), r.get(4));
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void refreshCar(String vin) throws SQLException {
+		List<List<String>> result = esql.executeQueryAndReturnResult(SQL_CAR, vin);
+		lock.writeLock().lock();
+		try{
+			if (result.isEmpty()){
+				tables.removeCar(vin);
+			}else{
+				List<String> r = result.get(0);
+				tables.putCar(r.get(0), r.get(1), r.get(2), Integer.parseInt(r.get(3)));
+			}
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void refreshOwned(int customerId) throws SQLException {
+		List<List<String>> result = esql.executeQueryAndReturnResult(SQL_OWNED_CARS, customerId);
+		lock.writeLock().lock();
+		try{
+			int[] cars = new int[result.size()];
+			for (int i = 0; i < cars.length; ++i){
+				List<String> r = result.get(i);
+				cars[i] = tables.putCar(r.get(0), r.get(1), r.get(2), Integer.parseInt(r.get(3)));
+			}
+			tables.setOwned(customerId, cars);
+		}finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to describe the directory, one metric per line.
+	 */
+	public String getStats() {
+		lock.readLock().lock();
+		try{
+			StringBuilder sb = new StringBuilder();
+			sb.append("customer_directory_ready ").append(tables != null ? 1 : 0).append('\n');
+			sb.append("customer_directory_customers ").append(tables != null ? tables.customerSlots.size : 0).append('\n');
+			sb.append("customer_directory_cars ").append(tables != null ? tables.carSlots.size : 0).append('\n');
+			return sb.toString();
+		}finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	private static String nameKey(String lname) {
+		return lname == null ? "" : lname.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Method to keep only the digits of a phone number.
+	 */
+	static String digits(String phone) {
+		if (phone == null)
+			return "";
+		StringBuilder sb = new StringBuilder(phone.length());
+		for (int i = 0; i < phone.length(); ++i)
+			if (Character.isDigit(phone.charAt(i)))
+				sb.append(phone.charAt(i));
+		return sb.toString();
+	}
+
+	//sorted maps of key -> slots, the arrays are small and copied on change
+	private static void add(TreeMap<String, int[]> map, String key, int slot) {
+		int[] slots = map.get(key);
+		if (slots == null){
+			map.put(key, new int[] {slot});
+		}else{
+			slots = Arrays.copyOf(slots, slots.length + 1);
+			slots[slots.length - 1] = slot;
+			map.put(key, slots);
+		}
+	}
+
+	private static void remove(TreeMap<String, int[]> map, String key, int slot) {
+		int[] slots = map.get(key);
+		if (slots == null)
+			return;
+		int[] kept = new int[slots.length];
+		int n = 0;
+		for (int s : slots)
+			if (s != slot)
+				kept[n++] = s;
+		if (n == 0)
+			map.remove(key);
+		else
+			map.put(key, Arrays.copyOf(kept, n));
+	}
+}//end CustomerDirectory
@@ -0,0 +1,622 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class generates a data set <scale> times the size of the data/*.csv
+ * seed files, for load and performance tests at sizes the seed files do
+ * not reach.  The seed files are read first to learn what a row looks like:
+ * the names, streets, makes and models, years, odometers, complaints,
+ * comments and bills in use, how many cars a customer owns, how many
+ * requests a car gets, which share of them is closed and how many days a
+ * request stays open.  New rows draw from those empirical distributions.
+ *
+ * The rows are generated in chunks of CHUNK customers (and of CHUNK
+ * mechanics), one chunk of one table per task on a thread pool.  Every
+ * value is drawn from a random stream derived from the seed, the table and
+ * the chunk only, and the keys are dense ranges laid out by a first pass
+ * over the chunks, so the same seed and scale give the same rows whatever
+ * the number of threads.  The rows reference each other as the seed rows
+ * do: every car has one owner, a request is made by the car's owner and a
+ * closed request is closed on or after the day it was opened.
+ *
+ * The rows are either streamed into the database through COPY, in the
+ * stages and with the deferred indexes of BulkLoader, or written to
+ * <out dir>/<table>.csv.gz, which 'load <out dir>' reads back.  The
+ * compressed files do not need a database:
+ *
+ *   java -cp bin:lib/* DataGenerator <scale> --out <dir> [--seed <n>] [--threads <n>] [--from <data dir>]
+ */
+public class DataGenerator {
+	//customers or mechanics per task
+	static final int CHUNK = 1000;
+
+	//the streams of random numbers, one per table and chunk
+	private static final int SHAPE = 0;
+	private static final int CUSTOMER = 1;
+	private static final int MECHANIC = 2;
+	private static final int CAR = 3;
+	private static final int REQUEST = 4;
+	private static final int CLOSED = 5;
+	private static final int VIN = 6;
+
+	private static final String LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+	private final MechanicShop esql;
+	private final int scale;
+	private File from = new File("../data");
+	private File out = null;
+	private long seed = 42;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean truncate = false;
+	private File schemaFile = null;
+
+	private Profile profile;
+	private List<Chunk> customerChunks;
+	private List<Chunk> mechanicChunks;
+	private int mechanics;
+
+	/**
+	 * @param esql the database to load into, or null to only write files
+	 * @param scale the size of the data set in multiples of the seed files
+	 */
+	public DataGenerator(MechanicShop esql, int scale) {
+		if (scale < 1)
+			throw new IllegalArgumentException("Scale factor must be at least 1");
+		this.esql = esql;
+		this.scale = scale;
+	}
+
+	/**
+	 * Method to set the directory of the seed files to learn from.
+	 */
+	public DataGenerator setFrom(File from) {
+		this.from = from;
+		return this;
+	}
+
+	/**
+	 * Method to write <table>.csv.gz files to a directory instead of loading
+	 * the database.
+	 */
+	public DataGenerator setOut(File out) {
+		this.out = out;
+		return this;
+	}
+
+	public DataGenerator setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	public DataGenerator setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+		return this;
+	}
+
+	/**
+	 * Method to empty the six tables before loading, see BulkLoader.
+	 */
+	public DataGenerator setTruncate(boolean truncate) {
+		this.truncate = truncate;
+		return this;
+	}
+
+	/**
+	 * Method to (re)create the tables before loading, see BulkLoader.
+	 */
+	public DataGenerator setSchemaFile(File schemaFile) {
+		this.schemaFile = schemaFile;
+		return this;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1){
+			System.err.println("Usage: java DataGenerator <scale> --out <dir> [--seed <n>] [--threads <n>] [--from <data dir>]");
+			return;
+		}
+		DataGenerator gen = new DataGenerator(null, Integer.parseInt(args[0]));
+		for (int i = 1; i + 1 < args.length; i += 2){
+			if (args[i].equals("--out")) gen.setOut(new File(args[i + 1]));
+			else if (args[i].equals("--seed")) gen.setSeed(Long.parseLong(args[i + 1]));
+			else if (args[i].equals("--threads")) gen.setThreads(Integer.parseInt(args[i + 1]));
+			else if (args[i].equals("--from")) gen.setFrom(new File(args[i + 1]));
+			else throw new IllegalArgumentException("unknown option " + args[i]);
+		}
+		if (gen.out == null)
+			throw new IllegalArgumentException("--out <dir> is required without a database");
+		gen.generate();
+	}
+
+	/**
+	 * A range of customers, or of mechanics, with the rows that hang off
+	 * them.  The counts come from the first pass, the first keys from the
+	 * running totals of the chunks before.
+	 */
+	private static class Chunk {
+		final int index;
+		final int firstId;
+		final int size;
+		int cars;
+		int requests;
+		int closed;
+		int firstCar;
+		int firstRequest;
+		int firstClosed;
+
+		Chunk(int index, int firstId, int size){
+			this.index = index;
+			this.firstId = firstId;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Method to learn from the seed files and generate the data set.
+	 *
+	 * @throws java.lang.Exception when a seed file cannot be read, a file
+	 *         cannot be written or a COPY fails
+	 */
+	public void generate() throws Exception {
+		long start = System.nanoTime();
+		profile = new Profile(from);
+		int customers = profile.customers() * scale;
+		mechanics = profile.mechanics() * scale;
+		customerChunks = chunks(customers);
+		mechanicChunks = chunks(mechanics);
+		//rows go out on the pool's connections, more threads would only wait
+		int n = out == null ? Math.min(threads, MechanicShop.POOL_MAX_SIZE) : threads;
+		System.out.println(String.format("Generating %dx the seed data (%d customers, %d mechanics) with seed %d on %d thread(s)",
+			scale, customers, mechanics, seed, n));
+
+		ExecutorService pool = Executors.newFixedThreadPool(n);
+		try{
+			layout(pool);
+			if (out != null)
+				writeFiles(pool);
+			else
+				load(pool);
+		}finally{
+			pool.shutdownNow();
+		}
+		System.out.println(String.format("Generated %d rows in %.2f s", rows(), (System.nanoTime() - start) / 1e9));
+	}//end generate
+
+	private static List<Chunk> chunks(int rows) {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (int first = 0; first < rows; first += CHUNK)
+			chunks.add(new Chunk(chunks.size(), first, Math.min(CHUNK, rows - first)));
+		return chunks;
+	}
+
+	private long rows() {
+		long rows = mechanics;
+		for (Chunk c : customerChunks)
+			rows += c.size + 2L * c.cars + c.requests + c.closed;
+		return rows;
+	}
+
+	/**
+	 * The first pass: counts the cars, requests and closed requests of every
+	 * chunk in parallel, then hands out the keys in chunk order.
+	 */
+	private void layout(ExecutorService pool) throws Exception {
+		List<Future<?>> running = new ArrayList<Future<?>>();
+		for (final Chunk c : customerChunks)
+			running.add(pool.submit(new Callable<Void>() {
+				public Void call() {
+					shape(c, null);
+					return null;
+				}
+			}));
+		await(running);
+		long cars = 0, requests = 0, closed = 0;
+		for (Chunk c : customerChunks){
+			c.firstCar = (int) cars;
+			c.firstRequest = (int) requests;
+			c.firstClosed = (int) closed;
+			cars += c.cars;
+			requests += c.requests;
+			closed += c.closed;
+		}
+		if (requests > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Scale factor " + scale + " needs more keys than an INTEGER holds");
+	}
+
+	/**
+	 * Draws how many cars every customer of a chunk owns, how many requests
+	 * every car gets and whether each request is closed.  The draws are the
+	 * same on every call, so the second pass calls it again with a visitor
+	 * rather than keeping them.
+	 */
+	private void shape(Chunk c, Shape visit) {
+		SplittableRandom r = random(SHAPE, c.index);
+		int car = c.firstCar, request = c.firstRequest, closed = c.firstClosed;
+		for (int i = 0; i < c.size; ++i){
+			int cars = profile.carsPerCustomer.draw(r);
+			for (int j = 0; j < cars; ++j, ++car){
+				int requests = profile.requestsPerCar.draw(r);
+				if (visit != null)
+					visit.car(c.firstId + i, car);
+				for (int k = 0; k < requests; ++k, ++request){
+					boolean isClosed = r.nextDouble() < profile.closedShare;
+					if (visit != null)
+						visit.request(c.firstId + i, car, request, isClosed ? closed : -1);
+					if (isClosed)
+						++closed;
+				}
+			}
+		}
+		if (visit == null){
+			c.cars = car - c.firstCar;
+			c.requests = request - c.firstRequest;
+			c.closed = closed - c.firstClosed;
+		}
+	}
+
+	/**
+	 * The rows that hang off the customers of a chunk, in key order.
+	 */
+	private static abstract class Shape {
+		void car(int customer, int car) {}
+		void request(int customer, int car, int rid, int wid) {}
+	}
+
+	/**
+	 * Generates the CSV rows of one chunk of one table.
+	 */
+	private byte[] rows(String table, final Chunk c) {
+		final StringBuilder sb = new StringBuilder(1 << 16);
+		if (table.equals("Customer")){
+			SplittableRandom r = random(CUSTOMER, c.index);
+			for (int i = 0; i < c.size; ++i){
+				sb.append(c.firstId + i).append(',').append(profile.fnames.draw(r)).append(',').append(profile.lnames.draw(r)).append(',');
+				pad(sb.append('('), 200 + r.nextInt(800), 3).append(')');
+				pad(sb, r.nextInt(1000), 3).append('-');
+				pad(sb, r.nextInt(10000), 4).append(',');
+				sb.append(1 + r.nextInt(9999)).append(' ').append(profile.streets.draw(r)).append('\n');
+			}
+		}else if (table.equals("Mechanic")){
+			SplittableRandom r = random(MECHANIC, c.index);
+			for (int i = 0; i < c.size; ++i)
+				sb.append(c.firstId + i).append(',').append(profile.mechanicFnames.draw(r)).append(',')
+					.append(profile.mechanicLnames.draw(r)).append(',').append(profile.experience.draw(r)).append('\n');
+		}else if (table.equals("Car")){
+			final SplittableRandom r = random(CAR, c.index);
+			shape(c, new Shape() {
+				void car(int customer, int car) {
+					sb.append(vin(car)).append(',').append(profile.makeModels.draw(r)).append(',').append(profile.years.draw(r)).append('\n');
+				}
+			});
+		}else if (table.equals("Owns")){
+			shape(c, new Shape() {
+				void car(int customer, int car) {
+					sb.append(car).append(',').append(customer).append(',').append(vin(car)).append('\n');
+				}
+			});
+		}else if (table.equals("Service_Request")){
+			final SplittableRandom r = random(REQUEST, c.index);
+			shape(c, new Shape() {
+				void request(int customer, int car, int rid, int wid) {
+					int odometer = Math.max(1, (int) (profile.odometers.draw(r) * (0.9 + 0.2 * r.nextDouble())));
+					sb.append(rid).append(',').append(customer).append(',').append(vin(car)).append(',')
+						.append(date(opened(rid))).append(',').append(odometer).append(',').append(profile.complaints.draw(r)).append('\n');
+				}
+			});
+		}else if (table.equals("Closed_Request")){
+			final SplittableRandom r = random(CLOSED, c.index);
+			shape(c, new Shape() {
+				void request(int customer, int car, int rid, int wid) {
+					if (wid < 0)
+						return;
+					sb.append(wid).append(',').append(rid).append(',').append(r.nextInt(mechanics)).append(',')
+						.append(date(opened(rid) + profile.daysOpen.draw(r))).append(',').append(profile.comments.draw(r))
+						.append(',').append(profile.bills.draw(r)).append('\n');
+				}
+			});
+		}else{
+			throw new IllegalArgumentException("Unknown table " + table);
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}//end rows
+
+	/**
+	 * Writes every table to <out>/<table file>.gz, one gzip member per chunk
+	 * in chunk order.
+	 */
+	private void writeFiles(ExecutorService pool) throws Exception {
+		if (!out.isDirectory() && !out.mkdirs())
+			throw new IOException("Cannot create " + out.getPath());
+		for (String[][] stage : BulkLoader.STAGES)
+			for (final String[] t : stage){
+				long start = System.nanoTime();
+				List<Future<byte[]>> members = new ArrayList<Future<byte[]>>();
+				for (final Chunk c : chunksOf(t[0]))
+					members.add(pool.submit(new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+							GZIPOutputStream gz = new GZIPOutputStream(bytes, 1 << 16);
+							gz.write(rows(t[0], c));
+							gz.close();
+							return bytes.toByteArray();
+						}
+					}));
+				File file = new File(out, t[1] + ".gz");
+				OutputStream os = new FileOutputStream(file);
+				try{
+					//gunzip reads the members back as one file
+					for (Future<byte[]> m : members)
+						os.write(m.get());
+				}finally{
+					os.close();
+				}
+				System.out.println(String.format("%-16s %12d bytes %8.2f s", file.getName(), file.length(), (System.nanoTime() - start) / 1e9));
+			}
+	}//end writeFiles
+
+	/**
+	 * COPYs every chunk into its table on a connection of its own, stage
+	 * by stage as BulkLoader does, with the secondary indexes deferred.
+	 */
+	private void load(ExecutorService pool) throws Exception {
+		BulkLoader loader = new BulkLoader(esql, from).setTruncate(truncate).setSchemaFile(schemaFile);
+		loader.prepareTables();
+		List<String> indexes = loader.dropSecondaryIndexes();
+		try{
+			for (String[][] stage : BulkLoader.STAGES){
+				long start = System.nanoTime();
+				List<Future<?>> running = new ArrayList<Future<?>>();
+				for (final String[] t : stage)
+					for (final Chunk c : chunksOf(t[0]))
+						running.add(pool.submit(new Callable<Void>() {
+							public Void call() throws Exception {
+								copy(t[0], t[2], rows(t[0], c));
+								return null;
+							}
+						}));
+				//the next stage references rows of this one
+				await(running);
+				StringBuilder tables = new StringBuilder();
+				for (String[] t : stage)
+					tables.append(tables.length() > 0 ? ", " : "").append(t[0]);
+				System.out.println(String.format("Loaded %s in %.2f s", tables, (System.nanoTime() - start) / 1e9));
+			}
+		}finally{
+			loader.rebuildIndexes(indexes);
+		}
+		esql.withConnection(new MechanicShop.SQLWork<Void>() {
+			public Void run(Connection c) throws SQLException {
+				BulkLoader.rebuildDerived(c);
+				return null;
+			}
+		});
+		loader.finishLoad();
+	}//end load
+
+	private void copy(final String table, final String columns, final byte[] rows) throws SQLException {
+		esql.inTransaction(new MechanicShop.SQLWork<Void>() {
+			public Void run(Connection c) throws SQLException {
+				BulkLoader.beginCopy(c);
+				try{
+					RequestPartitions.copyIn(c, table, columns, new ByteArrayInputStream(rows));
+				}catch (IOException e){
+					throw new SQLException("Copying into " + table + " failed: " + e.getMessage(), e);
+				}
+				return null;
+			}
+		});
+	}
+
+	private List<Chunk> chunksOf(String table) {
+		return table.equals("Mechanic") ? mechanicChunks : customerChunks;
+	}
+
+	private static void await(List<? extends Future<?>> running) throws Exception {
+		for (Future<?> f : running)
+			f.get();
+	}
+
+	//the random stream of one chunk of one table
+	private SplittableRandom random(int stream, int chunk) {
+		return new SplittableRandom(mix(mix(seed ^ stream * 0x9E3779B97F4A7C15L) + chunk));
+	}
+
+	//the SplitMix64 finalizer, spreads nearby inputs over the whole range
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	//six letters drawn from the car, then its key, so the VINs are unique
+	private String vin(int car) {
+		long h = mix(seed + VIN * 0x9E3779B97F4A7C15L + car);
+		StringBuilder sb = new StringBuilder(16);
+		for (int i = 0; i < 6; ++i, h /= LETTERS.length())
+			sb.append(LETTERS.charAt((int) Math.floorMod(h, (long) LETTERS.length())));
+		return pad(sb, car, 10).toString();
+	}
+
+	//appends a number with leading zeros, String.format is slow per row
+	private static StringBuilder pad(StringBuilder sb, long value, int width) {
+		String digits = Long.toString(value);
+		for (int i = digits.length(); i < width; ++i)
+			sb.append('0');
+		return sb.append(digits);
+	}
+
+	//the day a request was opened, drawn from the request so Closed_Request can follow it
+	private long opened(int rid) {
+		long h = mix(seed + REQUEST * 0x9E3779B97F4A7C15L + rid);
+		return profile.days.get((int) Math.floorMod(h, (long) profile.days.size()));
+	}
+
+	//the format of the seed files, read with datestyle MDY
+	private static String date(long epochDay) {
+		LocalDate d = LocalDate.ofEpochDay(epochDay);
+		return d.getMonthValue() + "/" + d.getDayOfMonth() + "/" + d.getYear() + " 00:00";
+	}
+
+	/**
+	 * The values of one column of the seed files, drawn with the frequency
+	 * they occur with.
+	 */
+	private static class Values<T> {
+		private final List<T> values = new ArrayList<T>();
+
+		void add(T value) {
+			values.add(value);
+		}
+
+		T draw(SplittableRandom r) {
+			return values.get(r.nextInt(values.size()));
+		}
+
+		T get(int i) {
+			return values.get(i);
+		}
+
+		int size() {
+			return values.size();
+		}
+	}
+
+	/**
+	 * What the seed files look like, see the class comment.
+	 */
+	private static class Profile {
+		final Values<String> fnames = new Values<String>();
+		final Values<String> lnames = new Values<String>();
+		final Values<String> streets = new Values<String>();
+		final Values<String> mechanicFnames = new Values<String>();
+		final Values<String> mechanicLnames = new Values<String>();
+		final Values<String> experience = new Values<String>();
+		final Values<String> makeModels = new Values<String>();
+		final Values<String> years = new Values<String>();
+		final Values<Integer> carsPerCustomer = new Values<Integer>();
+		final Values<Integer> requestsPerCar = new Values<Integer>();
+		final Values<Integer> odometers = new Values<Integer>();
+		final Values<String> complaints = new Values<String>();
+		final Values<Long> days = new Values<Long>();
+		final Values<Long> daysOpen = new Values<Long>();
+		final Values<String> comments = new Values<String>();
+		final Values<String> bills = new Values<String>();
+		double closedShare;
+
+		Profile(File dir) throws IOException {
+			java.util.Map<String, Integer> carsOf = new java.util.HashMap<String, Integer>();
+			for (String[] f : read(dir, "customer.csv", 5)){
+				carsOf.put(f[0].trim(), 0);
+				fnames.add(f[1].trim());
+				lnames.add(f[2].trim());
+				//the house number is drawn anew
+				streets.add(f[4].trim().replaceFirst("^\\d+\\s+", ""));
+			}
+			for (String[] f : read(dir, "mechanic.csv", 4)){
+				mechanicFnames.add(f[1].trim());
+				mechanicLnames.add(f[2].trim());
+				experience.add(f[3].trim());
+			}
+			java.util.Map<String, Integer> requestsOf = new java.util.HashMap<String, Integer>();
+			for (String[] f : read(dir, "car.csv", 4)){
+				requestsOf.put(f[0].trim(), 0);
+				makeModels.add(f[1] + "," + f[2]);
+				years.add(f[3].trim());
+			}
+			for (String[] f : read(dir, "owns.csv", 3)){
+				Integer n = carsOf.get(f[1].trim());
+				if (n != null)
+					carsOf.put(f[1].trim(), n + 1);
+			}
+			for (Integer n : carsOf.values())
+				carsPerCustomer.add(n);
+
+			java.util.Map<String, Long> openedOn = new java.util.HashMap<String, Long>();
+			for (String[] f : read(dir, "service_request.csv", 6)){
+				Integer n = requestsOf.get(f[2].trim());
+				if (n != null)
+					requestsOf.put(f[2].trim(), n + 1);
+				long day = parseDate(f[3]);
+				openedOn.put(f[0].trim(), day);
+				days.add(day);
+				odometers.add(Integer.parseInt(f[4].trim()));
+				complaints.add(f[5]);
+			}
+			for (Integer n : requestsOf.values())
+				requestsPerCar.add(n);
+
+			int closed = 0;
+			for (String[] f : read(dir, "closed_request.csv", 6)){
+				Long opened = openedOn.get(f[1].trim());
+				//the shipped seed closes nothing early; the max only guards other seed directories
+				daysOpen.add(opened == null ? 0 : Math.max(0, parseDate(f[3]) - opened));
+				comments.add(f[4]);
+				bills.add(f[5].trim());
+				++closed;
+			}
+			closedShare = openedOn.isEmpty() ? 0 : Math.min(1.0, (double) closed / openedOn.size());
+			if (carsPerCustomer.size() == 0 || mechanicFnames.size() == 0 || makeModels.size() == 0 || days.size() == 0)
+				throw new IOException("The seed files in " + dir.getPath() + " need customers, mechanics, cars and requests");
+			if (daysOpen.size() == 0)
+				daysOpen.add(0L);
+		}//end Profile
+
+		int customers() {
+			return carsPerCustomer.size();
+		}
+
+		int mechanics() {
+			return mechanicFnames.size();
+		}
+
+		//the rows of a seed file, plain or gzipped, split on ',' the way COPY splits them
+		private static List<String[]> read(File dir, String name, int columns) throws IOException {
+			File file = new File(dir, name);
+			if (!file.isFile())
+				file = new File(dir, name + ".gz");
+			List<String[]> rows = new ArrayList<String[]>();
+			BufferedReader r = new BufferedReader(new InputStreamReader(BulkLoader.open(file), StandardCharsets.UTF_8));
+			try{
+				String line;
+				while ((line = r.readLine()) != null){
+					if (line.isEmpty())
+						continue;
+					String[] fields = line.split(",", -1);
+					if (fields.length != columns)
+						throw new IOException(file.getPath() + ": expected " + columns + " columns in " + line);
+					rows.add(fields);
+				}
+			}finally{
+				r.close();
+			}
+			return rows;
+		}
+
+		//10/22/2016 00:00
+		private static long parseDate(String s) throws IOException {
+			String[] mdy = s.trim().split("[/ ]");
+			try{
+				return LocalDate.of(Integer.parseInt(mdy[2]), Integer.parseInt(mdy[0]), Integer.parseInt(mdy[1])).toEpochDay();
+			}catch (RuntimeException e){
+				throw new IOException("Cannot read the date " + s, e);
+			}
+		}
+	}//end Profile
+}//end DataGenerator
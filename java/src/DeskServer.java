@@ -0,0 +1,145 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * This class lets several clerks share one MechanicShop process.  It listens
+ * on a TCP port and runs the regular main menu for every terminal that
+ * connects (e.g. with telnet or nc), each on its own thread.  All sessions
+ * share the MechanicShop connection pool.
+ *
+ * The menu has no login and includes every write, so the port is only
+ * opened on the loopback interface unless -Dmechanicshop.desk.bind names
+ * another address to listen on, e.g. 0.0.0.0 for every interface.
+ *
+ * The menu code reads MechanicShop.in and writes System.out/System.err, so
+ * both are replaced by routing streams that send every call to the console
+ * of the session running on the current thread, or to the process console
+ * when the thread has no session.
+ */
+public class DeskServer {
+	//null listens on loopback only
+	static final String BIND = System.getProperty("mechanicshop.desk.bind");
+	static final int BACKLOG = 50;
+
+	private static final ThreadLocal<BufferedReader> sessionIn = new ThreadLocal<BufferedReader>();
+	private static final ThreadLocal<PrintStream> sessionOut = new ThreadLocal<PrintStream>();
+	private static final PrintStream consoleOut = System.out;
+	private static final PrintStream consoleErr = System.err;
+
+	private final MechanicShop esql;
+	private final int port;
+
+	public DeskServer(MechanicShop esql, int port) {
+		this.esql = esql;
+		this.port = port;
+	}
+
+	/**
+	 * Method to wrap the process console so reads made by a desk session
+	 * come from that session's terminal instead.
+	 *
+	 * @param console the reader used when the thread has no session
+	 * @return a reader that routes readLine per thread
+	 */
+	public static BufferedReader sessionInput(final BufferedReader console) {
+		return new BufferedReader(console) {
+			@Override
+			public String readLine() throws IOException {
+				BufferedReader r = sessionIn.get();
+				return r != null ? r.readLine() : console.readLine();
+			}
+		};
+	}
+
+	/**
+	 * Method to accept terminals until the process is stopped.
+	 *
+	 * @throws java.io.IOException when the port cannot be opened
+	 */
+	public void serve() throws IOException {
+		System.setOut(new PrintStream(new RoutingStream(consoleOut), true));
+		System.setErr(new PrintStream(new RoutingStream(consoleErr), true));
+
+		InetAddress address = BIND == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(BIND);
+		ServerSocket server = new ServerSocket(port, BACKLOG, address);
+		System.out.println("Service desk listening on " + address.getHostAddress() + " port " + port);
+		try{
+			int sessions = 0;
+			while (true){
+				final Socket socket = server.accept();
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						runSession(socket);
+					}
+				}, "desk-session-" + (++sessions));
+				t.setDaemon(true);
+				t.start();
+			}
+		}finally{
+			server.close();
+		}
+	}//end serve
+
+	private void runSession(Socket socket) {
+		String peer = String.valueOf(socket.getRemoteSocketAddress());
+		consoleOut.println("Desk session opened from " + peer);
+		try{
+			Reader reader = new InputStreamReader(socket.getInputStream(), "UTF-8");
+			PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+			sessionIn.set(new BufferedReader(reader));
+			sessionOut.set(out);
+			MechanicShop.runMenu(esql);
+			out.println("Bye !");
+		}catch (IOException e){
+			consoleErr.println("Desk session " + peer + " failed: " + e.getMessage());
+		}finally{
+			sessionIn.remove();
+			sessionOut.remove();
+			try{
+				socket.close();
+			}catch (IOException e){
+				// ignored.
+			}
+			consoleOut.println("Desk session closed from " + peer);
+		}
+	}//end runSession
+
+	/**
+	 * Sends bytes to the current session's terminal, or to the process
+	 * console outside of a session.
+	 */
+	private static class RoutingStream extends OutputStream {
+		private final PrintStream console;
+
+		RoutingStream(PrintStream console){
+			this.console = console;
+		}
+
+		private PrintStream target() {
+			PrintStream s = sessionOut.get();
+			return s != null ? s : console;
+		}
+
+		@Override
+		public void write(int b) {
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+			target().flush();
+		}
+	}//end RoutingStream
+}//end DeskServer
@@ -0,0 +1,354 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs EXPLAIN (ANALYZE, BUFFERS) for the statements behind each
+ * of the ten menu operations and reports what the plans show: sequential
+ * scans that throw most of their rows away, row estimates that are off by
+ * an order of magnitude, and the indexes that would avoid the scans.
+ *
+ * EXPLAIN ANALYZE really executes a statement, so the statements of every
+ * operation run in one transaction that is always rolled back.
+ */
+public class IndexAdvisor {
+	//below this many rows a sequential scan is as cheap as an index
+	private static final long SMALL_TABLE_ROWS = 1000;
+	//an estimate this many times off the actual row count is reported
+	private static final double ESTIMATE_ERROR_FACTOR = 10.0;
+
+	private static final Pattern NODE = Pattern.compile(
+		"^\\s*(?:->\\s*)?(.+?)\\s+\\(cost=[\\d.]+\\.\\.[\\d.]+ rows=(\\d+) width=\\d+\\)" +
+		" \\(actual time=[\\d.]+\\.\\.[\\d.]+ rows=([\\d.]+) loops=(\\d+)\\)");
+	private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+	private static final Pattern FILTER = Pattern.compile("^\\s*(?:Filter|Join Filter): (.*)$");
+	private static final Pattern REMOVED = Pattern.compile("^\\s*Rows Removed by (?:Join )?Filter: (\\d+)");
+	private static final Pattern EXECUTION = Pattern.compile("^\\s*Execution (?:T|t)ime: ([\\d.]+) ms");
+	private static final Pattern BUFFERS = Pattern.compile("^\\s*Buffers: (.*)$");
+	private static final Pattern IDENT = Pattern.compile("(?:\\b\\w+\\.)?\\b([a-z_][a-z0-9_]*)\\b");
+
+	private final MechanicShop esql;
+	//table -> its columns, and table -> first columns of its existing indexes
+	private final Map<String, Set<String>> columns = new HashMap<String, Set<String>>();
+	private final Map<String, Set<String>> indexed = new HashMap<String, Set<String>>();
+	//partition -> the table it is a partition of, e.g. service_request_y2016m05 -> service_request
+	private final Map<String, String> parents = new HashMap<String, String>();
+
+	/**
+	 * The sequential scans of one plan over the partitions of a table,
+	 * judged together as one scan of the table.
+	 */
+	private static class PartitionScans {
+		int partitions = 0;
+		long kept = 0;
+		//-1 until a partition's filter reported its removed rows
+		long removed = -1;
+		String filter = null;
+	}
+
+	/**
+	 * One statement of an operation with the sample values it runs with.
+	 */
+	private static class Step {
+		final String sql;
+		final Object[] params;
+
+		Step(String sql, Object... params){
+			this.sql = sql;
+			this.params = params;
+		}
+	}
+
+	public IndexAdvisor(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to explain all ten operations and print the findings.
+	 *
+	 * @throws java.sql.SQLException when the catalog or a plan cannot be read
+	 */
+	public void advise() throws SQLException {
+		loadCatalog();
+		Map<String, List<Step>> ops = operations();
+		Set<String> suggestions = new LinkedHashSet<String>();
+		for (Map.Entry<String, List<Step>> op : ops.entrySet()){
+			System.out.println("== " + op.getKey() + " ==");
+			for (String s : explain(op.getValue()))
+				suggestions.add(s);
+		}
+		System.out.println();
+		if (suggestions.isEmpty()){
+			System.out.println("No missing indexes found.");
+		}else{
+			System.out.println("Suggested indexes:");
+			for (String s : suggestions)
+				System.out.println("  " + s + ";");
+		}
+	}//end advise
+
+	/**
+	 * The statements of every menu operation, bound to values taken from the
+	 * current data so the plans match what a clerk would run.
+	 */
+	private Map<String, List<Step>> operations() throws SQLException {
+		String lname = scalar("SELECT lname FROM Customer LIMIT 1");
+		int custid = Integer.parseInt(scalar("SELECT customer_id FROM Owns GROUP BY customer_id ORDER BY COUNT(*) DESC LIMIT 1"));
+		String vin = scalar("SELECT car_vin FROM Owns WHERE customer_id = " + custid + " LIMIT 1");
+		int mid = Integer.parseInt(scalar("SELECT MIN(id) FROM Mechanic"));
+		String open = scalar("SELECT MIN(rid) FROM Service_Request s WHERE NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = s.rid)");
+		int rid = Integer.parseInt(open != null ? open : scalar("SELECT MIN(rid) FROM Service_Request"));
+		//keys no row has, the inserts are rolled back anyway
+		int newCustomer = Integer.parseInt(scalar("SELECT COALESCE(MAX(id), 0) + 1 FROM Customer"));
+		int newMechanic = Integer.parseInt(scalar("SELECT COALESCE(MAX(id), 0) + 1 FROM Mechanic"));
+		int newOwns = Integer.parseInt(scalar("SELECT COALESCE(MAX(ownership_id), 0) + 1 FROM Owns"));
+		int newRid = Integer.parseInt(scalar("SELECT COALESCE(MAX(rid), 0) + 1 FROM Service_Request"));
+		int newWid = Integer.parseInt(scalar("SELECT COALESCE(MAX(wid), 0) + 1 FROM Closed_Request"));
+		String newVin = "ADVISE0000000001";
+
+		Map<String, List<Step>> ops = new LinkedHashMap<String, List<Step>>();
+		ops.put("1. AddCustomer", steps(
+			new Step(MechanicShop.SQL_ADD_CUSTOMER, newCustomer, "Advisor", "Sample", "(000)000-0000", "1 Main Street")));
+		ops.put("2. AddMechanic", steps(
+			new Step(MechanicShop.SQL_ADD_MECHANIC, newMechanic, "Advisor", "Sample", 5)));
+		ops.put("3. AddCar", steps(
+			new Step(MechanicShop.SQL_ADD_CAR, newVin, "Toyota", "Prius", 2012)));
+		ops.put("4. InsertServiceRequest", steps(
+			new Step(MechanicShop.SQL_FIND_CUSTOMER, MechanicShop.findPattern(false, lname), MechanicShop.FIND_LIMIT),
+			new Step(MechanicShop.SQL_LIST_CUSTOMER_CARS, custid),
+			new Step(MechanicShop.SQL_OPEN_SERVICE_REQUEST, newRid, custid, vin, 1000, "Advisor sample"),
+			new Step(MechanicShop.SQL_OPEN_SERVICE_REQUEST_NEW_CAR, newVin, "Toyota", "Prius", 2012,
+				newOwns, custid, newRid + 1, custid, 1000, "Advisor sample")));
+		ops.put("5. CloseServiceRequest", steps(
+			new Step(MechanicShop.SQL_CLOSE_SERVICE_REQUEST, rid, mid, newWid, "Advisor sample", 50)));
+		ops.put("6. ListCustomersWithBillLessThan100", steps(
+			new Step(MechanicShop.SQL_REPORT_BILL_LESS_THAN_100_PAGE, Long.MIN_VALUE, ReportPager.PAGE_SIZE + 1),
+			new Step(MechanicShop.SQL_REPORT_BILL_LESS_THAN_100)));
+		ops.put("7. ListCustomersWithMoreThan20Cars", steps(
+			new Step(MechanicShop.SQL_REPORT_MORE_THAN_20_CARS_PAGE, Long.MIN_VALUE, ReportPager.PAGE_SIZE + 1),
+			new Step(MechanicShop.SQL_REPORT_MORE_THAN_20_CARS)));
+		ops.put("8. ListCarsBefore1995With50000Milles", steps(
+			new Step(MechanicShop.SQL_REPORT_CARS_BEFORE_1995_PAGE, Long.MIN_VALUE, ReportPager.PAGE_SIZE + 1),
+			new Step(MechanicShop.SQL_REPORT_CARS_BEFORE_1995)));
+		ops.put("9. ListKCarsWithTheMostServices", steps(
+			new Step(MechanicShop.SQL_REPORT_CARS_WITH_OPEN_SERVICES, 1, 10)));
+		ops.put("10. ListCustomersInDescendingOrderOfTheirTotalBill", steps(
+			new Step(MechanicShop.SQL_REPORT_TOTAL_BILL_PAGE, Long.MAX_VALUE, Long.MAX_VALUE, ReportPager.PAGE_SIZE + 1),
+			new Step(MechanicShop.SQL_REPORT_TOTAL_BILL)));
+		return ops;
+	}//end operations
+
+	private static List<Step> steps(Step... steps) {
+		List<Step> l = new ArrayList<Step>();
+		for (Step s : steps)
+			l.add(s);
+		return l;
+	}
+
+	/**
+	 * Explains the statements of one operation in a rolled-back transaction
+	 * and returns the indexes its plans ask for.
+	 */
+	private List<String> explain(final List<Step> steps) throws SQLException {
+		return esql.withConnection(new MechanicShop.SQLWork<List<String>>() {
+			public List<String> run(Connection c) throws SQLException {
+				List<String> suggestions = new ArrayList<String>();
+				c.setAutoCommit(false);
+				try{
+					for (Step step : steps){
+						List<String> plan = new ArrayList<String>();
+						PreparedStatement stmt = c.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + step.sql);
+						try{
+							for (int i = 0; i < step.params.length; ++i)
+								stmt.setObject(i + 1, step.params[i]);
+							ResultSet rs = stmt.executeQuery();
+							while (rs.next())
+								plan.add(rs.getString(1));
+							rs.close();
+						}finally{
+							stmt.close();
+						}
+						System.out.println("  " + abbreviate(step.sql));
+						suggestions.addAll(analyze(plan));
+					}
+				}finally{
+					c.rollback();
+					c.setAutoCommit(true);
+				}
+				return suggestions;
+			}
+		});
+	}//end explain
+
+	/**
+	 * Reads one text plan: prints the execution time, buffer use, wasteful
+	 * sequential scans and bad estimates, and returns suggested indexes.
+	 */
+	private List<String> analyze(List<String> plan) {
+		List<String> suggestions = new ArrayList<String>();
+		Map<String, PartitionScans> partitioned = new LinkedHashMap<String, PartitionScans>();
+		String scanTable = null;
+		long scanRows = 0;
+		String scanFilter = null;
+		String topBuffers = null;
+
+		for (int i = 0; i < plan.size(); ++i){
+			String line = plan.get(i);
+			Matcher m;
+			if ((m = NODE.matcher(line)).find()){
+				//a new node closes the scan we were reading
+				checkScan(scanTable, scanRows, scanFilter, -1, partitioned, suggestions);
+				scanTable = null;
+				scanFilter = null;
+
+				String node = m.group(1);
+				long est = Long.parseLong(m.group(2));
+				//newer servers print the average actual rows with decimals
+				long act = Math.round(Double.parseDouble(m.group(3)));
+				double factor = (double) Math.max(est, act) / Math.max(1, Math.min(est, act));
+				if (factor >= ESTIMATE_ERROR_FACTOR && Math.max(est, act) >= 100)
+					System.out.println(String.format("    row estimate off %.0fx (estimated %d, actual %d): %s",
+						factor, est, act, node));
+
+				Matcher scan = SEQ_SCAN.matcher(node);
+				if (scan.find()){
+					scanTable = scan.group(1).toLowerCase();
+					scanRows = act * Math.max(1, Long.parseLong(m.group(4)));
+				}
+			}else if ((m = FILTER.matcher(line)).find()){
+				if (scanTable != null)
+					scanFilter = m.group(1);
+			}else if ((m = REMOVED.matcher(line)).find()){
+				if (scanTable != null){
+					checkScan(scanTable, scanRows, scanFilter, Long.parseLong(m.group(1)), partitioned, suggestions);
+					scanTable = null;
+					scanFilter = null;
+				}
+			}else if ((m = BUFFERS.matcher(line)).find()){
+				if (topBuffers == null)
+					topBuffers = m.group(1);
+			}else if ((m = EXECUTION.matcher(line)).find()){
+				System.out.println("    execution " + m.group(1) + " ms" +
+					(topBuffers != null ? ", buffers " + topBuffers : ""));
+			}
+		}
+		checkScan(scanTable, scanRows, scanFilter, -1, partitioned, suggestions);
+		for (Map.Entry<String, PartitionScans> e : partitioned.entrySet()){
+			PartitionScans p = e.getValue();
+			reportScan(e.getKey() + " (" + p.partitions + " partitions)", e.getKey(), p.kept, p.filter, p.removed, suggestions);
+		}
+		return suggestions;
+	}//end analyze
+
+	/**
+	 * Judges a sequential scan, or adds a scan of a partition to the scans
+	 * of its table, which are judged once the whole plan is read: each month
+	 * alone may be small while the table is not.
+	 */
+	private void checkScan(String table, long kept, String filter, long removed,
+			Map<String, PartitionScans> partitioned, List<String> suggestions) {
+		if (table == null)
+			return;
+		String parent = parents.get(table);
+		if (parent == null){
+			reportScan(table, table, kept, filter, removed, suggestions);
+			return;
+		}
+		PartitionScans p = partitioned.get(parent);
+		if (p == null){
+			p = new PartitionScans();
+			partitioned.put(parent, p);
+		}
+		p.partitions++;
+		p.kept += kept;
+		if (removed >= 0)
+			p.removed = Math.max(0, p.removed) + removed;
+		if (p.filter == null)
+			p.filter = filter;
+	}//end checkScan
+
+	/**
+	 * Reports a sequential scan over a table that is not small.  When most
+	 * of its rows were filtered out, an index on the filter's columns is
+	 * suggested unless one already leads with that column.
+	 *
+	 * @param scan how the scan is named in the report
+	 */
+	private void reportScan(String scan, String table, long kept, String filter, long removed, List<String> suggestions) {
+		long scanned = kept + Math.max(0, removed);
+		if (scanned < SMALL_TABLE_ROWS)
+			return;
+		System.out.println("    seq scan on " + scan + ": " + scanned + " rows read, " + kept + " kept" +
+			(filter != null ? ", filter " + filter : ""));
+		if (filter == null || removed < 0 || kept * 10 > scanned)
+			return;
+		Set<String> cols = columns.get(table);
+		if (cols == null)
+			return;
+		Matcher m = IDENT.matcher(filter.toLowerCase());
+		while (m.find()){
+			String col = m.group(1);
+			if (!cols.contains(col))
+				continue;
+			Set<String> leading = indexed.get(table);
+			if (leading != null && leading.contains(col))
+				continue;
+			String s = "CREATE INDEX " + table + "_" + col + "_idx ON " + table + " (" + col + ")";
+			if (!suggestions.contains(s))
+				suggestions.add(s);
+			System.out.println("    suggest: " + s);
+		}
+	}//end reportScan
+
+	private void loadCatalog() throws SQLException {
+		//partitions first: their indexes count for their table
+		for (List<String> row : esql.executeQueryAndReturnResult(
+				"SELECT c.relname, p.relname FROM pg_inherits i " +
+				"JOIN pg_class c ON c.oid = i.inhrelid " +
+				"JOIN pg_class p ON p.oid = i.inhparent " +
+				"WHERE c.relnamespace = 'public'::regnamespace"))
+			parents.put(row.get(0), row.get(1));
+		//a partition of a partition belongs to the top table
+		for (Map.Entry<String, String> e : parents.entrySet())
+			for (int depth = 0; parents.containsKey(e.getValue()) && depth < 8; ++depth)
+				e.setValue(parents.get(e.getValue()));
+		for (List<String> row : esql.executeQueryAndReturnResult(
+				"SELECT table_name, column_name FROM information_schema.columns " +
+				"WHERE table_schema = 'public' AND table_name IN " +
+				"('customer', 'mechanic', 'car', 'owns', 'service_request', 'closed_request')")){
+			if (!columns.containsKey(row.get(0)))
+				columns.put(row.get(0), new HashSet<String>());
+			columns.get(row.get(0)).add(row.get(1));
+		}
+		for (List<String> row : esql.executeQueryAndReturnResult(
+				"SELECT t.relname, a.attname FROM pg_index i " +
+				"JOIN pg_class t ON t.oid = i.indrelid " +
+				"JOIN pg_attribute a ON a.attrelid = t.oid AND a.attnum = i.indkey[0] " +
+				"WHERE t.relnamespace = 'public'::regnamespace")){
+			String table = parents.containsKey(row.get(0)) ? parents.get(row.get(0)) : row.get(0);
+			if (!indexed.containsKey(table))
+				indexed.put(table, new HashSet<String>());
+			indexed.get(table).add(row.get(1));
+		}
+	}
+
+	private String scalar(String sql) throws SQLException {
+		List<List<String>> rs = esql.executeQueryAndReturnResult(sql);
+		return rs.isEmpty() ? null : rs.get(0).get(0);
+	}
+
+	private static String abbreviate(String sql) {
+		return sql.length() <= 100 ? sql : sql.substring(0, 97) + "...";
+	}
+}//end IndexAdvisor
@@ -0,0 +1,723 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * This class lets the desk write behind the database.  With
+ * -Dmechanicshop.writeBehind=<file> the intake writes (new customers, cars,
+ * ownerships, service requests and closes) are appended to a journal on
+ * local disk and acknowledged as soon as they are there; a writer thread
+ * then applies them to the database in order, GROUP records per
+ * transaction.  A slow or restarting database holds up the writer, not the
+ * clerk.
+ *
+ * The journal is a memory-mapped file: a header of two alternating slots,
+ * each with the position and sequence number of the oldest record not yet
+ * applied, followed by a ring of records
+ *
+ *   [int length][int crc][long seq][length bytes of JSON]
+ *
+ * padded to 8 bytes, a length of -1 marking where the ring wraps.  The CRC
+ * covers the sequence number and the JSON, so a record torn by a crash is
+ * not read back.  On start the records from the head on are read back while
+ * their sequence numbers follow on and their CRC holds, and applied again.
+ *
+ * Replaying is idempotent: every record carries the keys and the date it
+ * was acknowledged with, and the inserts skip a row already there.  A
+ * record the database refuses for good, e.g. a close of an unknown
+ * request, is written with its error to <file>.failed and skipped; a
+ * connection failure, timeout or deadlock is retried with back-off.
+ *
+ * When the journal fills up, appending waits up to FULL_WAIT_MS for the
+ * writer to make room and then fails.
+ */
+public class IntakeJournal implements Runnable {
+	static final String FILE = System.getProperty("mechanicshop.writeBehind");
+	//size of the ring of a new journal; an existing journal keeps its size
+	static final long JOURNAL_BYTES = Long.getLong("mechanicshop.writeBehind.bytes", 16L << 20);
+	//force every record to disk before acknowledging it
+	static final boolean SYNC = !"false".equals(System.getProperty("mechanicshop.writeBehind.sync"));
+	static final long FULL_WAIT_MS = Long.getLong("mechanicshop.writeBehind.fullWaitMs", 10000L);
+	static final int GROUP = Integer.getInteger("mechanicshop.writeBehind.group", 100);
+	//how long close() lets the writer go on draining
+	static final long CLOSE_WAIT_MS = Long.getLong("mechanicshop.writeBehind.closeWaitMs", 5000L);
+	static final long MAX_BACKOFF_MS = 5000L;
+
+	private static final long MAGIC = 0x4d53484f504a524eL; // "MSHOPJRN"
+	//the header slots, the ring starts after them
+	private static final int SLOT = 64;
+	private static final int DATA = 4096;
+	private static final int RECORD_HEADER = 16;
+	private static final int WRAP = -1;
+
+	private static final String SQL_CUSTOMER = MechanicShop.SQL_ADD_CUSTOMER + " ON CONFLICT (id) DO NOTHING";
+	private static final String SQL_CAR = MechanicShop.SQL_ADD_CAR + " ON CONFLICT (vin) DO NOTHING";
+	private static final String SQL_CAR_ROW = "SELECT make, model, year FROM Car WHERE vin = ?";
+	private static final String SQL_OWNS = MechanicShop.SQL_ADD_OWNS + " ON CONFLICT (ownership_id) DO NOTHING";
+	private static final String SQL_REQUEST =
+		"WITH new_request AS (INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) VALUES(?, ?, ?, ?::date, ?, ?) " +
+		"ON CONFLICT (rid, date) DO NOTHING RETURNING car_vin) SELECT Car.make, Car.model FROM new_request, Car WHERE Car.vin = new_request.car_vin";
+	//SQL_CLOSE_SERVICE_REQUEST as of the day the close was acknowledged
+	private static final String SQL_CLOSE = "WITH today AS (SELECT ?::date AS d), " +
+		MechanicShop.SQL_CLOSE_SERVICE_REQUEST.substring("WITH ".length()).replace("CURRENT_DATE", "(SELECT d FROM today)");
+	private static final String SQL_CLOSED = "SELECT 1 FROM Closed_Request WHERE wid = ?";
+
+	/**
+	 * One record in the ring.
+	 */
+	private static final class Entry {
+		final long seq;
+		final String json;
+		final Map<String, String> fields;
+		//bytes it takes from the ring, with the gap skipped at a wrap before it
+		final int size;
+		//ring position after it
+		final int end;
+
+		Entry(long seq, String json, int size, int end){
+			this.seq = seq;
+			this.json = json;
+			this.fields = Json.parseObject(json);
+			this.size = size;
+			this.end = end;
+		}
+
+		String op() { return fields.get("op"); }
+		int num(String name) { return Integer.parseInt(fields.get(name)); }
+		String str(String name) { return fields.get(name); }
+	}
+
+	private final MechanicShop esql;
+	private final File file;
+	private final File failedFile;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final FileLock lock;
+	private final MappedByteBuffer map;
+	private final int capacity;
+	private final Thread writer;
+
+	//guarded by this
+	private final ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+	private long stamp = 0;
+	private int head = 0;
+	private int tail = 0;
+	private long nextSeq = 1;
+	private int used = 0;
+	private boolean closed = false;
+	private long closeDeadline = 0;
+	private long applied = 0;
+	private long groups = 0;
+	private long retries = 0;
+	private long rejected = 0;
+	private long fullWaits = 0;
+	private long fullRejects = 0;
+	private String lastError = null;
+
+	/**
+	 * Method to open the journal, creating it when missing, and read back
+	 * the records not yet applied.  The writer starts with start().
+	 *
+	 * @throws java.io.IOException when the file cannot be opened, is locked
+	 *         by another process or is not a journal
+	 */
+	public IntakeJournal(MechanicShop esql, File file) throws IOException {
+		this.esql = esql;
+		this.file = file;
+		this.failedFile = new File(file.getPath() + ".failed");
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		this.lock = channel.tryLock();
+		if (lock == null){
+			raf.close();
+			throw new IOException(file.getPath() + " is in use by another process");
+		}
+		boolean fresh = channel.size() == 0;
+		long ring = fresh ? JOURNAL_BYTES / 8 * 8 : channel.size() - DATA;
+		if (ring < 1024 || ring > Integer.MAX_VALUE - DATA){
+			close();
+			throw new IOException(file.getPath() + " is not an intake journal, or is too small or too large");
+		}
+		this.capacity = (int) ring;
+		this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA + ring);
+		if (fresh){
+			writeHeader();
+			map.force();
+		}else if (!recover()){
+			close();
+			throw new IOException(file.getPath() + " has no valid header, it is not an intake journal");
+		}
+		//what was acknowledged before a restart is listed again at once
+		for (Entry e : pending)
+			acknowledged(e.fields);
+		this.writer = new Thread(this, "intake-journal");
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Method to start the writer thread.
+	 */
+	public void start() {
+		writer.start();
+	}
+
+	/*
+	 * The intake writes, with the keys already drawn by the caller
+	 */
+
+	public void addCustomer(int id, String fname, String lname, String phone, String address) throws SQLException {
+		acknowledged(append(record("AddCustomer", "id", id, "fname", fname, "lname", lname, "phone", phone, "address", address)));
+	}
+
+	public void addCar(String vin, String make, String model, int year) throws SQLException {
+		acknowledged(append(record("AddCar", "vin", vin, "make", make, "model", model, "year", year)));
+	}
+
+	public void addOwnership(int ownershipId, int customerId, String vin) throws SQLException {
+		acknowledged(append(record("AddOwnership", "ownership_id", ownershipId, "customer_id", customerId, "car_vin", vin)));
+	}
+
+	public void insertServiceRequest(int rid, int customerId, String vin, int odometer, String complaint) throws SQLException {
+		append(record("InsertServiceRequest", "rid", rid, "customer_id", customerId, "car_vin", vin,
+			"odometer", odometer, "complain", complaint, "date", LocalDate.now().toString()));
+	}
+
+	public void insertServiceRequestForNewCar(int rid, int ownershipId, int customerId, String vin, String make, String model,
+			int year, int odometer, String complaint) throws SQLException {
+		acknowledged(append(record("InsertServiceRequestForNewCar", "rid", rid, "ownership_id", ownershipId,
+			"customer_id", customerId, "vin", vin, "make", make, "model", model, "year", year,
+			"odometer", odometer, "complain", complaint, "date", LocalDate.now().toString())));
+	}
+
+	public void closeServiceRequest(int wid, int rid, int mechanicId, String comment, int bill) throws SQLException {
+		append(record("CloseServiceRequest", "wid", wid, "rid", rid, "mid", mechanicId,
+			"comment", comment, "bill", bill, "date", LocalDate.now().toString()));
+	}
+
+	//a flat JSON object of the op and the name, value pairs, in the command format of BatchRunner
+	private static String record(String op, Object... members) {
+		StringBuilder sb = new StringBuilder("{\"op\":").append(Json.quote(op));
+		for (int i = 0; i < members.length; i += 2){
+			sb.append(',').append(Json.quote((String) members[i])).append(':');
+			Object v = members[i + 1];
+			sb.append(v instanceof Number ? v.toString() : Json.quote((String) v));
+		}
+		return sb.append('}').toString();
+	}
+
+	//the intake lookups see an acknowledged customer or car before it reaches the database
+	private void acknowledged(Map<String, String> f) {
+		CustomerDirectory directory = esql.getDirectory();
+		String op = f.get("op");
+		if (op.equals("AddCustomer")){
+			directory.customerAdded(Integer.parseInt(f.get("id")), f.get("fname"), f.get("lname"), f.get("phone"), f.get("address"));
+		}else if (op.equals("AddCar")){
+			directory.carAdded(f.get("vin"), f.get("make"), f.get("model"), Integer.parseInt(f.get("year")));
+		}else if (op.equals("AddOwnership")){
+			directory.ownershipAdded(Integer.parseInt(f.get("customer_id")), f.get("car_vin"));
+		}else if (op.equals("InsertServiceRequestForNewCar")){
+			directory.carAdded(f.get("vin"), f.get("make"), f.get("model"), Integer.parseInt(f.get("year")));
+			directory.ownershipAdded(Integer.parseInt(f.get("customer_id")), f.get("vin"));
+		}
+	}
+
+	/**
+	 * Writes a record at the tail, waiting while the ring is full.
+	 */
+	private synchronized Map<String, String> append(String json) throws SQLException {
+		byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+		int length = align(RECORD_HEADER + payload.length);
+		if (length > capacity / 4)
+			throw new SQLException("The record is too large for the intake journal (" + payload.length + " bytes)");
+		long deadline = System.nanoTime() + FULL_WAIT_MS * 1000000L;
+		boolean waited = false;
+		int at;
+		int gap;
+		while (true){
+			if (closed)
+				throw new SQLException("The intake journal is closed", "08003");
+			at = tail;
+			gap = 0;
+			if (capacity - at < length){
+				gap = capacity - at;
+				at = 0;
+			}
+			if (used + gap + length <= capacity)
+				break;
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0){
+				fullRejects++;
+				throw new SQLException("The intake journal is full, the database has not taken a write for "
+					+ FULL_WAIT_MS + " ms", "53100");
+			}
+			if (!waited){
+				fullWaits++;
+				waited = true;
+			}
+			try{
+				wait(Math.max(1, remaining / 1000000L));
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for room in the intake journal", "57014");
+			}
+		}
+		if (gap >= RECORD_HEADER)
+			map.putInt(DATA + tail, WRAP);
+		long seq = nextSeq++;
+		map.putInt(DATA + at + 4, crc(seq, payload));
+		map.putLong(DATA + at + 8, seq);
+		ByteBuffer b = map.duplicate();
+		b.position(DATA + at + RECORD_HEADER);
+		b.put(payload);
+		map.putInt(DATA + at, payload.length);
+		if (SYNC)
+			map.force();
+		Entry e = new Entry(seq, json, gap + length, at + length);
+		pending.addLast(e);
+		used += e.size;
+		tail = e.end;
+		notifyAll();
+		return e.fields;
+	}//end append
+
+	/**
+	 * Reads the header and the records after its head back into pending.
+	 *
+	 * @return false when neither header slot is valid
+	 */
+	private boolean recover() {
+		boolean found = false;
+		for (int slot = 0; slot < 2; ++slot){
+			int p = slot * SLOT;
+			if (map.getLong(p) != MAGIC || map.getInt(p + 32) != crc(p, 32))
+				continue;
+			long s = map.getLong(p + 8);
+			if (!found || s > stamp){
+				found = true;
+				stamp = s;
+				head = map.getInt(p + 16);
+				nextSeq = map.getLong(p + 24);
+			}
+		}
+		if (!found || head < 0 || head > capacity)
+			return false;
+		int pos = head;
+		while (used < capacity){
+			int at = pos;
+			int gap = 0;
+			if (capacity - at < RECORD_HEADER || map.getInt(DATA + at) == WRAP){
+				gap = capacity - at;
+				at = 0;
+			}
+			int length = map.getInt(DATA + at);
+			if (length <= 0 || length > capacity - at - RECORD_HEADER || map.getLong(DATA + at + 8) != nextSeq)
+				break;
+			byte[] payload = new byte[length];
+			ByteBuffer b = map.duplicate();
+			b.position(DATA + at + RECORD_HEADER);
+			b.get(payload);
+			if (map.getInt(DATA + at + 4) != crc(nextSeq, payload))
+				break;
+			Entry e;
+			try{
+				e = new Entry(nextSeq, new String(payload, StandardCharsets.UTF_8), gap + align(RECORD_HEADER + length),
+					at + align(RECORD_HEADER + length));
+			}catch (IllegalArgumentException ex){
+				break;
+			}
+			if (used + e.size > capacity)
+				break;
+			pending.addLast(e);
+			used += e.size;
+			++nextSeq;
+			pos = e.end;
+		}
+		tail = pos;
+		if (!pending.isEmpty())
+			System.out.println("Intake journal " + file.getPath() + ": " + pending.size() + " record(s) to apply");
+		return true;
+	}//end recover
+
+	//the head goes to the slot the last header was not written to
+	private void writeHeader() {
+		++stamp;
+		int p = (int) (stamp & 1) * SLOT;
+		map.putLong(p, MAGIC);
+		map.putLong(p + 8, stamp);
+		map.putInt(p + 16, head);
+		map.putInt(p + 20, 0);
+		map.putLong(p + 24, pending.isEmpty() ? nextSeq : pending.peekFirst().seq);
+		map.putInt(p + 32, crc(p, 32));
+	}
+
+	private static int align(int n) {
+		return (n + 7) & ~7;
+	}
+
+	private static int crc(long seq, byte[] payload) {
+		CRC32 crc = new CRC32();
+		for (int i = 56; i >= 0; i -= 8)
+			crc.update((int) (seq >>> i));
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	private int crc(int from, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer b = map.duplicate();
+		b.position(from);
+		b.get(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	/*
+	 * The writer
+	 */
+
+	public void run() {
+		reserveIds();
+		while (true){
+			List<Entry> group = new ArrayList<Entry>();
+			synchronized (this){
+				while (pending.isEmpty() && !closed){
+					try{
+						wait();
+					}catch (InterruptedException e){
+						return;
+					}
+				}
+				if (pending.isEmpty() || (closed && System.nanoTime() > closeDeadline))
+					return;
+				for (Iterator<Entry> it = pending.iterator(); it.hasNext() && group.size() < GROUP; )
+					group.add(it.next());
+			}
+			if (!drain(group))
+				return;
+			reserveIds();
+		}
+	}//end run
+
+	//keeps a spare block of keys, so intake goes on while the database is down
+	private void reserveIds() {
+		try{
+			esql.reserveSpareIds();
+		}catch (SQLException e){
+			// the next drain tries again.
+		}
+	}
+
+	/**
+	 * Applies a group in one transaction.  When the database refuses it for
+	 * good, the records are applied one transaction each, so only the bad
+	 * ones are set aside.
+	 *
+	 * @return false when the journal was closed before the group got in
+	 */
+	private boolean drain(List<Entry> group) {
+		List<Runnable> after = null;
+		long backoff = 100;
+		while (after == null){
+			try{
+				after = applyAll(group);
+			}catch (SQLException e){
+				if (!isTransient(e)){
+					after = new ArrayList<Runnable>();
+					for (Entry entry : group)
+						if (!drainOne(entry, after))
+							return false;
+					break;
+				}
+				if (!backOff(e, backoff))
+					return false;
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+			}catch (RuntimeException e){
+				//a record that does not parse as the op it names
+				after = new ArrayList<Runnable>();
+				for (Entry entry : group)
+					if (!drainOne(entry, after))
+						return false;
+			}
+		}
+		synchronized (this){
+			for (Entry entry : group){
+				pending.removeFirst();
+				used -= entry.size;
+			}
+			head = group.get(group.size() - 1).end;
+			applied += group.size();
+			groups++;
+			writeHeader();
+			if (SYNC)
+				map.force();
+			notifyAll();
+		}
+		for (Runnable r : after)
+			r.run();
+		return true;
+	}//end drain
+
+	private boolean drainOne(Entry entry, List<Runnable> after) {
+		List<Entry> one = new ArrayList<Entry>(1);
+		one.add(entry);
+		long backoff = 100;
+		while (true){
+			try{
+				after.addAll(applyAll(one));
+				return true;
+			}catch (SQLException e){
+				if (!isTransient(e)){
+					after.add(rejection(entry, e.getMessage()));
+					return true;
+				}
+				if (!backOff(e, backoff))
+					return false;
+				backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+			}catch (RuntimeException e){
+				after.add(rejection(entry, e.toString()));
+				return true;
+			}
+		}
+	}
+
+	//waits before a retry, false once the journal is closed
+	private synchronized boolean backOff(SQLException e, long millis) {
+		retries++;
+		lastError = e.getMessage();
+		if (closed)
+			millis = Math.min(millis, (closeDeadline - System.nanoTime()) / 1000000L);
+		if (millis <= 0)
+			return false;
+		try{
+			wait(millis);
+		}catch (InterruptedException ex){
+			return false;
+		}
+		return !closed || System.nanoTime() < closeDeadline;
+	}
+
+	/**
+	 * Whether the failure is the database's and not the record's: the
+	 * connection, the server's resources, a timeout, a serialization
+	 * failure or a deadlock.
+	 */
+	static boolean isTransient(SQLException e) {
+		String state = e.getSQLState();
+		if (state == null)
+			return false;
+		return state.startsWith("08") || state.startsWith("53") || state.startsWith("57P")
+			|| state.equals("40001") || state.equals("40P01") || state.equals("57014") || state.equals("55P03");
+	}
+
+	/**
+	 * Applies records in one transaction.
+	 *
+	 * @return what to do once it is committed: update the caches or set a
+	 *         refused record aside
+	 */
+	private List<Runnable> applyAll(final List<Entry> group) throws SQLException {
+		return esql.inTransaction(new MechanicShop.SQLWork<List<Runnable>>() {
+			public List<Runnable> run(Connection c) throws SQLException {
+				List<Runnable> after = new ArrayList<Runnable>();
+				for (Entry e : group)
+					apply(e, after);
+				return after;
+			}
+		});
+	}
+
+	private void apply(final Entry e, List<Runnable> after) throws SQLException {
+		final AnalyticsEngine analytics = esql.getAnalytics();
+		final OpenServiceIndex openServices = esql.getOpenServices();
+		String op = e.op();
+		if (op.equals("AddCustomer")){
+			final int id = e.num("id");
+			if (esql.executeUpdate(SQL_CUSTOMER, id, e.str("fname"), e.str("lname"), e.str("phone"), e.str("address")) == 1){
+				after.add(new Runnable() {
+					public void run() {
+						analytics.customerAdded(id, e.str("fname"), e.str("lname"));
+					}
+				});
+			}
+		}else if (op.equals("AddCar")){
+			addCar(e, e.str("vin"), after);
+		}else if (op.equals("AddOwnership")){
+			addOwnership(e, e.num("ownership_id"), e.str("car_vin"), after);
+		}else if (op.equals("InsertServiceRequest")){
+			openRequest(e, e.str("car_vin"), after);
+		}else if (op.equals("InsertServiceRequestForNewCar")){
+			//car, ownership and request stand or fall together
+			if (addCar(e, e.str("vin"), after)){
+				addOwnership(e, e.num("ownership_id"), e.str("vin"), after);
+				openRequest(e, e.str("vin"), after);
+			}
+		}else if (op.equals("CloseServiceRequest")){
+			final int wid = e.num("wid");
+			final int rid = e.num("rid");
+			List<String> outcome = esql.executeUpdateAndReturnResult(SQL_CLOSE, e.str("date"), rid, e.num("mid"), wid,
+				e.str("comment"), e.num("bill")).get(0);
+			String reason = outcome.get(0);
+			final String vin = outcome.get(1);
+			if (reason.equals("closed")){
+				after.add(new Runnable() {
+					public void run() {
+						openServices.closed(vin);
+						analytics.requestClosed(wid, rid, e.str("comment"), e.num("bill"));
+					}
+				});
+			}else if (!(reason.equals("already_closed") && !esql.executeQueryAndReturnResult(SQL_CLOSED, wid).isEmpty())){
+				//a close already applied before a restart is not refused
+				after.add(rejection(e, MechanicShop.closeRejection(reason)));
+			}
+		}else{
+			after.add(rejection(e, "unknown op " + op));
+		}
+	}//end apply
+
+	//false when the VIN is taken by a different car
+	private boolean addCar(final Entry e, final String vin, List<Runnable> after) throws SQLException {
+		final String make = e.str("make");
+		final String model = e.str("model");
+		final int year = e.num("year");
+		if (esql.executeUpdate(SQL_CAR, vin, make, model, year) == 1){
+			after.add(new Runnable() {
+				public void run() {
+					esql.getAnalytics().carAdded(vin, make, model, year);
+				}
+			});
+			return true;
+		}
+		List<List<String>> row = esql.executeQueryAndReturnResult(SQL_CAR_ROW, vin);
+		if (!row.isEmpty() && same(row.get(0).get(0), make) && same(row.get(0).get(1), model)
+				&& row.get(0).get(2).trim().equals(Integer.toString(year)))
+			return true;
+		after.add(rejection(e, "VIN " + vin + " belongs to another car."));
+		return false;
+	}
+
+	private void addOwnership(Entry e, int ownershipId, final String vin, List<Runnable> after) throws SQLException {
+		final int customerId = e.num("customer_id");
+		if (esql.executeUpdate(SQL_OWNS, ownershipId, customerId, vin) == 1){
+			after.add(new Runnable() {
+				public void run() {
+					esql.getAnalytics().ownershipAdded(customerId, vin);
+				}
+			});
+		}
+	}
+
+	private void openRequest(final Entry e, final String vin, List<Runnable> after) throws SQLException {
+		final int rid = e.num("rid");
+		final int customerId = e.num("customer_id");
+		final int odometer = e.num("odometer");
+		final String date = e.str("date");
+		final List<List<String>> result = esql.executeUpdateAndReturnResult(SQL_REQUEST, rid, customerId, vin, date, odometer, e.str("complain"));
+		//no row when it was applied before a restart
+		if (!result.isEmpty()){
+			after.add(new Runnable() {
+				public void run() {
+					esql.getOpenServices().opened(vin, result.get(0).get(0), result.get(0).get(1));
+					esql.getAnalytics().requestOpened(rid, customerId, vin, date, odometer);
+				}
+			});
+		}
+	}
+
+	private static boolean same(String a, String b) {
+		return ResultRenderer.rtrim(a == null ? "" : a).equals(ResultRenderer.rtrim(b == null ? "" : b));
+	}
+
+	/**
+	 * Sets a refused record aside in <file>.failed, as its JSON with an
+	 * "error" member, once the transaction it was in has committed.
+	 */
+	private Runnable rejection(final Entry e, final String message) {
+		return new Runnable() {
+			public void run() {
+				synchronized (IntakeJournal.this){
+					rejected++;
+					lastError = message;
+				}
+				System.err.println("Intake journal: " + e.op() + " was refused: " + message);
+				String line = e.json.substring(0, e.json.length() - 1) + ",\"error\":" + Json.quote(message) + "}\n";
+				try{
+					OutputStream out = new FileOutputStream(failedFile, true);
+					try{
+						out.write(line.getBytes(StandardCharsets.UTF_8));
+					}finally{
+						out.close();
+					}
+				}catch (IOException ex){
+					System.err.println("Cannot write " + failedFile.getPath() + ": " + ex.getMessage() + "\n" + line);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Method to describe the journal, one metric per line.
+	 */
+	public synchronized String getStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("journal_pending ").append(pending.size()).append('\n');
+		sb.append("journal_used_bytes ").append(used).append('\n');
+		sb.append("journal_capacity_bytes ").append(capacity).append('\n');
+		sb.append("journal_applied ").append(applied).append('\n');
+		sb.append("journal_groups ").append(groups).append('\n');
+		sb.append("journal_retries ").append(retries).append('\n');
+		sb.append("journal_rejected ").append(rejected).append('\n');
+		sb.append("journal_full_waits ").append(fullWaits).append('\n');
+		sb.append("journal_full_rejects ").append(fullRejects).append('\n');
+		if (lastError != null)
+			sb.append("journal_last_error ").append(lastError.replace('\n', ' ')).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Method to stop taking records, give the writer up to CLOSE_WAIT_MS to
+	 * apply the rest and close the file.  What is left is applied on the
+	 * next start.
+	 */
+	public void close() {
+		synchronized (this){
+			closed = true;
+			closeDeadline = System.nanoTime() + CLOSE_WAIT_MS * 1000000L;
+			notifyAll();
+		}
+		if (writer != null && writer.isAlive()){
+			try{
+				writer.join(CLOSE_WAIT_MS + 1000L);
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this){
+			if (!pending.isEmpty())
+				System.out.println("Intake journal " + file.getPath() + ": " + pending.size() + " record(s) left for the next start");
+		}
+		try{
+			if (lock != null && lock.isValid())
+				lock.release();
+			raf.close();
+		}catch (IOException e){
+			// ignored.
+		}
+	}//end close
+}//end IntakeJournal
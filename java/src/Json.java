@@ -0,0 +1,153 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class reads and writes the little JSON the tools need: flat objects
+ * whose values are strings, numbers, booleans or null.  Nested objects and
+ * arrays are rejected.
+ */
+public class Json {
+	private final String s;
+	private int pos = 0;
+
+	private Json(String s) {
+		this.s = s;
+	}
+
+	/**
+	 * Method to parse one flat object.
+	 *
+	 * @param text e.g. {"op": "AddCar", "year": 2012}
+	 * @return the members in order, numbers and booleans as their text and
+	 *         null as null
+	 * @throws java.lang.IllegalArgumentException when the text is not a
+	 *         flat JSON object
+	 */
+	public static Map<String, String> parseObject(String text) {
+		Json p = new Json(text);
+		Map<String, String> members = new LinkedHashMap<String, String>();
+		p.expect('{');
+		p.skipSpace();
+		if (p.peek() == '}'){
+			p.pos++;
+		}else{
+			while (true){
+				p.skipSpace();
+				String name = p.string();
+				p.expect(':');
+				p.skipSpace();
+				members.put(name, p.value());
+				p.skipSpace();
+				char ch = p.next();
+				if (ch == '}')
+					break;
+				if (ch != ',')
+					throw p.error("expected , or }");
+			}
+		}
+		p.skipSpace();
+		if (p.pos != text.length())
+			throw p.error("trailing characters");
+		return members;
+	}
+
+	/**
+	 * Method to quote a string as a JSON string literal.
+	 */
+	public static String quote(String value) {
+		if (value == null)
+			return "null";
+		StringBuilder sb = new StringBuilder(value.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < value.length(); ++i){
+			char ch = value.charAt(i);
+			switch (ch){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (ch < 0x20)
+						sb.append(String.format("\\u%04x", (int) ch));
+					else
+						sb.append(ch);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private String value() {
+		char ch = peek();
+		if (ch == '"')
+			return string();
+		if (ch == '{' || ch == '[')
+			throw error("nested values are not supported");
+		int start = pos;
+		while (pos < s.length() && ",} \t\r\n".indexOf(s.charAt(pos)) < 0)
+			pos++;
+		String word = s.substring(start, pos);
+		if (word.equals("null"))
+			return null;
+		if (word.equals("true") || word.equals("false") || word.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?"))
+			return word;
+		throw error("bad value " + word);
+	}
+
+	private String string() {
+		expect('"');
+		StringBuilder sb = new StringBuilder();
+		while (true){
+			char ch = next();
+			if (ch == '"')
+				return sb.toString();
+			if (ch != '\\'){
+				sb.append(ch);
+				continue;
+			}
+			ch = next();
+			switch (ch){
+				case '"': case '\\': case '/': sb.append(ch); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'u':
+					if (pos + 4 > s.length())
+						throw error("bad \\u escape");
+					sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+					pos += 4;
+					break;
+				default: throw error("bad escape \\" + ch);
+			}
+		}
+	}
+
+	private void expect(char ch) {
+		skipSpace();
+		if (next() != ch)
+			throw error("expected " + ch);
+	}
+
+	private void skipSpace() {
+		while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+			pos++;
+	}
+
+	private char peek() {
+		if (pos >= s.length())
+			throw error("unexpected end");
+		return s.charAt(pos);
+	}
+
+	private char next() {
+		char ch = peek();
+		pos++;
+		return ch;
+	}
+
+	private IllegalArgumentException error(String what) {
+		return new IllegalArgumentException(what + " at column " + (pos + 1));
+	}
+}//end Json
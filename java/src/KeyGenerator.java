@@ -0,0 +1,200 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class hands out primary keys for the MechanicShop tables using the
+ * hi-lo scheme on top of Postgres sequences.  Every sequence is created with
+ * INCREMENT BY <block>, so one nextval() call reserves a whole block of ids
+ * [hi, hi + block) for this process, which are then given out from memory.
+ *
+ * Two MechanicShop instances never receive the same block, so concurrent
+ * terminals can no longer hand out duplicate keys.
+ *
+ * reserveSpares() puts a second block aside for every table, which nextId
+ * moves on to when the first runs out, so a process that writes behind
+ * (see IntakeJournal) can go on handing out keys while the database is
+ * down.
+ */
+public class KeyGenerator {
+	//default number of ids reserved per round trip
+	public static final int DEFAULT_BLOCK_SIZE = 50;
+
+	//key column of every table that gets its ids from the generator
+	public static final String CUSTOMER = "Customer";
+	public static final String MECHANIC = "Mechanic";
+	public static final String OWNS = "Owns";
+	public static final String SERVICE_REQUEST = "Service_Request";
+	public static final String CLOSED_REQUEST = "Closed_Request";
+
+	private static final String[][] KEYS = {
+		{CUSTOMER, "id", "customer_id_seq"},
+		{MECHANIC, "id", "mechanic_id_seq"},
+		{OWNS, "ownership_id", "owns_ownership_id_seq"},
+		{SERVICE_REQUEST, "rid", "service_request_rid_seq"},
+		{CLOSED_REQUEST, "wid", "closed_request_wid_seq"}
+	};
+
+	//advisory lock key used while sequences are created or realigned
+	private static final long INIT_LOCK = 0x4d53484f50L; // "MSHOP"
+
+	private final MechanicShop esql;
+	private final int blockSize;
+	private final Map<String, Block> blocks = new HashMap<String, Block>();
+	private boolean initialized = false;
+	//bumped by reset, a spare reserved before it is not taken
+	private int generation = 0;
+
+	/**
+	 * One reserved range of ids for a single table.
+	 */
+	private static class Block {
+		final String table;
+		final String column;
+		final String sequence;
+		int next = 0;
+		int limit = 0; //exclusive
+		//the block put aside by reserveSpares, none while spareLimit is 0
+		int spareNext = 0;
+		int spareLimit = 0;
+
+		Block(String table, String column, String sequence){
+			this.table = table;
+			this.column = column;
+			this.sequence = sequence;
+		}
+	}
+
+	public KeyGenerator(MechanicShop esql, int blockSize) {
+		this.esql = esql;
+		this.blockSize = blockSize;
+		for (String[] key : KEYS)
+			blocks.put(key[0].toLowerCase(), new Block(key[0], key[1], key[2]));
+	}
+
+	/**
+	 * Method to make sure every key sequence exists and starts above the
+	 * largest id already in its table.  It runs on the first nextId call.
+	 * The COPY-loaded data starts at 0 and has no sequence, so the first
+	 * start on such a database creates the sequences and moves them past
+	 * MAX(id).  Later starts only compare the sequence against MAX(id),
+	 * which is an index lookup on the primary key.
+	 *
+	 * @throws java.sql.SQLException when the sequences cannot be prepared
+	 */
+	public void initialize() throws SQLException {
+		esql.inTransaction(new MechanicShop.SQLWork<Void>() {
+			public Void run(Connection c) throws SQLException {
+				Statement stmt = c.createStatement();
+				try{
+					//serialize concurrent starts so one instance cannot rewind a
+					//sequence another one has already drawn from
+					stmt.execute("SELECT pg_advisory_xact_lock(" + INIT_LOCK + ")");
+					for (Block b : blocks.values()){
+						stmt.execute(String.format(
+							"CREATE SEQUENCE IF NOT EXISTS %s INCREMENT BY %d MINVALUE 0 START WITH 0",
+							b.sequence, blockSize));
+						stmt.execute(String.format("ALTER SEQUENCE %s INCREMENT BY %d", b.sequence, blockSize));
+						//the next value nextval() will return must be above MAX(key)
+						stmt.execute(String.format(
+							"SELECT setval('%1$s', m.nextkey, false) FROM " +
+							"(SELECT COALESCE(MAX(%2$s) + 1, 0) AS nextkey FROM %3$s) m, %1$s s " +
+							"WHERE m.nextkey > CASE WHEN s.is_called THEN s.last_value + %4$d ELSE s.last_value END",
+							b.sequence, b.column, b.table, blockSize));
+					}
+				}finally{
+					stmt.close();
+				}
+				return null;
+			}
+		});
+	}//end initialize
+
+	/**
+	 * Method to return the next unused key for a table.  Only one call in
+	 * every <block size> goes to the database.
+	 *
+	 * @param table one of Customer, Mechanic, Owns, Service_Request, Closed_Request
+	 * @return a key no other MechanicShop instance will receive
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public synchronized int nextId(String table) throws SQLException {
+		Block b = blocks.get(table.toLowerCase());
+		if (b == null)
+			throw new IllegalArgumentException("No key sequence for table " + table);
+		if (!initialized){
+			initialize();
+			initialized = true;
+		}
+		if (b.next >= b.limit){
+			if (b.spareLimit > 0){
+				b.next = b.spareNext;
+				b.limit = b.spareLimit;
+				b.spareLimit = 0;
+			}else{
+				reserve(b);
+			}
+		}
+		return b.next++;
+	}
+
+	/**
+	 * Method to put a spare block aside for every table that has none.  The
+	 * round trips are made outside the lock, so nextId is not held up by
+	 * them.
+	 *
+	 * @throws java.sql.SQLException when a block cannot be reserved
+	 */
+	public void reserveSpares() throws SQLException {
+		List<Block> missing = new ArrayList<Block>();
+		int gen;
+		synchronized (this){
+			if (!initialized){
+				initialize();
+				initialized = true;
+			}
+			for (Block b : blocks.values())
+				if (b.spareLimit == 0)
+					missing.add(b);
+			gen = generation;
+		}
+		for (Block b : missing){
+			int hi = nextval(b);
+			synchronized (this){
+				if (gen == generation && b.spareLimit == 0){
+					b.spareNext = hi;
+					b.spareLimit = hi + blockSize;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method to drop every reserved block so the next call to nextId realigns
+	 * the sequences and reserves new blocks, e.g. after the tables were
+	 * reloaded.
+	 */
+	public synchronized void reset() {
+		initialized = false;
+		++generation;
+		for (Block b : blocks.values()){
+			b.next = 0;
+			b.limit = 0;
+			b.spareLimit = 0;
+		}
+	}
+
+	private void reserve(Block b) throws SQLException {
+		b.next = nextval(b);
+		b.limit = b.next + blockSize;
+	}
+
+	private int nextval(Block b) throws SQLException {
+		List<List<String>> rs = esql.executeQueryAndReturnResult("SELECT nextval(?::regclass)", b.sequence);
+		return Integer.parseInt(rs.get(0).get(0));
+	}
+}//end KeyGenerator
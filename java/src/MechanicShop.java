@@ -11,9 +11,9 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,8 +21,11 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Properties;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,9 +34,82 @@ import java.util.ArrayList;
  */
 
 public class MechanicShop{
-	//reference to physical database connection
-	private Connection _connection = null;
-	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//pool of physical database connections shared by all sessions
+	private ConnectionPool _pool = null;
+	//connection pinned to the current thread by withConnection/inTransaction
+	private final ThreadLocal<ConnectionPool.PooledConnection> _bound = new ThreadLocal<ConnectionPool.PooledConnection>();
+	//System.nanoTime by which the current thread's statements must be done, see setDeadline
+	private final ThreadLocal<Long> _deadline = new ThreadLocal<Long>();
+	//told of every statement the current thread runs, see watchStatements
+	private final ThreadLocal<StatementListener> _watcher = new ThreadLocal<StatementListener>();
+	//hands out primary keys in blocks reserved from the DB sequences
+	private KeyGenerator _keys = null;
+	//open service requests per car, answers report 9 from memory
+	private OpenServiceIndex _openServices = null;
+	//results of the read-heavy reports, dropped when a table they read is written
+	private ResultCache _results = null;
+	//customers and their cars for intake lookups, answered from memory
+	private CustomerDirectory _directory = null;
+	//latency, rows, round trips and errors of the operations and database calls
+	private final Metrics _metrics = new Metrics();
+	//statements slower than a threshold, with the plans of repeat offenders
+	private SlowQueryLog _slowLog = null;
+	//reports running in the background, shared by the sessions
+	private ReportJobs _jobs = null;
+	//columnar snapshot of the report tables, answers reports 6 to 10 when loaded
+	private AnalyticsEngine _analytics = null;
+	//intake writes acknowledged from a local journal and applied behind, null when writing through
+	private IntakeJournal _journal = null;
+	//the other databases when the shop is sharded by customer, null with one database
+	private ShardRouter _shards = null;
+	//streaming replicas that reports read from, null when every read goes to the primary
+	private ReplicaRouter _replicas = null;
+	//when the current thread last wrote, so its reports see the write, see onReplica
+	private final ThreadLocal<Long> _lastWrite = new ThreadLocal<Long>();
+	//connection properties of the primary, reused for its replicas
+	private Properties _props = null;
+	private static final Object[] NO_PARAMS = new Object[0];
+	//console of the current session, see DeskServer for remote sessions
+	static BufferedReader in = DeskServer.sessionInput(new BufferedReader(new InputStreamReader(System.in)));
+
+	//menu choice that ends a session
+	static final int EXIT = 13;
+
+	//pool sizing, overridable with -Dmechanicshop.pool.<name>=<value>
+	static final int POOL_MIN_IDLE = Integer.getInteger("mechanicshop.pool.minIdle", 1);
+	static final int POOL_MAX_SIZE = Integer.getInteger("mechanicshop.pool.maxSize", 8);
+	static final long POOL_CHECKOUT_TIMEOUT_MS = Long.getLong("mechanicshop.pool.checkoutTimeoutMs", 10000L);
+	static final long POOL_IDLE_TIMEOUT_MS = Long.getLong("mechanicshop.pool.idleTimeoutMs", 300000L);
+	static final long POOL_LEAK_THRESHOLD_MS = Long.getLong("mechanicshop.pool.leakThresholdMs", 60000L);
+	static final long POOL_VALIDATION_INTERVAL_MS = Long.getLong("mechanicshop.pool.validationIntervalMs", 5000L);
+	//memory bound of the report result cache, -Dmechanicshop.cache.maxBytes=0 turns it off
+	static final long CACHE_MAX_BYTES = Long.getLong("mechanicshop.cache.maxBytes", ResultCache.DEFAULT_MAX_BYTES);
+
+	/**
+	 * A unit of work run on one connection, see withConnection and
+	 * inTransaction.
+	 */
+	public interface SQLWork<T> {
+		T run (Connection connection) throws SQLException;
+	}
+
+	/**
+	 * Receives the rows of a streamed query one at a time, see streamQuery.
+	 */
+	public interface RowHandler {
+		void handle (ResultRow row) throws SQLException;
+	}
+
+	/**
+	 * Told of each statement before it runs, so another thread can cancel
+	 * it, see watchStatements.
+	 */
+	public interface StatementListener {
+		void started (Statement stmt) throws SQLException;
+	}
+
+	//rows fetched per round trip when reading through a cursor
+	static final int DEFAULT_FETCH_SIZE = Integer.getInteger("mechanicshop.fetchSize", 500);
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
@@ -42,8 +118,44 @@ public class MechanicShop{
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// opens the pool of physical connections
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			//executeBatch of an INSERT goes out as multi-row INSERTs
+			props.setProperty("reWriteBatchedInserts", "true");
+			//counts round trips and bytes for the metrics and the bench mode
+			if (this._metrics.isEnabled() || Boolean.getBoolean("mechanicshop.countRoundTrips"))
+				props.setProperty("socketFactory", RoundTripCounter.class.getName());
+	        this._props = props;
+	        this._pool = new ConnectionPool(url, props, POOL_MIN_IDLE, POOL_MAX_SIZE,
+	        	POOL_CHECKOUT_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS, POOL_LEAK_THRESHOLD_MS, POOL_VALIDATION_INTERVAL_MS);
+	        this._slowLog = new SlowQueryLog(this._pool);
+	        if (SlowQueryLog.ENABLED)
+	        	SlowQueryLog.install(this._slowLog);
+	        this._keys = new KeyGenerator(this, KeyGenerator.DEFAULT_BLOCK_SIZE);
+	        this._openServices = new OpenServiceIndex(this);
+	        this._results = new ResultCache(this._pool, CACHE_MAX_BYTES);
+	        this._directory = new CustomerDirectory(this);
+	        this._jobs = new ReportJobs(this);
+	        this._analytics = new AnalyticsEngine(this);
+	        if (CustomerDirectory.ENABLED)
+	        	this._results.subscribe(CustomerDirectory.CHANNEL, this._directory);
+	        if (CACHE_MAX_BYTES > 0){
+	        	//report 9 is answered by _openServices instead
+	        	this._results.register(SQL_REPORT_BILL_LESS_THAN_100);
+	        	this._results.register(SQL_REPORT_MORE_THAN_20_CARS);
+	        	this._results.register(SQL_REPORT_CARS_BEFORE_1995);
+	        	this._results.register(SQL_REPORT_TOTAL_BILL);
+	        	this._results.register(SQL_REPORT_BILL_LESS_THAN_100_PAGE);
+	        	this._results.register(SQL_REPORT_MORE_THAN_20_CARS_PAGE);
+	        	this._results.register(SQL_REPORT_CARS_BEFORE_1995_PAGE);
+	        	this._results.register(SQL_REPORT_TOTAL_BILL_PAGE);
+	        }
+	        //the cache's listener also keeps the directory current
+	        if (CACHE_MAX_BYTES > 0 || CustomerDirectory.ENABLED)
+	        	this._results.start();
+	        this._metrics.start();
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -60,16 +172,74 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+		executeUpdate (sql, NO_PARAMS);
+	}//end executeUpdate
 
-		// close the instruction
-	    stmt.close ();
+	/**
+	 * Method to execute a parameterized update SQL statement.  The statement
+	 * is taken from the connection's statement cache, so a template is only
+	 * parsed and planned by the DBMS once it is hot.
+	 * 
+	 * @param sql the SQL template using ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows changed
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public int executeUpdate (String sql, Object... params) throws SQLException { 
+		Metrics.Sample sample = this._metrics.start ("executeUpdate");
+		try{
+			ConnectionPool.PooledConnection pc = acquire ();
+			try{
+				// fetches the cached statement and binds the parameters
+				PreparedStatement stmt = prepare (pc, sql, params);
+
+				// issues the update instruction
+				int rows = sample.rows (stmt.executeUpdate ());
+				wrote ();
+				// cached results over the written table are stale now
+				this._results.invalidateWrite (sql);
+				return rows;
+			}finally{
+				release (pc);
+			}
+		}catch (SQLException e){
+			throw sample.failed (e);
+		}finally{
+			sample.stop ();
+		}
 	}//end executeUpdate
 
+	/**
+	 * Method to execute a data-modifying statement that returns rows, e.g.
+	 * INSERT ... RETURNING or a WITH query whose parts write.  It runs in
+	 * one round trip and, like executeUpdate, drops the cached results over
+	 * every table it writes.
+	 * 
+	 * @param sql the SQL template using ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the returned rows as a list of records
+	 * @throws java.sql.SQLException when the statement failed
+	 * */
+	public List<List<String>> executeUpdateAndReturnResult (String sql, Object... params) throws SQLException {
+		Metrics.Sample sample = this._metrics.start ("executeUpdateAndReturnResult");
+		try{
+			ConnectionPool.PooledConnection pc = acquire ();
+			try{
+				List<List<String>> result = returnResult (prepare (pc, sql, params).executeQuery ());
+				sample.rows (result.size ());
+				wrote ();
+				this._results.invalidateWrite (sql);
+				return result;
+			}finally{
+				release (pc);
+			}
+		}catch (SQLException e){
+			throw sample.failed (e);
+		}finally{
+			sample.stop ();
+		}
+	}//end executeUpdateAndReturnResult
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
@@ -80,37 +250,53 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		return executeQueryAndPrintResult (query, NO_PARAMS);
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
+	/**
+	 * Method to execute a parameterized query and output the results to
+	 * standard out.
+	 * 
+	 * @param query the SQL template using ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		Metrics.Sample sample = this._metrics.start ("executeQueryAndPrintResult");
+		try{
+			if (useCache (query)){
+				ResultCache.Entry cached = cachedResult (query, params);
+				return sample.rows (printRows (cached.getColumns (), cached.getRows ()));
 			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+			//iterates through the result set and output them to standard out.
+			final ResultRenderer out = ResultRenderer.get ();
+			int rowCount;
+			try{
+				streamQuery (query, DEFAULT_FETCH_SIZE, new RowHandler() {
+					boolean outputHeader = true;
+
+					public void handle (ResultRow row) throws SQLException {
+						if(outputHeader){
+							String[] names = new String[row.getColumnCount ()];
+							for(int i = 1; i <= names.length; i++)
+								names[i - 1] = row.getColumnName (i);
+							out.begin (names);
+							outputHeader = false;
+						}
+						out.add (row);
+					}
+				}, params);
+			}finally{
+				//prints what was buffered even when the query failed part way
+				rowCount = sample.rows (out.end ());
+			}
+			return rowCount;
+		}catch (SQLException e){
+			throw sample.failed (e);
+		}finally{
+			sample.stop ();
+		}
 	}
 	
 	/**
@@ -123,11 +309,42 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
+		return executeQueryAndReturnResult (query, NO_PARAMS);
+	}
+
+	/**
+	 * Method to execute a parameterized query and return the results as
+	 * a list of records. Each record in turn is a list of attribute values
+	 * 
+	 * @param query the SQL template using ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+		Metrics.Sample sample = this._metrics.start ("executeQueryAndReturnResult");
+		try{
+			List<List<String>> result;
+			if (useCache (query)){
+				result = cachedResult (query, params).getRows ();
+			}else{
+				ConnectionPool.PooledConnection pc = acquire ();
+				try{
+					result = returnResult (prepare (pc, query, params).executeQuery ());
+				}finally{
+					release (pc);
+				}
+			}
+			sample.rows (result.size ());
+			return result;
+		}catch (SQLException e){
+			throw sample.failed (e);
+		}finally{
+			sample.stop ();
+		}
+	}
+
+	private List<List<String>> returnResult (ResultSet rs) throws SQLException { 
 	 
 		/*
 		 * obtains the metadata object for the returned result set.  The metadata 
@@ -135,10 +352,8 @@ public class MechanicShop{
 		*/ 
 		ResultSetMetaData rsmd = rs.getMetaData (); 
 		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
 	 
 		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
 		List<List<String>> result  = new ArrayList<List<String>>(); 
 		while (rs.next()){
 			List<String> record = new ArrayList<String>(); 
@@ -146,10 +361,123 @@ public class MechanicShop{
 				record.add(rs.getString (i)); 
 			result.add(record); 
 		}//end while 
-		stmt.close (); 
+		rs.close (); 
 		return result; 
 	}//end executeQueryAndReturnResult
 	
+	//a transaction may read its own uncommitted writes, which must not be cached
+	private boolean useCache (String query) {
+		return _bound.get () == null && this._results.isCacheable (query);
+	}
+
+	/**
+	 * Method to return the result of a registered query from the result
+	 * cache, running and caching it on a miss.
+	 */
+	private ResultCache.Entry cachedResult (String query, Object... params) throws SQLException {
+		ResultCache.Entry cached = this._results.get (query, params);
+		if (cached != null)
+			return cached;
+		long stamp = this._results.stamp (query);
+		final List<String[]> columns = new ArrayList<String[]>(1);
+		final List<List<String>> rows = new ArrayList<List<String>>();
+		streamQuery (query, DEFAULT_FETCH_SIZE, new RowHandler() {
+			public void handle (ResultRow row) throws SQLException {
+				int numCol = row.getColumnCount ();
+				if (columns.isEmpty ()){
+					String[] names = new String[numCol];
+					for (int i = 1; i <= numCol; ++i)
+						names[i - 1] = row.getColumnName (i);
+					columns.add (names);
+				}
+				List<String> record = new ArrayList<String>(numCol);
+				for (int i = 1; i <= numCol; ++i)
+					record.add (row.getString (i));
+				rows.add (record);
+			}
+		}, params);
+		//column names are only printed with rows, an empty result needs none
+		return this._results.put (query, params, stamp, columns.isEmpty () ? new String[0] : columns.get (0), rows);
+	}
+
+	/**
+	 * Method to execute a parameterized query and return the results in
+	 * columnar form.  Integer columns are kept in primitive arrays and the
+	 * rows are fetched in batches, so no per-row objects are built.
+	 * 
+	 * @param query the SQL template using ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result column by column
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public ColumnarResult executeQueryAndReturnColumns (String query, Object... params) throws SQLException {
+		final ColumnarResult[] result = new ColumnarResult[1];
+		streamQuery (query, DEFAULT_FETCH_SIZE, new RowHandler() {
+			public void handle (ResultRow row) throws SQLException {
+				if (result[0] == null)
+					result[0] = new ColumnarResult (row.getMetaData ());
+				result[0].add (row);
+			}
+		}, params);
+		return result[0] != null ? result[0] : emptyColumns (query, params);
+	}
+
+	//runs the query once more for its metadata only, when it had no rows
+	private ColumnarResult emptyColumns (final String query, final Object[] params) throws SQLException {
+		return withConnection (new SQLWork<ColumnarResult>() {
+			public ColumnarResult run (Connection c) throws SQLException {
+				return new ColumnarResult (prepare (_bound.get (), query, params).getMetaData ());
+			}
+		});
+	}
+
+	/**
+	 * Method to stream the rows of a query to a callback.  The rows are read
+	 * through a server-side cursor <fetch size> rows per round trip, so the
+	 * memory used does not depend on the size of the result.
+	 * 
+	 * @param query the SQL template using ? placeholders
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param handler called once for every row, in order
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows streamed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int streamQuery (final String query, final int fetchSize, final RowHandler handler, final Object... params) throws SQLException {
+		return withConnection (new SQLWork<Integer>() {
+			public Integer run (Connection c) throws SQLException {
+				//the driver only uses a server-side cursor outside autocommit
+				boolean autoCommit = c.getAutoCommit ();
+				if (autoCommit)
+					c.setAutoCommit (false);
+				boolean ok = false;
+				PreparedStatement stmt = prepare (_bound.get (), query, params);
+				try{
+					stmt.setFetchSize (fetchSize);
+					ResultSet rs = stmt.executeQuery ();
+					ResultRow row = new ResultRow (rs);
+					int rowCount = 0;
+					while (row.next ()){
+						handler.handle (row);
+						++rowCount;
+					}//end while
+					rs.close ();
+					ok = true;
+					return rowCount;
+				}finally{
+					stmt.setFetchSize (0);
+					if (autoCommit){
+						if (ok)
+							c.commit ();
+						else
+							c.rollback ();
+						c.setAutoCommit (true);
+					}
+				}
+			}
+		});
+	}//end streamQuery
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the number of results
@@ -159,22 +487,249 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		return executeQuery (query, NO_PARAMS);
+	}
+
+	/**
+	 * Method to execute a parameterized query and return whether it found
+	 * any row (1) or not (0).
+	 * 
+	 * @param query the SQL template using ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... params) throws SQLException {
+		Metrics.Sample sample = this._metrics.start ("executeQuery");
+		try{
+			ConnectionPool.PooledConnection pc = acquire ();
+			try{
+				//issues the query instruction
+				ResultSet rs = prepare (pc, query, params).executeQuery ();
+
+				int rowCount = 0;
+
+				//iterates through the result set and count nuber of results.
+				if(rs.next()){
+					rowCount++;
+				}//end while
+				rs.close ();
+				return sample.rows (rowCount);
+			}finally{
+				release (pc);
+			}
+		}catch (SQLException e){
+			throw sample.failed (e);
+		}finally{
+			sample.stop ();
+		}
+	}
+
+	/**
+	 * Method to run a unit of work on one connection.  Every execute call
+	 * the work makes on this thread goes to that same connection, so
+	 * session state such as currval() is kept between them.
+	 * 
+	 * @param work the code to run
+	 * @return whatever the work returns
+	 * @throws java.sql.SQLException when the work fails
+	 */
+	public <T> T withConnection (SQLWork<T> work) throws SQLException {
+		ConnectionPool.PooledConnection pc = _bound.get ();
+		if (pc != null)
+			return work.run (pc.getConnection ());
+		pc = this._pool.checkout ();
+		_bound.set (pc);
+		try{
+			return work.run (pc.getConnection ());
+		}finally{
+			_bound.remove ();
+			this._pool.release (pc);
+		}
+	}//end withConnection
+
+	/**
+	 * Method to run a unit of work as one transaction.  It commits when the
+	 * work returns and rolls back when it throws.  Nested calls join the
+	 * transaction already open on this thread.
+	 * 
+	 * @param work the code to run
+	 * @return whatever the work returns
+	 * @throws java.sql.SQLException when the work or the commit fails
+	 */
+	public <T> T inTransaction (final SQLWork<T> work) throws SQLException {
+		return withConnection (new SQLWork<T>() {
+			public T run (Connection c) throws SQLException {
+				if (!c.getAutoCommit ())
+					return work.run (c);
+				c.setAutoCommit (false);
+				try{
+					T result = work.run (c);
+					c.commit ();
+					wrote ();
+					return result;
+				}catch(SQLException e){
+					c.rollback ();
+					throw e;
+				}catch(RuntimeException e){
+					c.rollback ();
+					throw e;
+				}finally{
+					c.setAutoCommit (true);
+				}
+			}
+		});
+	}//end inTransaction
+
+	/**
+	 * Method to run a unit of work that only reads, on a replica when one is
+	 * fresh enough (see ReplicaRouter), otherwise on the primary like
+	 * withConnection.  The work's execute calls go to the replica and skip
+	 * the result cache, whose entries follow the primary.  A replica that
+	 * cannot hand out a connection is taken out of use and the work runs on
+	 * the primary; one that fails during the work is taken out of use and
+	 * the error is thrown, as rows may already have been handed on.
+	 * 
+	 * @param wroteMillis when the session the work is for last wrote, see
+	 *        lastWrite
+	 * @param work the code to run
+	 * @return whatever the work returns
+	 * @throws java.sql.SQLException when the work fails
+	 */
+	public <T> T onReplica (long wroteMillis, SQLWork<T> work) throws SQLException {
+		//already on a connection, e.g. inside a transaction that wrote
+		if (this._replicas == null || _bound.get () != null)
+			return withConnection (work);
+		ReplicaRouter.Replica replica = this._replicas.pick (wroteMillis);
+		if (replica == null)
+			return withConnection (work);
+		ConnectionPool.PooledConnection pc;
+		try{
+			pc = replica.pool.checkout ();
+		}catch (SQLException e){
+			this._replicas.failed (replica, e);
+			this._replicas.fellBack (ReplicaRouter.FAILED);
+			return withConnection (work);
+		}
+		_bound.set (pc);
+		try{
+			return work.run (pc.getConnection ());
+		}catch (SQLException e){
+			//a broken connection, not an error of the query
+			if (e.getSQLState () != null && e.getSQLState ().startsWith ("08"))
+				this._replicas.failed (replica, e);
+			throw e;
+		}finally{
+			_bound.remove ();
+			replica.pool.release (pc);
+		}
+	}//end onReplica
+
+	/**
+	 * Method to return when the current thread last wrote, 0 when it has
+	 * not: a report run for it elsewhere passes this to onReplica.
+	 */
+	public long lastWrite () {
+		Long millis = _lastWrite.get ();
+		return millis == null ? 0 : millis;
+	}
+
+	private void wrote () {
+		//inside a transaction the commit counts, inTransaction calls this again
+		_lastWrite.set (System.currentTimeMillis ());
+	}
+
+	/**
+	 * Method to describe the connection pool, one metric per line.
+	 */
+	public String getPoolStats () {
+		return this._pool.getStats ();
+	}
+
+	/**
+	 * Method to drop the cached results that read a table, after writing
+	 * it other than through executeUpdate.
+	 */
+	public void invalidateCached (String table) {
+		this._results.invalidate (table);
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to describe the report result cache, one metric per line.
+	 */
+	public String getCacheStats () {
+		return this._results.getStats ();
+	}
 
-		int rowCount = 0;
+	//the connection bound to this thread, or a fresh one from the pool
+	private ConnectionPool.PooledConnection acquire () throws SQLException {
+		ConnectionPool.PooledConnection pc = _bound.get ();
+		return pc != null ? pc : this._pool.checkout ();
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	private void release (ConnectionPool.PooledConnection pc) {
+		if (pc != _bound.get ())
+			this._pool.release (pc);
+	}
+
+	/**
+	 * Method to fetch a bound statement for a template from the statement
+	 * cache of a connection.  A statement that fails is dropped from the
+	 * cache so the next call starts from a fresh one.
+	 */
+	private PreparedStatement prepare (ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+		int timeout = queryTimeout ();
+		try{
+			PreparedStatement stmt = pc.getStatements ().prepare (sql, params);
+			stmt.setQueryTimeout (timeout);
+			StatementListener watcher = _watcher.get ();
+			if (watcher != null)
+				watcher.started (stmt);
+			return stmt;
+		}catch(SQLException e){
+			pc.getStatements ().invalidate (sql);
+			throw e;
+		}
 	}
 	
+	/**
+	 * Method to bound the statements the current thread runs from now on:
+	 * each is cancelled by the DBMS once the deadline has passed, and none
+	 * is started after it.
+	 * 
+	 * @param timeoutMillis the time the thread's work may take from now
+	 */
+	public void setDeadline (long timeoutMillis) {
+		_deadline.set (System.nanoTime () + timeoutMillis * 1000000L);
+	}
+
+	public void clearDeadline () {
+		_deadline.remove ();
+	}
+
+	/**
+	 * Method to hand every statement the current thread runs from now on to
+	 * a listener before it is executed.
+	 */
+	public void watchStatements (StatementListener listener) {
+		_watcher.set (listener);
+	}
+
+	public void unwatchStatements () {
+		_watcher.remove ();
+	}
+
+	//seconds left to the thread's deadline, rounded up; 0 when it has none
+	private int queryTimeout () throws SQLException {
+		Long deadline = _deadline.get ();
+		if (deadline == null)
+			return 0;
+		long left = deadline - System.nanoTime ();
+		if (left <= 0)
+			throw new SQLException ("The request took longer than its timeout", "57014");
+		return (int) Math.min (Integer.MAX_VALUE, (left + 999999999L) / 1000000000L);
+	}
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
@@ -186,24 +741,190 @@ public class MechanicShop{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		Metrics.Sample sample = this._metrics.start ("getCurrSeqVal");
+		try{
+			List<List<String>> rs = executeQueryAndReturnResult ("Select currval(?::regclass)", sequence);
+			sample.rows (rs.size ());
+			if (!rs.isEmpty()) return Integer.parseInt(rs.get(0).get(0));
+			return -1;
+		}catch (SQLException e){
+			throw sample.failed (e);
+		}finally{
+			sample.stop ();
+		}
+	}
+
+	/**
+	 * Method to fetch a new primary key for a table.  Keys come from a block
+	 * reserved in one round trip on the table's sequence, so this does not
+	 * read the table and never hands out a key twice.
+	 * 
+	 * @param table name of the table the key is for
+	 * @return a new unused key
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public int getNextId(String table) throws SQLException {
+		return this._keys.nextId(table);
+	}
+
+	/**
+	 * Method to forget the reserved key blocks after the tables were
+	 * reloaded, so the next key is taken past the new MAX(id).
+	 */
+	public void resetKeys() {
+		this._keys.reset();
+	}
+
+	/**
+	 * Method to put a spare block of keys aside for every table, so keys
+	 * can be drawn for a while without the database.
+	 * 
+	 * @throws java.sql.SQLException when a block cannot be reserved
+	 */
+	public void reserveSpareIds() throws SQLException {
+		this._keys.reserveSpares();
+	}
+
+	/**
+	 * Method to return the latency and error counts of the operations.
+	 */
+	public Metrics getMetrics() {
+		return this._metrics;
+	}
+
+	/**
+	 * Method to return the log of slow statements.
+	 */
+	public SlowQueryLog getSlowQueryLog() {
+		return this._slowLog;
+	}
+
+	/**
+	 * Method to return the in-memory open service request counts.
+	 */
+	public OpenServiceIndex getOpenServices() {
+		return this._openServices;
+	}
+
+	/**
+	 * Method to return the in-memory analytics engine.
+	 */
+	public AnalyticsEngine getAnalytics() {
+		return this._analytics;
+	}
+
+	/**
+	 * Method to return the reports running in the background.
+	 */
+	public ReportJobs getJobs() {
+		return this._jobs;
+	}
+
+	/**
+	 * Method to return the in-memory customer directory.
+	 */
+	public CustomerDirectory getDirectory() {
+		return this._directory;
+	}
+
+	/**
+	 * Method to return the intake journal, null when the intake writes go
+	 * straight to the database.
+	 */
+	public IntakeJournal getJournal() {
+		return this._journal;
+	}
+
+	/**
+	 * Method to write the intake operations behind the database through a
+	 * journal from now on, see IntakeJournal.  The records a previous run
+	 * left in it are applied first.
+	 * 
+	 * @param file the journal, created when missing
+	 * @throws java.io.IOException when the journal cannot be opened
+	 */
+	public void openJournal (File file) throws IOException {
+		this._journal = new IntakeJournal (this, file);
+		this._journal.start ();
+	}
+
+	/**
+	 * Method to return the shards, null when the shop has one database.
+	 */
+	public ShardRouter getShards() {
+		return this._shards;
+	}
+
+	/**
+	 * Method to spread the shop over this database and the ones in
+	 * -Dmechanicshop.shards, see ShardRouter.
+	 * 
+	 * @throws java.lang.Exception when a shard cannot be migrated
+	 */
+	public void openShards (String dbname, String dbport, String user) throws Exception {
+		this._shards = new ShardRouter (this, dbname, dbport, user, ShardRouter.SHARDS);
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to return the read replicas, null when every read goes to the
+	 * primary.
+	 */
+	public ReplicaRouter getReplicas() {
+		return this._replicas;
+	}
+
+	/**
+	 * Method to send the reports to the replicas in
+	 * -Dmechanicshop.replicas, see ReplicaRouter.
+	 */
+	public void openReplicas (String dbname) {
+		this._replicas = new ReplicaRouter (dbname, this._props, ReplicaRouter.REPLICAS);
+	}
+
+	/**
+	 * Method to apply the pending schema migrations from the migrations
+	 * directory (-Dmechanicshop.migrations, default ../sql/migrations).
+	 * 
+	 * @throws java.lang.Exception when a migration fails
+	 */
+	public void migrate () throws Exception {
+		File dir = new File (System.getProperty ("mechanicshop.migrations", "../sql/migrations"));
+		if (!dir.isDirectory ()){
+			System.err.println ("Warning - no migrations directory at " + dir.getPath () + ", schema not checked");
+			return;
+		}
+		new SchemaMigrator (this, dir).migrate ();
+		//the request tables always have the next months to write into
+		new RequestPartitions (this).ensure ();
+	}
+
+	/**
+	 * Method to close the physical connections if they are open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		//the writer gets to apply what it can while the pool is still open
+		if (this._journal != null){
+			this._journal.close ();
+		}//end if
+		if (this._shards != null){
+			this._shards.close ();
+		}//end if
+		this._metrics.close ();
+		if (this._jobs != null){
+			this._jobs.close ();
+		}//end if
+		if (this._replicas != null){
+			this._replicas.close ();
+		}//end if
+		if (this._slowLog != null){
+			this._slowLog.close ();
+		}//end if
+		if (this._results != null){
+			this._results.close ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -212,10 +933,8 @@ public class MechanicShop{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
-			System.err.println (
-				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		if (args.length < 3) {
+			usage ();
 			return;
 		}//end if
 		
@@ -239,7 +958,200 @@ public class MechanicShop{
 			String user = args[2];
 			
 			esql = new MechanicShop (dbname, dbport, user, "");
-			
+
+			//a load may recreate the schema, it migrates once the data is in
+			if (args.length == 3 || !(args[3].equals("load") || args[3].equals("generate"))){
+				esql.migrate ();
+				//loads go to this database, the first shard; 'shards rebalance' spreads them
+				if (ShardRouter.SHARDS != null)
+					esql.openShards (dbname, dbport, user);
+				//sharded, the reports go to the shards instead
+				else if (ReplicaRouter.REPLICAS != null)
+					esql.openReplicas (dbname);
+			}
+
+			//report 9 is answered from memory, load it before the first session; sharded, the shards answer
+			if (ShardRouter.SHARDS == null && (args.length == 3 || args[3].equals("desk") || args[3].equals("serve"))){
+				esql.getOpenServices ().reconcile ();
+				//so is the intake lookup
+				if (CustomerDirectory.ENABLED)
+					esql.getDirectory ().warm ();
+				//and, when turned on, reports 6 to 10
+				if (AnalyticsEngine.ENABLED)
+					esql.getAnalytics ().warm ();
+				//intake writes behind the database when asked to, once the directory holds what is applied
+				if (IntakeJournal.FILE != null)
+					esql.openJournal (new File (IntakeJournal.FILE));
+			}
+
+			if (args.length > 3){
+				runMode (esql, args);
+			}else{
+				runMenu (esql);
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+		}finally{
+			try{
+				if(esql != null) {
+					System.out.print("Disconnecting from database...");
+					esql.cleanup ();
+					System.out.println("Done\n\nBye !");
+				}//end if				
+			}catch(Exception e){
+				// ignored.
+			}
+		}
+	}
+
+	private static void usage () {
+		System.err.println (
+			"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
+	            " <dbname> <port> <user> [<mode> ...]\n" +
+			"Modes:\n" +
+			"  desk <listen port>                          serve the menu to several terminals, on -Dmechanicshop.desk.bind (loopback)\n" +
+			"  serve <listen port>                         serve the ten operations as a JSON HTTP API on -Dmechanicshop.api.bind (loopback), see ApiServer\n" +
+			"  load [<data dir>] [--truncate] [--schema <file>] [--scale <n>]\n" +
+			"                                              bulk load the CSV seed files (default ../data)\n" +
+			"  generate <scale> [--seed <n>] [--threads <n>] [--from <data dir>] [--out <dir>] [--truncate] [--schema <file>]\n" +
+			"                                              load, or write as .csv.gz, <scale> times the seed data, see DataGenerator\n" +
+			"  migrate                                     apply pending schema migrations\n" +
+			"  partitions list|ensure|archive [--retention-months <n>] [--export <dir>]\n" +
+			"                                              show, create or archive the monthly request partitions\n" +
+			"  shards status|sync|rebalance                show the shards, copy Mechanic and Car to them or move customers to their shard\n" +
+			"  replicas status                             show the lag of the read replicas in -Dmechanicshop.replicas\n" +
+			"  advise                                      EXPLAIN the ten operations and suggest indexes\n" +
+			"  billing rebuild|verify                      recompute or check the per-customer bill totals\n" +
+			"  batch <command file> [--tx-size <n>]        run AddCustomer/AddCar/... commands from JSON lines or CSV\n" +
+			"  bench-open [<iterations>]                   time report 9 by scan, counter table and in memory\n" +
+			"  bench-analytics [<iterations>] [--scales 1,10,..] [--seed <n>]\n" +
+			"                                              check and time reports 6 to 10 in SQL and in memory, see AnalyticsBenchmark\n" +
+			"  bench [--ops 1,2,..] [--iterations <n>] [--warmup <n>] [--threads <n>] [--seed <n>]\n" +
+			"                                              time the ten operations, see bench.sh");
+	}
+
+	/**
+	 * Runs one of the non-interactive modes given after <user>.
+	 * 
+	 * @param esql the shared database front end
+	 * @param args the full command line
+	 */
+	private static void runMode (MechanicShop esql, String[] args) throws Exception {
+		String mode = args[3];
+		if (mode.equals("desk") && args.length == 5){
+			//several clerks share this process, one session per connection
+			new DeskServer (esql, Integer.parseInt (args[4])).serve ();
+		}else if (mode.equals("serve") && args.length == 5){
+			//shop system, tablets and partners over HTTP, sharing the pool
+			new ApiServer (esql, Integer.parseInt (args[4])).serve ();
+		}else if (mode.equals("load")){
+			File dataDir = new File ("../data");
+			boolean truncate = false;
+			File schema = null;
+			int scale = 1;
+			for (int i = 4; i < args.length; ++i){
+				if (args[i].equals("--truncate")) truncate = true;
+				else if (args[i].equals("--schema") && i + 1 < args.length) schema = new File (args[++i]);
+				else if (args[i].equals("--scale") && i + 1 < args.length) scale = Integer.parseInt (args[++i]);
+				else dataDir = new File (args[i]);
+			}
+			new BulkLoader (esql, dataDir).setTruncate (truncate).setSchemaFile (schema).setScale (scale).load ();
+			esql.migrate ();
+		}else if (mode.equals("generate") && args.length >= 5){
+			DataGenerator gen = new DataGenerator (esql, Integer.parseInt (args[4]));
+			for (int i = 5; i < args.length; ++i){
+				if (args[i].equals("--truncate")) gen.setTruncate (true);
+				else if (args[i].equals("--schema") && i + 1 < args.length) gen.setSchemaFile (new File (args[++i]));
+				else if (args[i].equals("--seed") && i + 1 < args.length) gen.setSeed (Long.parseLong (args[++i]));
+				else if (args[i].equals("--threads") && i + 1 < args.length) gen.setThreads (Integer.parseInt (args[++i]));
+				else if (args[i].equals("--from") && i + 1 < args.length) gen.setFrom (new File (args[++i]));
+				else if (args[i].equals("--out") && i + 1 < args.length) gen.setOut (new File (args[++i]));
+				else { usage (); return; }
+			}
+			gen.generate ();
+			esql.migrate ();
+		}else if (mode.equals("migrate")){
+			//pending migrations were applied on startup
+			System.out.println ("Schema is up to date");
+		}else if (mode.equals("partitions") && args.length >= 5){
+			RequestPartitions partitions = new RequestPartitions (esql);
+			if (args[4].equals("list") && args.length == 5){
+				partitions.list ();
+			}else if (args[4].equals("ensure") && args.length == 5){
+				System.out.println ("Created " + partitions.ensure () + " month(s)");
+			}else if (args[4].equals("archive")){
+				int retention = RequestPartitions.RETENTION_MONTHS;
+				File export = null;
+				for (int i = 5; i + 1 < args.length; i += 2){
+					if (args[i].equals("--retention-months")) retention = Integer.parseInt (args[i + 1]);
+					else if (args[i].equals("--export")) export = new File (args[i + 1]);
+					else { usage (); return; }
+				}
+				partitions.archive (retention, export);
+			}else{
+				usage ();
+			}
+		}else if (mode.equals("shards") && args.length == 5 && esql.getShards () != null){
+			if (args[4].equals("status")) esql.getShards ().status ();
+			else if (args[4].equals("sync")) esql.getShards ().sync ();
+			else if (args[4].equals("rebalance")) esql.getShards ().rebalance ();
+			else usage ();
+		}else if (mode.equals("replicas") && args.length == 5 && args[4].equals("status") && esql.getReplicas () != null){
+			esql.getReplicas ().status ();
+		}else if (mode.equals("advise")){
+			new IndexAdvisor (esql).advise ();
+		}else if (mode.equals("billing") && args.length == 5 && args[4].equals("rebuild")){
+			int customers = new CustomerBilling (esql).rebuild ();
+			System.out.println ("Rebuilt billing totals of " + customers + " customer(s)");
+		}else if (mode.equals("billing") && args.length == 5 && args[4].equals("verify")){
+			List<String> problems = new CustomerBilling (esql).verify ();
+			for (String p : problems)
+				System.out.println (p);
+			System.out.println (problems.isEmpty () ? "Billing totals are in sync" :
+				problems.size () + " customer(s) out of sync, run 'billing rebuild'");
+		}else if (mode.equals("batch") && args.length >= 5){
+			BatchRunner batch = new BatchRunner (esql, new File (args[4]));
+			if (args.length == 7 && args[5].equals("--tx-size"))
+				batch.setTransactionSize (Integer.parseInt (args[6]));
+			else if (args.length != 5){
+				usage ();
+				return;
+			}
+			batch.run ();
+		}else if (mode.equals("bench")){
+			Benchmark bench = new Benchmark (esql);
+			for (int i = 4; i + 1 < args.length; i += 2){
+				if (args[i].equals("--ops")) bench.setOperations (args[i + 1]);
+				else if (args[i].equals("--iterations")) bench.setIterations (Integer.parseInt (args[i + 1]));
+				else if (args[i].equals("--warmup")) bench.setWarmup (Integer.parseInt (args[i + 1]));
+				else if (args[i].equals("--threads")) bench.setThreads (Integer.parseInt (args[i + 1]));
+				else if (args[i].equals("--seed")) bench.setSeed (Long.parseLong (args[i + 1]));
+				else { usage (); return; }
+			}
+			bench.run ();
+		}else if (mode.equals("bench-open")){
+			new OpenServiceBenchmark (esql, args.length > 4 ? Integer.parseInt (args[4]) : 100).run ();
+		}else if (mode.equals("bench-analytics")){
+			AnalyticsBenchmark bench = new AnalyticsBenchmark (esql);
+			for (int i = 4; i < args.length; ++i){
+				if (args[i].equals("--scales") && i + 1 < args.length) bench.setScales (args[++i]);
+				else if (args[i].equals("--seed") && i + 1 < args.length) bench.setSeed (Long.parseLong (args[++i]));
+				else if (args[i].matches ("\\d+")) bench.setIterations (Integer.parseInt (args[i]));
+				else { usage (); return; }
+			}
+			bench.run ();
+		}else{
+			usage ();
+		}
+	}//end runMode
+
+	/**
+	 * Runs the main menu of one session until the user picks EXIT.
+	 * 
+	 * @param esql the shared database front end
+	 */
+	public static void runMenu (MechanicShop esql) {
+		try{
 			boolean keepon = true;
 			while(keepon){
 				System.out.println("MAIN MENU");
@@ -254,38 +1166,70 @@ public class MechanicShop{
 				System.out.println("8. ListCarsBefore1995With50000Milles");
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
-				System.out.println("11. < EXIT");
+				System.out.println("11. Statistics");
+				System.out.println("12. Jobs");
+				System.out.println("13. < EXIT");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
-					case 1: AddCustomer(esql); break;
-					case 2: AddMechanic(esql); break;
-					case 3: AddCar(esql); break;
-					case 4: InsertServiceRequest(esql); break;
-					case 5: CloseServiceRequest(esql); break;
-					case 6: ListCustomersWithBillLessThan100(esql); break;
-					case 7: ListCustomersWithMoreThan20Cars(esql); break;
-					case 8: ListCarsBefore1995With50000Milles(esql); break;
-					case 9: ListKCarsWithTheMostServices(esql); break;
-					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
-					case 11: keepon = false; break;
+				int choice = readChoice();
+				switch (choice){
+					case 11: Statistics(esql); break;
+					case 12: Jobs(esql); break;
+					case EXIT: keepon = false; break;
+					default:
+						if (choice >= 1 && choice <= OPERATIONS.length)
+							runOperation(esql, choice);
 				}
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
-		}finally{
-			try{
-				if(esql != null) {
-					System.out.print("Disconnecting from database...");
-					esql.cleanup ();
-					System.out.println("Done\n\nBye !");
-				}//end if				
-			}catch(Exception e){
-				// ignored.
+		}
+	}//end runMenu
+
+	//names of menu operations 1 to 10, as the metrics show them
+	static final String[] OPERATIONS = {"AddCustomer", "AddMechanic", "AddCar", "InsertServiceRequest",
+		"CloseServiceRequest", "ListCustomersWithBillLessThan100", "ListCustomersWithMoreThan20Cars",
+		"ListCarsBefore1995With50000Milles", "ListKCarsWithTheMostServices", "ListCustomersInDescendingOrderOfTheirTotalBill"};
+
+	/**
+	 * Method to run one of the menu operations, timed and counted under its
+	 * name in the metrics.
+	 * 
+	 * @param choice the menu number of the operation, 1 to 10
+	 * @throws java.lang.Exception when the operation failed past its own
+	 *         error handling
+	 */
+	public static void runOperation (MechanicShop esql, int choice) throws Exception {
+		Metrics.Sample sample = esql._metrics.startOperation (OPERATIONS[choice - 1]);
+		try{
+			switch (choice){
+				case 1: AddCustomer(esql); break;
+				case 2: AddMechanic(esql); break;
+				case 3: AddCar(esql); break;
+				case 4: InsertServiceRequest(esql); break;
+				case 5: CloseServiceRequest(esql); break;
+				case 6: ListCustomersWithBillLessThan100(esql); break;
+				case 7: ListCustomersWithMoreThan20Cars(esql); break;
+				case 8: ListCarsBefore1995With50000Milles(esql); break;
+				case 9: ListKCarsWithTheMostServices(esql); break;
+				case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
 			}
+		}catch(Exception e){
+			throw sample.failed (e);
+		}finally{
+			sample.stop ();
 		}
+	}//end runOperation
+
+	/**
+	 * Method to print the error that ended a menu operation and count it
+	 * against the operation.
+	 */
+	static void reportError (MechanicShop esql, Exception e) {
+		esql._metrics.failed (e);
+		System.err.println (e.getMessage ());
 	}
 
 	public static int readChoice() {
@@ -294,7 +1238,9 @@ public class MechanicShop{
 		do {
 			System.out.print("Please make your choice: ");
 			try { // read the integer, parse it and break.
-				input = Integer.parseInt(in.readLine());
+				String line = in.readLine();
+				if (line == null) return EXIT; // end of input, e.g. a closed desk session
+				input = Integer.parseInt(line);
 				break;
 			}catch (Exception e) {
 				System.out.println("Your input is invalid!");
@@ -304,11 +1250,353 @@ public class MechanicShop{
 		return input;
 	}//end readChoice
 	
+	/*
+	 * SQL of the menu operations, shared with the advise mode
+	 */
+	static final String SQL_ADD_CUSTOMER = "INSERT INTO Customer(id, fname, lname, phone, address) VALUES(?, ?, ?, ?, ?)";
+	static final String SQL_ADD_MECHANIC = "INSERT INTO mechanic(id, fname, lname, experience) VALUES(?, ?, ?, ?)";
+	static final String SQL_ADD_CAR = "INSERT INTO Car(vin, make, model, year) VALUES(?, ?, ?, ?)";
+	//the start of a last name in any case and the start of a phone number's digits, as CustomerDirectory matches them; see findPattern
+	static final String SQL_FIND_CUSTOMER = "SELECT * FROM Customer WHERE lower(rtrim(lname)) LIKE ? ORDER BY lower(rtrim(lname)), id LIMIT ?";
+	static final String SQL_FIND_CUSTOMER_BY_PHONE = "SELECT * FROM Customer WHERE regexp_replace(phone, '[^0-9]', '', 'g') LIKE ? ORDER BY regexp_replace(phone, '[^0-9]', '', 'g'), id LIMIT ?";
+	//most customers listed by an intake lookup
+	static final int FIND_LIMIT = 50;
+	static final String SQL_LIST_CUSTOMER_CARS = "SELECT Row_Number() OVER ( ORDER BY Owns.car_vin ) AS row_number, Car.vin, Car.make, Car.model, Car.year FROM Owns,Car WHERE Car.vin = Owns.car_vin AND Owns.customer_id = ?";
+	static final String SQL_ADD_OWNS = "INSERT INTO Owns(ownership_id, customer_id, car_vin) VALUES(?, ?, ?)";
+	static final String SQL_ADD_SERVICE_REQUEST = "INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) VALUES(?, ?, ?, CURRENT_DATE, ?, ?)";
+	//opens a request on an owned car and returns its rid with the car's make and model and the request date
+	static final String SQL_OPEN_SERVICE_REQUEST = "WITH new_request AS (INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) VALUES(?, ?, ?, CURRENT_DATE, ?, ?) RETURNING rid, car_vin, date) SELECT new_request.rid, Car.make, Car.model, new_request.date FROM new_request, Car WHERE Car.vin = new_request.car_vin";
+	//adds a car, its owner and a request on it as one statement; nothing is kept if a part fails
+	static final String SQL_OPEN_SERVICE_REQUEST_NEW_CAR = "WITH new_car AS (INSERT INTO Car(vin, make, model, year) VALUES(?, ?, ?, ?) RETURNING vin), new_owns AS (INSERT INTO Owns(ownership_id, customer_id, car_vin) SELECT ?, ?, new_car.vin FROM new_car RETURNING car_vin), new_request AS (INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) SELECT ?, ?, new_owns.car_vin, CURRENT_DATE, ?, ? FROM new_owns RETURNING rid, date) SELECT rid, date FROM new_request";
+	//closes a request if the mechanic and request exist, the request is not dated in the future and not closed yet;
+	//returns one row of reason code and car VIN, the unique index on Closed_Request (rid, request_date) settles concurrent closes
+	static final String SQL_CLOSE_SERVICE_REQUEST = "WITH request AS (SELECT rid, car_vin, date FROM Service_Request WHERE rid = ?), mechanic AS (SELECT id FROM Mechanic WHERE id = ?), closed AS (INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill, request_date) SELECT ?, request.rid, mechanic.id, CURRENT_DATE, ?, ?, request.date FROM request, mechanic WHERE request.date <= CURRENT_DATE ON CONFLICT (rid, request_date) DO NOTHING RETURNING rid) SELECT CASE WHEN NOT EXISTS (SELECT 1 FROM mechanic) THEN 'unknown_mechanic' WHEN request.rid IS NULL THEN 'unknown_request' WHEN request.date > CURRENT_DATE THEN 'future_request' WHEN closed.rid IS NULL THEN 'already_closed' ELSE 'closed' END AS reason, request.car_vin FROM (SELECT 1) AS one LEFT JOIN request ON true LEFT JOIN closed ON true";
+	//the request date is the partition key of both request tables (migration V7), the join runs month by month
+	static final String SQL_REPORT_BILL_LESS_THAN_100 = "SELECT Customer.fname, Customer.lname, Closed_Request.bill, Service_Request.date, Closed_Request.comment FROM Customer,Closed_Request,Service_Request WHERE Closed_Request.bill < 100 AND Closed_Request.rid = Service_Request.rid AND Closed_Request.request_date = Service_Request.date AND Service_Request.customer_id = Customer.id";
+	static final String SQL_REPORT_MORE_THAN_20_CARS = "SELECT allCars.fname, allCars.lname, allCars.numCars FROM (SELECT Owns.customer_id, Customer.fname, Customer.lname, COUNT(*) numCars FROM Owns,Customer WHERE Customer.id = Owns.customer_id GROUP BY Owns.customer_id, Customer.fname, Customer.lname) AS allCars WHERE numCars > 20";
+	static final String SQL_REPORT_CARS_BEFORE_1995 = "SELECT Car.make, Car.model, Car.year, Service_Request.odometer FROM Car,Service_Request WHERE Service_Request.car_vin = Car.vin AND Service_Request.odometer < 50000 AND Car.year < 1995";
+	//car_open_requests is kept current by triggers on the request tables (migration V3)
+	static final String SQL_REPORT_CARS_WITH_OPEN_SERVICES = "SELECT Car.make, Car.model, Car.vin, car_open_requests.open_count as cnt FROM car_open_requests, Car WHERE Car.vin = car_open_requests.car_vin AND car_open_requests.open_count = ? ORDER BY Car.vin LIMIT ?";
+	//customer_billing is kept current by a trigger on Closed_Request (migration V2)
+	static final String SQL_REPORT_TOTAL_BILL = "SELECT Customer.fname, Customer.lname, customer_billing.total_bill FROM customer_billing, Customer WHERE Customer.id = customer_billing.customer_id AND customer_billing.closed_count > 0 ORDER BY customer_billing.total_bill DESC";
+	//the reports one page at a time: the key columns come last and the rows after the given key are read, see ReportPager
+	static final String SQL_REPORT_BILL_LESS_THAN_100_PAGE = "SELECT Customer.fname, Customer.lname, Closed_Request.bill, Service_Request.date, Closed_Request.comment, Closed_Request.wid FROM Customer,Closed_Request,Service_Request WHERE Closed_Request.bill < 100 AND Closed_Request.rid = Service_Request.rid AND Closed_Request.request_date = Service_Request.date AND Service_Request.customer_id = Customer.id AND Closed_Request.wid > ? ORDER BY Closed_Request.wid LIMIT ?";
+	static final String SQL_REPORT_MORE_THAN_20_CARS_PAGE = "SELECT allCars.fname, allCars.lname, allCars.numCars, allCars.customer_id FROM (SELECT Owns.customer_id, Customer.fname, Customer.lname, COUNT(*) numCars FROM Owns,Customer WHERE Customer.id = Owns.customer_id AND Owns.customer_id > ? GROUP BY Owns.customer_id, Customer.fname, Customer.lname) AS allCars WHERE numCars > 20 ORDER BY allCars.customer_id LIMIT ?";
+	static final String SQL_REPORT_CARS_BEFORE_1995_PAGE = "SELECT Car.make, Car.model, Car.year, Service_Request.odometer, Service_Request.rid FROM Car,Service_Request WHERE Service_Request.car_vin = Car.vin AND Service_Request.odometer < 50000 AND Car.year < 1995 AND Service_Request.rid > ? ORDER BY Service_Request.rid LIMIT ?";
+	static final String SQL_REPORT_TOTAL_BILL_PAGE = "SELECT Customer.fname, Customer.lname, customer_billing.total_bill, customer_billing.total_bill, customer_billing.customer_id FROM customer_billing, Customer WHERE Customer.id = customer_billing.customer_id AND customer_billing.closed_count > 0 AND (customer_billing.total_bill, customer_billing.customer_id) < (?, ?) ORDER BY customer_billing.total_bill DESC, customer_billing.customer_id DESC LIMIT ?";
+
+	/*
+	 * The menu operations without the prompts, used by the menu below and by
+	 * the benchmark mode
+	 */
+
+	/**
+	 * Method to add a customer under a new id.
+	 *
+	 * @return the new customer's id
+	 * @throws java.sql.SQLException when the insert fails
+	 */
+	public int addCustomer (String fname, String lname, String phone, String address) throws SQLException {
+		int id = getNextId (KeyGenerator.CUSTOMER);
+		if (this._shards != null){
+			this._shards.addCustomer (id, fname, lname, phone, address);
+			return id;
+		}
+		if (this._journal != null){
+			this._journal.addCustomer (id, fname, lname, phone, address);
+			return id;
+		}
+		executeUpdate (SQL_ADD_CUSTOMER, id, fname, lname, phone, address);
+		this._directory.customerAdded (id, fname, lname, phone, address);
+		this._analytics.customerAdded (id, fname, lname);
+		return id;
+	}
+
+	/**
+	 * Method to add a mechanic under a new id.
+	 *
+	 * @return the new mechanic's id
+	 * @throws java.sql.SQLException when the insert fails
+	 */
+	public int addMechanic (String fname, String lname, int experience) throws SQLException {
+		int id = getNextId (KeyGenerator.MECHANIC);
+		if (this._shards != null){
+			this._shards.addMechanic (id, fname, lname, experience);
+			return id;
+		}
+		executeUpdate (SQL_ADD_MECHANIC, id, fname, lname, experience);
+		return id;
+	}
+
+	public void addCar (String vin, String make, String model, int year) throws SQLException {
+		if (this._shards != null){
+			this._shards.addCar (vin, make, model, year);
+			return;
+		}
+		if (this._journal != null){
+			this._journal.addCar (vin, make, model, year);
+			return;
+		}
+		executeUpdate (SQL_ADD_CAR, vin, make, model, year);
+		this._directory.carAdded (vin, make, model, year);
+		this._analytics.carAdded (vin, make, model, year);
+	}
+
+	/**
+	 * Method to record that a customer owns a car.
+	 *
+	 * @return the new ownership id
+	 * @throws java.sql.SQLException when the insert fails
+	 */
+	public int addOwnership (int customerId, String vin) throws SQLException {
+		int id = getNextId (KeyGenerator.OWNS);
+		if (this._shards != null){
+			this._shards.addOwnership (id, customerId, vin);
+			return id;
+		}
+		if (this._journal != null){
+			this._journal.addOwnership (id, customerId, vin);
+			return id;
+		}
+		executeUpdate (SQL_ADD_OWNS, id, customerId, vin);
+		this._directory.ownershipAdded (customerId, vin);
+		this._analytics.ownershipAdded (customerId, vin);
+		return id;
+	}
+
+	/**
+	 * Method to list the cars of a customer for the car picker.
+	 *
+	 * @return rows of row number (from 1), vin, make, model, year
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public List<List<String>> listCustomerCars (int customerId) throws SQLException {
+		if (this._shards != null)
+			return this._shards.listCustomerCars (customerId);
+		if (this._directory.isReady ())
+			return this._directory.cars (customerId);
+		return executeQueryAndReturnResult (SQL_LIST_CUSTOMER_CARS, customerId);
+	}
+
+	/**
+	 * Method to look customers up for intake.  Input of digits and phone
+	 * punctuation only is taken as the start of a phone number, anything
+	 * else as the start of a last name in any case.  The customer directory
+	 * answers when it is loaded, SQL with the same meaning otherwise.
+	 *
+	 * @return up to FIND_LIMIT rows of id, fname, lname, phone, address
+	 * @throws java.sql.SQLException when the directory is not loaded and the
+	 *         query fails
+	 */
+	public List<List<String>> findCustomers (String text) throws SQLException {
+		boolean phone = text.matches ("[0-9()\\-+. ]*[0-9][0-9()\\-+. ]*");
+		if (this._shards != null)
+			return this._shards.findCustomers (phone, findPattern (phone, text));
+		if (this._directory.isReady ())
+			return phone ? this._directory.byPhone (text, FIND_LIMIT) : this._directory.byLastName (text, FIND_LIMIT);
+		return executeQueryAndReturnResult (phone ? SQL_FIND_CUSTOMER_BY_PHONE : SQL_FIND_CUSTOMER, findPattern (phone, text), FIND_LIMIT);
+	}
+
+	/**
+	 * Method to turn lookup input into the LIKE pattern of SQL_FIND_CUSTOMER
+	 * or SQL_FIND_CUSTOMER_BY_PHONE: the digits of a phone number, or the
+	 * lower case last name with its wildcards escaped, then %.
+	 */
+	static String findPattern (boolean phone, String text) {
+		if (phone)
+			return CustomerDirectory.digits (text) + "%";
+		return text.trim ().toLowerCase (Locale.ROOT).replaceAll ("([\\\\%_])", "\\\\$1") + "%";
+	}
+
+	/**
+	 * Method to open a service request dated today on a car the customer
+	 * already owns, in one round trip.
+	 *
+	 * @return the new request id
+	 * @throws java.sql.SQLException when the insert fails
+	 */
+	public int insertServiceRequest (int customerId, String vin, int odometer, String complaint) throws SQLException {
+		int rid = getNextId (KeyGenerator.SERVICE_REQUEST);
+		if (this._shards != null){
+			this._shards.insertServiceRequest (rid, customerId, vin, odometer, complaint);
+			return rid;
+		}
+		if (this._journal != null){
+			this._journal.insertServiceRequest (rid, customerId, vin, odometer, complaint);
+			return rid;
+		}
+		List<List<String>> result = executeUpdateAndReturnResult (SQL_OPEN_SERVICE_REQUEST, rid, customerId, vin, odometer, complaint);
+		//a new request always adds one to its car's open count
+		this._openServices.opened (vin, result.get (0).get (1), result.get (0).get (2));
+		this._analytics.requestOpened (rid, customerId, vin, result.get (0).get (3), odometer);
+		return rid;
+	}
+
+	/**
+	 * Method to add a car, record the customer as its owner and open a
+	 * service request dated today on it, as one statement in one round
+	 * trip.  If any part fails nothing is written.
+	 *
+	 * @return the new request id
+	 * @throws java.sql.SQLException when the statement fails, e.g. the VIN
+	 *         is taken
+	 */
+	public int insertServiceRequestForNewCar (int customerId, String vin, String make, String model, int year, int odometer, String complaint) throws SQLException {
+		int ownership = getNextId (KeyGenerator.OWNS);
+		int rid = getNextId (KeyGenerator.SERVICE_REQUEST);
+		if (this._shards != null){
+			this._shards.insertServiceRequestForNewCar (rid, ownership, customerId, vin, make, model, year, odometer, complaint);
+			return rid;
+		}
+		if (this._journal != null){
+			this._journal.insertServiceRequestForNewCar (rid, ownership, customerId, vin, make, model, year, odometer, complaint);
+			return rid;
+		}
+		List<List<String>> result = executeUpdateAndReturnResult (SQL_OPEN_SERVICE_REQUEST_NEW_CAR,
+			vin, make, model, year, ownership, customerId, rid, customerId, odometer, complaint);
+		this._directory.carAdded (vin, make, model, year);
+		this._directory.ownershipAdded (customerId, vin);
+		this._openServices.opened (vin, make, model);
+		this._analytics.carAdded (vin, make, model, year);
+		this._analytics.ownershipAdded (customerId, vin);
+		this._analytics.requestOpened (rid, customerId, vin, result.get (0).get (1), odometer);
+		return rid;
+	}
+
+	/**
+	 * Method to close a service request today.
+	 *
+	 * @return the new closed request id
+	 * @throws java.lang.IllegalArgumentException when the mechanic or the
+	 *         request does not exist or the request is dated in the future,
+	 *         with the message the menu prints; when writing behind, these
+	 *         are checked once the close is applied
+	 * @throws java.sql.SQLException when a query fails
+	 */
+	public int closeServiceRequest (int rid, int mechanicId, String comment, int bill) throws SQLException {
+		if (bill <= 0)
+			throw new IllegalArgumentException ("The bill must be a positive amount.");
+		int wid = getNextId (KeyGenerator.CLOSED_REQUEST);
+		if (this._journal != null){
+			//checked when it is applied, a refused close goes to the journal's .failed file
+			this._journal.closeServiceRequest (wid, rid, mechanicId, comment, bill);
+			return wid;
+		}
+		List<String> outcome = this._shards != null ? this._shards.closeServiceRequest (wid, rid, mechanicId, comment, bill)
+			: executeUpdateAndReturnResult (SQL_CLOSE_SERVICE_REQUEST, rid, mechanicId, wid, comment, bill).get (0);
+		String reason = outcome.get (0);
+		if (!reason.equals ("closed"))
+			throw new IllegalArgumentException (closeRejection (reason));
+		//only the one close of a request takes it off its car's open count
+		this._openServices.closed (outcome.get (1));
+		this._analytics.requestClosed (wid, rid, comment, bill);
+		return wid;
+	}
+
+	/**
+	 * Method to describe a reason code of SQL_CLOSE_SERVICE_REQUEST.
+	 */
+	static String closeRejection (String reason) {
+		switch (reason) {
+			case "unknown_mechanic": return "Mechanic ID does not exist.";
+			case "unknown_request": return "Service request number does not exist.";
+			case "future_request": return "Service request end date exceeds the request date.";
+			case "already_closed": return "Service request is already closed.";
+			default: return "Service request was not closed: " + reason;
+		}
+	}
+
+	/*
+	 * Reports 6, 7, 8 and 10 come from the analytics engine once it is
+	 * loaded, from SQL otherwise
+	 */
+
+	/**
+	 * Method to answer one of the reports 6, 7, 8 and 10 from the shards
+	 * when the shop is sharded, otherwise from the analytics engine.
+	 *
+	 * @param sql the SQL_REPORT_ constant of the report
+	 * @return the rows, null when the engine is not loaded or does not
+	 *         answer the query
+	 * @throws java.sql.SQLException when a due reload fails
+	 */
+	public List<List<String>> analyticsReport (String sql) throws SQLException {
+		if (this._shards != null)
+			return this._shards.report (sql);
+		if (!this._analytics.isReady ())
+			return null;
+		if (sql.equals (SQL_REPORT_BILL_LESS_THAN_100))
+			return this._analytics.billLessThan100 ();
+		if (sql.equals (SQL_REPORT_MORE_THAN_20_CARS))
+			return this._analytics.moreThan20Cars ();
+		if (sql.equals (SQL_REPORT_CARS_BEFORE_1995))
+			return this._analytics.carsBefore1995 ();
+		if (sql.equals (SQL_REPORT_TOTAL_BILL))
+			return this._analytics.totalBill ();
+		return null;
+	}
+
+	public List<List<String>> listCustomersWithBillLessThan100 () throws SQLException {
+		if (this._shards != null)
+			return this._shards.report (SQL_REPORT_BILL_LESS_THAN_100);
+		if (this._analytics.isReady ())
+			return this._analytics.billLessThan100 ();
+		return reportQuery (lastWrite (), SQL_REPORT_BILL_LESS_THAN_100);
+	}
+
+	public List<List<String>> listCustomersWithMoreThan20Cars () throws SQLException {
+		if (this._shards != null)
+			return this._shards.report (SQL_REPORT_MORE_THAN_20_CARS);
+		if (this._analytics.isReady ())
+			return this._analytics.moreThan20Cars ();
+		return reportQuery (lastWrite (), SQL_REPORT_MORE_THAN_20_CARS);
+	}
+
+	public List<List<String>> listCarsBefore1995With50000Milles () throws SQLException {
+		if (this._shards != null)
+			return this._shards.report (SQL_REPORT_CARS_BEFORE_1995);
+		if (this._analytics.isReady ())
+			return this._analytics.carsBefore1995 ();
+		return reportQuery (lastWrite (), SQL_REPORT_CARS_BEFORE_1995);
+	}
+
+	/**
+	 * Method to list up to limit cars with exactly openRequests open
+	 * service requests, from the in-memory index or, sharded, from the
+	 * shards.
+	 */
+	public List<List<String>> listKCarsWithTheMostServices (int openRequests, int limit) throws SQLException {
+		if (this._shards != null)
+			return this._shards.carsWithOpenRequests (openRequests, limit);
+		return this._openServices.withCount (openRequests, limit);
+	}
+
+	public List<List<String>> listCustomersInDescendingOrderOfTheirTotalBill () throws SQLException {
+		if (this._shards != null)
+			return this._shards.totalBill ();
+		if (this._analytics.isReady ())
+			return this._analytics.totalBill ();
+		return reportQuery (lastWrite (), SQL_REPORT_TOTAL_BILL);
+	}
+
+	/**
+	 * Method to run a report query on a replica when there is one fresh
+	 * enough, otherwise on the primary through the result cache.
+	 *
+	 * @param wroteMillis when the session it is for last wrote, see lastWrite
+	 */
+	List<List<String>> reportQuery (long wroteMillis, final String query, final Object... params) throws SQLException {
+		if (this._replicas == null)
+			return executeQueryAndReturnResult (query, params);
+		return onReplica (wroteMillis, new SQLWork<List<List<String>>>() {
+			public List<List<String>> run (Connection c) throws SQLException {
+				return executeQueryAndReturnResult (query, params);
+			}
+		});
+	}
+
 	public static void AddCustomer(MechanicShop esql){//1
 		try{
-			String querySize = String.format("SELECT id FROM Customer");
-			List<List<String>> data = esql.executeQueryAndReturnResult(querySize);
-			int newid = data.size() + 1;
 			System.out.print("Enter new customer's first name: ");
 			String newfname = in.readLine();
 			System.out.print("Enter new customer's last name: ");
@@ -318,21 +1606,15 @@ public class MechanicShop{
 	         	System.out.print("Enter new customer's address: ");
 			String newaddress = in.readLine();
 
-			String query = String.format("INSERT INTO Customer(id, fname, lname, phone, address) VALUES(%d, '%s', '%s', '%s', '%s')", newid,newfname,newlname,newphone,newaddress);
-
-        		esql.executeUpdate(query);
+        		esql.addCustomer(newfname, newlname, newphone, newaddress);
          		//System.out.println ("total row(s): " + rowCount);
       		}catch(Exception e){
-        		 System.err.println (e.getMessage());
+        		 reportError (esql, e);
       		}
 	} //end AddCustomer
 	
 	public static void AddMechanic(MechanicShop esql){//2
 		try{
-			String querySize = String.format("SELECT id FROM Mechanic");
-			List<List<String>> data = esql.executeQueryAndReturnResult(querySize);
-			int newid = data.size() + 1;
-
 			System.out.print("Enter new mechanic's first name: ");
 			String newfname = in.readLine();
 			System.out.print("Enter new mechanic's last name: ");
@@ -341,13 +1623,11 @@ public class MechanicShop{
 			String tempyears = in.readLine();
 			int newyear = Integer.parseInt(tempyears);
 
-			String query = String.format("INSERT INTO mechanic(id, fname, lname, experience) VALUES(%d, '%s', '%s', %d)", newid, newfname, newlname, newyear);
-
 			//INSERT INTO Mechanic(id, fname, lname, experience) VALUES(251, 'Thomas', 'Lee', 10);
-        		esql.executeUpdate(query);
+        		esql.addMechanic(newfname, newlname, newyear);
          		//System.out.println ("total row(s): " + rowCount);
       		}catch(Exception e){
-        		 System.err.println (e.getMessage());
+        		 reportError (esql, e);
       		}
 	}
 	
@@ -363,14 +1643,12 @@ public class MechanicShop{
 			String tempyears = in.readLine();
 			int newyear = Integer.parseInt(tempyears);
 
-			String query = String.format("INSERT INTO Car(vin, make, model, year) VALUES('%s', '%s', '%s', %d)", newvin, newmake, newmodel, newyear);
-
 			//INSERT INTO Car(vin, make, model, year) VALUES('MYCARSVIN420', 'Lamborghini', 'Altima', 2018);
 
-        		esql.executeUpdate(query);
+        		esql.addCar(newvin, newmake, newmodel, newyear);
          		//System.out.println ("total row(s): " + rowCount);
       		}catch(Exception e){
-        		 System.err.println (e.getMessage());
+        		 reportError (esql, e);
       		}
 	}
 	
@@ -380,15 +1658,12 @@ public static void InsertServiceRequest(MechanicShop esql){//4
 Cano     
 */
 		try{
-			String querySize = String.format("SELECT rid FROM Service_Request");
-			List<List<String>> ridsize = esql.executeQueryAndReturnResult(querySize);
-			int newrid = ridsize.size() + 1;
-
-         		System.out.print("Enter last name for lookup: ");
+         		System.out.print("Enter last name (or its start) or phone number for lookup: ");
 			String lookup = in.readLine();
 			
-			String query = String.format("SELECT * FROM Customer WHERE lname = '%s'", lookup);
-			int rowcount = esql.executeQueryAndPrintResult(query);
+			//answered from the customer directory, SQL_FIND_CUSTOMER without it
+			int rowcount = printRows(new String[] {"id", "fname", "lname", "phone", "address"},
+				esql.findCustomers(lookup));
 
 
 			if(rowcount == 0) {
@@ -408,8 +1683,9 @@ Cano
 				System.out.println("Please input the id of the customer you would like to select: ");
 				String tempid = in.readLine();
 				int custid = Integer.parseInt(tempid);
-				query = String.format("SELECT Row_Number() OVER ( ORDER BY Owns.car_vin ), Car FROM Customer,Owns,Car WHERE Customer.id = Owns.customer_id AND Car.vin = Owns.car_vin AND 					Owns.customer_id = '%s'", custid);
-				rowcount = esql.executeQueryAndPrintResult(query);
+				//the picker keeps the listed VINs, picking one needs no query
+				List<List<String>> cars = esql.listCustomerCars(custid);
+				printRows(new String[] {"row_number", "vin", "make", "model", "year"}, cars);
 				System.out.println("Please input the Row Number of the car you would like to select, or type 0 to add a new car: ");
 				String temprow = in.readLine();
 				int rownum = Integer.parseInt(temprow);
@@ -426,18 +1702,6 @@ Cano
 					String tempyears = in.readLine();
 					int newyear = Integer.parseInt(tempyears);
 
-					query = String.format("INSERT INTO Car(vin, make, model, year) VALUES('%s', '%s', '%s', %d)", newvin, newmake, newmodel, newyear);
-					esql.executeUpdate(query);
-					
-					querySize = String.format("SELECT ownership_id FROM Owns");
-					List<List<String>> ownsize = esql.executeQueryAndReturnResult(querySize);
-					int newown = ownsize.size() + 1;
-					query = String.format("INSERT INTO Owns(ownership_id, customer_id, car_vin) VALUES(%d, %d, '%s')", newown, custid, newvin);
-					esql.executeUpdate(query);
-
-
-					System.out.print("New car added to database.\n");
-
 					//System.out.print("Enter today's date (YYYY-MM-dd): ");
 					//String newdate = in.readLine();
 					//int date = Integer.parseInt(newdate);
@@ -447,23 +1711,20 @@ Cano
 					System.out.print("Enter customer's complaints with the car: ");
 					String newcomplaint = in.readLine();
 					
-
-					query = String.format("INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) VALUES(%d, %d, '%s', CURRENT_DATE, %d, '%s')", newrid, custid, newvin, odo, newcomplaint);
-					esql.executeUpdate(query);
+					//car, ownership and request are written together or not at all
+					int newrid = esql.insertServiceRequestForNewCar(custid, newvin, newmake, newmodel, newyear, odo, newcomplaint);
+					System.out.print("New car added to database.\n");
 					System.out.print("Your service request id is: ");
 					System.out.print(newrid);
 					System.out.printf("%n"); 
 				}
+				else if(rownum < 0 || rownum > cars.size()) {
+					System.out.println("Row number does not exist.\n");
+				}
 				else {
-
-//					query = String.format("SELECT Row_Number() OVER ( ORDER BY Owns.car_vin ), Car FROM Customer,Owns,Car WHERE Customer.id = Owns.customer_id AND Car.vin = Owns.car_vin AND Owns.customer_id = '%s'", custid);
-					query = String.format("SELECT test FROM (Select Row_Number() OVER ( ORDER BY Owns.car_vin ) as rownumber,Car.vin,Car.make,Car.model,Car.year FROM Customer,Owns,Car WHERE Customer.id = Owns.customer_id AND Car.vin = Owns.car_vin AND Owns.customer_id = '%s') AS test WHERE rownumber = %d ", custid,rownum);
-					List<List<String>> result  = esql.executeQueryAndReturnResult(query);
-					
-					String car = result.get(0).get(0);
-					System.out.println(car);
-					String[] output = car.split(",");
-					String newvin = output[1];
+					List<String> car = cars.get(rownum - 1);
+					System.out.println(car.get(1) + " " + car.get(2) + " " + car.get(3) + " " + car.get(4));
+					String newvin = car.get(1);
 					
 					System.out.print("Enter the current odometer reading on the car: ");
 					String newodo = in.readLine();
@@ -471,8 +1732,7 @@ Cano
 					System.out.print("Enter customer's complaints with the car: ");
 					String newcomplaint = in.readLine();
 
-					query = String.format("INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) VALUES(%d, %d, '%s', CURRENT_DATE, %d, '%s')", newrid, custid, newvin, odo, newcomplaint);
-					esql.executeUpdate(query);
+					int newrid = esql.insertServiceRequest(custid, newvin, odo, newcomplaint);
 					System.out.print("Your service request id is: ");
 					System.out.print(newrid);
 					System.out.printf("%n"); 
@@ -484,7 +1744,7 @@ Cano
 
          		
       		}catch(Exception e){
-         		System.err.println (e.getMessage());
+         		reportError (esql, e);
       		}
 
 	}
@@ -492,10 +1752,6 @@ Cano
 	public static void CloseServiceRequest(MechanicShop esql) throws Exception{//5
 	//TODO
 	try{
-			String querySize = String.format("SELECT wid FROM Closed_Request");
-			List<List<String>> widsize = esql.executeQueryAndReturnResult(querySize);
-			int newwid = widsize.size() + 1;
-
          		System.out.println("Enter a service request number: ");
 			String temprequest = in.readLine();
 			int requestnum = Integer.parseInt(temprequest);
@@ -510,45 +1766,26 @@ Cano
 			String tempbill = in.readLine();
 			int bill = Integer.parseInt(tempbill);
 
-			String query = String.format("SELECT * FROM Mechanic WHERE Mechanic.id = %d", mechanicid);
-			int numRows = esql.executeQuery(query);
-			
-			if(numRows == 0) {
-				System.out.println("Mechanic ID does not exist.\n");
-				return;
-			}
-			
-			query = String.format("SELECT * FROM Service_Request WHERE Service_Request.rid = %d", requestnum);
-			numRows = esql.executeQuery(query);
-			if(numRows == 0) {
-				System.out.println("Service request number does not exist.\n");
-				return;
-			}
-
-			query = String.format("SELECT * FROM Service_Request WHERE Service_Request.rid = %d AND Service_Request.date <= CURRENT_DATE", requestnum);
-			numRows = esql.executeQuery(query);
-			if(numRows == 0) {
-				System.out.println("Service request end date exceeds the request date.\n");
+			try{
+				esql.closeServiceRequest(requestnum, mechanicid, comments, bill);
+			}catch(IllegalArgumentException e){
+				System.out.println(e.getMessage() + "\n");
 				return;
 			}
 
-			query = String.format("INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill) VALUES(%d, %d, %d, CURRENT_DATE, '%s', %d)", newwid, requestnum, mechanicid, comments, bill);
-
-			esql.executeUpdate(query);
-
 			
       		}catch(Exception e){
-         		System.err.println (e.getMessage());
+         		reportError (esql, e);
       		}
 }
 	
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
 		try{
-         		String query = "SELECT Customer.fname, Customer.lname, Closed_Request.bill, Service_Request.date, Closed_Request.comment FROM Customer,Closed_Request,Service_Request WHERE Closed_Request.bill < 100 AND Closed_Request.rid = Service_Request.rid AND Service_Request.customer_id = Customer.id";
-         		int rowCount = esql.executeQueryAndPrintResult(query);
-         		System.out.println ("total row(s): " + rowCount);
+         		runReport(esql, OPERATIONS[5], new String[] {"fname", "lname", "bill", "date", "comment"},
+         			new boolean[] {false, false, true, false, false},
+         			SQL_REPORT_BILL_LESS_THAN_100_PAGE, new Object[] {Long.MIN_VALUE}, SQL_REPORT_BILL_LESS_THAN_100);
       		}catch(Exception e){
-         		System.err.println (e.getMessage());
+         		reportError (esql, e);
       		}
 	}
 
@@ -556,14 +1793,14 @@ Cano
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
 	//TODO		
 		try{
- 		String query = "SELECT allCars.fname, allCars.lname, allCars.numCars FROM (SELECT Owns.customer_id, Customer.fname, Customer.lname, COUNT(*) numCars FROM Owns,Customer WHERE Customer.id = Owns.customer_id GROUP BY Owns.customer_id, Customer.fname, Customer.lname) AS allCars WHERE numCars > 20";
+ 		String query = SQL_REPORT_MORE_THAN_20_CARS;
 		
 		// Test		
 		//String query = "SELECT Owns.customer_id, Owns.car_vin FROM Owns WHERE Owns.customer_id = 110 OR Owns.customer_id = 28 OR Owns.customer_id = 24 ";
- 		int rowCount = esql.executeQueryAndPrintResult(query);
- 		System.out.println ("total row(s): " + rowCount);
+ 		runReport(esql, OPERATIONS[6], new String[] {"fname", "lname", "numcars"}, new boolean[] {false, false, true},
+ 			SQL_REPORT_MORE_THAN_20_CARS_PAGE, new Object[] {Long.MIN_VALUE}, query);
 	}catch(Exception e){
- 		System.err.println (e.getMessage());
+ 		reportError (esql, e);
 	}
 
 	}
@@ -571,11 +1808,11 @@ Cano
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		//TODO Get only Make,Model,Year
 		try{
-         		String query = "SELECT Car.make, Car.model, Car.year, Service_Request.odometer FROM Car,Service_Request WHERE Service_Request.car_vin = Car.vin AND Service_Request.odometer < 50000 AND Car.year < 1995";
-         		int rowCount = esql.executeQueryAndPrintResult(query);
-         		System.out.println ("total row(s): " + rowCount);
+         		String query = SQL_REPORT_CARS_BEFORE_1995;
+         		runReport(esql, OPERATIONS[7], new String[] {"make", "model", "year", "odometer"},
+         			new boolean[] {false, false, true, true}, SQL_REPORT_CARS_BEFORE_1995_PAGE, new Object[] {Long.MIN_VALUE}, query);
       		}catch(Exception e){
-         		System.err.println (e.getMessage());
+         		reportError (esql, e);
       		}
 	}
 	
@@ -598,12 +1835,11 @@ Cano
 		tempServ = in.readLine();
 		int carServ = Integer.parseInt(tempServ);
 
-		String query = String.format("SELECT Car.make, Car.model, Car.vin, COUNT(Service_Request) as cnt FROM Car,Service_Request WHERE Service_Request.rid NOT IN (SELECT Service_Request.rid FROM Closed_Request,Service_Request WHERE Service_Request.rid = Closed_Request.rid) AND Car.vin = Service_Request.car_vin GROUP BY Car.make,Car.model,Car.vin HAVING COUNT(*) = %d ORDER BY cnt DESC LIMIT %d",numServ,carServ);
-
-		int rowCount = esql.executeQueryAndPrintResult(query);
- 		System.out.println ("total row(s): " + rowCount);
+		//answered from memory, SQL_REPORT_CARS_WITH_OPEN_SERVICES is the same in SQL
+		List<List<String>> cars = esql.listKCarsWithTheMostServices(numServ, carServ);
+		pageRows(new String[] {"make", "model", "vin", "cnt"}, new boolean[] {false, false, false, true}, cars);
 	}catch(Exception e){
- 		System.err.println (e.getMessage());
+ 		reportError (esql, e);
 	}
 
 	}
@@ -612,14 +1848,14 @@ Cano
 	//TODO
 	try{
 
-		String query = "SELECT A.fname,A.lname, SUM(Closed_Request.bill) total_bill FROM (SELECT Customer.fname, Customer.lname, Customer.id, Closed_Request.bill, Closed_Request.rid FROM Customer, Closed_Request, Service_Request WHERE Closed_Request.rid = Service_Request.rid AND Customer.id = Service_Request.customer_id) AS A LEFT JOIN Closed_Request ON A.rid = Closed_Request.rid GROUP BY A.fname,A.lname,A.id ORDER BY total_bill DESC";
+		String query = SQL_REPORT_TOTAL_BILL;
 
 
 
-		int rowCount = esql.executeQueryAndPrintResult(query);
- 		System.out.println ("total row(s): " + rowCount);
+		runReport(esql, OPERATIONS[9], new String[] {"fname", "lname", "total_bill"}, new boolean[] {false, false, true},
+			SQL_REPORT_TOTAL_BILL_PAGE, new Object[] {Long.MAX_VALUE, Long.MAX_VALUE}, query);
 	}catch(Exception e){
- 		System.err.println (e.getMessage());
+ 		reportError (esql, e);
 	}
 
 
@@ -643,4 +1879,133 @@ Cano
 	
 	}
 	
+	/**
+	 * Prints rows computed in memory the way executeQueryAndPrintResult
+	 * prints a query result.
+	 *
+	 * @return the number of rows printed
+	 */
+	static int printRows(String[] header, List<List<String>> rows){
+		return ResultRenderer.get().print(header, rows);
+	}
+
+	/**
+	 * Shows rows already in memory page by page.
+	 *
+	 * @param numeric which columns an export writes as numbers
+	 */
+	static void pageRows(final String[] header, final boolean[] numeric, final List<List<String>> rows)
+			throws SQLException, IOException {
+		//a row's key is its position
+		new ReportPager(header, 1, new ReportPager.Source() {
+			public List<List<String>> page(List<String> after, int limit) {
+				int from = after == null ? 0 : Integer.parseInt(after.get(0)) + 1;
+				List<List<String>> page = new ArrayList<List<String>>();
+				for (int i = from; i < rows.size() && page.size() < limit; ++i){
+					List<String> row = new ArrayList<String>(rows.get(i));
+					row.add(Integer.toString(i));
+					page.add(row);
+				}
+				return page;
+			}
+
+			public void export(ResultExporter exporter) throws IOException {
+				exporter.begin(header, numeric);
+				for (List<String> row : rows)
+					exporter.add(row.toArray(new String[row.size()]));
+			}
+		}).run(in);
+	}
+
+	/**
+	 * Shows a report page by page, from the analytics engine when it is
+	 * loaded.  Otherwise the report's first page is read by a background job
+	 * and shown if it is done within ReportJobs.WAIT_MS, or left running and
+	 * shown from 12. Jobs; see ReportPager.SqlSource for the arguments.
+	 */
+	static void runReport(MechanicShop esql, String name, String[] header, boolean[] numeric,
+			String pageSql, Object[] firstKey, String reportSql) throws SQLException, IOException, InterruptedException {
+		List<List<String>> rows = esql.analyticsReport(reportSql);
+		if (rows != null){
+			pageRows(header, numeric, rows);
+			return;
+		}
+		ReportJobs.Job job = esql.getJobs().submit(name, header, pageSql, firstKey, reportSql);
+		if (job.await(ReportJobs.WAIT_MS))
+			viewJob(esql, job);
+		else
+			System.out.println("Still running as job " + job.getId() + ", see 12. Jobs");
+	}
+
+	/**
+	 * Shows the rows of a finished job, or why it has none.
+	 */
+	static void viewJob(MechanicShop esql, ReportJobs.Job job) throws SQLException, IOException {
+		switch (job.getState()){
+			case DONE:
+				new ReportPager(job.getHeader(), job.getKeyColumns(), job.source()).run(in);
+				break;
+			case FAILED:
+			case TIMED_OUT:
+				Exception cause = job.getCause();
+				reportError (esql, new SQLException("Job " + job.getId() + " " + job.getState() + ": " + job.getError(),
+					cause instanceof SQLException ? ((SQLException) cause).getSQLState() : null, cause));
+				break;
+			default:
+				System.out.println("Job " + job.getId() + " is " + job.getState());
+		}
+	}
+
+	public static void Statistics(MechanicShop esql){//11
+		System.out.print(esql.getPoolStats());
+		System.out.print(esql.getCacheStats());
+		System.out.print(esql.getDirectory().getStats());
+		System.out.print(esql.getAnalytics().getStats());
+		if (esql.getJournal() != null)
+			System.out.print(esql.getJournal().getStats());
+		if (esql.getShards() != null)
+			System.out.print(esql.getShards().getStats());
+		if (esql.getReplicas() != null)
+			System.out.print(esql.getReplicas().getStats());
+		esql.getMetrics().print();
+		System.out.print(esql.getSlowQueryLog().getStats());
+	}
+
+	public static void Jobs(MechanicShop esql){//12
+		try{
+			while (true){
+				List<List<String>> rows = new ArrayList<List<String>>();
+				for (ReportJobs.Job job : esql.getJobs().list()){
+					List<String> row = new ArrayList<String>(5);
+					row.add(Integer.toString(job.getId()));
+					row.add(job.getName());
+					row.add(job.getState().toString());
+					row.add(String.format("%.1f", job.getElapsed()));
+					row.add(Integer.toString(job.getRowCount()));
+					rows.add(row);
+				}
+				printRows(new String[] {"job", "report", "state", "seconds", "rows"}, rows);
+				System.out.print("v <job> to view, c <job> to cancel, Enter to go back: ");
+				String line = in.readLine();
+				if (line == null || line.trim().isEmpty())
+					return;
+				String[] command = line.trim().split("\\s+");
+				ReportJobs.Job job = null;
+				if (command.length == 2 && command[1].matches("\\d{1,9}"))
+					job = esql.getJobs().get(Integer.parseInt(command[1]));
+				if (job == null){
+					System.out.println("Your input is invalid!");
+				}else if (command[0].equals("v")){
+					viewJob(esql, job);
+				}else if (command[0].equals("c")){
+					System.out.println(job.cancel() ? "Cancelling job " + job.getId() : "Job " + job.getId() + " has already finished");
+				}else{
+					System.out.println("Your input is invalid!");
+				}
+			}
+		}catch(Exception e){
+			reportError (esql, e);
+		}
+	}
+
 }
@@ -0,0 +1,506 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class measures the menu operations and the database calls under
+ * them.  Per operation it keeps a latency histogram, the calls, rows
+ * returned, round trips, bytes sent and received, and the errors by
+ * SQLState; errors that are not SQLExceptions are counted under their
+ * class name.  Round trips and bytes come from RoundTripCounter, which is
+ * installed as the driver's socketFactory while metrics are on.
+ *
+ * The histogram has eight buckets per power of two of microseconds, so a
+ * percentile is off by at most 12.5%, and recording one call is a few
+ * atomic adds: no lock is taken and nothing is allocated but the Sample.
+ *
+ * Everything is printed by the Statistics menu.  With
+ * -Dmechanicshop.metrics.file=<path> it is also written every
+ * -Dmechanicshop.metrics.intervalMs (default 60000), in the format of
+ * -Dmechanicshop.metrics.format:
+ *
+ *   prometheus  the file is replaced by the latest snapshot, in the
+ *               Prometheus text format, for a textfile collector
+ *   json        one snapshot object per line is appended; the file rolls
+ *               over to <path>.1 ... <path>.<keepFiles> once it is larger
+ *               than -Dmechanicshop.metrics.maxFileBytes (default 10MB)
+ *
+ * -Dmechanicshop.metrics=false turns all of it off.
+ */
+public class Metrics {
+	static final boolean ENABLED = !"false".equals(System.getProperty("mechanicshop.metrics"));
+	static final String FILE = System.getProperty("mechanicshop.metrics.file");
+	static final String FORMAT = System.getProperty("mechanicshop.metrics.format", "prometheus");
+	static final long INTERVAL_MS = Long.getLong("mechanicshop.metrics.intervalMs", 60000L);
+	static final long MAX_FILE_BYTES = Long.getLong("mechanicshop.metrics.maxFileBytes", 10L << 20);
+	static final int KEEP_FILES = Integer.getInteger("mechanicshop.metrics.keepFiles", 5);
+	//errors kept with their message for the Statistics menu
+	static final int RECENT_ERRORS = 20;
+
+	//eight sub-buckets per power of two, up to 2^40us (about 12 days)
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int BUCKETS = (40 - SUB_BITS + 2) * SUB_BUCKETS;
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+	/**
+	 * One measured call or operation, from start until stop().
+	 */
+	public static final class Sample {
+		private final Metrics metrics;
+		private final String op;
+		private final boolean operation;
+		private final long startNanos;
+		private final long trips;
+		private final long sent;
+		private final long received;
+		private final long rowsBefore;
+		private final Sample outer;
+		private long rows = 0;
+		private Throwable error = null;
+
+		private Sample(Metrics metrics, String op, boolean operation, Local local) {
+			this.metrics = metrics;
+			this.op = op;
+			this.operation = operation;
+			long[] counts = RoundTripCounter.counts();
+			this.trips = counts[0];
+			this.sent = counts[1];
+			this.received = counts[2];
+			this.rowsBefore = local.rows;
+			this.outer = local.operation;
+			this.startNanos = System.nanoTime();
+		}
+
+		/**
+		 * Method to record the rows the call returned or changed.
+		 *
+		 * @return the rows, for the caller to return
+		 */
+		public int rows(int rows) {
+			if (metrics != null)
+				this.rows = rows;
+			return rows;
+		}
+
+		/**
+		 * Method to mark the call failed.
+		 *
+		 * @return the error, for the caller to throw
+		 */
+		public <T extends Throwable> T failed(T error) {
+			if (metrics != null && this.error == null)
+				this.error = error;
+			return error;
+		}
+
+		/**
+		 * Method to end the call and record it.
+		 */
+		public void stop() {
+			if (metrics != null)
+				metrics.record(this, System.nanoTime() - startNanos);
+		}
+	}//end Sample
+
+	//what the calling thread is measuring
+	private static final class Local {
+		//rows of the outermost calls so far, summed into their operation
+		long rows = 0;
+		int depth = 0;
+		Sample operation = null;
+	}
+
+	/**
+	 * The counts of one operation or call.
+	 */
+	private static final class Op {
+		final String name;
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		final LongAdder count = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+		final LongAdder errors = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder trips = new LongAdder();
+		final LongAdder sent = new LongAdder();
+		final LongAdder received = new LongAdder();
+		final ConcurrentHashMap<String, LongAdder> errorsByState = new ConcurrentHashMap<String, LongAdder>();
+
+		Op(String name){
+			this.name = name;
+		}
+
+		//upper bound in microseconds of the bucket holding the q-th fraction
+		long quantile(double q) {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; ++i)
+				total += counts[i] = buckets.get(i);
+			if (total == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(q * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i){
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(upperBound(i), maxNanos.get() / 1000 + 1);
+			}
+			return maxNanos.get() / 1000 + 1;
+		}
+	}//end Op
+
+	//handed out while metrics are off, records nothing
+	private static final Sample DISABLED = new Sample(null, null, false, new Local());
+
+	private final ThreadLocal<Local> local = new ThreadLocal<Local>() {
+		@Override
+		protected Local initialValue() {
+			return new Local();
+		}
+	};
+	private final ConcurrentHashMap<String, Op> ops = new ConcurrentHashMap<String, Op>();
+	private final ArrayDeque<String> recentErrors = new ArrayDeque<String>();
+	private final boolean enabled;
+	private final Path file;
+	private final boolean json;
+	private final RollingFile rolling;
+	private final long startMillis = System.currentTimeMillis();
+	private Thread writer = null;
+	private volatile boolean closed = false;
+
+	public Metrics() {
+		this(ENABLED, FILE == null ? null : Paths.get(FILE), "json".equalsIgnoreCase(FORMAT));
+	}
+
+	Metrics(boolean enabled, Path file, boolean json) {
+		this.enabled = enabled;
+		this.file = enabled ? file : null;
+		this.json = json;
+		this.rolling = this.file != null && json ? new RollingFile(this.file, MAX_FILE_BYTES, KEEP_FILES) : null;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Method to start measuring a database call; calls made inside it are
+	 * measured on their own and their rows are not counted twice.
+	 */
+	public Sample start(String op) {
+		if (!enabled)
+			return DISABLED;
+		Local l = local.get();
+		Sample s = new Sample(this, op, false, l);
+		l.depth++;
+		return s;
+	}
+
+	/**
+	 * Method to start measuring a menu operation.  Its rows are those of the
+	 * database calls it makes, and failed() marks it failed until it stops.
+	 */
+	public Sample startOperation(String op) {
+		if (!enabled)
+			return DISABLED;
+		Local l = local.get();
+		Sample s = new Sample(this, op, true, l);
+		l.operation = s;
+		return s;
+	}
+
+	/**
+	 * Method to count an error against the menu operation the calling thread
+	 * is running, if any.
+	 */
+	public void failed(Throwable error) {
+		if (!enabled)
+			return;
+		Sample s = local.get().operation;
+		if (s != null)
+			s.failed(error);
+	}
+
+	private void record(Sample s, long nanos) {
+		Local l = local.get();
+		long rows = s.rows;
+		if (s.operation){
+			rows = l.rows - s.rowsBefore;
+			l.operation = s.outer;
+		}else if (--l.depth == 0){
+			l.rows += rows;
+		}
+		Op op = ops.get(s.op);
+		if (op == null){
+			Op fresh = new Op(s.op);
+			op = ops.putIfAbsent(s.op, fresh);
+			if (op == null)
+				op = fresh;
+		}
+		op.buckets.incrementAndGet(bucket(nanos / 1000));
+		op.count.increment();
+		op.nanos.add(nanos);
+		long max = op.maxNanos.get();
+		while (nanos > max && !op.maxNanos.compareAndSet(max, nanos))
+			max = op.maxNanos.get();
+		op.rows.add(rows);
+		long[] counts = RoundTripCounter.counts();
+		op.trips.add(counts[0] - s.trips);
+		op.sent.add(counts[1] - s.sent);
+		op.received.add(counts[2] - s.received);
+		if (s.error != null){
+			String state = stateOf(s.error);
+			op.errors.increment();
+			LongAdder n = op.errorsByState.get(state);
+			if (n == null){
+				LongAdder fresh = new LongAdder();
+				n = op.errorsByState.putIfAbsent(state, fresh);
+				if (n == null)
+					n = fresh;
+			}
+			n.increment();
+			synchronized (recentErrors){
+				if (recentErrors.size() == RECENT_ERRORS)
+					recentErrors.removeFirst();
+				recentErrors.addLast(String.format("%tT %s [%s] %s", new Date(), s.op, state, s.error.getMessage()));
+			}
+		}
+	}//end record
+
+	/**
+	 * Method to name the kind of an error: the SQLState of the first
+	 * SQLException in its causes, else its class name.
+	 */
+	static String stateOf(Throwable error) {
+		for (Throwable t = error; t != null; t = t.getCause())
+			if (t instanceof SQLException && ((SQLException) t).getSQLState() != null)
+				return ((SQLException) t).getSQLState();
+		return error.getClass().getSimpleName();
+	}
+
+	static int bucket(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int) Math.max(0, micros);
+		int exp = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, (exp - SUB_BITS + 1) * SUB_BUCKETS + sub);
+	}
+
+	//the first value in microseconds past the bucket
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket + 1;
+		int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BITS);
+	}
+
+	private List<Op> sorted() {
+		List<Op> list = new ArrayList<Op>(ops.values());
+		Collections.sort(list, new Comparator<Op>() {
+			public int compare(Op a, Op b) {
+				return a.name.compareTo(b.name);
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Method to print a table of every operation and the recent errors.
+	 */
+	public void print() {
+		if (!enabled){
+			System.out.println("metrics are off");
+			return;
+		}
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (Op op : sorted()){
+			long n = op.count.sum();
+			rows.add(Arrays.asList(op.name, Long.toString(n), Long.toString(op.errors.sum()),
+				ms(op.quantile(0.5)), ms(op.quantile(0.9)), ms(op.quantile(0.99)), ms(op.maxNanos.get() / 1000),
+				Long.toString(op.rows.sum()), String.format("%.1f", (double) op.trips.sum() / Math.max(1, n)),
+				Long.toString(op.sent.sum()), Long.toString(op.received.sum())));
+		}
+		ResultRenderer.get().print(new String[] {"operation", "calls", "errors", "p50_ms", "p90_ms", "p99_ms",
+			"max_ms", "rows", "trips/call", "bytes_sent", "bytes_received"}, rows);
+		for (Op op : sorted())
+			for (Map.Entry<String, Long> e : errors(op).entrySet())
+				System.out.println("errors " + op.name + " " + e.getKey() + ": " + e.getValue());
+		synchronized (recentErrors){
+			if (!recentErrors.isEmpty())
+				System.out.println("recent errors:");
+			for (String e : recentErrors)
+				System.out.println("  " + e);
+		}
+	}//end print
+
+	private static String ms(long micros) {
+		return String.format("%.3f", micros / 1000.0);
+	}
+
+	private static Map<String, Long> errors(Op op) {
+		Map<String, Long> byState = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : op.errorsByState.entrySet())
+			byState.put(e.getKey(), e.getValue().sum());
+		return byState;
+	}
+
+	/**
+	 * Method to return every counter in the Prometheus text format.
+	 */
+	public String toPrometheus() {
+		List<Op> list = sorted();
+		StringBuilder sb = new StringBuilder();
+		sb.append("# HELP mechanicshop_op_seconds Latency of menu operations and database calls.\n");
+		sb.append("# TYPE mechanicshop_op_seconds summary\n");
+		for (Op op : list){
+			for (double q : QUANTILES)
+				sb.append("mechanicshop_op_seconds{op=\"").append(op.name).append("\",quantile=\"").append(q)
+					.append("\"} ").append(op.quantile(q) / 1e6).append('\n');
+			sb.append("mechanicshop_op_seconds_sum{op=\"").append(op.name).append("\"} ").append(op.nanos.sum() / 1e9).append('\n');
+			sb.append("mechanicshop_op_seconds_count{op=\"").append(op.name).append("\"} ").append(op.count.sum()).append('\n');
+		}
+		sb.append("# TYPE mechanicshop_op_max_seconds gauge\n");
+		for (Op op : list)
+			sb.append("mechanicshop_op_max_seconds{op=\"").append(op.name).append("\"} ").append(op.maxNanos.get() / 1e9).append('\n');
+		counter(sb, list, "rows", 0);
+		counter(sb, list, "round_trips", 1);
+		counter(sb, list, "bytes_sent", 2);
+		counter(sb, list, "bytes_received", 3);
+		sb.append("# TYPE mechanicshop_op_errors_total counter\n");
+		for (Op op : list)
+			for (Map.Entry<String, Long> e : errors(op).entrySet())
+				sb.append("mechanicshop_op_errors_total{op=\"").append(op.name).append("\",sqlstate=\"").append(e.getKey())
+					.append("\"} ").append(e.getValue()).append('\n');
+		return sb.toString();
+	}
+
+	private static void counter(StringBuilder sb, List<Op> list, String name, int which) {
+		sb.append("# TYPE mechanicshop_op_").append(name).append("_total counter\n");
+		for (Op op : list){
+			LongAdder n = which == 0 ? op.rows : which == 1 ? op.trips : which == 2 ? op.sent : op.received;
+			sb.append("mechanicshop_op_").append(name).append("_total{op=\"").append(op.name).append("\"} ")
+				.append(n.sum()).append('\n');
+		}
+	}
+
+	/**
+	 * Method to return every counter as one line of JSON.
+	 */
+	public String toJson() {
+		SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"time\":").append(Json.quote(iso.format(new Date())));
+		sb.append(",\"uptime_ms\":").append(System.currentTimeMillis() - startMillis);
+		sb.append(",\"operations\":[");
+		boolean first = true;
+		for (Op op : sorted()){
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append("{\"op\":").append(Json.quote(op.name));
+			sb.append(",\"count\":").append(op.count.sum());
+			sb.append(",\"errors\":").append(op.errors.sum());
+			sb.append(",\"p50_ms\":").append(op.quantile(0.5) / 1000.0);
+			sb.append(",\"p90_ms\":").append(op.quantile(0.9) / 1000.0);
+			sb.append(",\"p99_ms\":").append(op.quantile(0.99) / 1000.0);
+			sb.append(",\"max_ms\":").append(op.maxNanos.get() / 1e6);
+			sb.append(",\"rows\":").append(op.rows.sum());
+			sb.append(",\"round_trips\":").append(op.trips.sum());
+			sb.append(",\"bytes_sent\":").append(op.sent.sum());
+			sb.append(",\"bytes_received\":").append(op.received.sum());
+			sb.append(",\"errors_by_sqlstate\":{");
+			boolean firstState = true;
+			for (Map.Entry<String, Long> e : errors(op).entrySet()){
+				if (!firstState)
+					sb.append(',');
+				firstState = false;
+				sb.append(Json.quote(e.getKey())).append(':').append(e.getValue());
+			}
+			sb.append("}}");
+		}
+		return sb.append("]}").toString();
+	}
+
+	/**
+	 * Method to start writing the metrics file, when one was given.
+	 */
+	public synchronized void start() {
+		if (file == null || writer != null)
+			return;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				while (!closed){
+					try{
+						Thread.sleep(INTERVAL_MS);
+					}catch (InterruptedException e){
+						//closing, the last snapshot is written by close()
+					}
+					if (!closed)
+						write();
+				}
+			}
+		}, "metrics-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Method to write one snapshot to the metrics file.
+	 */
+	synchronized void write() {
+		try{
+			if (json){
+				rolling.append(toJson() + "\n");
+			}else{
+				//a scraper never sees a half written file
+				Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+				Files.write(tmp, toPrometheus().getBytes(StandardCharsets.UTF_8));
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}catch (IOException e){
+			System.err.println("Writing metrics to " + file + " failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to stop the writer and write the last snapshot.
+	 */
+	public void close() {
+		Thread w;
+		synchronized (this){
+			if (closed)
+				return;
+			closed = true;
+			w = writer;
+		}
+		if (w == null)
+			return;
+		w.interrupt();
+		try{
+			w.join(1000);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		write();
+	}
+}//end Metrics
@@ -0,0 +1,84 @@
+import java.util.Arrays;
+
+/**
+ * This class times the three ways of answering report 9 ("up to K cars with
+ * exactly N open requests") against the same database:
+ *
+ *   scan     the original anti-join of Service_Request and Closed_Request
+ *   counter  the car_open_requests table kept by the V3 triggers
+ *   memory   the in-process OpenServiceIndex
+ *
+ * Each path is warmed up, then run for the given number of iterations per
+ * N in 1..3 with K = 10; the mean and percentiles are printed per path.
+ */
+public class OpenServiceBenchmark {
+	//report 9 as it was before car_open_requests existed
+	static final String SQL_SCAN = "SELECT Car.make, Car.model, Car.vin, COUNT(Service_Request) as cnt FROM Car,Service_Request WHERE Service_Request.rid NOT IN (SELECT Service_Request.rid FROM Closed_Request,Service_Request WHERE Service_Request.rid = Closed_Request.rid) AND Car.vin = Service_Request.car_vin GROUP BY Car.make,Car.model,Car.vin HAVING COUNT(*) = ? ORDER BY cnt DESC LIMIT ?";
+
+	private static final int K = 10;
+	private static final int MAX_N = 3;
+
+	private final MechanicShop esql;
+	private final OpenServiceIndex index;
+	private final int iterations;
+
+	public OpenServiceBenchmark(MechanicShop esql, int iterations) {
+		this.esql = esql;
+		this.index = esql.getOpenServices();
+		this.iterations = iterations;
+	}
+
+	/**
+	 * One way of answering the report.
+	 */
+	private interface Path {
+		int run(int n) throws Exception;
+	}
+
+	/**
+	 * Method to run the benchmark and print the results.
+	 *
+	 * @throws java.lang.Exception when a query fails
+	 */
+	public void run() throws Exception {
+		int drift = index.reconcile();
+		System.out.println("Reconciled " + index.size() + " car(s) with open requests, " + drift + " differed");
+
+		measure("scan", new Path() {
+			public int run(int n) throws Exception {
+				return esql.executeQueryAndReturnResult(SQL_SCAN, n, K).size();
+			}
+		});
+		measure("counter", new Path() {
+			public int run(int n) throws Exception {
+				return esql.executeQueryAndReturnResult(MechanicShop.SQL_REPORT_CARS_WITH_OPEN_SERVICES, n, K).size();
+			}
+		});
+		measure("memory", new Path() {
+			public int run(int n) throws Exception {
+				return index.withCount(n, K).size();
+			}
+		});
+	}//end run
+
+	private void measure(String name, Path path) throws Exception {
+		int warmup = Math.max(1, iterations / 10);
+		for (int i = 0; i < warmup; ++i)
+			path.run(1 + i % MAX_N);
+
+		long[] nanos = new long[iterations * MAX_N];
+		long rows = 0;
+		for (int i = 0; i < nanos.length; ++i){
+			long start = System.nanoTime();
+			rows += path.run(1 + i % MAX_N);
+			nanos[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(nanos);
+		long total = 0;
+		for (long t : nanos)
+			total += t;
+		System.out.println(String.format("%-8s %8d calls  mean %10.1f us  p50 %10.1f us  p99 %10.1f us  (%d rows)",
+			name, nanos.length, total / 1e3 / nanos.length, nanos[nanos.length / 2] / 1e3,
+			nanos[Math.min(nanos.length - 1, (int) (nanos.length * 0.99))] / 1e3, rows));
+	}
+}//end OpenServiceBenchmark
@@ -0,0 +1,218 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * This class keeps the open service request count of every car in memory,
+ * ordered by count, so report 9 is answered without a database round trip:
+ *
+ *   top(k)              the k cars with the most open requests
+ *   withCount(n, limit) up to limit cars with exactly n open requests
+ *
+ * both in O(k log n).  Cars are kept in a skiplist of count -> VINs, highest
+ * count first.  The counts come from car_open_requests (migration V3), which
+ * triggers keep current on every Service_Request and Closed_Request write.
+ * This process counts the requests it opens and closes itself, and
+ * reconciles everything with the table on first use and once the last
+ * reconcile is older than -Dmechanicshop.openIndex.maxAgeMs (default 60000,
+ * 0 to never expire), so writes by other processes show up within that
+ * bound.
+ */
+public class OpenServiceIndex {
+	static final long MAX_AGE_MS = Long.getLong("mechanicshop.openIndex.maxAgeMs", 60000L);
+
+	private static final String SQL_COUNTS =
+		"SELECT o.car_vin, Car.make, Car.model, o.open_count FROM car_open_requests o, Car " +
+		"WHERE Car.vin = o.car_vin AND o.open_count > 0";
+	private static final String SQL_REBUILD =
+		"INSERT INTO car_open_requests(car_vin, open_count) " +
+		"SELECT s.car_vin::VARCHAR, COUNT(*) FROM Service_Request s " +
+		"WHERE NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = s.rid) GROUP BY s.car_vin";
+
+	/**
+	 * One car with open requests.
+	 */
+	private static class CarCount {
+		final String vin;
+		final String make;
+		final String model;
+		int open;
+
+		CarCount(String vin, String make, String model, int open){
+			this.vin = vin;
+			this.make = make;
+			this.model = model;
+			this.open = open;
+		}
+	}
+
+	private final MechanicShop esql;
+	//cars with at least one open request, by VIN
+	private final Map<String, CarCount> cars = new HashMap<String, CarCount>();
+	//open count -> VINs with that count, highest count first
+	private final ConcurrentSkipListMap<Integer, NavigableSet<String>> byCount =
+		new ConcurrentSkipListMap<Integer, NavigableSet<String>>(Collections.<Integer>reverseOrder());
+	private long reconciledAt = 0;
+
+	public OpenServiceIndex(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to list the k cars with the most open requests.
+	 *
+	 * @return rows of make, model, vin, open count, highest count first
+	 * @throws java.sql.SQLException when a due reconcile fails
+	 */
+	public List<List<String>> top(int k) throws SQLException {
+		reconcileIfStale();
+		synchronized (this){
+			List<List<String>> rows = new ArrayList<List<String>>();
+			for (NavigableSet<String> vins : byCount.values()){
+				for (Iterator<String> it = vins.iterator(); it.hasNext() && rows.size() < k; )
+					rows.add(row(cars.get(it.next())));
+				if (rows.size() >= k)
+					break;
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * Method to list cars with exactly n open requests, as report 9 asks.
+	 *
+	 * @return at most limit rows of make, model, vin, open count, by VIN
+	 * @throws java.sql.SQLException when a due reconcile fails
+	 */
+	public List<List<String>> withCount(int n, int limit) throws SQLException {
+		reconcileIfStale();
+		synchronized (this){
+			List<List<String>> rows = new ArrayList<List<String>>();
+			NavigableSet<String> vins = n > 0 ? byCount.get(n) : null;
+			if (vins != null)
+				for (Iterator<String> it = vins.iterator(); it.hasNext() && rows.size() < limit; )
+					rows.add(row(cars.get(it.next())));
+			return rows;
+		}
+	}
+
+	private static List<String> row(CarCount c) {
+		return Arrays.asList(c.make, c.model, c.vin, Integer.toString(c.open));
+	}
+
+	/**
+	 * Method to count a request this process has just opened on a car.
+	 */
+	public synchronized void opened(String vin, String make, String model) {
+		vin = vin.trim();
+		CarCount c = cars.get(vin);
+		put(vin, make, model, c == null ? 1 : c.open + 1);
+	}
+
+	/**
+	 * Method to uncount a request this process has just closed on a car.
+	 * A request is closed at most once, so its car loses exactly one.
+	 */
+	public synchronized void closed(String vin) {
+		vin = vin.trim();
+		CarCount c = cars.get(vin);
+		if (c != null)
+			put(vin, c.make, c.model, c.open - 1);
+	}
+
+	/**
+	 * Method to replace every count with the one in car_open_requests.
+	 *
+	 * @return the number of cars whose count was different in memory
+	 * @throws java.sql.SQLException when car_open_requests cannot be read
+	 */
+	public int reconcile() throws SQLException {
+		final Map<String, CarCount> fresh = new HashMap<String, CarCount>();
+		esql.streamQuery(SQL_COUNTS, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				String vin = row.getString(1);
+				fresh.put(vin, new CarCount(vin, row.getString(2), row.getString(3), row.getInt(4)));
+			}
+		});
+		synchronized (this){
+			int drift = 0;
+			for (CarCount c : cars.values()){
+				CarCount f = fresh.get(c.vin);
+				if (f == null || f.open != c.open)
+					++drift;
+			}
+			for (CarCount f : fresh.values())
+				if (!cars.containsKey(f.vin))
+					++drift;
+			cars.clear();
+			byCount.clear();
+			for (CarCount f : fresh.values())
+				put(f.vin, f.make, f.model, f.open);
+			reconciledAt = System.currentTimeMillis();
+			return drift;
+		}
+	}//end reconcile
+
+	private void reconcileIfStale() throws SQLException {
+		boolean stale;
+		synchronized (this){
+			stale = reconciledAt == 0 || (MAX_AGE_MS > 0 && System.currentTimeMillis() - reconciledAt > MAX_AGE_MS);
+		}
+		if (stale)
+			reconcile();
+	}
+
+	/**
+	 * Moves a car to the bucket of its new count; callers hold the lock.
+	 */
+	private void put(String vin, String make, String model, int open) {
+		CarCount c = cars.remove(vin);
+		if (c != null){
+			NavigableSet<String> old = byCount.get(c.open);
+			old.remove(vin);
+			if (old.isEmpty())
+				byCount.remove(c.open);
+		}
+		if (open <= 0)
+			return;
+		cars.put(vin, new CarCount(vin, make, model, open));
+		NavigableSet<String> bucket = byCount.get(open);
+		if (bucket == null){
+			bucket = new ConcurrentSkipListSet<String>();
+			byCount.put(open, bucket);
+		}
+		bucket.add(vin);
+	}
+
+	/**
+	 * Method to return the number of cars with open requests in memory.
+	 */
+	public synchronized int size() {
+		return cars.size();
+	}
+
+	/**
+	 * Recomputes car_open_requests on the given connection, inside the
+	 * caller's transaction.  Concurrent request writes wait until it commits.
+	 */
+	static int rebuild(Connection c) throws SQLException {
+		Statement stmt = c.createStatement();
+		try{
+			stmt.execute("LOCK TABLE Service_Request, Closed_Request IN SHARE MODE");
+			stmt.executeUpdate("DELETE FROM car_open_requests");
+			return stmt.executeUpdate(SQL_REBUILD);
+		}finally{
+			stmt.close();
+		}
+	}
+}//end OpenServiceIndex
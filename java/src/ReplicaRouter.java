@@ -0,0 +1,261 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class sends the reads of reports 6 to 10 to streaming replicas of
+ * the database, so they do not compete with intake on the primary.
+ * -Dmechanicshop.replicas lists the replicas as <port>[/<dbname>] on this
+ * machine, e.g. -Dmechanicshop.replicas=9997,9996; a replica is started
+ * from the primary by postgresql/startReplica.sh <port>.  Writes, intake
+ * lookups and everything loaded into memory stay on the primary.
+ *
+ *   - a background thread asks every replica each CHECK_MS how far its
+ *     replay is behind (-Dmechanicshop.replicas.checkMs, default 1000); a
+ *     replica that does not answer, or that is no longer in recovery, is
+ *     left out until it answers again as a replica
+ *   - a report goes to the next replica in turn that is up and at most
+ *     MAX_LAG_MS behind (-Dmechanicshop.replicas.maxLagMs, default 5000),
+ *     counting the time since its last check as lag
+ *   - a session that wrote recently only reads from a replica known to
+ *     have replayed past its write, so it sees what it has just entered
+ *   - otherwise the report runs on the primary, counted by the reason
+ *
+ * The lag, the state of every replica and where the reports went are in
+ * getStats, which the Statistics menu and GET /metrics show.
+ */
+public class ReplicaRouter {
+	static final String REPLICAS = System.getProperty("mechanicshop.replicas");
+	static final long MAX_LAG_MS = Long.getLong("mechanicshop.replicas.maxLagMs", 5000L);
+	static final long CHECK_MS = Long.getLong("mechanicshop.replicas.checkMs", 1000L);
+	//checks between tries of a replica that could never be reached
+	static final int RECONNECT_ROUNDS = 10;
+	//a replica that is down should fail a report over quickly
+	static final long CHECKOUT_TIMEOUT_MS = Long.getLong("mechanicshop.replicas.checkoutTimeoutMs", 2000L);
+
+	//no lag when everything received is replayed: an idle primary sends nothing to replay
+	private static final String SQL_LAG =
+		"SELECT pg_is_in_recovery(), CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+		"ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+	//why a report ran on the primary
+	static final String DOWN = "replicas_down";
+	static final String STALE = "replicas_stale";
+	static final String OWN_WRITE = "own_write";
+	static final String FAILED = "replica_failed";
+
+	/**
+	 * One replica and what its last check found.
+	 */
+	static final class Replica {
+		//<port>/<dbname>
+		final String name;
+		final String url;
+		//null until the replica could be reached
+		volatile ConnectionPool pool;
+		volatile boolean up = false;
+		volatile long lagMillis = -1;
+		volatile long checkedMillis = 0;
+		volatile String problem = "not checked yet";
+		final AtomicLong routed = new AtomicLong();
+
+		Replica(String name, String url){
+			this.name = name;
+			this.url = url;
+		}
+
+		//the lag now at most: the lag checked plus the time since
+		long behind(long now) {
+			return lagMillis + (now - checkedMillis);
+		}
+	}
+
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	private final Properties props;
+	private final AtomicInteger next = new AtomicInteger();
+	//reports run on the primary by reason; guarded by itself
+	private final Map<String, Long> fallbacks = new TreeMap<String, Long>();
+	private final Thread checker;
+	private volatile boolean closed = false;
+
+	/**
+	 * Method to connect to the replicas and check them once, so the first
+	 * reports already go where they should.
+	 *
+	 * @param dbname the primary's database, the default of the replicas
+	 * @param props the connection properties of the primary
+	 * @param spec the replicas, <port>[/<dbname>] separated by commas
+	 */
+	public ReplicaRouter(String dbname, Properties props, String spec) {
+		this.props = props;
+		for (String entry : spec.split(",")){
+			entry = entry.trim();
+			if (entry.isEmpty())
+				continue;
+			int slash = entry.indexOf('/');
+			String port = slash < 0 ? entry : entry.substring(0, slash);
+			String db = slash < 0 ? dbname : entry.substring(slash + 1);
+			replicas.add(new Replica(port + "/" + db, "jdbc:postgresql://localhost:" + port + "/" + db));
+		}
+		for (Replica r : replicas){
+			check(r);
+			if (!r.up)
+				System.err.println("Warning - replica " + r.name + " is not used for now: " + r.problem);
+		}
+		this.checker = new Thread(new Runnable() {
+			public void run() {
+				for (long round = 1; !closed; ++round){
+					try{
+						Thread.sleep(CHECK_MS);
+					}catch (InterruptedException e){
+						return;
+					}
+					for (Replica r : replicas)
+						//a replica never reached is tried less often, each try logs a connection error
+						if (!closed && (r.pool != null || round % RECONNECT_ROUNDS == 0))
+							check(r);
+				}
+			}
+		}, "replica-checker");
+		this.checker.setDaemon(true);
+		this.checker.start();
+	}
+
+	//asks a replica for its lag; the pool is opened here once the replica is reachable
+	private void check(Replica r) {
+		try{
+			if (r.pool == null)
+				r.pool = new ConnectionPool(r.url, props, 0, MechanicShop.POOL_MAX_SIZE, CHECKOUT_TIMEOUT_MS,
+					MechanicShop.POOL_IDLE_TIMEOUT_MS, MechanicShop.POOL_LEAK_THRESHOLD_MS, MechanicShop.POOL_VALIDATION_INTERVAL_MS);
+			boolean recovering;
+			long lag;
+			ConnectionPool.PooledConnection pc = r.pool.checkout();
+			try{
+				Statement stmt = pc.getConnection().createStatement();
+				try{
+					stmt.setQueryTimeout((int) Math.max(1, CHECKOUT_TIMEOUT_MS / 1000));
+					ResultSet rs = stmt.executeQuery(SQL_LAG);
+					rs.next();
+					recovering = rs.getBoolean(1);
+					lag = (long) rs.getDouble(2);
+				}finally{
+					stmt.close();
+				}
+			}finally{
+				r.pool.release(pc);
+			}
+			if (!recovering){
+				//promoted, or pointed at a primary: its data may have left the shop's
+				r.up = false;
+				r.problem = "not in recovery, not a replica";
+				return;
+			}
+			r.lagMillis = lag;
+			r.checkedMillis = System.currentTimeMillis();
+			r.problem = null;
+			r.up = true;
+		}catch (SQLException e){
+			r.up = false;
+			r.problem = e.getMessage();
+		}
+	}//end check
+
+	/**
+	 * Method to pick the replica a report reads from.
+	 *
+	 * @param wroteMillis when the session last wrote, 0 when it has not
+	 * @return the replica, or null to read from the primary
+	 */
+	Replica pick(long wroteMillis) {
+		long now = System.currentTimeMillis();
+		boolean anyUp = false;
+		boolean anyFresh = false;
+		int start = next.getAndIncrement();
+		for (int i = 0; i < replicas.size(); ++i){
+			Replica r = replicas.get(Math.floorMod(start + i, replicas.size()));
+			if (!r.up || r.pool == null)
+				continue;
+			anyUp = true;
+			long behind = r.behind(now);
+			if (behind > MAX_LAG_MS)
+				continue;
+			anyFresh = true;
+			//the write may not be replayed there yet
+			if (wroteMillis > 0 && behind >= now - wroteMillis)
+				continue;
+			r.routed.incrementAndGet();
+			return r;
+		}
+		fellBack(!anyUp ? DOWN : !anyFresh ? STALE : OWN_WRITE);
+		return null;
+	}//end pick
+
+	/**
+	 * Method to take a replica out of use after it failed a report; the
+	 * next check brings it back once it answers.
+	 */
+	void failed(Replica r, SQLException e) {
+		r.up = false;
+		r.problem = e.getMessage();
+	}
+
+	/**
+	 * Method to count a report that ran on the primary.
+	 */
+	void fellBack(String reason) {
+		synchronized (fallbacks){
+			Long n = fallbacks.get(reason);
+			fallbacks.put(reason, n == null ? 1 : n + 1);
+		}
+	}
+
+	/**
+	 * Method to describe the replicas and where the reports went, one
+	 * metric per line.
+	 */
+	public String getStats() {
+		long now = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder();
+		sb.append("replicas ").append(replicas.size()).append('\n');
+		for (Replica r : replicas){
+			sb.append("replica_up{replica=\"").append(r.name).append("\"} ").append(r.up ? 1 : 0).append('\n');
+			sb.append("replica_lag_ms{replica=\"").append(r.name).append("\"} ").append(r.lagMillis).append('\n');
+			sb.append("replica_checked_ms_ago{replica=\"").append(r.name).append("\"} ")
+				.append(r.checkedMillis == 0 ? -1 : now - r.checkedMillis).append('\n');
+			sb.append("replica_reports{replica=\"").append(r.name).append("\"} ").append(r.routed.get()).append('\n');
+		}
+		synchronized (fallbacks){
+			for (String reason : new String[] {DOWN, STALE, OWN_WRITE, FAILED}){
+				Long n = fallbacks.get(reason);
+				sb.append("replica_primary_reports{reason=\"").append(reason).append("\"} ").append(n == null ? 0 : n).append('\n');
+			}
+		}
+		return sb.toString();
+	}//end getStats
+
+	/**
+	 * Method to print every replica with its lag, or why it is out of use.
+	 */
+	public void status() {
+		for (Replica r : replicas)
+			System.out.println(r.name + (r.up ? " up, " + r.lagMillis + " ms behind" : " down: " + r.problem));
+	}
+
+	/**
+	 * Method to stop the checks and close the replicas' connections.
+	 */
+	public void close() {
+		closed = true;
+		checker.interrupt();
+		for (Replica r : replicas)
+			if (r.pool != null)
+				r.pool.close();
+	}
+}//end ReplicaRouter
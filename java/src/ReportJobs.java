@@ -0,0 +1,315 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs reports in the background, so a clerk gets the menu back
+ * while a long report is read.  Every report becomes a job with a number,
+ * run on a thread of its own.  The job reads the first keyset page of the
+ * report (see ReportPager), through the result cache or from a read replica
+ * when there is one fresh enough (see ReplicaRouter):
+ *
+ *   - it is cancelled by the DBMS once its statement timeout has passed,
+ *     -Dmechanicshop.jobs.timeoutSec.<report>=<s>, default
+ *     -Dmechanicshop.jobs.timeoutSec (600)
+ *   - cancel() stops it from another thread through Statement.cancel
+ *   - its first page is kept once it is done; the pages after it and the
+ *     exports are read by their keys when the clerk asks for them, so a
+ *     job holds one page however long the report; the last KEEP finished
+ *     jobs are kept
+ *
+ * The jobs are shared by the sessions of a process, so a desk sees every
+ * report running on it.
+ */
+public class ReportJobs {
+	static final int THREADS = Integer.getInteger("mechanicshop.jobs.threads", 2);
+	static final int KEEP = Integer.getInteger("mechanicshop.jobs.keep", 20);
+	static final int TIMEOUT_SEC = Integer.getInteger("mechanicshop.jobs.timeoutSec", 600);
+	//how long the menu waits for a report before leaving it to run
+	static final long WAIT_MS = Long.getLong("mechanicshop.jobs.waitMs", 2000L);
+
+	public enum State { QUEUED, RUNNING, DONE, FAILED, TIMED_OUT, CANCELLED }
+
+	/**
+	 * One report run.
+	 */
+	public final class Job implements MechanicShop.StatementListener, Runnable {
+		private final int id;
+		private final String name;
+		private final String[] header;
+		private final ReportPager.SqlSource report;
+		private final int keyColumns;
+		private final int timeoutSec;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile State state = State.QUEUED;
+		private volatile long startNanos = 0;
+		private volatile long endNanos = 0;
+		private volatile List<List<String>> firstPage = null;
+		private volatile String error = null;
+		private volatile Exception cause = null;
+		//guarded by this
+		private Statement running = null;
+		private boolean cancelled = false;
+		private Future<?> future = null;
+
+		Job(int id, String name, String[] header, ReportPager.SqlSource report, int keyColumns){
+			this.id = id;
+			this.name = name;
+			this.header = header;
+			this.report = report;
+			this.keyColumns = keyColumns;
+			this.timeoutSec = Integer.getInteger("mechanicshop.jobs.timeoutSec." + name, TIMEOUT_SEC);
+		}
+
+		public int getId() { return id; }
+		public String getName() { return name; }
+		public String[] getHeader() { return header; }
+		public int getKeyColumns() { return keyColumns; }
+		public State getState() { return state; }
+		public String getError() { return error; }
+		//what a FAILED or TIMED_OUT job threw
+		public Exception getCause() { return cause; }
+
+		/**
+		 * Method to return the number of rows of the first page, 0 until it
+		 * is read.
+		 */
+		public int getRowCount() {
+			List<List<String>> rows = firstPage;
+			return rows == null ? 0 : rows.size();
+		}
+
+		public boolean isFinished() {
+			return done.getCount() == 0;
+		}
+
+		/**
+		 * Method to wait for the job to finish.
+		 *
+		 * @return whether it finished within the time
+		 */
+		public boolean await(long millis) throws InterruptedException {
+			return done.await(millis, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Method to return the seconds the job has run, so far or in all.
+		 */
+		public double getElapsed() {
+			if (startNanos == 0)
+				return 0;
+			return ((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos) / 1e9;
+		}
+
+		/**
+		 * Method to stop the job: a queued job does not start and the
+		 * statement of a running one is cancelled by the DBMS, its thread
+		 * then records how it ended.
+		 *
+		 * @return false when the job had already finished
+		 */
+		public boolean cancel() {
+			synchronized (this){
+				if (isFinished())
+					return false;
+				cancelled = true;
+				//run() sets RUNNING under this lock, so a queued job has not started
+				if (state == State.QUEUED && future != null && future.cancel(false))
+					finish(State.CANCELLED, null);
+				//under the lock: the job cannot hand its connection back to the pool meanwhile
+				if (running != null){
+					try{
+						running.cancel();
+					}catch (SQLException e){
+						// the statement has just finished.
+					}
+				}
+			}
+			return true;
+		}
+
+		//the job's thread is about to run a statement
+		public synchronized void started(Statement stmt) throws SQLException {
+			if (cancelled)
+				throw new SQLException("Cancelled", "57014");
+			running = stmt;
+		}
+
+		public void run() {
+			synchronized (this){
+				if (cancelled){
+					//cancelled before submit() had its future
+					finish(State.CANCELLED, null);
+					return;
+				}
+				state = State.RUNNING;
+			}
+			startNanos = System.nanoTime();
+			Metrics.Sample sample = esql.getMetrics().startOperation("job " + name);
+			esql.setDeadline(timeoutSec * 1000L);
+			esql.watchStatements(this);
+			try{
+				try{
+					//one row more than a page tells the pager whether there is a next one
+					firstPage = report.page(null, ReportPager.PAGE_SIZE + 1);
+				}finally{
+					//the connection goes back to the pool after this, cancel() must not reach it there
+					synchronized (this){
+						running = null;
+					}
+				}
+				sample.rows(getRowCount());
+				finish(State.DONE, null);
+			}catch (SQLException e){
+				sample.failed(e);
+				boolean wasCancelled;
+				synchronized (this){
+					wasCancelled = cancelled;
+				}
+				cause = e;
+				if (wasCancelled)
+					finish(State.CANCELLED, null);
+				else if ("57014".equals(e.getSQLState()))
+					finish(State.TIMED_OUT, "Cancelled after its timeout of " + timeoutSec + " s");
+				else
+					finish(State.FAILED, e.getMessage());
+			}catch (RuntimeException e){
+				sample.failed(e);
+				cause = e;
+				finish(State.FAILED, e.toString());
+			}finally{
+				esql.unwatchStatements();
+				esql.clearDeadline();
+				sample.stop();
+			}
+		}//end run
+
+		private void finish(State s, String message) {
+			if (isFinished())
+				return;
+			error = message;
+			state = s;
+			endNanos = System.nanoTime();
+			done.countDown();
+			prune();
+		}
+
+		/**
+		 * Method to page the report from the kept first page, reading the
+		 * pages after it by their keys, or export it.
+		 */
+		public ReportPager.Source source() {
+			final List<List<String>> first = firstPage;
+			return new ReportPager.Source() {
+				public List<List<String>> page(List<String> after, int limit) throws SQLException {
+					//the first page was read with PAGE_SIZE + 1 rows
+					if (after == null && first != null && limit <= ReportPager.PAGE_SIZE + 1)
+						return first.subList(0, Math.min(limit, first.size()));
+					return report.page(after, limit);
+				}
+
+				public void export(ResultExporter exporter) throws SQLException, IOException {
+					report.export(exporter);
+				}
+			};
+		}//end source
+	}//end Job
+
+	private final MechanicShop esql;
+	private final ExecutorService executor;
+	private final AtomicInteger nextId = new AtomicInteger(1);
+	//by id, oldest first; guarded by itself
+	private final Map<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+
+	public ReportJobs(MechanicShop esql) {
+		this.esql = esql;
+		this.executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "report-job-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Method to queue a report, see ReportPager.SqlSource for the pages.
+	 *
+	 * @param name the report, as the menu and the metrics name it
+	 * @param header the column names shown
+	 * @param pageSql the report with its key columns appended, a page at a
+	 *        time
+	 * @param firstKey the key values that come before every row
+	 * @param reportSql the report without key columns, for exports
+	 * @return the queued job
+	 */
+	public Job submit(String name, String[] header, String pageSql, Object[] firstKey, String reportSql) {
+		ReportPager.SqlSource report = new ReportPager.SqlSource(esql, header, pageSql, firstKey, reportSql);
+		Job job = new Job(nextId.getAndIncrement(), name, header, report, firstKey.length);
+		synchronized (jobs){
+			jobs.put(job.getId(), job);
+		}
+		synchronized (job){
+			job.future = executor.submit(job);
+		}
+		return job;
+	}
+
+	/**
+	 * Method to return a job by its number, null when it is unknown or no
+	 * longer kept.
+	 */
+	public Job get(int id) {
+		synchronized (jobs){
+			return jobs.get(id);
+		}
+	}
+
+	/**
+	 * Method to return the jobs kept, oldest first.
+	 */
+	public List<Job> list() {
+		synchronized (jobs){
+			return new ArrayList<Job>(jobs.values());
+		}
+	}
+
+	//drops the oldest finished jobs past KEEP
+	private void prune() {
+		synchronized (jobs){
+			int finished = 0;
+			for (Job j : jobs.values())
+				if (j.isFinished())
+					++finished;
+			for (Iterator<Job> it = jobs.values().iterator(); it.hasNext() && finished > KEEP; ){
+				if (it.next().isFinished()){
+					it.remove();
+					--finished;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Method to cancel every job and stop the threads.
+	 */
+	public void close() {
+		for (Job j : list())
+			j.cancel();
+		executor.shutdownNow();
+	}
+}//end ReportJobs
@@ -0,0 +1,205 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class shows a report one page at a time and lets the clerk move to
+ * the next or previous page, or export the whole report to CSV or JSON.
+ *
+ * Pages are read with keyset paging: every page row ends with the columns
+ * of a unique sort key, which are not shown, and the next page is asked for
+ * as "the rows after the last key of this page".  Each page is then one
+ * index range read however deep the clerk pages, unlike OFFSET.  The key
+ * before every page shown is kept, so going back re-reads the earlier page
+ * from its key.  Pages hold -Dmechanicshop.pageSize rows (default 50).
+ */
+public class ReportPager {
+	static final int PAGE_SIZE = Integer.getInteger("mechanicshop.pageSize", 50);
+
+	/**
+	 * Where the rows of a report come from.
+	 */
+	public interface Source {
+		/**
+		 * Method to read a page.
+		 *
+		 * @param after the key of the last row of the page before, null for
+		 *        the first page
+		 * @param limit the most rows to return
+		 * @return the rows in key order, each followed by its key columns
+		 */
+		List<List<String>> page(List<String> after, int limit) throws SQLException;
+
+		/**
+		 * Method to write the whole report, without key columns.
+		 */
+		void export(ResultExporter exporter) throws SQLException, IOException;
+	}
+
+	/**
+	 * Pages a query whose sort key is made of integer columns.
+	 */
+	static class SqlSource implements Source {
+		private final MechanicShop esql;
+		private final String[] header;
+		private final String pageSql;
+		private final Object[] firstKey;
+		private final String reportSql;
+		//when the session that made it last wrote, see MechanicShop.onReplica
+		private final long wroteMillis;
+
+		/**
+		 * @param pageSql the report with its key columns appended, taking the
+		 *        key values then the limit as parameters
+		 * @param firstKey the key values that come before every row
+		 * @param reportSql the report without key columns or parameters
+		 */
+		SqlSource(MechanicShop esql, String[] header, String pageSql, Object[] firstKey, String reportSql){
+			this.esql = esql;
+			this.header = header;
+			this.pageSql = pageSql;
+			this.firstKey = firstKey;
+			this.reportSql = reportSql;
+			this.wroteMillis = esql.lastWrite();
+		}
+
+		public List<List<String>> page(List<String> after, int limit) throws SQLException {
+			Object[] params = Arrays.copyOf(firstKey, firstKey.length + 1);
+			if (after != null)
+				for (int k = 0; k < firstKey.length; ++k)
+					params[k] = Long.valueOf(after.get(k));
+			params[firstKey.length] = limit;
+			//the keys carry the place over, so each page may come from another replica
+			return esql.reportQuery(wroteMillis, pageSql, params);
+		}
+
+		public void export(final ResultExporter exporter) throws SQLException, IOException {
+			final boolean[] started = {false};
+			esql.onReplica(wroteMillis, new MechanicShop.SQLWork<Void>() {
+				public Void run(Connection c) throws SQLException {
+					esql.streamQuery(reportSql, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+						public void handle(ResultRow row) throws SQLException {
+							try{
+								if (!started[0]){
+									exporter.begin(header, ResultExporter.numericColumns(row.getMetaData()));
+									started[0] = true;
+								}
+								exporter.add(row);
+							}catch (IOException e){
+								throw new SQLException("Export failed: " + e.getMessage(), e);
+							}
+						}
+					});
+					return null;
+				}
+			});
+			if (!started[0])
+				exporter.begin(header, null);
+		}
+	}//end SqlSource
+
+	private final String[] header;
+	private final Source source;
+	private final int keyColumns;
+	private final int pageSize;
+
+	public ReportPager(String[] header, int keyColumns, Source source) {
+		this(header, keyColumns, source, PAGE_SIZE);
+	}
+
+	public ReportPager(String[] header, int keyColumns, Source source, int pageSize) {
+		this.header = header;
+		this.keyColumns = keyColumns;
+		this.source = source;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Method to show the first page and follow the clerk's choices until
+	 * they go back to the menu.
+	 *
+	 * @param in where the choices are read from
+	 * @throws java.sql.SQLException when a page cannot be read
+	 * @throws java.io.IOException when the input cannot be read
+	 */
+	public void run(BufferedReader in) throws SQLException, IOException {
+		List<List<String>> before = new ArrayList<List<String>>();
+		List<String> after = null;
+		int first = 1;
+		while (true){
+			//one row more than shown tells whether there is a next page
+			List<List<String>> rows = source.page(after, pageSize + 1);
+			boolean more = rows.size() > pageSize;
+			if (more)
+				rows = rows.subList(0, pageSize);
+			ResultRenderer out = ResultRenderer.get();
+			out.begin(header);
+			for (List<String> row : rows)
+				out.add(row.subList(0, row.size() - keyColumns).toArray(new String[header.length]));
+			out.end();
+			if (rows.isEmpty() && first == 1){
+				System.out.println("total row(s): 0");
+				return;
+			}
+			System.out.println(String.format("row(s) %d-%d%s", first, first + rows.size() - 1, more ? "" : " (end)"));
+
+			String choice = prompt(in, more, !before.isEmpty());
+			if (choice.equals("n") && more){
+				before.add(after);
+				List<String> last = rows.get(rows.size() - 1);
+				after = new ArrayList<String>(last.subList(last.size() - keyColumns, last.size()));
+				first += pageSize;
+			}else if (choice.equals("p") && !before.isEmpty()){
+				after = before.remove(before.size() - 1);
+				first -= pageSize;
+			}else{
+				return;
+			}
+		}
+	}//end run
+
+	//handles exports in place, returns n, p or anything else for back
+	private String prompt(BufferedReader in, boolean next, boolean previous) throws SQLException, IOException {
+		while (true){
+			System.out.print((next ? "n: next page, " : "") + (previous ? "p: previous page, " : "") +
+				"e: export, Enter: back to menu ");
+			String line = in.readLine();
+			String choice = line == null ? "" : line.trim().toLowerCase();
+			if (!choice.equals("e"))
+				return choice;
+			System.out.print("Export to file (.csv or .json): ");
+			String file = in.readLine();
+			if (file == null || file.trim().isEmpty())
+				continue;
+			try{
+				long rows = export(file.trim());
+				System.out.println(rows + " row(s) written to " + file.trim());
+			}catch (IOException e){
+				System.out.println("Export failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Method to write the whole report to a file, CSV or JSON by its
+	 * extension.
+	 *
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when the report cannot be read
+	 * @throws java.io.IOException when the file cannot be written
+	 */
+	public long export(String file) throws SQLException, IOException {
+		ResultExporter exporter = new ResultExporter(Paths.get(file), ResultExporter.Format.of(file));
+		try{
+			source.export(exporter);
+		}finally{
+			exporter.close();
+		}
+		return exporter.getRowCount();
+	}
+}//end ReportPager
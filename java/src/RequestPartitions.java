@@ -0,0 +1,284 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class looks after the monthly partitions of Service_Request and
+ * Closed_Request (see migration V7).  Every month has a partition in both
+ * tables, service_request_y2016m10 and closed_request_y2016m10, the closed
+ * requests filed under the month of their request.
+ *
+ * ensure() creates the months up to MONTHS_AHEAD ahead of today; it runs
+ * on every start, after the migrations.  archive() takes the months that
+ * ended more than a retention window ago and have no open request left out
+ * of the two tables: they are detached into the archive schema, where they
+ * can still be queried, or exported to gzipped files and dropped.  The
+ * reports, the billing totals and the open request counts then cover the
+ * months still attached.
+ */
+public class RequestPartitions {
+	static final int MONTHS_AHEAD = Integer.getInteger("mechanicshop.partitions.monthsAhead", 12);
+	static final int RETENTION_MONTHS = Integer.getInteger("mechanicshop.partitions.retentionMonths", 24);
+	static final String ARCHIVE_SCHEMA = "archive";
+
+	private static final String SQL_MONTHS =
+		"SELECT substring(c.relname from 17) FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+		"WHERE i.inhparent = 'service_request'::regclass ORDER BY 1";
+
+	private final MechanicShop esql;
+
+	public RequestPartitions(MechanicShop esql) {
+		this.esql = esql;
+	}
+
+	/**
+	 * Method to create the partitions of this month and the MONTHS_AHEAD
+	 * months after it where they are missing.
+	 *
+	 * @return the number of months created
+	 * @throws java.sql.SQLException when a partition cannot be created
+	 */
+	public int ensure() throws SQLException {
+		return esql.inTransaction(new MechanicShop.SQLWork<Integer>() {
+			public Integer run(Connection c) throws SQLException {
+				if (!isPartitioned(c, "service_request"))
+					return 0;
+				PreparedStatement stmt = c.prepareStatement(
+					"SELECT request_partitions_create(CURRENT_DATE, (CURRENT_DATE + make_interval(months => ?))::DATE)");
+				try{
+					stmt.setInt(1, MONTHS_AHEAD);
+					ResultSet rs = stmt.executeQuery();
+					rs.next();
+					return rs.getInt(1);
+				}finally{
+					stmt.close();
+				}
+			}
+		});
+	}//end ensure
+
+	/**
+	 * Method to print every month with its requests, how many of them are
+	 * still open and the size of its two partitions.
+	 *
+	 * @throws java.sql.SQLException when the partitions cannot be read
+	 */
+	public void list() throws SQLException {
+		List<String> months = months();
+		System.out.println(String.format("%-10s %10s %10s %10s", "month", "requests", "open", "size"));
+		for (String month : months){
+			List<List<String>> row = esql.executeQueryAndReturnResult(
+				"SELECT COUNT(*), COUNT(*) - COUNT(c.wid), " +
+				"pg_size_pretty(pg_total_relation_size('service_request_" + month + "') + pg_total_relation_size('closed_request_" + month + "')) " +
+				"FROM service_request_" + month + " s LEFT JOIN closed_request_" + month + " c ON c.rid = s.rid");
+			System.out.println(String.format("%-10s %10s %10s %10s", month, row.get(0).get(0), row.get(0).get(1), row.get(0).get(2)));
+		}
+		System.out.println(months.size() + " month(s)");
+	}//end list
+
+	/**
+	 * Method to archive the months that ended more than retentionMonths ago
+	 * and whose requests are all closed.  A month with open requests is kept
+	 * until they are closed.
+	 *
+	 * @param retentionMonths how many months before this one stay attached
+	 * @param exportDir where to write <partition>.csv.gz before dropping the
+	 *        archived partitions, or null to keep them in the archive schema
+	 * @return the number of months archived
+	 * @throws java.sql.SQLException when a partition cannot be detached or
+	 *         exported; a month that fails to export stays in the archive
+	 *         schema
+	 * @throws java.io.IOException when the export directory cannot be created
+	 */
+	public int archive(int retentionMonths, File exportDir) throws SQLException, IOException {
+		if (exportDir != null && !exportDir.isDirectory() && !exportDir.mkdirs())
+			throw new IOException("Cannot create " + exportDir.getPath());
+		List<List<String>> cutoff = esql.executeQueryAndReturnResult(
+			"SELECT to_char(date_trunc('month', CURRENT_DATE) - make_interval(months => ?), '\"y\"YYYY\"m\"MM')", retentionMonths);
+		String before = cutoff.get(0).get(0);
+		int archived = 0;
+		//y2016m10 sorts as its date does
+		for (String month : months()){
+			if (month.compareTo(before) >= 0)
+				break;
+			if (detach(month)){
+				++archived;
+				if (exportDir != null)
+					export(month, exportDir);
+			}
+		}
+		if (archived > 0){
+			//the derived tables now cover the attached months only
+			esql.inTransaction(new MechanicShop.SQLWork<Void>() {
+				public Void run(Connection c) throws SQLException {
+					BulkLoader.rebuildDerived(c);
+					Statement stmt = c.createStatement();
+					try{
+						//detaching fires no trigger, cached reports of the request tables go stale
+						stmt.execute("SELECT pg_notify('mechanicshop_changes', 'service_request'), pg_notify('mechanicshop_changes', 'closed_request')");
+					}finally{
+						stmt.close();
+					}
+					return null;
+				}
+			});
+		}
+		System.out.println(String.format("Archived %d month(s) before %s%s", archived, before,
+			exportDir != null ? " to " + exportDir.getPath() : " into schema " + ARCHIVE_SCHEMA));
+		return archived;
+	}//end archive
+
+	/**
+	 * Detaches one month unless it has open requests.
+	 */
+	private boolean detach(final String month) throws SQLException {
+		final String requests = "service_request_" + month;
+		final String closed = "closed_request_" + month;
+		return esql.inTransaction(new MechanicShop.SQLWork<Boolean>() {
+			public Boolean run(Connection c) throws SQLException {
+				Statement stmt = c.createStatement();
+				try{
+					//detaching locks the tables out anyway, taken first so the check sees the final state
+					stmt.execute("LOCK TABLE Service_Request, Closed_Request IN ACCESS EXCLUSIVE MODE");
+					ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + requests + " s " +
+						"WHERE NOT EXISTS (SELECT 1 FROM " + closed + " c WHERE c.rid = s.rid)");
+					rs.next();
+					long open = rs.getLong(1);
+					rs.close();
+					if (open > 0){
+						System.out.println(String.format("Kept %s, %d open request(s)", month, open));
+						return false;
+					}
+					//the closed requests first, they reference the requests
+					stmt.execute("ALTER TABLE Closed_Request DETACH PARTITION " + closed);
+					dropForeignKeys(stmt, closed);
+					stmt.execute("ALTER TABLE Service_Request DETACH PARTITION " + requests);
+					dropForeignKeys(stmt, requests);
+					stmt.execute("CREATE SCHEMA IF NOT EXISTS " + ARCHIVE_SCHEMA);
+					stmt.execute("ALTER TABLE " + closed + " SET SCHEMA " + ARCHIVE_SCHEMA);
+					stmt.execute("ALTER TABLE " + requests + " SET SCHEMA " + ARCHIVE_SCHEMA);
+				}finally{
+					stmt.close();
+				}
+				System.out.println("Archived " + month);
+				return true;
+			}
+		});
+	}//end detach
+
+	//an archived month no longer holds back deletes of customers, cars or mechanics
+	private static void dropForeignKeys(Statement stmt, String table) throws SQLException {
+		List<String> keys = new ArrayList<String>();
+		ResultSet rs = stmt.executeQuery("SELECT conname FROM pg_constraint WHERE contype = 'f' AND conrelid = '" + table + "'::regclass");
+		while (rs.next())
+			keys.add(rs.getString(1));
+		rs.close();
+		for (String k : keys)
+			stmt.execute("ALTER TABLE " + table + " DROP CONSTRAINT " + k);
+	}
+
+	/**
+	 * Writes the two archived tables of a month to gzipped files and drops
+	 * them.
+	 */
+	private void export(final String month, final File dir) throws SQLException {
+		esql.inTransaction(new MechanicShop.SQLWork<Void>() {
+			public Void run(Connection c) throws SQLException {
+				CopyManager copy = c.unwrap(PGConnection.class).getCopyAPI();
+				Statement stmt = c.createStatement();
+				try{
+					for (String table : new String[] {"service_request_" + month, "closed_request_" + month}){
+						File file = new File(dir, table + ".csv.gz");
+						OutputStream out = new GZIPOutputStream(new FileOutputStream(file), 1 << 16);
+						try{
+							copy.copyOut("COPY " + ARCHIVE_SCHEMA + "." + table + " TO STDOUT WITH DELIMITER ','", out);
+						}finally{
+							out.close();
+						}
+					}
+					stmt.execute("DROP TABLE " + ARCHIVE_SCHEMA + ".closed_request_" + month + ", " + ARCHIVE_SCHEMA + ".service_request_" + month);
+				}catch (IOException e){
+					throw new SQLException("Exporting " + month + " failed, it stays in schema " + ARCHIVE_SCHEMA + ": " + e.getMessage(), e);
+				}finally{
+					stmt.close();
+				}
+				return null;
+			}
+		});
+		System.out.println("Exported " + month + " to " + dir.getPath());
+	}//end export
+
+	private List<String> months() throws SQLException {
+		List<String> months = new ArrayList<String>();
+		for (List<String> row : esql.executeQueryAndReturnResult(SQL_MONTHS))
+			months.add(row.get(0));
+		return months;
+	}
+
+	/**
+	 * Whether migration V7 has partitioned a table.
+	 */
+	static boolean isPartitioned(Connection c, String table) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement(
+			"SELECT COALESCE((SELECT relkind = 'p' FROM pg_class WHERE oid = to_regclass(?)), false)");
+		try{
+			stmt.setString(1, table);
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			return rs.getBoolean(1);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to COPY rows into one of the six tables inside the caller's
+	 * transaction.  A partitioned request table is loaded through a
+	 * temporary table, so the months of its rows can be created first and
+	 * the closed requests get the date of their request.
+	 *
+	 * @return the number of rows copied
+	 * @throws java.sql.SQLException when the COPY or the insert fails
+	 * @throws java.io.IOException when the rows cannot be read
+	 */
+	static long copyIn(Connection c, String table, String columns, InputStream in) throws SQLException, IOException {
+		CopyManager copy = c.unwrap(PGConnection.class).getCopyAPI();
+		if (!isPartitioned(c, table))
+			return copy.copyIn("COPY " + table + " (" + columns + ") FROM STDIN WITH DELIMITER ','", in, 1 << 16);
+
+		String stage = table.toLowerCase() + "_copy";
+		Statement stmt = c.createStatement();
+		try{
+			//without the NOT NULL of request_date
+			stmt.execute("CREATE TEMP TABLE " + stage + " ON COMMIT DROP AS SELECT " + columns + " FROM " + table + " WITH NO DATA");
+			long rows = copy.copyIn("COPY " + stage + " (" + columns + ") FROM STDIN WITH DELIMITER ','", in, 1 << 16);
+			if (table.equalsIgnoreCase("Service_Request")){
+				stmt.execute("SELECT request_partitions_create(MIN(date), MAX(date)) FROM " + stage);
+				stmt.executeUpdate("INSERT INTO Service_Request (" + columns + ") SELECT " + columns + " FROM " + stage);
+			}else if (table.equalsIgnoreCase("Closed_Request")){
+				//a close of an unknown request fails on the NOT NULL
+				stmt.executeUpdate("INSERT INTO Closed_Request (" + columns + ", request_date) " +
+					"SELECT c." + columns.replace(", ", ", c.") + ", s.date FROM " + stage + " c LEFT JOIN Service_Request s ON s.rid = c.rid");
+			}else{
+				throw new SQLException("Unexpected partitioned table " + table);
+			}
+			stmt.execute("DROP TABLE " + stage);
+			return rows;
+		}finally{
+			stmt.close();
+		}
+	}//end copyIn
+}//end RequestPartitions
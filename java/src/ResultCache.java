@@ -0,0 +1,446 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class caches the results of registered read-only queries, keyed by
+ * SQL template and parameters, in least-recently-used order and bounded by
+ * an estimate of the memory the results take.
+ *
+ * Every entry remembers the tables its query reads.  A write through
+ * executeUpdate drops the entries that read the written table right away;
+ * writes by other processes arrive as notifications on the
+ * mechanicshop_changes channel (migration V4), which a listener thread
+ * polls on a connection of its own every -Dmechanicshop.cache.pollMs
+ * (default 200).  The cache is only used while that listener is
+ * connected, and it is emptied whenever the listener (re)connects, since
+ * notifications may have been missed in between.
+ *
+ * Other in-memory structures can have the same listener deliver the
+ * notifications of further channels to them, see subscribe().
+ */
+public class ResultCache {
+	static final String CHANNEL = "mechanicshop_changes";
+	static final long DEFAULT_MAX_BYTES = 32L << 20;
+	static final long POLL_MS = Long.getLong("mechanicshop.cache.pollMs", 200L);
+	static final long RETRY_MS = 5000L;
+
+	private static final Pattern TABLE = Pattern.compile(
+		"\\b(customer|mechanic|car|owns|service_request|closed_request|customer_billing|car_open_requests)\\b",
+		Pattern.CASE_INSENSITIVE);
+	private static final Pattern WRITE_TARGET = Pattern.compile(
+		"\\b(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE(?:\\s+TABLE)?)\\s+(\\w+)",
+		Pattern.CASE_INSENSITIVE);
+	//tables kept by triggers, and the tables whose writes change them
+	private static final Map<String, String[]> DERIVED = new HashMap<String, String[]>();
+	static {
+		DERIVED.put("closed_request", new String[] {"customer_billing", "car_open_requests"});
+		DERIVED.put("service_request", new String[] {"customer_billing", "car_open_requests"});
+	}
+
+	/**
+	 * Receives the notifications of a channel, on the listener thread.
+	 */
+	public interface Subscriber {
+		void notified(String payload);
+
+		/**
+		 * Called whenever the listener has (re)connected; notifications
+		 * sent while it was not connected are lost.
+		 */
+		void connected();
+	}
+
+	/**
+	 * A query template with its parameter values.
+	 */
+	private static class Key {
+		final String sql;
+		final Object[] params;
+		final int hash;
+
+		Key(String sql, Object[] params){
+			this.sql = sql;
+			this.params = params.clone();
+			this.hash = 31 * sql.hashCode() + Arrays.hashCode(params);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return hash == k.hash && sql.equals(k.sql) && Arrays.equals(params, k.params);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * One cached result.  The rows must not be modified.
+	 */
+	public static class Entry {
+		private final String[] columns;
+		private final List<List<String>> rows;
+		private final Set<String> tables;
+		private final long bytes;
+
+		Entry(String[] columns, List<List<String>> rows, Set<String> tables){
+			this.columns = columns;
+			this.rows = rows;
+			this.tables = tables;
+			this.bytes = estimate(columns, rows);
+		}
+
+		public String[] getColumns() {
+			return columns;
+		}
+
+		public List<List<String>> getRows() {
+			return rows;
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final long maxBytes;
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	//table -> keys of the entries that read it
+	private final Map<String, Set<Key>> readers = new HashMap<String, Set<Key>>();
+	//template -> tables it reads, only for registered templates
+	private final Map<String, Set<String>> templates = new ConcurrentHashMap<String, Set<String>>();
+	//bumped on every invalidation, so a result read across one is not cached
+	private final Map<String, AtomicLong> versions = new ConcurrentHashMap<String, AtomicLong>();
+	//channel -> subscriber, other than CHANNEL
+	private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<String, Subscriber>();
+	private volatile boolean listening = false;
+	private volatile boolean closed = false;
+	private Thread listener = null;
+
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+	private long notifications = 0;
+
+	public ResultCache(ConnectionPool pool, long maxBytes) {
+		this.pool = pool;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Method to allow a query template to be cached.  Only read-only
+	 * queries over committed data may be registered.
+	 */
+	public void register(String sql) {
+		templates.put(sql, Collections.unmodifiableSet(tablesOf(sql)));
+	}
+
+	/**
+	 * Whether the results of a template may come from the cache right now.
+	 */
+	public boolean isCacheable(String sql) {
+		return listening && templates.containsKey(sql);
+	}
+
+	/**
+	 * Method to look up a cached result.
+	 *
+	 * @return the entry, or null on a miss
+	 */
+	public synchronized Entry get(String sql, Object[] params) {
+		Entry e = entries.get(new Key(sql, params));
+		if (e == null)
+			++misses;
+		else
+			++hits;
+		return e;
+	}
+
+	/**
+	 * Method to read the versions of the tables a template reads before
+	 * running it; pass the value to put().
+	 */
+	public long stamp(String sql) {
+		long stamp = 0;
+		for (String table : templates.get(sql))
+			stamp += version(table).get();
+		return stamp;
+	}
+
+	/**
+	 * Method to cache a result read after stamp(sql) returned the given
+	 * value.  The result is dropped if one of its tables was written since,
+	 * or if it alone would take more than a quarter of the cache.
+	 *
+	 * @return the entry for the result, cached or not
+	 */
+	public Entry put(String sql, Object[] params, long stamp, String[] columns, List<List<String>> rows) {
+		List<List<String>> frozen = new ArrayList<List<String>>(rows.size());
+		for (List<String> row : rows)
+			frozen.add(Collections.unmodifiableList(row));
+		Set<String> tables = templates.get(sql);
+		Entry e = new Entry(columns, Collections.unmodifiableList(frozen), tables);
+		synchronized (this){
+			if (stamp != stamp(sql) || e.bytes > maxBytes / 4)
+				return e;
+			Key key = new Key(sql, params);
+			Entry old = entries.put(key, e);
+			if (old != null)
+				bytes -= old.bytes;
+			bytes += e.bytes;
+			for (String table : tables){
+				Set<Key> keys = readers.get(table);
+				if (keys == null){
+					keys = new HashSet<Key>();
+					readers.put(table, keys);
+				}
+				keys.add(key);
+			}
+			evict();
+		}
+		return e;
+	}//end put
+
+	//drops least recently used entries until the cache fits
+	private void evict() {
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()){
+			Map.Entry<Key, Entry> eldest = it.next();
+			it.remove();
+			forget(eldest.getKey(), eldest.getValue());
+			++evictions;
+		}
+	}
+
+	private void forget(Key key, Entry e) {
+		bytes -= e.bytes;
+		for (String table : e.tables){
+			Set<Key> keys = readers.get(table);
+			if (keys != null)
+				keys.remove(key);
+		}
+	}
+
+	/**
+	 * Method to drop the entries that read the tables a statement writes.
+	 *
+	 * @param sql an INSERT, UPDATE, DELETE or TRUNCATE statement, or a
+	 *        WITH query with such parts
+	 */
+	public void invalidateWrite(String sql) {
+		Matcher m = WRITE_TARGET.matcher(sql);
+		while (m.find())
+			invalidate(m.group(1));
+	}
+
+	/**
+	 * Method to drop the entries that read a table, or a table derived
+	 * from it.
+	 */
+	public synchronized void invalidate(String table) {
+		table = table.toLowerCase(Locale.ROOT);
+		drop(table);
+		String[] derived = DERIVED.get(table);
+		if (derived != null)
+			for (String d : derived)
+				drop(d);
+	}
+
+	private void drop(String table) {
+		version(table).incrementAndGet();
+		Set<Key> keys = readers.remove(table);
+		if (keys == null)
+			return;
+		for (Key key : keys){
+			Entry e = entries.remove(key);
+			if (e != null){
+				forget(key, e);
+				++invalidations;
+			}
+		}
+	}
+
+	/**
+	 * Method to drop every entry.
+	 */
+	public synchronized void clear() {
+		for (String table : templatesTables())
+			version(table).incrementAndGet();
+		invalidations += entries.size();
+		entries.clear();
+		readers.clear();
+		bytes = 0;
+	}
+
+	private Set<String> templatesTables() {
+		Set<String> all = new HashSet<String>();
+		for (Set<String> tables : templates.values())
+			all.addAll(tables);
+		return all;
+	}
+
+	private AtomicLong version(String table) {
+		AtomicLong v = versions.get(table);
+		if (v == null){
+			versions.putIfAbsent(table, new AtomicLong());
+			v = versions.get(table);
+		}
+		return v;
+	}
+
+	/**
+	 * Method to have the listener deliver the notifications of another
+	 * channel; call it before start().
+	 */
+	public void subscribe(String channel, Subscriber subscriber) {
+		subscribers.put(channel, subscriber);
+	}
+
+	/**
+	 * Method to start the thread that listens for writes by other
+	 * processes.  Until it has connected nothing is served from the cache.
+	 */
+	public synchronized void start() {
+		if (listener != null)
+			return;
+		listener = new Thread(new Runnable() {
+			public void run() {
+				listen();
+			}
+		}, "result-cache-listener");
+		listener.setDaemon(true);
+		listener.start();
+	}
+
+	private void listen() {
+		while (!closed){
+			Connection c = null;
+			try{
+				c = pool.openUnpooled();
+				Statement stmt = c.createStatement();
+				stmt.execute("LISTEN " + CHANNEL);
+				for (String channel : subscribers.keySet())
+					stmt.execute("LISTEN " + channel);
+				PGConnection pg = c.unwrap(PGConnection.class);
+				//anything cached before now may have missed a notification
+				clear();
+				listening = true;
+				for (Subscriber sub : subscribers.values())
+					sub.connected();
+				while (!closed){
+					//notifications are only read off the socket by a round trip
+					stmt.executeQuery("SELECT 1").close();
+					PGNotification[] ns = pg.getNotifications();
+					if (ns != null)
+						for (PGNotification n : ns){
+							synchronized (this){
+								++notifications;
+							}
+							Subscriber sub = subscribers.get(n.getName());
+							if (sub != null)
+								sub.notified(n.getParameter());
+							else
+								invalidate(n.getParameter());
+						}
+					Thread.sleep(POLL_MS);
+				}
+			}catch (SQLException e){
+				if (!closed)
+					System.err.println("Warning - result cache listener disconnected: " + e.getMessage());
+			}catch (InterruptedException e){
+				return;
+			}finally{
+				listening = false;
+				if (c != null){
+					try{
+						c.close();
+					}catch (SQLException e){
+						// ignored.
+					}
+				}
+			}
+			try{
+				Thread.sleep(RETRY_MS);
+			}catch (InterruptedException e){
+				return;
+			}
+		}
+	}//end listen
+
+	/**
+	 * Method to stop the listener and drop every entry.
+	 */
+	public void close() {
+		closed = true;
+		listening = false;
+		Thread t;
+		synchronized (this){
+			t = listener;
+		}
+		if (t != null)
+			t.interrupt();
+		clear();
+	}
+
+	/**
+	 * Method to describe the cache, one metric per line.
+	 *
+	 * @return the metrics as "name value" lines
+	 */
+	public synchronized String getStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("result_cache_listening ").append(listening ? 1 : 0).append('\n');
+		sb.append("result_cache_entries ").append(entries.size()).append('\n');
+		sb.append("result_cache_bytes ").append(bytes).append('\n');
+		sb.append("result_cache_bytes_max ").append(maxBytes).append('\n');
+		sb.append("result_cache_hits_total ").append(hits).append('\n');
+		sb.append("result_cache_misses_total ").append(misses).append('\n');
+		sb.append(String.format("result_cache_hit_ratio %.3f%n", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses)));
+		sb.append("result_cache_evictions_total ").append(evictions).append('\n');
+		sb.append("result_cache_invalidations_total ").append(invalidations).append('\n');
+		sb.append("result_cache_notifications_total ").append(notifications).append('\n');
+		return sb.toString();
+	}
+
+	private static Set<String> tablesOf(String sql) {
+		Set<String> tables = new HashSet<String>();
+		Matcher m = TABLE.matcher(sql);
+		while (m.find())
+			tables.add(m.group(1).toLowerCase(Locale.ROOT));
+		return tables;
+	}
+
+	//rough heap size of a result: object headers, references and chars
+	private static long estimate(String[] columns, List<List<String>> rows) {
+		long size = 64 + 16L * columns.length;
+		for (List<String> row : rows){
+			size += 48 + 8L * row.size();
+			for (String value : row)
+				if (value != null)
+					size += 40 + 2L * value.length();
+		}
+		return size;
+	}
+}//end ResultCache
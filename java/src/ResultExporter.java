@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * This class writes a query result to a CSV or JSON file through a
+ * FileChannel, or to any other channel such as an HTTP response.  Values
+ * are encoded as UTF-8 straight into one direct ByteBuffer that is written
+ * out whenever it fills, so no line or row String is ever built.
+ *
+ *   CSV   RFC 4180, a header line then one line per row; NULL is empty
+ *   JSON  an array with one object per row and line; numbers are unquoted
+ *
+ * Trailing blanks are dropped from every value, as in ResultRenderer.
+ */
+public class ResultExporter implements AutoCloseable {
+	static final int BUFFER_BYTES = 64 * 1024;
+
+	public enum Format {
+		CSV, JSON;
+
+		/**
+		 * Method to pick the format of a file from its extension, CSV unless
+		 * it ends in .json.
+		 */
+		static Format of(String fileName) {
+			return fileName.toLowerCase().endsWith(".json") ? JSON : CSV;
+		}
+	}
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private final WritableByteChannel channel;
+	private final Format format;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES);
+	private String[] names = null;
+	private boolean[] numeric = null;
+	private long rowCount = 0;
+	private int column = 0;
+
+	/**
+	 * Method to create or replace the file.
+	 *
+	 * @throws java.io.IOException when the file cannot be opened
+	 */
+	public ResultExporter(Path path, Format format) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		this.format = format;
+	}
+
+	/**
+	 * Method to write to a channel that is not a file, e.g. a response body.
+	 * The channel is closed with the exporter.
+	 */
+	public ResultExporter(WritableByteChannel channel, Format format) {
+		this.channel = channel;
+		this.format = format;
+	}
+
+	/**
+	 * Method to start the result.
+	 *
+	 * @param names the column names
+	 * @param numeric which columns hold numbers, written unquoted in JSON;
+	 *        null when none do
+	 */
+	public void begin(String[] names, boolean[] numeric) throws IOException {
+		this.names = names;
+		this.numeric = numeric != null ? numeric : new boolean[names.length];
+		if (format == Format.JSON){
+			put('[');
+			return;
+		}
+		for (int c = 0; c < names.length; ++c){
+			if (c > 0)
+				put(',');
+			csv(names[c], names[c].length());
+		}
+		put('\r');
+		put('\n');
+	}
+
+	/**
+	 * Method to tell from the metadata which columns hold numbers, for
+	 * begin().
+	 */
+	static boolean[] numericColumns(ResultSetMetaData rsmd) throws SQLException {
+		boolean[] numeric = new boolean[rsmd.getColumnCount()];
+		for (int c = 0; c < numeric.length; ++c){
+			switch (rsmd.getColumnType(c + 1)){
+				case Types.NUMERIC:
+				case Types.DECIMAL:
+				case Types.REAL:
+				case Types.FLOAT:
+				case Types.DOUBLE:
+					numeric[c] = true;
+					break;
+				default:
+					numeric[c] = ColumnarResult.kindOf(rsmd, c + 1) != ColumnarResult.STRING;
+			}
+		}
+		return numeric;
+	}
+
+	/**
+	 * Method to write one row.
+	 */
+	public void add(String[] values) throws IOException {
+		startRow();
+		for (String value : values)
+			value(value);
+		endRow();
+	}
+
+	/**
+	 * Method to write the current row of a streamed query.
+	 */
+	public void add(ResultRow row) throws IOException, SQLException {
+		startRow();
+		for (int c = 1; c <= names.length; ++c)
+			value(row.getString(c));
+		endRow();
+	}
+
+	private void startRow() throws IOException {
+		if (format == Format.JSON){
+			if (rowCount > 0)
+				put(',');
+			put('\n');
+			put('{');
+		}
+		column = 0;
+	}
+
+	private void value(String value) throws IOException {
+		int end = value == null ? 0 : ResultRenderer.trimmedLength(value);
+		if (format == Format.CSV){
+			if (column > 0)
+				put(',');
+			if (value != null)
+				csv(value, end);
+		}else{
+			if (column > 0)
+				put(',');
+			json(names[column], names[column].length());
+			put(':');
+			if (value == null){
+				ascii("null");
+			}else if (numeric[column]){
+				utf8(value, 0, end);
+			}else{
+				json(value, end);
+			}
+		}
+		++column;
+	}
+
+	private void endRow() throws IOException {
+		if (format == Format.JSON){
+			put('}');
+		}else{
+			put('\r');
+			put('\n');
+		}
+		++rowCount;
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Method to finish the file and close it.
+	 */
+	@Override
+	public void close() throws IOException {
+		try{
+			if (format == Format.JSON && names != null){
+				if (rowCount > 0)
+					put('\n');
+				put(']');
+				put('\n');
+			}
+			drain();
+			if (channel instanceof FileChannel)
+				((FileChannel) channel).force(false);
+		}finally{
+			channel.close();
+		}
+	}
+
+	//a field is quoted when it holds a separator, a quote or a line break
+	private void csv(String s, int end) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < end && !quote; ++i){
+			char ch = s.charAt(i);
+			quote = ch == ',' || ch == '"' || ch == '\r' || ch == '\n';
+		}
+		if (!quote){
+			utf8(s, 0, end);
+			return;
+		}
+		put('"');
+		int from = 0;
+		for (int i = 0; i < end; ++i){
+			if (s.charAt(i) == '"'){
+				utf8(s, from, i + 1);
+				from = i;
+			}
+		}
+		utf8(s, from, end);
+		put('"');
+	}
+
+	private void json(String s, int end) throws IOException {
+		put('"');
+		int from = 0;
+		for (int i = 0; i < end; ++i){
+			char ch = s.charAt(i);
+			if (ch >= 0x20 && ch != '"' && ch != '\\')
+				continue;
+			utf8(s, from, i);
+			from = i + 1;
+			put('\\');
+			switch (ch){
+				case '"': put('"'); break;
+				case '\\': put('\\'); break;
+				case '\n': put('n'); break;
+				case '\r': put('r'); break;
+				case '\t': put('t'); break;
+				default:
+					put('u');
+					put('0');
+					put('0');
+					put((char) HEX[ch >> 4]);
+					put((char) HEX[ch & 0xf]);
+			}
+		}
+		utf8(s, from, end);
+		put('"');
+	}
+
+	private void ascii(String s) throws IOException {
+		utf8(s, 0, s.length());
+	}
+
+	private void utf8(String s, int from, int to) throws IOException {
+		for (int i = from; i < to; ++i){
+			char ch = s.charAt(i);
+			if (buf.remaining() < 4)
+				drain();
+			if (ch < 0x80){
+				buf.put((byte) ch);
+			}else if (ch < 0x800){
+				buf.put((byte) (0xc0 | ch >> 6));
+				buf.put((byte) (0x80 | ch & 0x3f));
+			}else if (Character.isHighSurrogate(ch) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))){
+				int cp = Character.toCodePoint(ch, s.charAt(++i));
+				buf.put((byte) (0xf0 | cp >> 18));
+				buf.put((byte) (0x80 | cp >> 12 & 0x3f));
+				buf.put((byte) (0x80 | cp >> 6 & 0x3f));
+				buf.put((byte) (0x80 | cp & 0x3f));
+			}else if (Character.isSurrogate(ch)){
+				buf.put((byte) '?');
+			}else{
+				buf.put((byte) (0xe0 | ch >> 12));
+				buf.put((byte) (0x80 | ch >> 6 & 0x3f));
+				buf.put((byte) (0x80 | ch & 0x3f));
+			}
+		}
+	}
+
+	private void put(char ascii) throws IOException {
+		if (!buf.hasRemaining())
+			drain();
+		buf.put((byte) ascii);
+	}
+
+	private void drain() throws IOException {
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+}//end ResultExporter
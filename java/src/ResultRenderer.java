@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class prints query results to standard out as aligned text columns.
+ * Rows are formatted into one large char buffer, kept per thread and reused
+ * for every result, which is written out whenever it fills; a report of
+ * thousands of rows costs a handful of writes instead of a print per cell.
+ *
+ * Column widths come from the header and the first SAMPLE_ROWS rows, each
+ * capped at MAX_WIDTH; a later or longer value runs over its column rather
+ * than being cut.  Trailing blanks, the padding of CHAR(n) columns such as
+ * Customer.fname or Customer.address, are dropped from every value.
+ */
+public class ResultRenderer {
+	static final int BUFFER_CHARS = 64 * 1024;
+	static final int SAMPLE_ROWS = 100;
+	static final int MAX_WIDTH = 40;
+	//blanks between two columns
+	static final int GAP = 2;
+
+	private static final ThreadLocal<ResultRenderer> RENDERERS = new ThreadLocal<ResultRenderer>() {
+		@Override
+		protected ResultRenderer initialValue() {
+			return new ResultRenderer();
+		}
+	};
+
+	private final char[] buf = new char[BUFFER_CHARS];
+	private int len = 0;
+	private String[] header = null;
+	private int[] widths = null;
+	//rows held back until the widths are known
+	private final List<String[]> pending = new ArrayList<String[]>();
+	private int rowCount = 0;
+
+	private ResultRenderer() {
+	}
+
+	/**
+	 * Method to return this thread's renderer.  Only one result may be
+	 * rendered at a time on a thread.
+	 */
+	public static ResultRenderer get() {
+		return RENDERERS.get();
+	}
+
+	/**
+	 * Method to start a result with the given column names.
+	 */
+	public void begin(String[] header) {
+		this.header = header;
+		this.widths = null;
+		this.pending.clear();
+		this.rowCount = 0;
+	}
+
+	/**
+	 * Method to add a row; the array is kept until the widths are known, so
+	 * pass a new one every time.
+	 */
+	public void add(String[] values) {
+		for (int c = 0; c < values.length; ++c)
+			values[c] = rtrim(values[c]);
+		++rowCount;
+		if (widths != null){
+			row(values);
+			return;
+		}
+		pending.add(values);
+		if (pending.size() >= SAMPLE_ROWS)
+			layout();
+	}
+
+	/**
+	 * Method to add the current row of a streamed query.
+	 */
+	public void add(ResultRow row) throws SQLException {
+		String[] values = new String[row.getColumnCount()];
+		for (int c = 0; c < values.length; ++c)
+			values[c] = row.getString(c + 1);
+		add(values);
+	}
+
+	/**
+	 * Method to end the result and write out what is still buffered.  The
+	 * header is only printed when there was at least one row.
+	 *
+	 * @return the number of rows printed
+	 */
+	public int end() {
+		if (widths == null && rowCount > 0)
+			layout();
+		flush();
+		int printed = rowCount;
+		header = null;
+		widths = null;
+		pending.clear();
+		rowCount = 0;
+		return printed;
+	}
+
+	/**
+	 * Method to print a list of rows as one result.
+	 *
+	 * @return the number of rows printed
+	 */
+	public int print(String[] header, List<List<String>> rows) {
+		begin(header);
+		for (List<String> row : rows)
+			add(row.toArray(new String[row.size()]));
+		return end();
+	}
+
+	//fixes the widths from the rows seen so far and writes them out
+	private void layout() {
+		widths = new int[header.length];
+		for (int c = 0; c < header.length; ++c)
+			widths[c] = Math.min(MAX_WIDTH, header[c].length());
+		for (String[] values : pending)
+			for (int c = 0; c < values.length && c < widths.length; ++c)
+				widths[c] = Math.max(widths[c], Math.min(MAX_WIDTH, text(values[c]).length()));
+		row(header);
+		for (int c = 0; c < widths.length; ++c){
+			if (c > 0)
+				fill(' ', GAP);
+			fill('-', widths[c]);
+		}
+		put('\n');
+		for (String[] values : pending)
+			row(values);
+		pending.clear();
+	}
+
+	private void row(String[] values) {
+		for (int c = 0; c < values.length; ++c){
+			String s = text(values[c]);
+			put(s);
+			//the last column is not padded
+			if (c < values.length - 1)
+				fill(' ', (c < widths.length ? widths[c] - s.length() : 0) + GAP);
+		}
+		put('\n');
+	}
+
+	private static String text(String value) {
+		return value == null ? "null" : value;
+	}
+
+	private void put(String s) {
+		int off = 0;
+		int n = s.length();
+		while (n > 0){
+			if (len == buf.length)
+				flush();
+			int k = Math.min(n, buf.length - len);
+			s.getChars(off, off + k, buf, len);
+			len += k;
+			off += k;
+			n -= k;
+		}
+	}
+
+	private void put(char ch) {
+		if (len == buf.length)
+			flush();
+		buf[len++] = ch;
+	}
+
+	private void fill(char ch, int n) {
+		for (int i = 0; i < n; ++i)
+			put(ch);
+	}
+
+	//System.out is looked up on every write, the desk server replaces it
+	private void flush() {
+		if (len == 0)
+			return;
+		try{
+			Writer out = new OutputStreamWriter(System.out);
+			out.write(buf, 0, len);
+			out.flush();
+		}catch (IOException e){
+			throw new UncheckedIOException(e);
+		}finally{
+			len = 0;
+		}
+	}
+
+	/**
+	 * Method to drop trailing blanks, such as the padding of a CHAR(n)
+	 * value.
+	 *
+	 * @return the value without trailing blanks, null for null
+	 */
+	static String rtrim(String value) {
+		if (value == null)
+			return null;
+		int end = trimmedLength(value);
+		return end == value.length() ? value : value.substring(0, end);
+	}
+
+	/**
+	 * Method to return the length of a value without its trailing blanks.
+	 */
+	static int trimmedLength(String value) {
+		int end = value.length();
+		while (end > 0 && value.charAt(end - 1) == ' ')
+			--end;
+		return end;
+	}
+}//end ResultRenderer
@@ -0,0 +1,76 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * This class is the current row of a streamed query.  It is a thin view over
+ * the driver's ResultSet: getInt and getLong are parsed by the driver
+ * straight from the wire bytes, so reading a numeric column does not build a
+ * String.  The same instance is reused for every row of a query; do not keep
+ * it after the row callback returns.
+ */
+public class ResultRow {
+	private final ResultSet rs;
+	private final ResultSetMetaData rsmd;
+	private final int numCol;
+	private String[] names = null;
+
+	ResultRow(ResultSet rs) throws SQLException {
+		this.rs = rs;
+		this.rsmd = rs.getMetaData();
+		this.numCol = rsmd.getColumnCount();
+	}
+
+	public int getColumnCount() {
+		return numCol;
+	}
+
+	/**
+	 * Method to return the name of a column.  Names are read from the
+	 * metadata once per query.
+	 *
+	 * @param i the column, starting at 1
+	 * @return the column label
+	 * @throws java.sql.SQLException when the metadata cannot be read
+	 */
+	public String getColumnName(int i) throws SQLException {
+		if (names == null){
+			names = new String[numCol];
+			for (int c = 1; c <= numCol; ++c)
+				names[c - 1] = rsmd.getColumnName(c);
+		}
+		return names[i - 1];
+	}
+
+	public ResultSetMetaData getMetaData() {
+		return rsmd;
+	}
+
+	public int getInt(int i) throws SQLException {
+		return rs.getInt(i);
+	}
+
+	public long getLong(int i) throws SQLException {
+		return rs.getLong(i);
+	}
+
+	public String getString(int i) throws SQLException {
+		return rs.getString(i);
+	}
+
+	public java.sql.Date getDate(int i) throws SQLException {
+		return rs.getDate(i);
+	}
+
+	/**
+	 * Method to tell whether the last column read was SQL NULL, in the same
+	 * way as ResultSet.wasNull.
+	 */
+	public boolean wasNull() throws SQLException {
+		return rs.wasNull();
+	}
+
+	boolean next() throws SQLException {
+		return rs.next();
+	}
+}//end ResultRow
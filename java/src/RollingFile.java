@@ -0,0 +1,50 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class appends text to a local log file.  Once the file is larger
+ * than the size limit it is rolled over: <file>.1 is the newest rolled file
+ * and the oldest one past <keep> is dropped.
+ */
+public class RollingFile {
+	private final Path file;
+	private final long maxBytes;
+	private final int keep;
+
+	public RollingFile(Path file, long maxBytes, int keep) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		this.keep = keep;
+	}
+
+	public Path getPath() {
+		return file;
+	}
+
+	/**
+	 * Method to append text, rolling the file over first when it is full.
+	 *
+	 * @throws java.io.IOException when the file cannot be written
+	 */
+	public synchronized void append(String text) throws IOException {
+		if (Files.exists(file) && Files.size(file) > maxBytes)
+			roll();
+		Files.write(file, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	private void roll() throws IOException {
+		Files.deleteIfExists(rolled(keep));
+		for (int i = keep - 1; i >= 1; --i)
+			if (Files.exists(rolled(i)))
+				Files.move(rolled(i), rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+		Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private Path rolled(int i) {
+		return file.resolveSibling(file.getFileName() + "." + i);
+	}
+}//end RollingFile
@@ -0,0 +1,168 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import javax.net.SocketFactory;
+
+/**
+ * This class counts client/server round trips and the bytes sent and
+ * received.  It is installed as the driver's socketFactory while metrics
+ * are on (see Metrics) or with -Dmechanicshop.countRoundTrips=true, and
+ * counts every flush of a connection's socket after something was written:
+ * the driver flushes once per message batch it sends and then waits for the
+ * reply, so each counted flush is one round trip.
+ *
+ * A connection is only used by the thread holding it, so the counts are
+ * kept per thread; get() returns the calling thread's count.
+ */
+public class RoundTripCounter extends SocketFactory {
+	private static final ThreadLocal<long[]> COUNT = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			//round trips, bytes sent, bytes received
+			return new long[3];
+		}
+	};
+	private static volatile boolean installed = false;
+
+	/**
+	 * Method to return the round trips made by the calling thread so far.
+	 */
+	public static long get() {
+		return COUNT.get()[0];
+	}
+
+	/**
+	 * Method to return the calling thread's live counts: round trips, bytes
+	 * sent and bytes received.
+	 */
+	static long[] counts() {
+		return COUNT.get();
+	}
+
+	/**
+	 * Method to return the bytes the calling thread has sent so far.
+	 */
+	public static long getBytesSent() {
+		return COUNT.get()[1];
+	}
+
+	/**
+	 * Method to return the bytes the calling thread has received so far.
+	 */
+	public static long getBytesReceived() {
+		return COUNT.get()[2];
+	}
+
+	/**
+	 * Whether the driver has opened a connection through this factory.
+	 */
+	public static boolean isInstalled() {
+		return installed;
+	}
+
+	@Override
+	public Socket createSocket() {
+		installed = true;
+		return new CountingSocket();
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		Socket s = createSocket();
+		s.connect(new java.net.InetSocketAddress(host, port));
+		return s;
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		Socket s = createSocket();
+		s.bind(new java.net.InetSocketAddress(localHost, localPort));
+		s.connect(new java.net.InetSocketAddress(host, port));
+		return s;
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		Socket s = createSocket();
+		s.connect(new java.net.InetSocketAddress(host, port));
+		return s;
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		Socket s = createSocket();
+		s.bind(new java.net.InetSocketAddress(localAddress, localPort));
+		s.connect(new java.net.InetSocketAddress(address, port));
+		return s;
+	}
+
+	/**
+	 * A plain socket whose streams count the bytes and the flushes that send
+	 * data.
+	 */
+	private static class CountingSocket extends Socket {
+		private OutputStream out = null;
+		private InputStream in = null;
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (in == null){
+				in = new FilterInputStream(super.getInputStream()) {
+					@Override
+					public int read() throws IOException {
+						int b = super.in.read();
+						if (b >= 0)
+							COUNT.get()[2]++;
+						return b;
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int n = super.in.read(b, off, len);
+						if (n > 0)
+							COUNT.get()[2] += n;
+						return n;
+					}
+				};
+			}
+			return in;
+		}
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (out == null){
+				out = new FilterOutputStream(super.getOutputStream()) {
+					private boolean written = false;
+
+					@Override
+					public void write(int b) throws IOException {
+						written = true;
+						super.out.write(b);
+						COUNT.get()[1]++;
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						written = true;
+						super.out.write(b, off, len);
+						COUNT.get()[1] += len;
+					}
+
+					@Override
+					public void flush() throws IOException {
+						super.out.flush();
+						if (written){
+							written = false;
+							COUNT.get()[0]++;
+						}
+					}
+				};
+			}
+			return out;
+		}
+	}//end CountingSocket
+}//end RoundTripCounter
@@ -0,0 +1,106 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class applies the versioned schema migrations in sql/migrations.
+ * A migration is a file named V<version>__<description>.sql; every file runs
+ * once, in version order, in its own transaction, and is recorded in the
+ * schema_version table.  Concurrent starts are serialized with an advisory
+ * lock so two processes never apply the same migration.
+ */
+public class SchemaMigrator {
+	private static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(.+)\\.sql");
+	//advisory lock key held while migrating
+	private static final long MIGRATION_LOCK = 0x4d534d4947L; // "MSMIG"
+
+	private final MechanicShop esql;
+	private final File dir;
+
+	public SchemaMigrator(MechanicShop esql, File dir) {
+		this.esql = esql;
+		this.dir = dir;
+	}
+
+	/**
+	 * Method to apply every migration not yet recorded in schema_version.
+	 *
+	 * @return the number of migrations applied
+	 * @throws java.sql.SQLException when a migration fails; it is rolled
+	 *         back and the ones after it are not run
+	 * @throws java.io.IOException when a migration file cannot be read
+	 */
+	public int migrate() throws SQLException, IOException {
+		File[] files = migrationFiles();
+		esql.executeUpdate("CREATE TABLE IF NOT EXISTS schema_version (" +
+			"version INTEGER PRIMARY KEY, description TEXT NOT NULL, " +
+			"applied_at TIMESTAMP NOT NULL DEFAULT now())");
+
+		int applied = 0;
+		for (final File f : files){
+			Matcher m = FILE_NAME.matcher(f.getName());
+			m.matches();
+			final int version = Integer.parseInt(m.group(1));
+			final String description = m.group(2).replace('_', ' ');
+			final String sql = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+			boolean ran = esql.inTransaction(new MechanicShop.SQLWork<Boolean>() {
+				public Boolean run(Connection c) throws SQLException {
+					Statement stmt = c.createStatement();
+					try{
+						stmt.execute("SELECT pg_advisory_xact_lock(" + MIGRATION_LOCK + ")");
+						//checked under the lock, another process may just have applied it
+						ResultSet rs = stmt.executeQuery("SELECT 1 FROM schema_version WHERE version = " + version);
+						boolean done = rs.next();
+						rs.close();
+						if (done)
+							return false;
+						stmt.execute(sql);
+					}catch(SQLException e){
+						throw new SQLException("Migration " + f.getName() + " failed: " + e.getMessage(), e.getSQLState(), e);
+					}finally{
+						stmt.close();
+					}
+					esql.executeUpdate("INSERT INTO schema_version(version, description) VALUES(?, ?)", version, description);
+					return true;
+				}
+			});
+			if (ran){
+				System.out.println("Applied migration V" + version + ": " + description);
+				++applied;
+			}
+		}
+		return applied;
+	}//end migrate
+
+	private File[] migrationFiles() {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return FILE_NAME.matcher(name).matches();
+			}
+		});
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Integer.compare(version(a), version(b));
+			}
+		});
+		return files;
+	}
+
+	private static int version(File f) {
+		Matcher m = FILE_NAME.matcher(f.getName());
+		m.matches();
+		return Integer.parseInt(m.group(1));
+	}
+}//end SchemaMigrator
@@ -0,0 +1,724 @@
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class spreads the shop over several databases, one per location.
+ * The database on the command line is the first shard and
+ * -Dmechanicshop.shards lists the others as <port>[/<dbname>] on this
+ * machine, e.g. -Dmechanicshop.shards=9999,10000/shop2.  Every shard is a
+ * MechanicShop of its own, with its pool, statement cache and migrations.
+ *
+ *   - Customer, Owns, Service_Request and Closed_Request rows live on the
+ *     shard of their customer.  The shard is picked by consistent hashing:
+ *     each shard has VNODES points on a ring of 64-bit hashes of its name
+ *     and a customer id belongs to the first point at or after its own
+ *     hash, so adding a shard moves about 1/N of the customers.
+ *   - Mechanic and Car are reference data written to every shard, so the
+ *     foreign keys and the joins of the reports stay within a shard.
+ *   - Keys are still drawn from the sequences of the first shard, so they
+ *     are unique over all of them.
+ *
+ * Reports 6 to 10 are scatter-gather: the report runs on every shard in
+ * parallel.  Reports 6, 7 and 8 have no order and are concatenated;
+ * report 10 is merged by total bill; report 9 reads every shard in VIN
+ * order a page at a time, adding up the open requests of a car over the
+ * shards, until it has its K cars.
+ *
+ * A new shard is a database with sql/schema.sql applied, e.g. on a second
+ * cluster started by postgresql/startPostgreSQL.sh <port>; its migrations
+ * run on connect.  Rows written around the router, by load or batch, land
+ * on the first shard.  After that, or after a shard was added, 'shards rebalance'
+ * copies the reference data to every shard and moves the customers that
+ * belong elsewhere; it is meant to run while the desks are closed.
+ */
+public class ShardRouter {
+	static final String SHARDS = System.getProperty("mechanicshop.shards");
+	static final int VNODES = Integer.getInteger("mechanicshop.shards.vnodes", 128);
+	//customers moved per transaction by rebalance
+	static final int MOVE_BATCH = Integer.getInteger("mechanicshop.shards.moveBatch", 200);
+	//rows of a report 9 page and of a reference data copy
+	static final int PAGE = 256;
+	static final int COPY_BATCH = 1000;
+
+	private static final String SQL_OPEN_COUNTS_PAGE =
+		"SELECT car_open_requests.car_vin, Car.make, Car.model, car_open_requests.open_count FROM car_open_requests, Car " +
+		"WHERE Car.vin = car_open_requests.car_vin AND car_open_requests.car_vin COLLATE \"C\" > ? " +
+		"ORDER BY car_open_requests.car_vin COLLATE \"C\" LIMIT ?";
+	private static final String SQL_FIND_REQUEST = "SELECT 1 FROM Service_Request WHERE rid = ?";
+
+	//rebalance: the rows of a set of customers, and their inserts with the text of each column cast back
+	private static final String SQL_CUSTOMER_IDS = "SELECT id FROM Customer";
+	private static final String SQL_GET_CUSTOMERS = "SELECT id, fname, lname, phone, address FROM Customer WHERE id = ANY(?::int[])";
+	private static final String SQL_GET_OWNS = "SELECT ownership_id, customer_id, car_vin FROM Owns WHERE customer_id = ANY(?::int[])";
+	private static final String SQL_GET_REQUESTS =
+		"SELECT rid, customer_id, car_vin, date, odometer, complain FROM Service_Request WHERE customer_id = ANY(?::int[])";
+	private static final String SQL_GET_CLOSED =
+		"SELECT c.wid, c.rid, c.mid, c.date, c.comment, c.bill, c.request_date FROM Closed_Request c, Service_Request s " +
+		"WHERE s.rid = c.rid AND s.date = c.request_date AND s.customer_id = ANY(?::int[])";
+	private static final String SQL_PUT_CUSTOMER =
+		"INSERT INTO Customer(id, fname, lname, phone, address) VALUES(?::int, ?, ?, ?, ?) ON CONFLICT (id) DO NOTHING";
+	private static final String SQL_PUT_OWNS =
+		"INSERT INTO Owns(ownership_id, customer_id, car_vin) VALUES(?::int, ?::int, ?) ON CONFLICT (ownership_id) DO NOTHING";
+	private static final String SQL_PUT_REQUEST =
+		"INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain) VALUES(?::int, ?::int, ?, ?::date, ?::int, ?) " +
+		"ON CONFLICT (rid, date) DO NOTHING";
+	private static final String SQL_PUT_CLOSED =
+		"INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill, request_date) VALUES(?::int, ?::int, ?::int, ?::date, ?, ?::int, ?::date) " +
+		"ON CONFLICT DO NOTHING";
+	private static final String SQL_DELETE_CLOSED =
+		"DELETE FROM Closed_Request c USING Service_Request s WHERE s.rid = c.rid AND s.date = c.request_date AND s.customer_id = ANY(?::int[])";
+	private static final String SQL_DELETE_REQUESTS = "DELETE FROM Service_Request WHERE customer_id = ANY(?::int[])";
+	private static final String SQL_DELETE_OWNS = "DELETE FROM Owns WHERE customer_id = ANY(?::int[])";
+	private static final String SQL_DELETE_CUSTOMERS = "DELETE FROM Customer WHERE id = ANY(?::int[])";
+	private static final String SQL_GET_MECHANICS = "SELECT id, fname, lname, experience FROM Mechanic";
+	private static final String SQL_PUT_MECHANIC =
+		"INSERT INTO Mechanic(id, fname, lname, experience) VALUES(?::int, ?, ?, ?::int) ON CONFLICT (id) DO NOTHING";
+	private static final String SQL_GET_CARS = "SELECT vin, make, model, year FROM Car";
+	private static final String SQL_PUT_CAR = "INSERT INTO Car(vin, make, model, year) VALUES(?, ?, ?, ?::int) ON CONFLICT (vin) DO NOTHING";
+
+	/**
+	 * One database holding a share of the customers.
+	 */
+	static final class Shard {
+		final int index;
+		//<port>/<dbname>, which also places it on the ring
+		final String name;
+		final MechanicShop db;
+
+		Shard(int index, String name, MechanicShop db){
+			this.index = index;
+			this.name = name;
+			this.db = db;
+		}
+	}
+
+	/**
+	 * The consistent hashing ring: VNODES points per shard.
+	 */
+	static final class HashRing {
+		private final TreeMap<Long, Integer> points = new TreeMap<Long, Integer>();
+
+		HashRing(List<String> names, int vnodes) {
+			for (int s = 0; s < names.size(); ++s)
+				for (int v = 0; v < vnodes; ++v)
+					points.put(hash(names.get(s) + "#" + v), s);
+		}
+
+		int shardOf(int customerId) {
+			Map.Entry<Long, Integer> point = points.ceilingEntry(mix(customerId));
+			return (point != null ? point : points.firstEntry()).getValue();
+		}
+
+		/**
+		 * Method to return the part of the ring each shard owns.
+		 */
+		double[] shares(int shards) {
+			double[] share = new double[shards];
+			Long previous = points.lastKey();
+			for (Map.Entry<Long, Integer> point : points.entrySet()){
+				//unsigned distance back to the previous point, wrapping around
+				share[point.getValue()] += ((point.getKey() - previous) >>> 1) / (double) (Long.MAX_VALUE);
+				previous = point.getKey();
+			}
+			return share;
+		}
+
+		private static long hash(String name) {
+			try{
+				byte[] d = MessageDigest.getInstance("MD5").digest(name.getBytes(StandardCharsets.UTF_8));
+				long h = 0;
+				for (int i = 0; i < 8; ++i)
+					h = (h << 8) | (d[i] & 0xff);
+				return h;
+			}catch (NoSuchAlgorithmException e){
+				throw new IllegalStateException(e);
+			}
+		}
+
+		//splitmix64 finalizer, spreads consecutive ids over the ring
+		private static long mix(long x) {
+			x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+			x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+			return x ^ (x >>> 31);
+		}
+	}
+
+	private final List<Shard> shards = new ArrayList<Shard>();
+	private final HashRing ring;
+	private final ExecutorService executor;
+	private final AtomicInteger scatters = new AtomicInteger();
+	private final AtomicInteger routed = new AtomicInteger();
+
+	/**
+	 * Method to connect to the other shards and bring their schema up to
+	 * date.
+	 *
+	 * @param home the database on the command line, the first shard
+	 * @param dbname its name, the default of the other shards
+	 * @param dbport its port
+	 * @param user the user of every shard
+	 * @param spec the other shards, <port>[/<dbname>] separated by commas
+	 * @throws java.lang.Exception when a migration of a shard fails
+	 */
+	public ShardRouter(MechanicShop home, String dbname, String dbport, String user, String spec) throws Exception {
+		shards.add(new Shard(0, dbport + "/" + dbname, home));
+		for (String entry : spec.split(",")){
+			entry = entry.trim();
+			if (entry.isEmpty())
+				continue;
+			int slash = entry.indexOf('/');
+			String port = slash < 0 ? entry : entry.substring(0, slash);
+			String db = slash < 0 ? dbname : entry.substring(slash + 1);
+			MechanicShop shard = new MechanicShop(db, port, user, "");
+			shards.add(new Shard(shards.size(), port + "/" + db, shard));
+			shard.migrate();
+		}
+		List<String> names = new ArrayList<String>();
+		for (Shard s : shards)
+			names.add(s.name);
+		this.ring = new HashRing(names, VNODES);
+		this.executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactory() {
+			private final AtomicInteger n = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "shard-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Method to return the shard of a customer's rows.
+	 */
+	public MechanicShop shardOf(int customerId) {
+		routed.incrementAndGet();
+		return shards.get(ring.shardOf(customerId)).db;
+	}
+
+	/**
+	 * Work done on one shard.
+	 */
+	private interface ShardWork<T> {
+		T run(MechanicShop db) throws SQLException;
+	}
+
+	/**
+	 * Runs the work on every shard in parallel.
+	 *
+	 * @return the results in shard order
+	 * @throws java.sql.SQLException when it fails on any shard
+	 */
+	private <T> List<T> scatter(List<Shard> on, final ShardWork<T> work) throws SQLException {
+		scatters.incrementAndGet();
+		List<Future<T>> futures = new ArrayList<Future<T>>(on.size());
+		for (final Shard s : on){
+			futures.add(executor.submit(new Callable<T>() {
+				public T call() throws SQLException {
+					return work.run(s.db);
+				}
+			}));
+		}
+		List<T> results = new ArrayList<T>(on.size());
+		SQLException failed = null;
+		for (int i = 0; i < futures.size(); ++i){
+			try{
+				results.add(futures.get(i).get());
+			}catch (ExecutionException e){
+				Throwable cause = e.getCause();
+				if (failed == null){
+					String state = cause instanceof SQLException ? ((SQLException) cause).getSQLState() : null;
+					failed = new SQLException("Shard " + on.get(i).name + ": " + cause.getMessage(), state, cause);
+				}
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for the shards", "57014", e);
+			}
+		}
+		if (failed != null)
+			throw failed;
+		return results;
+	}
+
+	private <T> List<T> scatter(ShardWork<T> work) throws SQLException {
+		return scatter(shards, work);
+	}
+
+	/*
+	 * Writes, with the keys already drawn by the caller
+	 */
+
+	public void addCustomer(int id, String fname, String lname, String phone, String address) throws SQLException {
+		shardOf(id).executeUpdate(MechanicShop.SQL_ADD_CUSTOMER, id, fname, lname, phone, address);
+	}
+
+	public void addMechanic(int id, String fname, String lname, int experience) throws SQLException {
+		replicate(shards.get(0).db, MechanicShop.SQL_ADD_MECHANIC, " ON CONFLICT (id) DO NOTHING", id, fname, lname, experience);
+	}
+
+	public void addCar(String vin, String make, String model, int year) throws SQLException {
+		replicate(shards.get(0).db, MechanicShop.SQL_ADD_CAR, " ON CONFLICT (vin) DO NOTHING", vin, make, model, year);
+	}
+
+	public void addOwnership(int ownershipId, int customerId, String vin) throws SQLException {
+		shardOf(customerId).executeUpdate(MechanicShop.SQL_ADD_OWNS, ownershipId, customerId, vin);
+	}
+
+	public void insertServiceRequest(int rid, int customerId, String vin, int odometer, String complaint) throws SQLException {
+		shardOf(customerId).executeUpdate(MechanicShop.SQL_ADD_SERVICE_REQUEST, rid, customerId, vin, odometer, complaint);
+	}
+
+	public void insertServiceRequestForNewCar(int rid, int ownershipId, int customerId, String vin, String make, String model,
+			int year, int odometer, String complaint) throws SQLException {
+		MechanicShop home = shardOf(customerId);
+		//the customer's shard adds the car with the rest, or refuses a taken VIN
+		home.executeUpdateAndReturnResult(MechanicShop.SQL_OPEN_SERVICE_REQUEST_NEW_CAR,
+			vin, make, model, year, ownershipId, customerId, rid, customerId, odometer, complaint);
+		replicate(home, null, " ON CONFLICT (vin) DO NOTHING", vin, make, model, year);
+	}
+
+	/**
+	 * Writes reference data: the plain insert on the first shard decides,
+	 * e.g. refuses a duplicate, then the others take it unless they have it.
+	 *
+	 * @param first the shard written first, null once it has been written
+	 * @param sql the insert, null to use SQL_ADD_CAR on the others
+	 */
+	private void replicate(final MechanicShop first, String sql, String onConflict, final Object... params) throws SQLException {
+		if (sql != null)
+			first.executeUpdate(sql, params);
+		final String others = (sql != null ? sql : MechanicShop.SQL_ADD_CAR) + onConflict;
+		List<Shard> rest = new ArrayList<Shard>();
+		for (Shard s : shards)
+			if (s.db != first)
+				rest.add(s);
+		try{
+			scatter(rest, new ShardWork<Integer>() {
+				public Integer run(MechanicShop db) throws SQLException {
+					return db.executeUpdate(others, params);
+				}
+			});
+		}catch (SQLException e){
+			throw new SQLException(e.getMessage() + " (written on some shards only, run 'shards sync')", e.getSQLState(), e);
+		}
+	}
+
+	/**
+	 * Method to close a request on the shard that has it.
+	 *
+	 * @return the row of reason code and car VIN of SQL_CLOSE_SERVICE_REQUEST
+	 * @throws java.sql.SQLException when a shard cannot be reached
+	 */
+	public List<String> closeServiceRequest(int wid, final int rid, int mechanicId, String comment, int bill) throws SQLException {
+		List<List<List<String>>> found = scatter(new ShardWork<List<List<String>>>() {
+			public List<List<String>> run(MechanicShop db) throws SQLException {
+				return db.executeQueryAndReturnResult(SQL_FIND_REQUEST, rid);
+			}
+		});
+		for (int s = 0; s < shards.size(); ++s)
+			if (!found.get(s).isEmpty())
+				return shards.get(s).db.executeUpdateAndReturnResult(MechanicShop.SQL_CLOSE_SERVICE_REQUEST, rid, mechanicId, wid, comment, bill).get(0);
+		List<String> unknown = new ArrayList<String>(2);
+		unknown.add("unknown_request");
+		unknown.add(null);
+		return unknown;
+	}
+
+	/*
+	 * Reads
+	 */
+
+	/**
+	 * Method to look customers up on every shard.  Each shard sends its
+	 * first FIND_LIMIT matches; they are put in the order of the lookup and
+	 * the first FIND_LIMIT of all are kept.
+	 *
+	 * @param phone whether the pattern is of phone digits or of a last name
+	 * @param pattern see MechanicShop.findPattern
+	 */
+	public List<List<String>> findCustomers(final boolean phone, final String pattern) throws SQLException {
+		final String sql = phone ? MechanicShop.SQL_FIND_CUSTOMER_BY_PHONE : MechanicShop.SQL_FIND_CUSTOMER;
+		List<List<String>> rows = new ArrayList<List<String>>(concat(scatter(new ShardWork<List<List<String>>>() {
+			public List<List<String>> run(MechanicShop db) throws SQLException {
+				return db.executeQueryAndReturnResult(sql, pattern, MechanicShop.FIND_LIMIT);
+			}
+		})));
+		//rows of id, fname, lname, phone, address
+		Collections.sort(rows, new Comparator<List<String>>() {
+			public int compare(List<String> a, List<String> b) {
+				int c = key(a).compareTo(key(b));
+				return c != 0 ? c : Integer.compare(Integer.parseInt(a.get(0).trim()), Integer.parseInt(b.get(0).trim()));
+			}
+
+			private String key(List<String> row) {
+				return phone ? CustomerDirectory.digits(row.get(3)) : ResultRenderer.rtrim(row.get(2)).toLowerCase(Locale.ROOT);
+			}
+		});
+		return rows.size() > MechanicShop.FIND_LIMIT ? new ArrayList<List<String>>(rows.subList(0, MechanicShop.FIND_LIMIT)) : rows;
+	}
+
+	public List<List<String>> listCustomerCars(int customerId) throws SQLException {
+		return shardOf(customerId).executeQueryAndReturnResult(MechanicShop.SQL_LIST_CUSTOMER_CARS, customerId);
+	}
+
+	/**
+	 * Method to answer one of the reports 6, 7, 8 and 10 from the shards.
+	 *
+	 * @param sql the SQL_REPORT_ constant of the report
+	 * @return the rows, null for any other query
+	 * @throws java.sql.SQLException when it fails on a shard
+	 */
+	public List<List<String>> report(final String sql) throws SQLException {
+		if (sql.equals(MechanicShop.SQL_REPORT_TOTAL_BILL))
+			return totalBill();
+		if (!sql.equals(MechanicShop.SQL_REPORT_BILL_LESS_THAN_100) && !sql.equals(MechanicShop.SQL_REPORT_MORE_THAN_20_CARS)
+				&& !sql.equals(MechanicShop.SQL_REPORT_CARS_BEFORE_1995))
+			return null;
+		//every row of these is whole on one shard
+		return concat(scatter(new ShardWork<List<List<String>>>() {
+			public List<List<String>> run(MechanicShop db) throws SQLException {
+				return db.executeQueryAndReturnResult(sql);
+			}
+		}));
+	}
+
+	/**
+	 * Method to list customers by their total bill, highest first.
+	 */
+	public List<List<String>> totalBill() throws SQLException {
+		List<List<List<String>>> parts = scatter(new ShardWork<List<List<String>>>() {
+			public List<List<String>> run(MechanicShop db) throws SQLException {
+				return db.executeQueryAndReturnResult(MechanicShop.SQL_REPORT_TOTAL_BILL);
+			}
+		});
+		return merge(parts, new Comparator<List<String>>() {
+			public int compare(List<String> a, List<String> b) {
+				return new BigDecimal(b.get(2)).compareTo(new BigDecimal(a.get(2)));
+			}
+		});
+	}
+
+	/**
+	 * One shard's open request counts in VIN order, read a page at a time.
+	 */
+	private static final class VinCursor {
+		final MechanicShop db;
+		List<List<String>> page;
+		int pos = 0;
+
+		VinCursor(MechanicShop db, List<List<String>> first){
+			this.db = db;
+			this.page = first;
+		}
+
+		List<String> peek() throws SQLException {
+			if (pos == page.size() && page.size() == PAGE){
+				page = db.executeQueryAndReturnResult(SQL_OPEN_COUNTS_PAGE, page.get(PAGE - 1).get(0), PAGE);
+				pos = 0;
+			}
+			return pos < page.size() ? page.get(pos) : null;
+		}
+	}
+
+	/**
+	 * Method to list up to limit cars with exactly openRequests open
+	 * requests over all shards, by VIN.  A car's requests may be on several
+	 * shards, so its counts are added up before they are compared.
+	 */
+	public List<List<String>> carsWithOpenRequests(int openRequests, int limit) throws SQLException {
+		List<List<List<String>>> first = scatter(new ShardWork<List<List<String>>>() {
+			public List<List<String>> run(MechanicShop db) throws SQLException {
+				return db.executeQueryAndReturnResult(SQL_OPEN_COUNTS_PAGE, "", PAGE);
+			}
+		});
+		List<VinCursor> cursors = new ArrayList<VinCursor>();
+		for (int s = 0; s < shards.size(); ++s)
+			cursors.add(new VinCursor(shards.get(s).db, first.get(s)));
+		List<List<String>> rows = new ArrayList<List<String>>();
+		while (rows.size() < limit){
+			List<String> least = null;
+			for (VinCursor c : cursors){
+				List<String> row = c.peek();
+				if (row != null && (least == null || row.get(0).compareTo(least.get(0)) < 0))
+					least = row;
+			}
+			if (least == null)
+				break;
+			String vin = least.get(0);
+			int open = 0;
+			for (VinCursor c : cursors){
+				List<String> row = c.peek();
+				if (row != null && row.get(0).equals(vin)){
+					open += Integer.parseInt(row.get(3));
+					c.pos++;
+				}
+			}
+			if (open == openRequests){
+				List<String> car = new ArrayList<String>(4);
+				car.add(least.get(1));
+				car.add(least.get(2));
+				car.add(vin);
+				car.add(Integer.toString(open));
+				rows.add(car);
+			}
+		}
+		return rows;
+	}//end carsWithOpenRequests
+
+	private static List<List<String>> concat(List<List<List<String>>> parts) {
+		int size = 0;
+		for (List<List<String>> p : parts)
+			size += p.size();
+		List<List<String>> rows = new ArrayList<List<String>>(size);
+		for (List<List<String>> p : parts)
+			rows.addAll(p);
+		return rows;
+	}
+
+	//merges lists that are each in order
+	private static List<List<String>> merge(final List<List<List<String>>> parts, final Comparator<List<String>> order) {
+		PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, parts.size()), new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return order.compare(parts.get(a[0]).get(a[1]), parts.get(b[0]).get(b[1]));
+			}
+		});
+		for (int p = 0; p < parts.size(); ++p)
+			if (!parts.get(p).isEmpty())
+				heads.add(new int[] {p, 0});
+		List<List<String>> rows = new ArrayList<List<String>>();
+		while (!heads.isEmpty()){
+			int[] h = heads.poll();
+			rows.add(parts.get(h[0]).get(h[1]));
+			if (++h[1] < parts.get(h[0]).size())
+				heads.add(h);
+		}
+		return rows;
+	}
+
+	/*
+	 * Administration
+	 */
+
+	/**
+	 * Method to print every shard with its share of the ring, customers
+	 * and requests, and how many of its customers belong elsewhere.
+	 */
+	public void status() throws SQLException {
+		final double[] shares = ring.shares(shards.size());
+		List<List<String>> counts = scatter(new ShardWork<List<String>>() {
+			public List<String> run(MechanicShop db) throws SQLException {
+				return db.executeQueryAndReturnResult(
+					"SELECT (SELECT COUNT(*) FROM Customer), (SELECT COUNT(*) FROM Service_Request), (SELECT COUNT(*) FROM Car)").get(0);
+			}
+		});
+		System.out.println(String.format("%-20s %7s %10s %10s %10s %10s", "shard", "ring", "customers", "misplaced", "requests", "cars"));
+		for (Shard s : shards){
+			List<String> c = counts.get(s.index);
+			System.out.println(String.format("%-20s %6.1f%% %10s %10d %10s %10s", s.name, shares[s.index] * 100,
+				c.get(0), misplaced(s).size(), c.get(1), c.get(2)));
+		}
+	}
+
+	/**
+	 * Method to copy Mechanic and Car from the first shard to the others
+	 * where they are missing.
+	 *
+	 * @return the number of rows copied to any shard
+	 */
+	public int sync() throws SQLException {
+		int copied = copyReference(SQL_GET_MECHANICS, SQL_PUT_MECHANIC) + copyReference(SQL_GET_CARS, SQL_PUT_CAR);
+		System.out.println("Copied " + copied + " reference row(s)");
+		return copied;
+	}
+
+	private int copyReference(String select, final String insert) throws SQLException {
+		final List<Shard> rest = shards.subList(1, shards.size());
+		final List<List<String>> batch = new ArrayList<List<String>>(COPY_BATCH);
+		final int[] copied = {0};
+		shards.get(0).db.streamQuery(select, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				List<String> values = new ArrayList<String>(row.getColumnCount());
+				for (int c = 1; c <= row.getColumnCount(); ++c)
+					values.add(row.getString(c));
+				batch.add(values);
+				if (batch.size() == COPY_BATCH){
+					copied[0] += putEverywhere(rest, insert, batch);
+					batch.clear();
+				}
+			}
+		});
+		if (!batch.isEmpty())
+			copied[0] += putEverywhere(rest, insert, batch);
+		return copied[0];
+	}
+
+	private int putEverywhere(List<Shard> on, final String insert, final List<List<String>> rows) throws SQLException {
+		int copied = 0;
+		for (int n : scatter(on, new ShardWork<Integer>() {
+			public Integer run(MechanicShop db) throws SQLException {
+				return db.inTransaction(new MechanicShop.SQLWork<Integer>() {
+					public Integer run(Connection c) throws SQLException {
+						return put(c, insert, rows);
+					}
+				});
+			}
+		}))
+			copied += n;
+		return copied;
+	}
+
+	/**
+	 * Method to sync the reference data and move every customer, with their
+	 * ownerships and requests, to the shard the ring gives them.
+	 *
+	 * @return the number of customers moved
+	 */
+	public int rebalance() throws SQLException {
+		sync();
+		int moved = 0;
+		for (Shard from : shards){
+			Map<Integer, List<Integer>> byTarget = new HashMap<Integer, List<Integer>>();
+			for (int id : misplaced(from)){
+				int to = ring.shardOf(id);
+				List<Integer> ids = byTarget.get(to);
+				if (ids == null){
+					ids = new ArrayList<Integer>();
+					byTarget.put(to, ids);
+				}
+				ids.add(id);
+			}
+			for (Map.Entry<Integer, List<Integer>> target : byTarget.entrySet()){
+				List<Integer> ids = target.getValue();
+				for (int i = 0; i < ids.size(); i += MOVE_BATCH)
+					moved += move(from, shards.get(target.getKey()), ids.subList(i, Math.min(ids.size(), i + MOVE_BATCH)));
+				System.out.println(String.format("Moved %d customer(s) from %s to %s", ids.size(), from.name, shards.get(target.getKey()).name));
+			}
+		}
+		System.out.println("Moved " + moved + " customer(s)");
+		return moved;
+	}//end rebalance
+
+	private List<Integer> misplaced(final Shard s) throws SQLException {
+		final List<Integer> ids = new ArrayList<Integer>();
+		s.db.streamQuery(SQL_CUSTOMER_IDS, MechanicShop.DEFAULT_FETCH_SIZE, new MechanicShop.RowHandler() {
+			public void handle(ResultRow row) throws SQLException {
+				int id = row.getInt(1);
+				if (ring.shardOf(id) != s.index)
+					ids.add(id);
+			}
+		});
+		return ids;
+	}
+
+	/**
+	 * Copies a batch of customers and their rows to their shard, then
+	 * deletes them where they were.  The copy skips rows already there, so
+	 * a move cut short is finished by the next rebalance.
+	 */
+	private int move(Shard from, Shard to, List<Integer> ids) throws SQLException {
+		final String array = ids.toString().replace('[', '{').replace(']', '}');
+		final List<List<String>> customers = from.db.executeQueryAndReturnResult(SQL_GET_CUSTOMERS, array);
+		final List<List<String>> owns = from.db.executeQueryAndReturnResult(SQL_GET_OWNS, array);
+		final List<List<String>> requests = from.db.executeQueryAndReturnResult(SQL_GET_REQUESTS, array);
+		final List<List<String>> closed = from.db.executeQueryAndReturnResult(SQL_GET_CLOSED, array);
+		to.db.inTransaction(new MechanicShop.SQLWork<Void>() {
+			public Void run(Connection c) throws SQLException {
+				if (!requests.isEmpty()){
+					//the months of the requests, which may be long gone on a new shard
+					List<String> dates = new ArrayList<String>();
+					for (List<String> r : requests)
+						dates.add(r.get(3));
+					PreparedStatement stmt = c.prepareStatement("SELECT request_partitions_create(?::date, ?::date)");
+					try{
+						stmt.setString(1, Collections.min(dates));
+						stmt.setString(2, Collections.max(dates));
+						stmt.executeQuery().close();
+					}finally{
+						stmt.close();
+					}
+				}
+				put(c, SQL_PUT_CUSTOMER, customers);
+				put(c, SQL_PUT_OWNS, owns);
+				put(c, SQL_PUT_REQUEST, requests);
+				put(c, SQL_PUT_CLOSED, closed);
+				return null;
+			}
+		});
+		final MechanicShop source = from.db;
+		source.inTransaction(new MechanicShop.SQLWork<Void>() {
+			public Void run(Connection c) throws SQLException {
+				source.executeUpdate(SQL_DELETE_CLOSED, array);
+				source.executeUpdate(SQL_DELETE_REQUESTS, array);
+				source.executeUpdate(SQL_DELETE_OWNS, array);
+				source.executeUpdate(SQL_DELETE_CUSTOMERS, array);
+				return null;
+			}
+		});
+		return customers.size();
+	}//end move
+
+	//inserts rows of text in one batch, the statement casts them
+	private static int put(Connection c, String insert, List<List<String>> rows) throws SQLException {
+		if (rows.isEmpty())
+			return 0;
+		PreparedStatement stmt = c.prepareStatement(insert);
+		try{
+			for (List<String> row : rows){
+				for (int i = 0; i < row.size(); ++i)
+					stmt.setString(i + 1, row.get(i));
+				stmt.addBatch();
+			}
+			int copied = 0;
+			for (int n : stmt.executeBatch())
+				copied += Math.max(0, n);
+			return copied;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to describe the shards, one metric per line.
+	 */
+	public String getStats() {
+		double[] shares = ring.shares(shards.size());
+		StringBuilder sb = new StringBuilder();
+		sb.append("shards ").append(shards.size()).append('\n');
+		sb.append("shards_routed ").append(routed.get()).append('\n');
+		sb.append("shards_scatters ").append(scatters.get()).append('\n');
+		for (Shard s : shards)
+			sb.append("shard_ring_share{shard=\"").append(s.name).append("\"} ").append(String.format("%.3f", shares[s.index])).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Method to close the other shards' connections.
+	 */
+	public void close() {
+		executor.shutdownNow();
+		for (Shard s : shards)
+			if (s.index > 0)
+				s.db.cleanup();
+	}
+}//end ShardRouter
@@ -0,0 +1,401 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * This class logs every statement that runs longer than
+ * -Dmechanicshop.slowlog.thresholdMs (default 500), with its normalized SQL
+ * template, the SQL it was prepared from and its bound values.  Once a
+ * template has been slow -Dmechanicshop.slowlog.explainAfter times (default
+ * 3) its plan is captured: the slow statement is run again under EXPLAIN on
+ * a side connection, at most once per template every
+ * -Dmechanicshop.slowlog.explainIntervalMs (default 600000).  Queries are
+ * explained with (ANALYZE, BUFFERS) in a read only transaction; statements
+ * that write only get their plan, as ANALYZE would run the write.
+ *
+ * Statements are intercepted by a Proxy that StatementCache puts around
+ * every PreparedStatement it prepares, which records the bound values and
+ * times each execute call.  For a query read through a cursor that is the
+ * time to its first batch of rows, which for a report is when the server
+ * has done the joins, grouping and sorting.
+ *
+ * Slow statements and plans are written as one JSON object per line to
+ * -Dmechanicshop.slowlog.file (default slow-queries.log), rolled over past
+ * -Dmechanicshop.slowlog.maxFileBytes.  Plans are captured on their own
+ * thread, so the slow session does not wait for them.
+ * -Dmechanicshop.slowlog=false turns it off.
+ */
+public class SlowQueryLog {
+	static final boolean ENABLED = !"false".equals(System.getProperty("mechanicshop.slowlog"));
+	static final long THRESHOLD_MS = Long.getLong("mechanicshop.slowlog.thresholdMs", 500L);
+	static final String FILE = System.getProperty("mechanicshop.slowlog.file", "slow-queries.log");
+	static final long MAX_FILE_BYTES = Long.getLong("mechanicshop.slowlog.maxFileBytes", 10L << 20);
+	static final int KEEP_FILES = Integer.getInteger("mechanicshop.slowlog.keepFiles", 5);
+	static final int EXPLAIN_AFTER = Integer.getInteger("mechanicshop.slowlog.explainAfter", 3);
+	static final long EXPLAIN_INTERVAL_MS = Long.getLong("mechanicshop.slowlog.explainIntervalMs", 600000L);
+	//statement_timeout of a captured plan, ANALYZE runs the statement in full
+	static final long EXPLAIN_TIMEOUT_MS = Long.getLong("mechanicshop.slowlog.explainTimeoutMs", 60000L);
+	//plans waiting to be captured, more are dropped
+	static final int EXPLAIN_QUEUE = 16;
+	//templates listed by the Statistics menu
+	static final int TOP_TEMPLATES = 5;
+
+	private static final Pattern WRITES = Pattern.compile("\\b(INSERT|UPDATE|DELETE|TRUNCATE|MERGE)\\b", Pattern.CASE_INSENSITIVE);
+
+	private static volatile SlowQueryLog installed = null;
+
+	/**
+	 * The slow runs of one template.
+	 */
+	private static final class Template {
+		final String text;
+		final LongAdder slow = new LongAdder();
+		final LongAdder slowNanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+		final AtomicLong explainedAt = new AtomicLong();
+
+		Template(String text){
+			this.text = text;
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final long thresholdNanos;
+	private final RollingFile log;
+	private final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<String, Template>();
+	private final ThreadPoolExecutor explainer;
+	//used by the explainer thread only
+	private Connection side = null;
+	private final LongAdder slowTotal = new LongAdder();
+	private final LongAdder plansCaptured = new LongAdder();
+	private final LongAdder plansDropped = new LongAdder();
+	private final LongAdder plansFailed = new LongAdder();
+
+	public SlowQueryLog(ConnectionPool pool) {
+		this(pool, THRESHOLD_MS, new RollingFile(Paths.get(FILE), MAX_FILE_BYTES, KEEP_FILES));
+	}
+
+	SlowQueryLog(ConnectionPool pool, long thresholdMillis, RollingFile log) {
+		this.pool = pool;
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.log = log;
+		this.explainer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(EXPLAIN_QUEUE), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "slow-query-explainer");
+					t.setDaemon(true);
+					return t;
+				}
+			}, new ThreadPoolExecutor.DiscardPolicy() {
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+					plansDropped.increment();
+				}
+			});
+	}
+
+	/**
+	 * Method to make the statements prepared from now on be logged here.
+	 */
+	public static void install(SlowQueryLog log) {
+		installed = log;
+	}
+
+	/**
+	 * Method to wrap a statement so its slow executions are logged, when a
+	 * log is installed.
+	 *
+	 * @param stmt the statement as the driver prepared it
+	 * @param sql the SQL it was prepared from
+	 * @return the wrapped statement, or stmt itself
+	 */
+	static PreparedStatement wrap(PreparedStatement stmt, String sql) {
+		SlowQueryLog log = installed;
+		if (log == null)
+			return stmt;
+		return (PreparedStatement) Proxy.newProxyInstance(SlowQueryLog.class.getClassLoader(),
+			new Class<?>[] {PreparedStatement.class}, log.new Interceptor(stmt, sql));
+	}
+
+	/**
+	 * Forwards every call to the statement, keeping the bound values and
+	 * timing the executions.
+	 */
+	private final class Interceptor implements InvocationHandler {
+		private final PreparedStatement target;
+		private final String sql;
+		private Object[] params = new Object[8];
+		private int paramCount = 0;
+
+		Interceptor(PreparedStatement target, String sql){
+			this.target = target;
+			this.sql = sql;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.startsWith("set") && args != null && args.length >= 2 && method.getParameterTypes()[0] == int.class){
+				bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+			}else if (name.equals("clearParameters")){
+				Arrays.fill(params, 0, paramCount, null);
+				paramCount = 0;
+			}
+			if (!name.startsWith("execute") || (args != null && args.length > 0))
+				return call(method, args);
+			long start = System.nanoTime();
+			try{
+				return call(method, args);
+			}finally{
+				long nanos = System.nanoTime() - start;
+				if (nanos >= thresholdNanos)
+					slow(sql, Arrays.copyOf(params, paramCount), nanos);
+			}
+		}
+
+		private void bind(int index, Object value) {
+			if (index > params.length)
+				params = Arrays.copyOf(params, Math.max(index, params.length * 2));
+			params[index - 1] = value;
+			paramCount = Math.max(paramCount, index);
+		}
+
+		private Object call(Method method, Object[] args) throws Throwable {
+			try{
+				return method.invoke(target, args);
+			}catch (InvocationTargetException e){
+				throw e.getCause();
+			}
+		}
+	}//end Interceptor
+
+	/**
+	 * Method to log a slow execution and capture the plan of its template
+	 * when it is a repeat offender.
+	 */
+	void slow(final String sql, final Object[] params, long nanos) {
+		slowTotal.increment();
+		final String text = normalize(sql);
+		Template t = templates.get(text);
+		if (t == null){
+			Template fresh = new Template(text);
+			t = templates.putIfAbsent(text, fresh);
+			if (t == null)
+				t = fresh;
+		}
+		t.slow.increment();
+		t.slowNanos.add(nanos);
+		long max = t.maxNanos.get();
+		while (nanos > max && !t.maxNanos.compareAndSet(max, nanos))
+			max = t.maxNanos.get();
+
+		StringBuilder sb = entry("slow", text);
+		sb.append(",\"ms\":").append(nanos / 1e6);
+		sb.append(",\"thread\":").append(Json.quote(Thread.currentThread().getName()));
+		sb.append(",\"count\":").append(t.slow.sum());
+		sb.append(",\"sql\":").append(Json.quote(sql));
+		sb.append(",\"params\":[");
+		for (int i = 0; i < params.length; ++i){
+			if (i > 0)
+				sb.append(',');
+			sb.append(params[i] == null ? "null" : Json.quote(params[i].toString()));
+		}
+		write(sb.append("]}"));
+
+		long now = System.currentTimeMillis();
+		long last = t.explainedAt.get();
+		if (t.slow.sum() >= EXPLAIN_AFTER && now - last >= EXPLAIN_INTERVAL_MS && t.explainedAt.compareAndSet(last, now)){
+			explainer.execute(new Runnable() {
+				public void run() {
+					explain(text, sql, params);
+				}
+			});
+		}
+	}//end slow
+
+	//runs the statement under EXPLAIN on the side connection and logs the plan
+	private void explain(String text, String sql, Object[] params) {
+		boolean analyze = !WRITES.matcher(sql).find();
+		try{
+			Connection c = sideConnection();
+			try{
+				Statement set = c.createStatement();
+				try{
+					if (analyze)
+						set.execute("SET TRANSACTION READ ONLY");
+					set.execute("SET LOCAL statement_timeout = " + EXPLAIN_TIMEOUT_MS);
+				}finally{
+					set.close();
+				}
+				PreparedStatement ps = c.prepareStatement((analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ") + sql);
+				StringBuilder plan = new StringBuilder();
+				try{
+					for (int i = 0; i < params.length; ++i)
+						ps.setObject(i + 1, params[i]);
+					ResultSet rs = ps.executeQuery();
+					while (rs.next())
+						plan.append(rs.getString(1)).append('\n');
+					rs.close();
+				}finally{
+					ps.close();
+				}
+				StringBuilder sb = entry("plan", text);
+				sb.append(",\"analyze\":").append(analyze);
+				sb.append(",\"plan\":").append(Json.quote(plan.toString()));
+				write(sb.append('}'));
+				plansCaptured.increment();
+			}finally{
+				//nothing the statement did is kept
+				c.rollback();
+			}
+		}catch (SQLException e){
+			planFailed(text, e.getSQLState(), e);
+		}catch (RuntimeException e){
+			planFailed(text, null, e);
+		}
+	}//end explain
+
+	private void planFailed(String text, String sqlState, Exception e) {
+		plansFailed.increment();
+		closeSide();
+		StringBuilder sb = entry("plan_failed", text);
+		sb.append(",\"sqlstate\":").append(Json.quote(sqlState));
+		sb.append(",\"error\":").append(Json.quote(String.valueOf(e.getMessage())));
+		write(sb.append('}'));
+	}
+
+	private Connection sideConnection() throws SQLException {
+		if (side == null || side.isClosed()){
+			side = pool.openUnpooled();
+			side.setAutoCommit(false);
+		}
+		return side;
+	}
+
+	private void closeSide() {
+		if (side == null)
+			return;
+		try{
+			side.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+		side = null;
+	}
+
+	private static StringBuilder entry(String type, String template) {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"time\":").append(Json.quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").format(new Date())));
+		sb.append(",\"type\":").append(Json.quote(type));
+		sb.append(",\"template\":").append(Json.quote(template));
+		return sb;
+	}
+
+	private void write(StringBuilder entry) {
+		try{
+			log.append(entry.append('\n').toString());
+		}catch (IOException e){
+			System.err.println("Writing the slow query log " + log.getPath() + " failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to reduce a statement to its template: literals become ?, and
+	 * runs of blanks one blank, so statements that differ only in their
+	 * values are counted together.
+	 */
+	static String normalize(String sql) {
+		StringBuilder sb = new StringBuilder(sql.length());
+		int n = sql.length();
+		for (int i = 0; i < n; ++i){
+			char ch = sql.charAt(i);
+			if (ch == '\''){
+				//'' inside a literal is a quote
+				int j = i + 1;
+				while (j < n && (sql.charAt(j) != '\'' || (j + 1 < n && sql.charAt(j + 1) == '\'')))
+					j += sql.charAt(j) == '\'' ? 2 : 1;
+				i = j;
+				sb.append('?');
+			}else if (Character.isDigit(ch) && (sb.length() == 0 || !isWordChar(sb.charAt(sb.length() - 1)))){
+				while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.'))
+					++i;
+				sb.append('?');
+			}else if (Character.isWhitespace(ch)){
+				if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+					sb.append(' ');
+			}else{
+				sb.append(ch);
+			}
+		}
+		int end = sb.length();
+		while (end > 0 && sb.charAt(end - 1) == ' ')
+			--end;
+		sb.setLength(end);
+		return sb.toString();
+	}
+
+	private static boolean isWordChar(char ch) {
+		return Character.isLetterOrDigit(ch) || ch == '_' || ch == '$';
+	}
+
+	/**
+	 * Method to return the slow statement counts and the worst templates.
+	 */
+	public String getStats() {
+		List<Template> list = new ArrayList<Template>(templates.values());
+		Collections.sort(list, new Comparator<Template>() {
+			public int compare(Template a, Template b) {
+				return Long.compare(b.slowNanos.sum(), a.slowNanos.sum());
+			}
+		});
+		StringBuilder sb = new StringBuilder();
+		sb.append("slowlog_threshold_ms ").append(TimeUnit.NANOSECONDS.toMillis(thresholdNanos)).append('\n');
+		sb.append("slowlog_statements_total ").append(slowTotal.sum()).append('\n');
+		sb.append("slowlog_templates ").append(list.size()).append('\n');
+		sb.append("slowlog_plans_captured_total ").append(plansCaptured.sum()).append('\n');
+		sb.append("slowlog_plans_failed_total ").append(plansFailed.sum()).append('\n');
+		sb.append("slowlog_plans_dropped_total ").append(plansDropped.sum()).append('\n');
+		for (Template t : list.subList(0, Math.min(TOP_TEMPLATES, list.size())))
+			sb.append(String.format("slowlog_template count=%d total_ms=%.1f max_ms=%.1f %s%n", t.slow.sum(),
+				t.slowNanos.sum() / 1e6, t.maxNanos.get() / 1e6, t.text));
+		return sb.toString();
+	}
+
+	/**
+	 * Method to stop capturing plans and close the side connection.
+	 */
+	public void close() {
+		if (installed == this)
+			installed = null;
+		explainer.shutdownNow();
+		try{
+			explainer.awaitTermination(1, TimeUnit.SECONDS);
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		//the explainer thread is done with it now
+		closeSide();
+	}
+}//end SlowQueryLog
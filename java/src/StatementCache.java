@@ -0,0 +1,145 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps the PreparedStatements of one connection, keyed by their
+ * SQL template, in least-recently-used order.  A template is first run as an
+ * unnamed statement; once it has been used <hot threshold> times it is
+ * switched to a named server-side statement so Postgres parses and plans it
+ * only once for the rest of the connection's life.
+ *
+ * A PreparedStatement must not be shared between threads, so an instance is
+ * only ever used by the one thread that holds its connection.  While a
+ * SlowQueryLog is installed, every statement is prepared wrapped by it.
+ */
+public class StatementCache {
+	public static final int DEFAULT_CAPACITY = 64;
+	public static final int DEFAULT_HOT_THRESHOLD = 3;
+
+	private final Connection _connection;
+	private final int capacity;
+	private final int hotThreshold;
+	private final LinkedHashMap<String, Cached> statements;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * A cached statement together with its use count.
+	 */
+	private static class Cached {
+		final PreparedStatement stmt;
+		int uses = 0;
+
+		Cached(PreparedStatement stmt){
+			this.stmt = stmt;
+		}
+	}
+
+	public StatementCache(Connection connection, int capacity, int hotThreshold) {
+		this._connection = connection;
+		this.capacity = capacity;
+		this.hotThreshold = hotThreshold;
+		//access order turns the map into an LRU list
+		this.statements = new LinkedHashMap<String, Cached>(capacity * 2, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+				if (size() <= StatementCache.this.capacity)
+					return false;
+				closeQuietly(eldest.getValue().stmt);
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Method to return a ready PreparedStatement for an SQL template with its
+	 * parameters bound.  Parameters are bound with setObject in order, so
+	 * Integer, String, java.sql.Date and null are all accepted.
+	 *
+	 * @param sql the SQL template using ? placeholders
+	 * @param params the values for the placeholders
+	 * @return the bound statement, owned by the cache (do not close it)
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql, Object... params) throws SQLException {
+		Cached entry = statements.get(sql);
+		if (entry == null || entry.stmt.isClosed()){
+			entry = new Cached(SlowQueryLog.wrap(_connection.prepareStatement(sql), sql));
+			setPrepareThreshold(entry.stmt, 0);
+			statements.put(sql, entry);
+			misses++;
+		}else{
+			hits++;
+		}
+		if (++entry.uses == hotThreshold)
+			setPrepareThreshold(entry.stmt, 1);
+
+		PreparedStatement stmt = entry.stmt;
+		stmt.clearParameters();
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject(i + 1, params[i]);
+		return stmt;
+	}
+
+	/**
+	 * Method to drop a template, e.g. after it failed and the statement may
+	 * be left in a bad state.
+	 *
+	 * @param sql the SQL template to forget
+	 */
+	public void invalidate(String sql) {
+		Cached entry = statements.remove(sql);
+		if (entry != null)
+			closeQuietly(entry.stmt);
+	}
+
+	public int size() {
+		return statements.size();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public void close() {
+		Iterator<Cached> it = statements.values().iterator();
+		while (it.hasNext()){
+			closeQuietly(it.next().stmt);
+			it.remove();
+		}
+	}
+
+	//0 keeps the statement unnamed, 1 makes the driver prepare it on the server
+	private static void setPrepareThreshold(PreparedStatement stmt, int threshold) throws SQLException {
+		if (stmt.isWrapperFor(PGStatement.class))
+			stmt.unwrap(PGStatement.class).setPrepareThreshold(threshold);
+	}
+
+	private static void closeQuietly(PreparedStatement stmt) {
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+}//end StatementCache
@@ -1,5 +1,10 @@
 #! /bin/bash
+#startPostgreSQL.sh [port]: another port gets a cluster of its own, e.g. for a second shard
+export PGPORT=${1:-9998}
 folder=/tmp/$USER
+if [ "$PGPORT" != "9998" ]; then
+	folder=/tmp/$USER-$PGPORT
+fi
 export PGDATA=$folder/myDB/data
 export PGSOCKETS=$folder/myDB/sockets
 
@@ -21,6 +26,5 @@ initdb
 
 sleep 1
 #Start folder
-export PGPORT=9998
 pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT" -D $PGDATA -l $folder/logfile start
 
@@ -0,0 +1,24 @@
+#! /bin/bash
+#startReplica.sh <port> [primary port]: a streaming read replica of the cluster started by startPostgreSQL.sh
+export PGPORT=$1
+PRIMARY=${2:-9998}
+folder=/tmp/$USER-$PGPORT
+export PGDATA=$folder/myDB/data
+export PGSOCKETS=$folder/myDB/sockets
+
+echo $folder
+
+#Clear folder
+rm -rf $folder
+
+#Initialize folders
+mkdir $folder
+mkdir $folder/myDB
+mkdir $folder/myDB/sockets
+
+#Copy the primary; -R leaves standby.signal and primary_conninfo so it follows the primary
+pg_basebackup -h localhost -p $PRIMARY -D $PGDATA -R -X stream
+
+sleep 1
+#Start folder, read only
+pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT -c hot_standby=on" -D $PGDATA -l $folder/logfile start
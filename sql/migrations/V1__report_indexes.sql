@@ -0,0 +1,30 @@
+-----------------------------------------------------------------------
+-- V1: secondary indexes for the report joins and the last-name lookup
+-----------------------------------------------------------------------
+
+-- the BTREE indexes from create.sql duplicate the primary key indexes
+DROP INDEX IF EXISTS customerindex;
+DROP INDEX IF EXISTS mechanicindex;
+DROP INDEX IF EXISTS carindex;
+DROP INDEX IF EXISTS ownsindex;
+DROP INDEX IF EXISTS serviceindex;
+DROP INDEX IF EXISTS closeindex;
+
+-- join columns: Service_Request -> Car/Customer, Closed_Request -> Service_Request, Owns -> Customer/Car
+CREATE INDEX service_request_car_vin_idx ON Service_Request (car_vin);
+CREATE INDEX service_request_customer_id_idx ON Service_Request (customer_id);
+CREATE INDEX closed_request_rid_idx ON Closed_Request (rid);
+CREATE INDEX owns_customer_id_idx ON Owns (customer_id);
+CREATE INDEX owns_car_vin_idx ON Owns (car_vin);
+
+-- InsertServiceRequest looks customers up by last name
+CREATE INDEX customer_lname_idx ON Customer (lname);
+
+-- report 6: only the cheap jobs are ever listed
+CREATE INDEX closed_request_bill_lt100_idx ON Closed_Request (rid) WHERE bill < 100;
+
+-- report 8: old cars, and requests under 50000 miles by car
+CREATE INDEX car_year_idx ON Car (year);
+CREATE INDEX service_request_odometer_lt50000_idx ON Service_Request (car_vin) WHERE odometer < 50000;
+
+ANALYZE Customer, Car, Owns, Service_Request, Closed_Request;
@@ -0,0 +1,59 @@
+-----------------------------------------------------------------------
+-- V2: per-customer billing totals, maintained on every Closed_Request
+-- write, so report 10 reads one row per customer instead of grouping the
+-- whole request history
+-----------------------------------------------------------------------
+
+CREATE TABLE customer_billing
+(
+	customer_id INTEGER NOT NULL,
+	total_bill BIGINT NOT NULL DEFAULT 0,
+	closed_count INTEGER NOT NULL DEFAULT 0,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id)
+);
+
+CREATE INDEX customer_billing_total_bill_idx ON customer_billing (total_bill DESC);
+
+-- adds (sign = 1) or removes (sign = -1) one closed request from its customer
+CREATE OR REPLACE FUNCTION customer_billing_apply(request INTEGER, amount INTEGER, sign INTEGER) RETURNS void AS
+$$
+BEGIN
+	INSERT INTO customer_billing(customer_id, total_bill, closed_count)
+	SELECT s.customer_id, sign * amount, sign FROM Service_Request s WHERE s.rid = request
+	ON CONFLICT (customer_id) DO UPDATE
+	SET total_bill = customer_billing.total_bill + EXCLUDED.total_bill,
+	    closed_count = customer_billing.closed_count + EXCLUDED.closed_count;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION customer_billing_maintain() RETURNS trigger AS
+$$
+BEGIN
+	-- the bulk loader rebuilds the totals once at the end of its COPY
+	IF current_setting('mechanicshop.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM customer_billing_apply(OLD.rid, OLD.bill, -1);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM customer_billing_apply(NEW.rid, NEW.bill, 1);
+	END IF;
+	RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER closed_request_customer_billing
+AFTER INSERT OR UPDATE OF rid, bill OR DELETE
+ON Closed_Request
+FOR EACH ROW
+EXECUTE PROCEDURE customer_billing_maintain();
+
+INSERT INTO customer_billing(customer_id, total_bill, closed_count)
+SELECT s.customer_id, SUM(c.bill), COUNT(*)
+FROM Closed_Request c, Service_Request s
+WHERE c.rid = s.rid
+GROUP BY s.customer_id;
@@ -0,0 +1,81 @@
+-----------------------------------------------------------------------
+-- V3: open service requests per car, maintained on every Service_Request
+-- and Closed_Request write, so report 9 no longer anti-joins the two
+-- request tables
+-----------------------------------------------------------------------
+
+CREATE TABLE car_open_requests
+(
+	car_vin VARCHAR(16) NOT NULL,
+	open_count INTEGER NOT NULL DEFAULT 0,
+	PRIMARY KEY (car_vin),
+	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+);
+
+CREATE INDEX car_open_requests_open_count_idx ON car_open_requests (open_count, car_vin);
+
+-- moves the open count of a car by delta
+CREATE OR REPLACE FUNCTION car_open_requests_apply(vin VARCHAR, delta INTEGER) RETURNS void AS
+$$
+BEGIN
+	INSERT INTO car_open_requests(car_vin, open_count) VALUES (vin, delta)
+	ON CONFLICT (car_vin) DO UPDATE
+	SET open_count = car_open_requests.open_count + EXCLUDED.open_count;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+-- a new request is open until a Closed_Request row names it
+CREATE OR REPLACE FUNCTION car_open_requests_on_request() RETURNS trigger AS
+$$
+BEGIN
+	IF current_setting('mechanicshop.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'INSERT' THEN
+		PERFORM car_open_requests_apply(NEW.car_vin::VARCHAR, 1);
+	ELSIF NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = OLD.rid) THEN
+		PERFORM car_open_requests_apply(OLD.car_vin::VARCHAR, -1);
+	END IF;
+	RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+-- only the first close of a request changes its car's count, and only
+-- deleting the last one reopens it
+CREATE OR REPLACE FUNCTION car_open_requests_on_close() RETURNS trigger AS
+$$
+BEGIN
+	IF current_setting('mechanicshop.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'INSERT' THEN
+		IF NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = NEW.rid AND c.wid <> NEW.wid) THEN
+			PERFORM car_open_requests_apply(s.car_vin::VARCHAR, -1) FROM Service_Request s WHERE s.rid = NEW.rid;
+		END IF;
+	ELSIF NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = OLD.rid) THEN
+		PERFORM car_open_requests_apply(s.car_vin::VARCHAR, 1) FROM Service_Request s WHERE s.rid = OLD.rid;
+	END IF;
+	RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER service_request_car_open_requests
+AFTER INSERT OR DELETE
+ON Service_Request
+FOR EACH ROW
+EXECUTE PROCEDURE car_open_requests_on_request();
+
+CREATE TRIGGER closed_request_car_open_requests
+AFTER INSERT OR DELETE
+ON Closed_Request
+FOR EACH ROW
+EXECUTE PROCEDURE car_open_requests_on_close();
+
+INSERT INTO car_open_requests(car_vin, open_count)
+SELECT s.car_vin::VARCHAR, COUNT(*)
+FROM Service_Request s
+WHERE NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = s.rid)
+GROUP BY s.car_vin;
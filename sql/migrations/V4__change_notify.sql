@@ -0,0 +1,34 @@
+-----------------------------------------------------------------------
+-- V4: announce every committed write on channel mechanicshop_changes,
+-- with the table name as payload, so other processes can drop cached
+-- results that read it
+-----------------------------------------------------------------------
+
+CREATE OR REPLACE FUNCTION notify_table_change() RETURNS trigger AS
+$$
+BEGIN
+	-- delivered on commit, once per table and transaction
+	PERFORM pg_notify('mechanicshop_changes', lower(TG_TABLE_NAME));
+	RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER customer_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Customer
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+CREATE TRIGGER mechanic_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Mechanic
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+CREATE TRIGGER car_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Car
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+CREATE TRIGGER owns_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Owns
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+CREATE TRIGGER service_request_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Service_Request
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+CREATE TRIGGER closed_request_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Closed_Request
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+
+-- the derived tables are also rewritten on their own by rebuilds
+CREATE TRIGGER customer_billing_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON customer_billing
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+CREATE TRIGGER car_open_requests_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON car_open_requests
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
@@ -0,0 +1,17 @@
+-----------------------------------------------------------------------
+-- V5: a service request is closed at most once
+-----------------------------------------------------------------------
+
+-- earlier closes of the same request are kept aside, the first one stays
+CREATE TABLE closed_request_duplicate AS
+SELECT c.*
+FROM Closed_Request c
+WHERE EXISTS (SELECT 1 FROM Closed_Request f WHERE f.rid = c.rid AND f.wid < c.wid);
+
+DELETE FROM Closed_Request c
+WHERE EXISTS (SELECT 1 FROM Closed_Request f WHERE f.rid = c.rid AND f.wid < c.wid);
+
+-- replaces the plain index from V1; CloseServiceRequest relies on it to
+-- turn a concurrent second close into a no-op
+DROP INDEX IF EXISTS closed_request_rid_idx;
+CREATE UNIQUE INDEX closed_request_rid_key ON Closed_Request (rid);
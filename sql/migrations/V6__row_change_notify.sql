@@ -0,0 +1,49 @@
+-----------------------------------------------------------------------
+-- V6: announce the keys of changed Customer, Car and Owns rows on channel
+-- mechanicshop_rows, so the in-memory customer directory of other
+-- processes can re-read just those rows
+--
+--   customer:<id>   car:<vin>   owns:<customer id>   reload
+-----------------------------------------------------------------------
+
+CREATE OR REPLACE FUNCTION notify_row_change() RETURNS trigger AS
+$$
+BEGIN
+	-- a bulk load announces itself once, with 'reload'
+	IF current_setting('mechanicshop.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	-- pg_notify drops repeated payloads within a transaction
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM pg_notify('mechanicshop_rows', lower(TG_TABLE_NAME) || ':' || trim(to_json(OLD) ->> TG_ARGV[0]));
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM pg_notify('mechanicshop_rows', lower(TG_TABLE_NAME) || ':' || trim(to_json(NEW) ->> TG_ARGV[0]));
+	END IF;
+	RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION notify_table_reload() RETURNS trigger AS
+$$
+BEGIN
+	PERFORM pg_notify('mechanicshop_rows', 'reload');
+	RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE TRIGGER customer_notify_row AFTER INSERT OR UPDATE OR DELETE ON Customer
+FOR EACH ROW EXECUTE PROCEDURE notify_row_change('id');
+CREATE TRIGGER car_notify_row AFTER INSERT OR UPDATE OR DELETE ON Car
+FOR EACH ROW EXECUTE PROCEDURE notify_row_change('vin');
+CREATE TRIGGER owns_notify_row AFTER INSERT OR UPDATE OR DELETE ON Owns
+FOR EACH ROW EXECUTE PROCEDURE notify_row_change('customer_id');
+
+CREATE TRIGGER customer_notify_reload AFTER TRUNCATE ON Customer
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_reload();
+CREATE TRIGGER car_notify_reload AFTER TRUNCATE ON Car
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_reload();
+CREATE TRIGGER owns_notify_reload AFTER TRUNCATE ON Owns
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_reload();
@@ -0,0 +1,201 @@
+-----------------------------------------------------------------------
+-- V7: Service_Request and Closed_Request partitioned by month of the
+-- request date, so the request tables only hold the months still worked
+-- on (old months are archived by 'MechanicShop ... partitions archive')
+-- and the two tables join month by month.  A closed request lives in the
+-- month of its request, whose date it carries in request_date.  Needs
+-- PostgreSQL 12 or later.
+--
+-- The keys include the partition key; rid and wid stay unique because
+-- they are drawn from their sequences (KeyGenerator).
+-----------------------------------------------------------------------
+
+ALTER TABLE Closed_Request RENAME TO closed_request_flat;
+ALTER TABLE Service_Request RENAME TO service_request_flat;
+-- the names are reused by the partitioned tables
+ALTER TABLE closed_request_flat RENAME CONSTRAINT closed_request_pkey TO closed_request_flat_pkey;
+ALTER TABLE service_request_flat RENAME CONSTRAINT service_request_pkey TO service_request_flat_pkey;
+DROP INDEX IF EXISTS service_request_car_vin_idx, service_request_customer_id_idx,
+	service_request_odometer_lt50000_idx, closed_request_bill_lt100_idx, closed_request_rid_key;
+
+CREATE TABLE Service_Request
+(
+	rid INTEGER NOT NULL,
+	customer_id INTEGER NOT NULL,
+	car_vin CHAR(16) NOT NULL,
+	date DATE NOT NULL,
+	odometer _PINTEGER NOT NULL,
+	complain TEXT,
+	PRIMARY KEY (rid, date),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id),
+	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+) PARTITION BY RANGE (date);
+
+CREATE TABLE Closed_Request
+(
+	wid INTEGER NOT NULL,
+	rid INTEGER NOT NULL,
+	mid INTEGER NOT NULL,
+	date DATE NOT NULL,
+	comment TEXT,
+	bill _PINTEGER NOT NULL,
+	request_date DATE NOT NULL,
+	PRIMARY KEY (wid, request_date),
+	-- named, an archived month drops it (RequestPartitions)
+	CONSTRAINT closed_request_request_fkey FOREIGN KEY (rid, request_date) REFERENCES Service_Request(rid, date),
+	CONSTRAINT closed_request_mid_fkey FOREIGN KEY (mid) REFERENCES Mechanic(id)
+) PARTITION BY RANGE (request_date);
+
+-- creates the missing months from first to last of both tables, as
+-- service_request_y2016m10 and closed_request_y2016m10; returns how many
+CREATE OR REPLACE FUNCTION request_partitions_create(first DATE, last DATE) RETURNS INTEGER AS
+$$
+DECLARE
+	month DATE := date_trunc('month', first)::DATE;
+	suffix TEXT;
+	created INTEGER := 0;
+BEGIN
+	IF first IS NULL OR last IS NULL THEN
+		RETURN 0;
+	END IF;
+	-- two loaders may want the same month
+	PERFORM pg_advisory_xact_lock(hashtext('request_partitions'));
+	WHILE month <= last LOOP
+		suffix := to_char(month, '"y"YYYY"m"MM');
+		IF to_regclass('public.service_request_' || suffix) IS NULL THEN
+			EXECUTE format('CREATE TABLE public.%I PARTITION OF Service_Request FOR VALUES FROM (%L) TO (%L)',
+				'service_request_' || suffix, month, (month + INTERVAL '1 month')::DATE);
+			EXECUTE format('CREATE TABLE public.%I PARTITION OF Closed_Request FOR VALUES FROM (%L) TO (%L)',
+				'closed_request_' || suffix, month, (month + INTERVAL '1 month')::DATE);
+			created := created + 1;
+		END IF;
+		month := (month + INTERVAL '1 month')::DATE;
+	END LOOP;
+	RETURN created;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+SELECT request_partitions_create(LEAST(MIN(date), CURRENT_DATE), GREATEST(MAX(date), (CURRENT_DATE + INTERVAL '12 months')::DATE))
+FROM service_request_flat;
+
+INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain)
+SELECT rid, customer_id, car_vin, date, odometer, complain FROM service_request_flat;
+
+INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill, request_date)
+SELECT c.wid, c.rid, c.mid, c.date, c.comment, c.bill, s.date
+FROM closed_request_flat c, service_request_flat s
+WHERE s.rid = c.rid;
+
+-- their triggers go with them
+DROP TABLE closed_request_flat, service_request_flat;
+
+-- V1 and V5, built once the rows are in
+CREATE INDEX service_request_car_vin_idx ON Service_Request (car_vin);
+CREATE INDEX service_request_customer_id_idx ON Service_Request (customer_id);
+CREATE INDEX service_request_odometer_lt50000_idx ON Service_Request (car_vin) WHERE odometer < 50000;
+CREATE INDEX closed_request_bill_lt100_idx ON Closed_Request (rid) WHERE bill < 100;
+CREATE UNIQUE INDEX closed_request_rid_key ON Closed_Request (rid, request_date);
+
+-- the triggers of V2 and V3 look the other request table up in one month
+CREATE OR REPLACE FUNCTION customer_billing_apply(request INTEGER, opened DATE, amount INTEGER, sign INTEGER) RETURNS void AS
+$$
+BEGIN
+	INSERT INTO customer_billing(customer_id, total_bill, closed_count)
+	SELECT s.customer_id, sign * amount, sign FROM Service_Request s WHERE s.rid = request AND s.date = opened
+	ON CONFLICT (customer_id) DO UPDATE
+	SET total_bill = customer_billing.total_bill + EXCLUDED.total_bill,
+	    closed_count = customer_billing.closed_count + EXCLUDED.closed_count;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION customer_billing_maintain() RETURNS trigger AS
+$$
+BEGIN
+	-- the bulk loader rebuilds the totals once at the end of its COPY
+	IF current_setting('mechanicshop.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP IN ('UPDATE', 'DELETE') THEN
+		PERFORM customer_billing_apply(OLD.rid, OLD.request_date, OLD.bill, -1);
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM customer_billing_apply(NEW.rid, NEW.request_date, NEW.bill, 1);
+	END IF;
+	RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+DROP FUNCTION customer_billing_apply(INTEGER, INTEGER, INTEGER);
+
+CREATE OR REPLACE FUNCTION car_open_requests_on_request() RETURNS trigger AS
+$$
+BEGIN
+	IF current_setting('mechanicshop.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'INSERT' THEN
+		PERFORM car_open_requests_apply(NEW.car_vin::VARCHAR, 1);
+	ELSIF NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = OLD.rid AND c.request_date = OLD.date) THEN
+		PERFORM car_open_requests_apply(OLD.car_vin::VARCHAR, -1);
+	END IF;
+	RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+CREATE OR REPLACE FUNCTION car_open_requests_on_close() RETURNS trigger AS
+$$
+BEGIN
+	IF current_setting('mechanicshop.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'INSERT' THEN
+		IF NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = NEW.rid AND c.request_date = NEW.request_date AND c.wid <> NEW.wid) THEN
+			PERFORM car_open_requests_apply(s.car_vin::VARCHAR, -1) FROM Service_Request s WHERE s.rid = NEW.rid AND s.date = NEW.request_date;
+		END IF;
+	ELSIF NOT EXISTS (SELECT 1 FROM Closed_Request c WHERE c.rid = OLD.rid AND c.request_date = OLD.request_date) THEN
+		PERFORM car_open_requests_apply(s.car_vin::VARCHAR, 1) FROM Service_Request s WHERE s.rid = OLD.rid AND s.date = OLD.request_date;
+	END IF;
+	RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql VOLATILE;
+
+-- V2, V3 and V4 on the new tables
+CREATE TRIGGER closed_request_customer_billing
+AFTER INSERT OR UPDATE OF rid, bill OR DELETE
+ON Closed_Request
+FOR EACH ROW
+EXECUTE PROCEDURE customer_billing_maintain();
+
+CREATE TRIGGER service_request_car_open_requests
+AFTER INSERT OR DELETE
+ON Service_Request
+FOR EACH ROW
+EXECUTE PROCEDURE car_open_requests_on_request();
+
+CREATE TRIGGER closed_request_car_open_requests
+AFTER INSERT OR DELETE
+ON Closed_Request
+FOR EACH ROW
+EXECUTE PROCEDURE car_open_requests_on_close();
+
+CREATE TRIGGER service_request_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Service_Request
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+CREATE TRIGGER closed_request_notify AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Closed_Request
+FOR EACH STATEMENT EXECUTE PROCEDURE notify_table_change();
+
+-- report 6 joins the request tables on (rid, request date), one month
+-- at a time with this on
+DO $$
+BEGIN
+	EXECUTE format('ALTER DATABASE %I SET enable_partitionwise_join = on', current_database());
+EXCEPTION WHEN insufficient_privilege THEN
+	RAISE NOTICE 'Not the database owner, enable_partitionwise_join left off';
+END;
+$$;
+
+ANALYZE Service_Request, Closed_Request;
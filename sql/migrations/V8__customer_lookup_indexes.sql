@@ -0,0 +1,14 @@
+-----------------------------------------------------------------------
+-- V8: prefix lookups of customers by last name and by phone digits
+-----------------------------------------------------------------------
+
+-- the intake lookup matches the start of a last name in any case and the
+-- start of a phone number on its digits, like the customer directory;
+-- text_pattern_ops lets LIKE 'prefix%' read an index range in any collation
+CREATE INDEX customer_lname_lower_idx ON Customer (lower(rtrim(lname)) text_pattern_ops);
+CREATE INDEX customer_phone_digits_idx ON Customer (regexp_replace(phone, '[^0-9]', '', 'g') text_pattern_ops);
+
+-- the exact last-name index from V1 has no other reader
+DROP INDEX IF EXISTS customer_lname_idx;
+
+ANALYZE Customer;
@@ -0,0 +1,101 @@
+DROP TABLE IF EXISTS Customer CASCADE;--OK
+DROP TABLE IF EXISTS Mechanic CASCADE;--OK
+DROP TABLE IF EXISTS Car CASCADE;--OK
+DROP TABLE IF EXISTS Owns CASCADE;--OK
+DROP TABLE IF EXISTS Service_Request CASCADE;--OK
+DROP TABLE IF EXISTS Closed_Request CASCADE;--OK
+DROP TABLE IF EXISTS temp CASCADE; 
+DROP TABLE IF EXISTS customer_billing CASCADE;
+DROP TABLE IF EXISTS car_open_requests CASCADE;
+DROP TABLE IF EXISTS closed_request_duplicate CASCADE;
+DROP TABLE IF EXISTS schema_version CASCADE;
+DROP DOMAIN IF EXISTS us_postal_code CASCADE;
+DROP DOMAIN IF EXISTS _STATUS CASCADE;
+DROP DOMAIN IF EXISTS _GENDER CASCADE;
+DROP DOMAIN IF EXISTS _CODE CASCADE;
+DROP DOMAIN IF EXISTS _PINTEGER CASCADE;
+DROP DOMAIN IF EXISTS _PZEROINTEGER CASCADE;
+DROP DOMAIN IF EXISTS _YEARS CASCADE;
+DROP DOMAIN IF EXISTS _YEAR CASCADE;
+
+
+-------------
+---DOMAINS---
+-------------
+CREATE DOMAIN us_postal_code AS TEXT CHECK(VALUE ~ '^\d{5}$' OR VALUE ~ '^\d{5}-\d{4}$');
+CREATE DOMAIN _STATUS CHAR(1) CHECK (value IN ( 'W' , 'C', 'R' ) );
+CREATE DOMAIN _GENDER CHAR(1) CHECK (value IN ( 'F' , 'M' ) );
+CREATE DOMAIN _CODE CHAR(2) CHECK (value IN ( 'MJ' , 'MN', 'SV' ) ); --Major, Minimum, Service
+CREATE DOMAIN _PINTEGER AS int4 CHECK(VALUE > 0);
+CREATE DOMAIN _PZEROINTEGER AS int4 CHECK(VALUE >= 0);
+CREATE DOMAIN _YEARS AS int4 CHECK(VALUE >= 0 AND VALUE < 100);
+CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1970);
+
+------------
+---TABLES---
+------------
+CREATE TABLE Customer
+(
+	id INTEGER NOT NULL,
+	fname CHAR(32) NOT NULL,
+	lname CHAR(32) NOT NULL,
+	phone CHAR(13) NOT NULL,
+	address CHAR(256) NOT NULL,
+	PRIMARY KEY (id)
+);
+
+CREATE TABLE Mechanic
+(
+	id INTEGER NOT NULL,
+	fname CHAR(32) NOT NULL,
+	lname CHAR(32) NOT NULL,
+	experience _YEARS NOT NULL,
+	PRIMARY KEY (id) 
+);
+
+CREATE TABLE Car
+(
+	vin VARCHAR(16) NOT NULL,
+	make VARCHAR(32) NOT NULL,
+	model VARCHAR(32) NOT NULL,
+	year _YEAR NOT NULL,
+	PRIMARY KEY (vin)
+);
+---------------
+---RELATIONS---
+---------------
+CREATE TABLE Owns
+(
+	ownership_id INTEGER NOT NULL,
+	customer_id INTEGER NOT NULL,
+	car_vin VARCHAR(16) NOT NULL,
+	PRIMARY KEY (ownership_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id),
+	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+);
+
+CREATE TABLE Service_Request
+(
+	rid INTEGER NOT NULL,
+	customer_id INTEGER NOT NULL,
+	car_vin CHAR(16) NOT NULL,
+	date DATE NOT NULL,
+	odometer _PINTEGER NOT NULL,
+	complain TEXT,
+	PRIMARY KEY (rid),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id),
+	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+);
+
+CREATE TABLE Closed_Request
+(
+	wid INTEGER NOT NULL,
+	rid INTEGER NOT NULL,
+	mid INTEGER NOT NULL,
+	date DATE NOT NULL,
+	comment TEXT,
+	bill _PINTEGER NOT NULL,
+	PRIMARY KEY (wid),
+	FOREIGN KEY (rid) REFERENCES Service_Request(rid),
+	FOREIGN KEY (mid) REFERENCES Mechanic(id)
+);